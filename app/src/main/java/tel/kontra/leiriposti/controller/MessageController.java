@@ -1,22 +1,63 @@
 package tel.kontra.leiriposti.controller;
 
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import tel.kontra.leiriposti.event.EventBus;
+import tel.kontra.leiriposti.event.MessageStatusChanged;
+import tel.kontra.leiriposti.event.PrintingCompleted;
 import tel.kontra.leiriposti.model.Message;
+import tel.kontra.leiriposti.model.MessageSnapshot;
 import tel.kontra.leiriposti.model.MessageStatus;
+import tel.kontra.leiriposti.model.MessageStore;
+import tel.kontra.leiriposti.model.MessageArchive;
+import tel.kontra.leiriposti.model.MessageJournal;
+import tel.kontra.leiriposti.model.MessageStorage;
 import tel.kontra.leiriposti.model.SheetsNotFoundException;
+import tel.kontra.leiriposti.service.AutosaveService;
+import tel.kontra.leiriposti.service.StorageBackend;
 import tel.kontra.leiriposti.view.MainGui;
 
 /**
  * MessageController class is responsible for managing messages in the application.
  * It follows the singleton design pattern to ensure only one instance exists.
  * 
- * @version 1.0
+ * Messages are indexed by their identity, so finding a message and updating its status
+ * is O(1) instead of comparing every field of every message. The store also keeps the
+ * messages partitioned by status, it follows the status changes posted on the EventBus.
+ * 
+ * Messages are read from immutable snapshots of the store, so the GUI can read them while
+ * new messages are added on a background thread. Messages sent in a time range, for example
+ * today's mail, are found from the time index of the store without going through every message.
+ * 
+ * Printed and deleted messages, and messages older than archive.age.hours in the properties that
+ * are not queued for printing, are moved to a compact archive after loading, fetching and printing,
+ * so only about a day of mail is held as message objects, not a whole season of letters.
+ * 
+ * Messages are searched from the word index of the store, archived messages included.
+ * 
+ * New messages and status changes are appended to the journal of the session when they happen,
+ * so they are saved without writing all the messages. The autosave thread writes them to the disk
+ * and compacts the journal into a snapshot of the messages when it grows, see {@link #saveChanges()}.
+ * The journal is the {@link MessageStorage} of the storage backend, a {@link MessageJournal} or a database.
+ * 
+ * @see Message#getId()
+ * @see MessageStore
+ * @see MessageArchive
+ * @see MessageJournal
+ * 
+ * @version 1.10
  * @since 0.2
  * 
  * @author Markus
@@ -28,8 +69,12 @@ public class MessageController {
     private static MessageController instance; // Singleton instance
     private SheetsController sheetsController; // SheetsController instance for Google Sheets API
 
-    private Date latestMessage; // Date of last message
-    private List<Message> messages; // List of messages
+    private volatile MessageStore messageStore; // Messages by identity and by status
+    private volatile MessageStorage journal; // Journal of the session, null until opened
+    private Thread indexThread; // Thread building the search index, null if none was started
+    private volatile int importedRow; // Last spreadsheet row whose messages are in the journal
+    private volatile int savedRow; // Last spreadsheet row whose messages are on the disk
+    private final Duration archiveAge; // Age of the messages that are archived, null to archive by status only
 
     /**
      * Private constructor for MessageController.
@@ -38,10 +83,22 @@ public class MessageController {
      * @param spreadsheetId The ID of the Google Sheets spreadsheet to be accessed.
      * This constructor is private to enforce the singleton pattern.
      */
-    private MessageController(SheetsController sheetsController, List<Message> messages) {
+    private MessageController(SheetsController sheetsController, List<Message> messages, MessageArchive archive) {
         this.sheetsController = sheetsController; // Initialize the SheetsController instance
-        this.messages = messages;
-        this.latestMessage = null;
+        this.importedRow = sheetsController.getLatestRow();
+        this.savedRow = importedRow;
+        this.archiveAge = archiveAge(PropertiesController.getInstance().getProperty("archive.age.hours"));
+        setMessages(messages, archive);
+
+        // Keep the index up to date when a status changes, wherever it is changed
+        EventBus.getInstance().register(MessageStatusChanged.class, event -> {
+            if (messageStore.statusChanged(event.getMessage(), event.getOldStatus(), event.getNewStatus())) {
+                journalStatus(event.getMessage(), event.getNewStatus());
+            }
+        });
+
+        // Archive the messages that were printed
+        EventBus.getInstance().register(PrintingCompleted.class, event -> archiveInactive());
     }
 
     /**
@@ -73,7 +130,7 @@ public class MessageController {
             throw new IllegalStateException("SheetsController is not initialized. Please initialize it first.");
         }
         if (instance == null) {
-            instance = new MessageController(sheetsController, new ArrayList<>()); // Create new instance if not already created
+            instance = new MessageController(sheetsController, new ArrayList<>(), null); // Create new instance if not already created
         }
         return instance;
     }
@@ -87,15 +144,28 @@ public class MessageController {
      * if the controller is not initialized, it will throw an IllegalStateException.
      */
     public static synchronized MessageController getInstance(SheetsController sheetsController, List<Message> messages) {
+        return getInstance(sheetsController, messages, null);
+    }
+
+    /**
+     * Get the singleton instance of MessageController with a list of messages and archived messages.
+     * 
+     * @param sheetsController The SheetsController instance to be used for Google Sheets API.
+     * @param messages The initial list of active messages to be managed by the controller.
+     * @param archive The archived messages, or null if there are none.
+     * @return The singleton instance of MessageController.
+     * if the controller is not initialized, it will throw an IllegalStateException.
+     */
+    public static synchronized MessageController getInstance(SheetsController sheetsController, List<Message> messages, MessageArchive archive) {
         
         // Check that sheetsController is initialized
         if (sheetsController.isInitialized() == false) {
             throw new IllegalStateException("SheetsController is not initialized. Please initialize it first.");
         }
         if (instance == null) {
-            instance = new MessageController(sheetsController, messages); // Create new instance if not already created
+            instance = new MessageController(sheetsController, messages, archive); // Create new instance if not already created
         } else {
-            instance.setMessages(messages); // Update the messages list if instance already exists
+            instance.setMessages(messages, archive); // Update the messages list if instance already exists
         }
         return instance;
     }
@@ -103,54 +173,442 @@ public class MessageController {
     /**
      * Get the list of messages.
      * 
-     * @return List of messages.
+     * @return Read-only list of all messages, deleted messages included.
      */
     public List<Message> getMessages() {
-        return messages;
+        return messageStore.snapshot();
     }
 
     /**
      * Get the list of messages filtered by status.
+     * Takes time in proportion to the messages in the status.
      * 
-     * @param filter The status to filter messages by. If null, returns all messages.
-     * @return List of messages filtered by the specified status.
+     * @param filter The status to filter messages by. If null, returns all messages. ALL returns all messages except DELETED.
+     * @return Read-only list of messages filtered by the specified status.
      */
     public List<Message> getMessages(MessageStatus filter) {
+        MessageSnapshot snapshot = messageStore.snapshot();
         if (filter == null) {
-            return messages; // Return all messages if no filter is applied
+            return snapshot; // Return all messages if no filter is applied
         }
+        return snapshot.getMessages(filter);
+    }
 
-        // If filter is ALL, return all messages
-        if (filter == MessageStatus.ALL) {
+    /**
+     * Search the messages for words in the subject, body, recipient and author.
+     * Every word of the query has to be found, as the start of a word, so "mum ain" finds a letter
+     * from "Mummo" to "Aino". Case and Finnish letters are ignored, "aiti" finds "&auml;iti".
+     * 
+     * @param query The words to search for. If it has no words, the messages are only filtered.
+     * @param filter The status to filter messages by. If null or ALL, all messages except DELETED.
+     * @return Read-only list of the messages found, in the order they were added.
+     */
+    public List<Message> searchMessages(String query, MessageStatus filter) {
+        MessageSnapshot snapshot = messageStore.snapshot(); // Taken first, later messages are left out of the results
+        BitSet found = messageStore.search(query);
+        if (found == null) {
+            return snapshot.getMessages(filter);
+        }
+        return snapshot.getMessages(filter, found);
+    }
 
-            // Return all messages except DELETED
-            List<Message> filteredMessages = new ArrayList<>();
-            for (Message message : messages) {
-                if (message.getStatus() != MessageStatus.DELETED) {
-                    filteredMessages.add(message); // Add message to filtered list if it is not deleted
-                }
-            }
-            return filteredMessages; // Return the filtered list of messages
+    /**
+     * Check if searching the messages is quick, the words of the messages are indexed on the first search.
+     * 
+     * @return True if the messages can be searched without building the index.
+     * @see #prepareSearch(Runnable)
+     */
+    public boolean isSearchReady() {
+        return messageStore.isSearchReady();
+    }
+
+    /**
+     * Build the search index on a background thread, so searching does not block the caller.
+     * Does nothing but wait for the build already running if there is one.
+     * 
+     * @param onReady Run on the background thread when the index is built.
+     */
+    public synchronized void prepareSearch(Runnable onReady) {
+        if (indexThread != null && indexThread.isAlive()) {
+            return; // The running build calls its own callback, which searches with the latest query
         }
 
-        List<Message> filteredMessages = new ArrayList<>();
-        for (Message message : messages) {
-            if (message.getStatus() == filter) {
-                filteredMessages.add(message); // Add message to filtered list if it matches the filter
+        MessageStore store = messageStore;
+        indexThread = new Thread(() -> {
+            store.buildSearchIndex();
+            onReady.run();
+        }, "search-index");
+        indexThread.setDaemon(true); // Don't keep the application running
+        indexThread.start();
+    }
+
+    /**
+     * Get an immutable snapshot of the messages.
+     * The snapshot has a version, the messages have not changed while the version stays the same.
+     * 
+     * @return The snapshot of the messages.
+     */
+    public MessageSnapshot getSnapshot() {
+        return messageStore.snapshot();
+    }
+
+    /**
+     * Get a read-only live view of the messages in a status.
+     * The view follows the status changes. Statuses change on the print thread too,
+     * use {@link #getMessages(MessageStatus)} for a copy that is safe to iterate anywhere.
+     * 
+     * @param status The status of the messages. ALL gives all messages except DELETED.
+     * @return The view of the messages.
+     */
+    public Collection<Message> getMessageView(MessageStatus status) {
+        return messageStore.view(status);
+    }
+
+    /**
+     * Get the number of messages in a status in O(1).
+     * 
+     * @param status The status of the messages. ALL counts all messages except DELETED.
+     * @return The number of messages.
+     */
+    public int getMessageCount(MessageStatus status) {
+        return messageStore.count(status);
+    }
+
+    /**
+     * Get a message by its identity.
+     * 
+     * @param id The identity of the message.
+     * @return The message, or null if there is no message with the identity.
+     */
+    public Message getMessage(String id) {
+        return messageStore.get(id);
+    }
+
+    /**
+     * Get the message sent last.
+     * 
+     * @return The newest message, or null if there are no messages.
+     */
+    public Message getLatestMessage() {
+        return messageStore.latest();
+    }
+
+    /**
+     * Get the messages sent in a time range, deleted messages excluded.
+     * 
+     * @param from Start of the range, inclusive.
+     * @param to End of the range, exclusive.
+     * @return The messages from the oldest to the newest.
+     */
+    public List<Message> getMessagesBetween(Instant from, Instant to) {
+        return withoutDeleted(messageStore.between(from, to));
+    }
+
+    /**
+     * Get the messages sent on a weekday in a time range, deleted messages excluded.
+     * 
+     * @param day The weekday in Finnish time.
+     * @param from Start of the range, inclusive.
+     * @param to End of the range, exclusive.
+     * @return The messages from the oldest to the newest.
+     */
+    public List<Message> getMessagesBetween(DayOfWeek day, Instant from, Instant to) {
+        return withoutDeleted(messageStore.between(day, from, to));
+    }
+
+    /**
+     * Get the messages sent on a day in Finnish time, deleted messages excluded.
+     * 
+     * @param date The day, for example today for today's mail.
+     * @return The messages from the oldest to the newest.
+     */
+    public List<Message> getMessagesOn(LocalDate date) {
+        return withoutDeleted(messageStore.on(date));
+    }
+
+    /**
+     * Get the messages sent since a time, deleted messages excluded.
+     * 
+     * @param since The time, for example the last mail call.
+     * @return The messages from the oldest to the newest.
+     */
+    public List<Message> getMessagesSince(Instant since) {
+        return withoutDeleted(messageStore.since(since));
+    }
+
+    /**
+     * Get the letters sent to a recipient in a time range, in every saved session, deleted messages excluded.
+     * The storage backend answers from its indexes when it can, the changes of this session are flushed
+     * first so they are found too. Otherwise only the messages of this session are searched.
+     * Reads the disk, call it on a background thread.
+     * 
+     * @param recipient The recipient as written in the form.
+     * @param from Start of the range, inclusive.
+     * @param to End of the range, exclusive.
+     * @return The messages from the oldest to the newest.
+     */
+    public List<Message> getMessagesTo(String recipient, Instant from, Instant to) {
+        StorageBackend storage = SessionProfileController.getInstance().getStorageBackend();
+        MessageStorage current = journal;
+        try {
+            if (current != null) {
+                current.flush();
+            }
+            List<Message> found = storage.findMessages(recipient, from, to);
+            if (found != null) {
+                return withoutDeleted(found);
             }
+        } catch (IOException e) {
+            LOGGER.error("Error finding the messages of every session, searching this session only: " + e.getMessage(), e);
         }
-        return filteredMessages; // Return the filtered list of messages
+
+        List<Message> messages = messageStore.between(from, to);
+        messages.removeIf(message -> !Objects.equals(message.getRecipient(), recipient));
+        return withoutDeleted(messages);
+    }
+
+    /**
+     * Remove the deleted messages from a list of messages.
+     * 
+     * @param messages The messages, the list is changed.
+     * @return The list without the deleted messages.
+     */
+    private static List<Message> withoutDeleted(List<Message> messages) {
+        messages.removeIf(message -> message.getStatus() == MessageStatus.DELETED);
+        return messages;
     }
 
     /**
      * Set the list of messages.
-     * This method replaces the current list of messages with the provided list.
+     * This method replaces the current messages with the provided list.
      * Used to load messages from persistent storage or to update the list.
      * 
-     * @param message The message to be added.
+     * @param messages The messages to be managed, they are copied into a new store.
      */
     public void setMessages(List<Message> messages) {
-        this.messages = messages;
+        setMessages(messages, null);
+    }
+
+    /**
+     * Set the list of messages and the archived messages.
+     * Messages in the list that are already printed or deleted are archived.
+     * 
+     * @param messages The active messages to be managed, they are copied into a new store.
+     * @param archive The archived messages, or null if there are none.
+     */
+    public void setMessages(List<Message> messages, MessageArchive archive) {
+        this.messageStore = new MessageStore(messages, archive);
+        archiveInactive();
+    }
+
+    /**
+     * Get the messages that are not archived, for saving the session.
+     * 
+     * @return The active messages.
+     */
+    public List<Message> getActiveMessages() {
+        return messageStore.getActiveMessages();
+    }
+
+    /**
+     * Get the active and the archived messages together, for saving the session.
+     * 
+     * @return The active messages and the archive, taken at the same time.
+     */
+    public MessageStorage.Snapshot getStorageSnapshot() {
+        return messageStore.getStorageSnapshot();
+    }
+
+    /**
+     * Get the archived messages, for saving the session.
+     * 
+     * @return The archive of the printed and deleted messages.
+     */
+    public MessageArchive getArchive() {
+        return messageStore.getArchive();
+    }
+
+    /**
+     * Move the printed and deleted messages, and the old messages that are not queued, to the compact archive.
+     * Archived messages are still found and shown, they are built from the archive when they are read.
+     */
+    public void archiveInactive() {
+        int archived = messageStore.archive(archiveAge != null ? Instant.now().minus(archiveAge) : null);
+        if (archived > 0) {
+            LOGGER.info("Archived " + archived + " messages, " + messageStore.getArchivedCount() + " in the archive.");
+        }
+    }
+
+    /**
+     * Restore an archived message, hold it as an object again until it is archived again.
+     * Messages that become active again are restored without this.
+     *
+     * @param id The identity of the message.
+     * @return The message, or null if there is no message with the identity.
+     */
+    public Message restoreMessage(String id) {
+        return messageStore.restore(id);
+    }
+
+    /**
+     * Parse the age of the messages that are archived.
+     *
+     * @param hours The age in hours, missing or not positive to archive by status only.
+     * @return The age, or null.
+     */
+    private static Duration archiveAge(String hours) {
+        if (hours == null || hours.isBlank()) {
+            return null;
+        }
+        try {
+            long value = Long.parseLong(hours.trim());
+            return value > 0 ? Duration.ofHours(value) : null;
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid archive.age.hours, messages are archived by status only: " + hours);
+            return null;
+        }
+    }
+
+    /**
+     * Replay the journal of the session on top of the messages and start appending the changes to it.
+     * Call this once, after the messages of the session have been set.
+     * 
+     * If the journal can not be opened the messages are only held in memory, the caller should save them
+     * in the session profile when the application is closed, see {@link #closeJournal()}.
+     * 
+     * @param journal The journal of the session.
+     * @return True if the journal was opened.
+     */
+    public boolean openJournal(MessageStorage journal) {
+        try {
+            journal.open(
+                message -> messageStore.add(message),
+                (id, status) -> {
+                    Message message = messageStore.get(id);
+                    if (message != null) {
+                        message.setStatus(status); // Updates the store through the status event, the journal is not open yet
+                    }
+                }
+            );
+            this.journal = journal;
+        } catch (IOException e) {
+            LOGGER.error("Error opening the message journal, changes are saved only when the application is closed: " + e.getMessage(), e);
+            archiveInactive();
+            return false;
+        }
+        archiveInactive(); // Printed while the journal was written
+        return true;
+    }
+
+    /**
+     * Write all messages to the snapshot of the journal and empty the journal.
+     * Called when the journal grows and when the application is closed.
+     * 
+     * @return True if the messages were written to the snapshot.
+     */
+    public boolean compactJournal() {
+        MessageStorage current = journal;
+        if (current == null) {
+            return false;
+        }
+
+        try {
+            current.compact(messageStore::getStorageSnapshot);
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Error compacting the message journal: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Compact and close the journal of the session.
+     * 
+     * @return True if the messages were written to the snapshot, false if they are only held in memory
+     * and should be saved in the session profile.
+     */
+    public boolean closeJournal() {
+        MessageStorage current = journal;
+        if (current == null) {
+            return false;
+        }
+
+        boolean compacted = compactJournal();
+        journal = null;
+        try {
+            current.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing the message journal: " + e.getMessage(), e);
+        }
+        return compacted;
+    }
+
+    /**
+     * Check if there are changes to the messages that have not been written to the disk.
+     * 
+     * @return True if the journal has records to flush or should be compacted.
+     */
+    public boolean hasUnsavedChanges() {
+        MessageStorage current = journal;
+        return current != null && (current.hasPending() || current.isCompactionDue());
+    }
+
+    /**
+     * Write the journaled changes to the disk, and compact the journal if it has grown.
+     * Called on the autosave thread, the records are only buffered when the changes are made.
+     * 
+     * @throws IOException If the changes can not be written, they are tried again on the next save.
+     */
+    public void saveChanges() throws IOException {
+        MessageStorage current = journal;
+        if (current == null) {
+            return;
+        }
+
+        int row = importedRow; // Its messages were appended before, the flush writes them
+        current.flush();
+        savedRow = row;
+        if (current.isCompactionDue()) {
+            compactJournal();
+        }
+    }
+
+    /**
+     * Get the last spreadsheet row whose messages have been written to the disk.
+     * Saving this row with the session never skips rows whose messages could still be lost in a crash.
+     * 
+     * @return The row number.
+     */
+    public int getSavedRow() {
+        return journal != null ? savedRow : importedRow; // Without a journal the messages are saved on close
+    }
+
+    private void journalMessage(Message message) {
+        MessageStorage current = journal;
+        if (current == null) {
+            return;
+        }
+
+        try {
+            current.appendMessage(message);
+            AutosaveService.getInstance().changed();
+        } catch (IOException e) {
+            LOGGER.error("Error journaling message: " + message.getId(), e);
+        }
+    }
+
+    private void journalStatus(Message message, MessageStatus status) {
+        MessageStorage current = journal;
+        if (current == null) {
+            return;
+        }
+
+        try {
+            current.appendStatus(message, status);
+            AutosaveService.getInstance().changed();
+        } catch (IOException e) {
+            LOGGER.error("Error journaling status of message: " + message.getId(), e);
+        }
     }
 
     /**
@@ -158,18 +616,23 @@ public class MessageController {
      * This method fetches messages that have not been previously retrieved.
      * It updates the internal list of messages and the timestamp of the latest message.
      */
-    public void getNewMessages() throws SheetsNotFoundException {
+    public synchronized void getNewMessages() throws SheetsNotFoundException {
         List<Message> messages = sheetsController.getNewMessages();
 
         if (messages != null && !messages.isEmpty()) {
-            this.messages.addAll(messages); // Add new messages to the existing list
             
-            LOGGER.info("New messages retrieved: " + messages.size());
-            
-            // Update timestamp of the latest message
-            if (latestMessage == null || messages.get(messages.size() - 1).getTimeStamp().after(latestMessage)) {
-                latestMessage = messages.get(messages.size() - 1).getTimeStamp(); // Update latest message date
+            // Add new messages to the existing list, skipping rows that were already imported
+            int added = 0;
+            for (Message message : messages) {
+                if (messageStore.add(message)) {
+                    journalMessage(message);
+                    added++;
+                }
             }
+            
+            LOGGER.info("New messages retrieved: " + added);
+            importedRow = sheetsController.getLatestRow(); // After the messages are in the journal
+            archiveInactive(); // Printed while the messages were fetched
         } else {
             LOGGER.info("No new messages found.");
         }
@@ -187,16 +650,15 @@ public class MessageController {
             throw new IllegalArgumentException("Message and status cannot be null.");
         }
         
-        // Find the message in the list and update its status
-        for (Message msg : messages) {
-            if (msg.equals(message)) {
-                updateMessageStatus(message, status);
-                LOGGER.info("Message status updated: " + msg.getSubject() + " to " + status);
-                return;
-            }
+        // Find the message by its identity and update its status
+        Message msg = messageStore.get(message.getId());
+        if (msg == null) {
+            LOGGER.warn("Message not found: " + message.getSubject());
+            return;
         }
-        
-        LOGGER.warn("Message not found: " + message.getSubject());
+
+        updateMessageStatus(msg, status);
+        LOGGER.info("Message status updated: " + msg.getSubject() + " to " + status);
     }
 
     /**
@@ -231,8 +693,7 @@ public class MessageController {
          * The statuses are handled as follows:
          * - PRINTED: No action needed, message is already printed.
          * - PRINTING: No action needed, message is currently being printed.
-         * - DELETED: No action needed, message is deleted.
-         * - NOT_PRINTED: If the message was previously QUEUED, remove it from the print queue.
+         * - DELETED, NOT_PRINTED: If the message was previously QUEUED or ERROR, remove it from the print queue and retry lane.
          * - QUEUED: If the message is not printed, add it to the print queue.
          * - ERROR: Log an error message, no further action needed.
          * 
@@ -241,11 +702,11 @@ public class MessageController {
         switch(status) {
             case PRINTED: break; // No action needed for these statuses
             case PRINTING: break; // No action needed for these statuses
-            case DELETED: break; // No action needed for these statuses
 
+            case DELETED:
             case NOT_PRINTED: 
-                // If the messages last status was QUEUED, we need to remove it from the print queue
-                if (message.getStatus() == MessageStatus.QUEUED) {
+                // If the messages last status was QUEUED or ERROR, we need to remove it from the print queue and retry lane
+                if (message.getStatus() == MessageStatus.QUEUED || message.getStatus() == MessageStatus.ERROR) {
                     printerController.removeFromPrintQueue(message); // Remove message from the print queue
                     LOGGER.info("Message removed from print queue: " + message.getSubject());
                 }
@@ -273,7 +734,5 @@ public class MessageController {
         
         // Finally, update the status of the message
         message.setStatus(status); // Update the status of the message
-
-        LOGGER.warn("Message not found: " + message.getSubject());
     }
 }
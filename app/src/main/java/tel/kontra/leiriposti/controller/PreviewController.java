@@ -0,0 +1,318 @@
+package tel.kontra.leiriposti.controller;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.print.PageFormat;
+import java.awt.print.PrinterException;
+import java.awt.print.PrinterJob;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import tel.kontra.leiriposti.model.LetterTemplate;
+import tel.kontra.leiriposti.model.Message;
+import tel.kontra.leiriposti.model.PrintableMessage;
+import tel.kontra.leiriposti.util.LruCache;
+
+/**
+ * PreviewController renders small previews of the first page of letters.
+ *
+ * Previews are rendered on background threads, never on the JavaFX Application Thread.
+ * The newest request is rendered first, so when scrolling through the message list
+ * the rows on screen get their previews before the rows that were scrolled past.
+ *
+ * Rendered previews are kept in an LRU cache bounded by memory, keyed by the message
+ * and the letter template they were rendered with. Changing the template or editing it
+ * gives new previews without clearing the cache.
+ *
+ * The compiled template of the session is kept in a volatile field and only compiled on the
+ * render threads, compiling reads the template file and scales its images. The JavaFX Application
+ * Thread builds cache keys from the field and never waits for the {@link TemplateController}.
+ *
+ * This class is thread-safe and uses the Singleton pattern to ensure a single instance.
+ *
+ * @version 1.1
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class PreviewController {
+
+    private static final Logger LOGGER = LogManager.getLogger(); // Logger for debugging
+
+    public static final int THUMBNAIL_WIDTH = 90; // Width of a preview in pixels
+    public static final int THUMBNAIL_HEIGHT = 128; // Height of a preview in pixels, fits A4 and Letter
+    private static final long CACHE_BYTES = 32L * 1024 * 1024; // Memory the cached previews may take
+
+    private static PreviewController instance; // Singleton instance
+
+    private final LruCache<PreviewKey, Image> cache = new LruCache<>(
+        CACHE_BYTES, image -> (int) (image.getWidth() * image.getHeight() * 4)); // Rendered previews
+    private final ExecutorService renderer; // Background threads rendering the previews
+    private volatile PageFormat pageFormat; // Page format the previews are rendered for, resolved on first render
+    private volatile CurrentTemplate current; // Template of the session, compiled on a render thread
+
+    // Private constructor to prevent direct instantiation
+    private PreviewController() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2); // Leave room for the GUI and printing
+        renderer = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LifoQueue(), runnable -> {
+            Thread thread = new Thread(runnable, "preview-renderer");
+            thread.setDaemon(true); // Don't keep the application running
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the singleton instance of PreviewController.
+     *
+     * @return The singleton instance.
+     */
+    public static synchronized PreviewController getInstance() {
+        if (instance == null) {
+            instance = new PreviewController();
+        }
+        return instance;
+    }
+
+    /**
+     * Get the preview of a message if it has already been rendered.
+     * This never renders and is safe to call on the JavaFX Application Thread.
+     *
+     * @param message The message.
+     * @return The preview, or null if it has not been rendered yet.
+     */
+    public Image getCachedPreview(Message message) {
+        CurrentTemplate template = current;
+        if (template == null || !template.isFor(getTemplateName())) {
+            return null; // The template of the session is not compiled yet
+        }
+        return cache.get(new PreviewKey(message, template.template));
+    }
+
+    /**
+     * Render the preview of a message in the background.
+     *
+     * @param message The message to render.
+     * @param onReady Called on the JavaFX Application Thread with the preview when it is ready.
+     * @return The render request, cancel it when the preview is no longer needed.
+     */
+    public Future<?> requestPreview(Message message, Consumer<Image> onReady) {
+        return renderer.submit(() -> {
+            PreviewKey key;
+            try {
+                key = new PreviewKey(message, getTemplate());
+            } catch (RuntimeException e) {
+                LOGGER.warn("Could not compile the letter template for previews", e);
+                return;
+            }
+
+            Image image = cache.get(key); // Another request may have rendered it already
+            if (image == null) {
+                try {
+                    image = render(message, key.template);
+                    cache.put(key, image);
+                } catch (PrinterException | RuntimeException e) {
+                    LOGGER.warn("Could not render preview of message: " + message.getSubject(), e);
+                    return;
+                }
+            }
+
+            Image preview = image;
+            Platform.runLater(() -> onReady.accept(preview));
+        });
+    }
+
+    /**
+     * Load the templates again and compile the template of the session in the background.
+     * Call this when the template of the session is changed or the template files are edited.
+     *
+     * @param onReady Called on the JavaFX Application Thread when the new template is compiled.
+     * @return The reload request.
+     */
+    public Future<?> reloadTemplate(Runnable onReady) {
+        return renderer.submit(() -> {
+            try {
+                TemplateController.getInstance().reloadTemplates(); // Pick up changes made to the template files
+                String name = getTemplateName();
+                current = new CurrentTemplate(name, TemplateController.getInstance().getTemplate(name));
+            } catch (RuntimeException e) {
+                LOGGER.warn("Could not compile the letter template for previews", e);
+                return;
+            }
+            Platform.runLater(onReady);
+        });
+    }
+
+    /**
+     * Render the first page of a message.
+     *
+     * @param message The message to render.
+     * @param template The letter template to render the message with.
+     * @return The preview image.
+     * @throws PrinterException if the message cannot be laid out.
+     */
+    private Image render(Message message, LetterTemplate template) throws PrinterException {
+        PageFormat pf = getPageFormat();
+        double scale = Math.min(THUMBNAIL_WIDTH / pf.getWidth(), THUMBNAIL_HEIGHT / pf.getHeight());
+        int pageWidth = (int) Math.round(pf.getWidth() * scale);
+        int pageHeight = (int) Math.round(pf.getHeight() * scale);
+
+        BufferedImage image = new BufferedImage(THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = image.createGraphics();
+        try {
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+            // White paper centered in the preview
+            g2d.translate((THUMBNAIL_WIDTH - pageWidth) / 2, (THUMBNAIL_HEIGHT - pageHeight) / 2);
+            g2d.setColor(Color.WHITE);
+            g2d.fillRect(0, 0, pageWidth, pageHeight);
+            g2d.setColor(Color.LIGHT_GRAY);
+            g2d.drawRect(0, 0, pageWidth - 1, pageHeight - 1);
+
+            // Draw the first page the same way it is printed
+            g2d.setColor(Color.BLACK);
+            g2d.scale(scale, scale);
+            new PrintableMessage(message, pf, template, false).print(g2d, pf, 0); // Only the first page is shown
+        } finally {
+            g2d.dispose();
+        }
+
+        return toFxImage(image);
+    }
+
+    /**
+     * Copy an image into a JavaFX image.
+     *
+     * @param image The image to copy, must be TYPE_INT_ARGB.
+     * @return The JavaFX image.
+     */
+    private static Image toFxImage(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+
+        WritableImage fxImage = new WritableImage(width, height);
+        fxImage.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+        return fxImage;
+    }
+
+    /**
+     * Get the page format the previews are rendered for, the default page of the system.
+     *
+     * @return The page format.
+     */
+    private PageFormat getPageFormat() {
+        PageFormat pf = pageFormat;
+        if (pf == null) {
+            pf = PrinterJob.getPrinterJob().defaultPage(); // May ask the print service, so only once
+            pageFormat = pf;
+        }
+        return pf;
+    }
+
+    /**
+     * Get the compiled template of the session, compiling it if the session has changed its template.
+     * Compiling may read files, so this is only called on the render threads.
+     *
+     * @return The template of the session.
+     */
+    private LetterTemplate getTemplate() {
+        String name = getTemplateName();
+        CurrentTemplate template = current;
+        if (template == null || !template.isFor(name)) {
+            template = new CurrentTemplate(name, TemplateController.getInstance().getTemplate(name));
+            current = template;
+        }
+        return template.template;
+    }
+
+    /**
+     * Get the name of the template of the session.
+     *
+     * @return The template name, null for the default template.
+     */
+    private static String getTemplateName() {
+        return SessionProfileController.getInstance().getSessionProfile().getTemplateName();
+    }
+
+    /**
+     * The compiled template of the session and the name it was asked with.
+     * A template that failed to load is compiled as the default, so the name is kept separately.
+     */
+    private static final class CurrentTemplate {
+
+        private final String name;
+        private final LetterTemplate template;
+
+        CurrentTemplate(String name, LetterTemplate template) {
+            this.name = name;
+            this.template = template;
+        }
+
+        boolean isFor(String templateName) {
+            return Objects.equals(name, templateName);
+        }
+    }
+
+    /**
+     * Cache key of a preview.
+     * Messages are compared by their identity, so a reloaded session finds the previews it already has.
+     */
+    private static final class PreviewKey {
+
+        private final Message message;
+        private final LetterTemplate template;
+        private final String templateName;
+        private final int revision;
+
+        PreviewKey(Message message, LetterTemplate template) {
+            this.message = message;
+            this.template = template;
+            this.templateName = template.getName();
+            this.revision = template.getRevision();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PreviewKey other)) {
+                return false;
+            }
+            return message.getId().equals(other.message.getId())
+                && revision == other.revision && templateName.equals(other.templateName);
+        }
+
+        @Override
+        public int hashCode() {
+            return (message.getId().hashCode() * 31 + templateName.hashCode()) * 31 + revision;
+        }
+    }
+
+    /**
+     * Work queue that hands out the newest task first.
+     */
+    private static final class LifoQueue extends LinkedBlockingDeque<Runnable> {
+
+        @Override
+        public boolean offer(Runnable runnable) {
+            return offerFirst(runnable);
+        }
+    }
+}
@@ -1,10 +1,16 @@
 package tel.kontra.leiriposti.controller;
 
+import java.awt.print.PageFormat;
 import java.awt.print.PrinterException;
 import java.awt.print.PrinterJob;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
 
+import javax.print.Doc;
 import javax.print.DocFlavor;
 import javax.print.DocPrintJob;
 import javax.print.PrintException;
@@ -26,12 +32,18 @@ import javafx.scene.control.ProgressBar;
 import org.apache.logging.log4j.LogManager;
 
 import tel.kontra.leiriposti.event.EventBus;
-import tel.kontra.leiriposti.event.PrintingCompleteEvent;
+import tel.kontra.leiriposti.event.PrintingCompleted;
+import tel.kontra.leiriposti.model.LetterTemplate;
 import tel.kontra.leiriposti.model.Message;
+import tel.kontra.leiriposti.model.MessagePacker;
+import tel.kontra.leiriposti.model.MessageQueue;
 import tel.kontra.leiriposti.model.MessageStatus;
+import tel.kontra.leiriposti.model.PackedPrintableMessage;
 import tel.kontra.leiriposti.model.PrintJobWatcher;
+import tel.kontra.leiriposti.model.PrintRetry;
 import tel.kontra.leiriposti.model.PrintableMessage;
 import tel.kontra.leiriposti.model.PrintersNotFoundException;
+import tel.kontra.leiriposti.service.AutosaveService;
 
 /**
  * PrinterController class is responsible for managing print services and sending data to the printer.
@@ -40,10 +52,13 @@ import tel.kontra.leiriposti.model.PrintersNotFoundException;
  * Since version 1.5 of this class, this controller also handles a printing queue to avoid sending too many
  * print jobs to the printer at once.
  * 
+ * Since version 2.1, short messages can be packed several to a sheet when the session profile allows it.
+ * Failed print jobs are retried with an increasing delay in a separate retry lane.
+ * 
  * This class is used to handle printing tasks in the application.
  * It allows the user to select a printer and send data to it for printing.
  * 
- * @version 2.0
+ * @version 2.3
  * @since 0.1
  * 
  * @author Markus
@@ -61,15 +76,29 @@ public class PrinterController {
      * It is initialized in the constructor and can be accessed through the getPrintServices() method.
      */
     private PrintService[] printServices; // List of available print services
-    private PrintService defaultPrintService; // Service in use
+    private volatile PrintService defaultPrintService; // Service in use, saved with the session by the autosave thread
 
     /**
      * Queue for print jobs.
      * 
      * This queue holds PrintableMessage objects that are to be printed.
      * It is used to manage the print jobs and ensure that we dont flood the printer with too many jobs at once.
+     * Messages are looked up by their identity, so removing a message from the queue is O(1).
+     */
+    private MessageQueue printQueue;
+
+    /**
+     * Retry lane for failed print jobs.
+     * 
+     * Messages that failed to print wait here until their backoff delay has passed.
+     * The lane is separate from the print queue so waiting retries never hold up the messages behind them.
+     * Messages that have failed MAX_PRINT_ATTEMPTS times are moved to the dead-letter list
+     * and have to be queued again by the user.
      */
-    private Queue<Message> printQueue;
+    public static final int MAX_PRINT_ATTEMPTS = 4; // Number of attempts before a message is given up on
+    private final DelayQueue<PrintRetry> retryQueue = new DelayQueue<>();
+    private final List<Message> deadLetters = new CopyOnWriteArrayList<>();
+
     private ProgressBar progressBar; // Progress bar for printing status
     private Boolean isPaused = false; // Flag to indicate if printing is paused
     
@@ -141,6 +170,7 @@ public class PrinterController {
      */
     public void setDefaultPrintService(PrintService defaultPrintService) {    
         this.defaultPrintService = defaultPrintService; // Set the default print service
+        AutosaveService.getInstance().changed(); // The printer is saved with the session
     }
 
     /**
@@ -190,7 +220,7 @@ public class PrinterController {
      * @param printQueue The queue of messages to set as the print queue.
      */
     public void setPrintQueue(Queue<Message> printQueue) {
-        this.printQueue = printQueue; // Set the print queue to the provided queue
+        this.printQueue = printQueue instanceof MessageQueue queue ? queue : new MessageQueue(printQueue); // Set the print queue to the provided queue
         LOGGER.debug("Print queue set with " + printQueue.size() + " messages."); // Log the size of the print queue
     }
 
@@ -204,9 +234,12 @@ public class PrinterController {
      */
     public void addToPrintQueue(Message message) {
         if (printQueue == null) {
-            printQueue = new LinkedList<>(); // Initialize the print queue if it is null
+            printQueue = new MessageQueue(); // Initialize the print queue if it is null
         }
 
+        // Queuing a failed message again starts its attempts from scratch
+        cancelRetry(message);
+
         // Set message status to "PRINTING"
         message.setStatus(MessageStatus.QUEUED); // Set the status of the message to QUEUED
         printQueue.add(message); // Add the message to the print queue
@@ -236,7 +269,7 @@ public class PrinterController {
     public void doPrint(ProgressBar progressBar) throws PrintersNotFoundException {
         this.progressBar = progressBar; // Set the progress bar for printing status
 
-        if (printQueue == null || printQueue.isEmpty()) {
+        if ((printQueue == null || printQueue.isEmpty()) && retryQueue.isEmpty()) {
             LOGGER.warn("Print queue is empty!"); // Log a warning if the print queue is empty
             return; // Exit if there are no messages to print
         }
@@ -283,20 +316,61 @@ public class PrinterController {
      * It handles the printing process, including creating print jobs and monitoring their completion.
      */
     private Runnable printProcess = () -> {
-        while (!printQueue.isEmpty() && !isPaused) { // Continue processing while the queue is not empty and printing is not paused
-            Message message = printQueue.poll(); // Get the next message from the print queue
+        // Continue processing while there are messages to print or retry and printing is not paused
+        while ((!printQueue.isEmpty() || !retryQueue.isEmpty()) && !isPaused) {
+            
+            // Retries that are due go first, they are printed on their own sheet
+            PrintRetry retry = retryQueue.poll();
+            if (retry == null && printQueue.isEmpty()) {
+                // Only retries left, wait for the next one to become due but keep checking for pause
+                try {
+                    retry = retryQueue.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    LOGGER.warn("Print thread interrupted while waiting for retries.");
+                    Thread.currentThread().interrupt(); // Restore interrupted status
+                    break;
+                }
+                if (retry == null) {
+                    continue; // Nothing due yet
+                }
+            }
             
             DocPrintJob printJob = defaultPrintService.createPrintJob(); // Create a print job from the default print service
             PrintRequestAttributeSet pras = getPras(defaultPrintService); // Get the PrintRequestAttributeSet for the print service
-            PrintableMessage printableMessage = new PrintableMessage(message); // Create a PrintableMessage from the message
+            boolean duplex = pras.get(Sides.class) == Sides.DUPLEX; // Whether the back side is printed
+            PageFormat pageFormat = getPageFormat(pras); // Page format the sheet is laid out for
+            String templateName = SessionProfileController.getInstance().getSessionProfile().getTemplateName();
+            LetterTemplate template = TemplateController.getInstance().getTemplate(templateName); // Styles letters and packed slips
+
+            // Get the messages for the next sheet, several short messages can share a sheet
+            List<Message> sheet = retry != null
+                ? Collections.singletonList(retry.getMessage())
+                : nextSheet(pageFormat, duplex, template);
+            if (sheet.isEmpty()) {
+                continue; // Queue was emptied while we were preparing
+            }
+            int attempts = retry != null ? retry.getAttempts() : 0; // Failed attempts before this one
+
+            // Create the document for the sheet, a single message uses the full page layout
+            // and knows its page count up front, long letters continue on extra pages
+            Doc doc;
+            if (sheet.size() > 1) {
+                doc = new SimpleDoc(new PackedPrintableMessage(sheet, duplex, template), DocFlavor.SERVICE_FORMATTED.PRINTABLE, null);
+            } else {
+                PrintableMessage printable = new PrintableMessage(sheet.get(0), pageFormat, template, duplex);
+                LOGGER.debug("Message takes {} page(s): {}", printable.getNumberOfPages(), printable.getTitle());
+                doc = printable.toDoc();
+            }
 
             PrintJobWatcher watcher = new PrintJobWatcher(defaultPrintService); // Create a PrintJobWatcher to monitor the print job
             
             try {
-                printJob.print(new SimpleDoc(printableMessage, DocFlavor.SERVICE_FORMATTED.PRINTABLE, null), pras); // Send the printable message to the printer
-                LOGGER.debug("Sent message to printer: " + message.getSubject()); // Log the sending of the message to the printer
+                printJob.print(doc, pras); // Send the sheet to the printer
+                LOGGER.debug("Sent {} message(s) to printer: {}", sheet.size(), sheet); // Formatted only when debugging, not for every sheet
                 
-                message.setStatus(MessageStatus.PRINTING); // Set the status of the message to PRINTING
+                for (Message message : sheet) {
+                    message.setStatus(MessageStatus.PRINTING); // Set the status of the message to PRINTING
+                }
                 
                 // Update the progress bar on the JavaFX Application Thread
                 Platform.runLater(() -> {
@@ -307,27 +381,119 @@ public class PrinterController {
 
                 // Make the printThread wait until the print job is completed
                 watcher.waitForDone();
-                LOGGER.debug("Print job completed for message: " + message.getSubject()); // Log the completion of the print job
+                LOGGER.debug("Print job completed for sheet: {}", sheet); // Log the completion of the print job
+
+                // Set the status of the messages to PRINTED after printing
+                for (Message message : sheet) {
+                    message.setStatus(MessageStatus.PRINTED);
+                }
 
             } catch (PrintException e) {
-                LOGGER.error("Failed to print message: " + message.getSubject(), e); // Log an error if printing fails
+                LOGGER.error("Failed to print sheet: " + sheet, e); // Log an error if printing fails
+                scheduleRetry(sheet, attempts + 1);
             } catch (InterruptedException e) {
-                LOGGER.error("Print job interrupted for message: " + message.getSubject(), e); // Log an error if the print job is interrupted
-            } finally {
-                // Set the status of the message to PRINTED after printing
-                message.setStatus(MessageStatus.PRINTED);
+                LOGGER.error("Print job interrupted for sheet: " + sheet, e); // Log an error if the print job is interrupted
+                scheduleRetry(sheet, attempts + 1);
+                break; // Stop printing, the thread was asked to stop
             }
         }
         // Notify listeners that printing is complete
-        Platform.runLater(() -> {
-            PrintingCompleteEvent event = new PrintingCompleteEvent("");
-            EventBus.getInstance().post(event); // Post the PrintingCompleteEvent to the EventBus
-        });
+        String result = deadLetters.isEmpty() ? "" : deadLetters.size() + " message(s) failed";
+        EventBus.getInstance().post(new PrintingCompleted(result)); // The GUI handles it on its own thread
 
         // Destroy the print thread after processing the queue
         printThread = null; // Set the print thread to null to indicate that it is no longer running
     };
 
+    /**
+     * Move the messages of a failed sheet to the retry lane.
+     * 
+     * The messages are set to ERROR while they wait. Messages that have used up all of their attempts
+     * are moved to the dead-letter list instead.
+     * 
+     * @param sheet The messages that failed to print.
+     * @param attempts Number of failed attempts including this one.
+     */
+    private void scheduleRetry(List<Message> sheet, int attempts) {
+        for (Message message : sheet) {
+            message.setStatus(MessageStatus.ERROR);
+
+            if (attempts >= MAX_PRINT_ATTEMPTS) {
+                deadLetters.add(message);
+                LOGGER.error("Giving up on message after " + attempts + " attempts: " + message.getSubject());
+            } else {
+                retryQueue.add(new PrintRetry(message, attempts));
+                LOGGER.warn("Retrying message in " + PrintRetry.backoff(attempts) + " ms: " + message.getSubject());
+            }
+        }
+    }
+
+    /**
+     * Remove a message from the retry lane and the dead-letter list.
+     * 
+     * @param message The message to remove.
+     */
+    private void cancelRetry(Message message) {
+        retryQueue.removeIf(retry -> retry.getMessage().equals(message));
+        deadLetters.remove(message);
+    }
+
+    /**
+     * Get the messages that could not be printed after all attempts.
+     * 
+     * @return Unmodifiable view of the dead-letter list.
+     */
+    public List<Message> getDeadLetters() {
+        return Collections.unmodifiableList(deadLetters);
+    }
+
+    /**
+     * Get the number of failed messages waiting to be retried.
+     * 
+     * @return Number of messages in the retry lane.
+     */
+    public int getRetryCount() {
+        return retryQueue.size();
+    }
+
+    /**
+     * Take the messages for the next sheet from the print queue.
+     * 
+     * If the session profile allows packing, short messages are packed several to a sheet
+     * with the {@link MessagePacker}. Otherwise every message gets its own sheet.
+     * 
+     * @param pageFormat The page format of the print job.
+     * @param duplex True if the back side of the sheet is printed.
+     * @param template The letter template the slips are measured with.
+     * @return The messages for the next sheet, empty if the queue is empty.
+     */
+    private List<Message> nextSheet(PageFormat pageFormat, boolean duplex, LetterTemplate template) {
+        if (!SessionProfileController.getInstance().getSessionProfile().isPackMessages()) {
+            Message message = printQueue.poll(); // Get the next message from the print queue
+            return message != null ? Collections.singletonList(message) : Collections.emptyList();
+        }
+
+        MessagePacker packer = new MessagePacker(pageFormat, duplex, template);
+        return packer.nextSheet(printQueue);
+    }
+
+    /**
+     * Get the page format the default print service uses for the given attributes.
+     * 
+     * @param pras The print request attributes of the job.
+     * @return The page format of the print service, or the default page if it cannot be resolved.
+     */
+    private PageFormat getPageFormat(PrintRequestAttributeSet pras) {
+        PrinterJob job = PrinterJob.getPrinterJob();
+        try {
+            job.setPrintService(defaultPrintService);
+        } catch (PrinterException e) {
+            LOGGER.warn("Could not get page format from print service, using default page.", e);
+            return job.defaultPage();
+        }
+        return job.getPageFormat(pras);
+    }
+
     /**
      * Get the PrintRequestAttributeSet for the given print service.
      * This method creates a PrintRequestAttributeSet with default attributes
@@ -389,8 +555,9 @@ public class PrinterController {
      * @param message The message to remove from the print queue.
      */
     public void removeFromPrintQueue(Message message) {
-        if (printQueue != null && printQueue.contains(message)) {
-            printQueue.remove(message); // Remove the message from the print queue
+        cancelRetry(message); // A message taken out of the queue is not retried either
+
+        if (printQueue != null && printQueue.remove(message)) { // Remove the message from the print queue
             message.setStatus(MessageStatus.NOT_PRINTED); // Set the status of the message to DELETED
             LOGGER.debug("Removed message from print queue: " + message.getSubject()); // Log the removal of the message
         } else {
@@ -435,8 +602,10 @@ public class PrinterController {
         // Print information about the current print queue
         if (printQueue != null) {
             LOGGER.info("Current print queue size: " + printQueue.size()); // Log the size of the print queue
-            for (Message message : printQueue) {
-                LOGGER.info(" - " + message.getSubject() + " (Status: " + message.getStatus() + ")"); // Log each message in the print queue
+            synchronized (printQueue) {
+                for (Message message : printQueue) {
+                    LOGGER.info(" - " + message.getSubject() + " (Status: " + message.getStatus() + ")"); // Log each message in the print queue
+                }
             }
         } else {
             LOGGER.info("Print queue is empty."); // Log if the print queue is empty
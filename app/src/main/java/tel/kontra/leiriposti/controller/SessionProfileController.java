@@ -1,8 +1,7 @@
 package tel.kontra.leiriposti.controller;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.ObjectInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -11,6 +10,8 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import tel.kontra.leiriposti.model.SessionProfile;
+import tel.kontra.leiriposti.model.SessionProfileCatalog;
+import tel.kontra.leiriposti.service.StorageBackend;
 
 /**
  * Controller for managing session profiles in the application.
@@ -21,7 +22,13 @@ import tel.kontra.leiriposti.model.SessionProfile;
  * It is used to persist session-specific data such as selected printer,
  * imported messages, and other session-related information.
  * 
- * @version 0.1
+ * Only the default session profile is read at startup. The other profiles are listed
+ * in a {@link SessionProfileCatalog} and read when they are opened.
+ * 
+ * The profiles are saved through the {@link StorageBackend} named by the storage.backend
+ * property, which also saves the messages of the sessions.
+ * 
+ * @version 0.6
  * @since 0.2
  * 
  * @author Markus
@@ -33,17 +40,23 @@ public class SessionProfileController {
     private static SessionProfileController instance; // Singleton instance
     private SessionProfile sessionProfile; // Current session profile
     private SessionProfile defaultSessionProfile; // Default session profile to be opened by default
-    private List<SessionProfile> sessionProfiles = new ArrayList<>(); // List of session profiles
+    private List<SessionProfile> sessionProfiles = new ArrayList<>(); // List of session profiles read so far
+    private final StorageBackend storage; // Saves the profiles and the messages
+    private volatile long savedVersion; // Version of the current session profile when it was last saved or loaded
 
     /**
      * Private constructor to prevent instantiation.
      * Initializes the session profile.
      */
     private SessionProfileController() {
+        storage = StorageBackend.open(
+            PropertiesController.getInstance().getProperty("storage.backend"),
+            new File("session_profiles")
+        );
         loadSessionProfiles(); // Load existing session profiles from persistent storage
 
         // Create a default session profile if none exist
-        if (sessionProfiles.isEmpty()) {
+        if (sessionProfile == null) {
             // Create a default session profile if none is set
             sessionProfile = SessionProfile.builder()
                 .sessionName("Default Session")
@@ -54,14 +67,17 @@ public class SessionProfileController {
                 .spreadsheetId(null)
                 .isDefault(true) // Mark this as the default session profile
                 .printDuplex(false) // Default duplex printing setting
+                .packMessages(false) // Default to one message per sheet
+                .templateName(TemplateController.DEFAULT_TEMPLATE) // Default letter look
                 .build();
             sessionProfiles.add(sessionProfile); // Add the default session profile to the list
         }
 
         // Set default session profile if it exists
         defaultSessionProfile = sessionProfile;
+        savedVersion = sessionProfile.getVersion();
 
-        LOGGER.info("SessionProfileController initialized with " + sessionProfiles.size() + " profiles loaded.");
+        LOGGER.info("SessionProfileController initialized with " + storage.listProfiles().size() + " profiles in the catalog.");
     }
 
     /**
@@ -92,6 +108,7 @@ public class SessionProfileController {
      */
     public void setSessionProfile(SessionProfile sessionProfile) {
         this.sessionProfile = sessionProfile; // Set the current session profile
+        savedVersion = -1; // Saved by the next autosave
     }
     
     /**
@@ -104,7 +121,8 @@ public class SessionProfileController {
     }
 
     /**
-     * Get the list of session profiles.
+     * Get the list of session profiles that have been read.
+     * The saved profiles that have not been opened are only in the catalog, see {@link #getProfileCatalog()}.
      * 
      * @return The list of session profiles.
      */
@@ -112,6 +130,54 @@ public class SessionProfileController {
         return sessionProfiles; // Return the list of session profiles
     }
 
+    /**
+     * Get the catalog entries of the saved session profiles.
+     * Listing the profiles does not read them.
+     * 
+     * @return The entries of the saved session profiles.
+     */
+    public List<SessionProfileCatalog.Entry> getProfileCatalog() {
+        return storage.listProfiles();
+    }
+
+    /**
+     * Get the storage backend of the profiles and the messages.
+     * 
+     * @return The storage backend.
+     */
+    public StorageBackend getStorageBackend() {
+        return storage;
+    }
+
+    /**
+     * Open a saved session profile and make it the current session profile.
+     * The profile is read from its file unless it has been read already.
+     * 
+     * @param entry The catalog entry of the profile.
+     * @return The opened session profile, or null if it could not be read.
+     */
+    public SessionProfile openSessionProfile(SessionProfileCatalog.Entry entry) {
+        SessionProfile profile = null;
+        for (SessionProfile loaded : sessionProfiles) {
+            if (loaded.getSessionId().equals(entry.getSessionId())) {
+                profile = loaded;
+            }
+        }
+
+        if (profile == null) {
+            profile = storage.readProfile(entry);
+            if (profile == null) {
+                return null;
+            }
+            sessionProfiles.add(profile);
+        }
+
+        sessionProfile = profile;
+        savedVersion = profile.getVersion();
+        LOGGER.info("Session profile opened: " + profile.getSessionName());
+        return profile;
+    }
+
     /**
      * Get the default session profile.
      * 
@@ -147,7 +213,7 @@ public class SessionProfileController {
     public void saveSessionProfiles() {
         for(SessionProfile profile : sessionProfiles) {
             try {
-                profile.save(); // Save each session profile
+                storage.saveProfile(profile); // Save each session profile
             } catch (Exception e) {
                 LOGGER.error("Error saving session profile: " + e.getMessage(), e); // Log error if saving fails
             }
@@ -155,30 +221,62 @@ public class SessionProfileController {
     }
 
     /**
-     * Load session profiles from persistent storage.
-     * This method reads session profile files from the "session_profiles" directory
-     * and populates the list of session profiles.
+     * Close the storage backend, after the profiles and the messages have been saved.
+     */
+    public void closeStorage() {
+        try {
+            storage.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing the storage: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Check if the current session profile has changed since it was last saved.
+     * The setters of the profile bump its version, only the version is compared.
+     * 
+     * @return True if the profile has unsaved changes.
+     */
+    public boolean hasUnsavedChanges() {
+        return sessionProfile.getVersion() != savedVersion;
+    }
+
+    /**
+     * Save the current session profile, used by the autosave.
+     * 
+     * @return True if the profile was saved.
+     */
+    public boolean saveSessionProfile() {
+        SessionProfile profile = sessionProfile;
+        long version = profile.getVersion(); // Changes made while saving are saved the next time
+        if (!storage.saveProfile(profile)) {
+            return false;
+        }
+        savedVersion = version;
+        return true;
+    }
+
+    /**
+     * Load the default session profile from persistent storage.
+     * This method lists the saved profiles from the catalog and reads the default session profile.
+     * The other profiles are not read.
+     *
+     * @throws IllegalStateException If the default profile can not be read and is still saved, the application
+     * does not start rather than save a new default profile over it.
      */
     private void loadSessionProfiles() {
         sessionProfiles.clear();
-        File dir = new File("session_profiles");
-        if (dir.exists() && dir.isDirectory()) {
-            File[] files = dir.listFiles((d, name) -> name.endsWith(".ser"));
-            if (files != null) {
-                for (File file : files) {
-                    try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-                        SessionProfile profile = (SessionProfile) ois.readObject();
-                        sessionProfiles.add(profile);
-
-                        // Check if this is the default session profile
-                        if (profile.isDefault()) {
-                            sessionProfile = profile; // Set the default session profile
-                        }
-
-                    } catch (Exception e) {
-                        LOGGER.error("Error loading session profile from file: " + file.getName(), e);
-                    }
+        for (SessionProfileCatalog.Entry entry : storage.listProfiles()) {
+            if (entry.isDefault()) {
+                SessionProfile profile = storage.readProfile(entry);
+                if (profile != null) {
+                    sessionProfiles.add(profile);
+                    sessionProfile = profile; // Set the default session profile
+                } else if (storage.listProfiles().stream().anyMatch(listed -> listed.getFileName().equals(entry.getFileName()))) {
+                    // Still saved under its name, a new default profile would be saved over it
+                    throw new IllegalStateException("Default session profile can not be read: " + entry.getFileName());
                 }
+                break;
             }
         }
     }
@@ -218,13 +218,15 @@ public class SheetsController {
                     return null;
                 }
 
-                return new Message(
+                Message message = new Message(
                     (String) rowValues.get(0),  // Timestamp
                     (String) rowValues.get(1),  // Subject
                     (String) rowValues.get(2),  // Body
                     (String) rowValues.get(3),  // Recipient
                     (String) rowValues.get(4)   // Author
                 );
+                message.setId(spreadsheetId + ":" + row); // Rows are never reordered, so the row identifies the message
+                return message;
             }
         } catch (Exception e) {
             LOGGER.error("Error retrieving message: " + e.getMessage());
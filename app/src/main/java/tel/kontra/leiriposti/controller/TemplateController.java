@@ -0,0 +1,204 @@
+package tel.kontra.leiriposti.controller;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tel.kontra.leiriposti.model.LetterTemplate;
+
+/**
+ * TemplateController loads and compiles the letter templates.
+ *
+ * Templates are looked up by name from the templates directory next to the application first,
+ * so a camp can add its own templates without rebuilding, and then from the templates in the resources.
+ * Every template is compiled once and cached. If a template cannot be loaded the default template is used,
+ * and if a default template edited on disk cannot be loaded the default template of the resources is used.
+ *
+ * This class is thread-safe and uses the Singleton pattern to ensure a single instance.
+ *
+ * @see LetterTemplate
+ *
+ * @version 1.1
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class TemplateController {
+
+    private static final Logger LOGGER = LogManager.getLogger(); // Logger for debugging
+
+    public static final String DEFAULT_TEMPLATE = "default"; // Template used when none is selected
+    private static final String TEMPLATE_DIR = "templates"; // Directory of the templates, on disk and in the resources
+    private static final String TEMPLATE_SUFFIX = ".properties";
+
+    private static TemplateController instance; // Singleton instance
+    private final Map<String, LetterTemplate> templates = new HashMap<>(); // Compiled templates by name
+
+    // Private constructor to prevent direct instantiation
+    private TemplateController() {
+    }
+
+    /**
+     * Get the singleton instance of TemplateController.
+     *
+     * @return The singleton instance.
+     */
+    public static synchronized TemplateController getInstance() {
+        if (instance == null) {
+            instance = new TemplateController();
+        }
+        return instance;
+    }
+
+    /**
+     * Get a compiled template by name.
+     * Falls back to the default template if the template cannot be loaded, so a typo in a template
+     * never stops printing or the previews.
+     *
+     * @param name The name of the template, null for the default template.
+     * @return The compiled template.
+     * @throws IllegalStateException if even the default template of the resources cannot be loaded.
+     */
+    public synchronized LetterTemplate getTemplate(String name) {
+        if (name == null || name.isBlank()) {
+            name = DEFAULT_TEMPLATE;
+        }
+
+        LetterTemplate template = templates.get(name);
+        if (template != null) {
+            return template;
+        }
+
+        try {
+            template = loadTemplate(name, open(name + TEMPLATE_SUFFIX));
+            templates.put(name, template);
+            LOGGER.info("Letter template compiled: " + name);
+            return template;
+
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.error("Error loading letter template " + name + ": " + e.getMessage(), e);
+
+            if (!DEFAULT_TEMPLATE.equals(name)) {
+                return getTemplate(DEFAULT_TEMPLATE); // Print with the default look rather than not at all
+            }
+        }
+
+        // The default template on disk is broken, use the one shipped with the application
+        try {
+            template = loadTemplate(name, openResource(name + TEMPLATE_SUFFIX));
+            templates.put(name, template);
+            LOGGER.warn("Using the bundled default letter template instead of the one in " + TEMPLATE_DIR);
+            return template;
+
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalStateException("Default letter template cannot be loaded.", e);
+        }
+    }
+
+    /**
+     * Get the names of the available templates.
+     *
+     * @return The default template and the templates in the templates directory.
+     */
+    public List<String> getTemplateNames() {
+        List<String> names = new ArrayList<>();
+        names.add(DEFAULT_TEMPLATE);
+
+        File[] files = new File(TEMPLATE_DIR).listFiles((dir, file) -> file.endsWith(TEMPLATE_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName().substring(0, file.getName().length() - TEMPLATE_SUFFIX.length());
+                if (!names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Forget the compiled templates so they are loaded again on next use.
+     */
+    public synchronized void reloadTemplates() {
+        templates.clear();
+    }
+
+    /**
+     * Load and compile a template.
+     *
+     * @param name The name of the template.
+     * @param source The template source, null if it was not found. It is closed after reading.
+     * @return The compiled template.
+     * @throws IOException if the template cannot be read.
+     */
+    private LetterTemplate loadTemplate(String name, InputStream source) throws IOException {
+        try (InputStream input = source) {
+            if (input == null) {
+                throw new IOException("Template not found: " + name);
+            }
+
+            Properties properties = new Properties();
+            try (Reader reader = new InputStreamReader(input, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+
+            return new LetterTemplate(name, properties, this::loadImage);
+        }
+    }
+
+    /**
+     * Load an image a template refers to.
+     *
+     * @param fileName The file name of the image in the templates directory.
+     * @return The image, or null if it cannot be loaded.
+     */
+    private BufferedImage loadImage(String fileName) {
+        try (InputStream input = open(fileName)) {
+            return input != null ? ImageIO.read(input) : null;
+        } catch (IOException e) {
+            LOGGER.error("Error loading template image " + fileName + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Open a file of the templates directory, from disk if it exists there and otherwise from the resources.
+     *
+     * @param fileName The name of the file.
+     * @return The input stream of the file, or null if it is not found.
+     * @throws IOException if the file cannot be opened.
+     */
+    private InputStream open(String fileName) throws IOException {
+        File file = new File(TEMPLATE_DIR, fileName);
+        if (file.isFile()) {
+            return new FileInputStream(file);
+        }
+        return openResource(fileName);
+    }
+
+    /**
+     * Open a file of the templates in the resources.
+     *
+     * @param fileName The name of the file.
+     * @return The input stream of the file, or null if it is not found.
+     */
+    private InputStream openResource(String fileName) {
+        return TemplateController.class.getClassLoader().getResourceAsStream(TEMPLATE_DIR + "/" + fileName);
+    }
+}
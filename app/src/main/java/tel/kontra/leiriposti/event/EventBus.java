@@ -1,34 +1,125 @@
 package tel.kontra.leiriposti.event;
 
-import javafx.event.Event;
-import javafx.event.EventHandler;
-import javafx.event.EventType;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
- * EventBus is a simple thread-safe singleton event bus for JavaFX events.
- * It allows registering event handlers for specific event types and posting events from anywhere in the application.
+ * EventBus is a simple thread-safe singleton event bus for the domain events of the application.
+ * It allows registering event handlers for specific event classes and posting events from anywhere in the application.
  *
  * Usage:
- *   - Register a handler: EventBus.getInstance().register(EventType, handler)
+ *   - Register a handler: EventBus.getInstance().register(MessageStatusChanged.class, handler)
+ *   - Register a handler that runs on another thread: EventBus.getInstance().register(MessageStatusChanged.class, handler, Dispatch.FX_THREAD)
  *   - Post an event: EventBus.getInstance().post(event)
  *
- * @version 1.0
+ * Events are plain objects, such as {@link MessageStatusChanged}, and handlers are looked up by the class of
+ * the event, not its superclasses. The handlers of a class are kept in an array that is replaced when a handler
+ * is registered, so posting is one map lookup and a loop, the bus itself takes no lock. The bus does
+ * not need JavaFX: handlers on the JavaFX Application Thread run through the executor set with
+ * {@link #setFxExecutor(Executor)}, without one they run on the thread that posts.
+ *
+ * A handler runs on the thread that posts the event, unless it is registered with another {@link Dispatch}.
+ * Handlers that run on the JavaFX Application Thread or on the background threads of the bus have a bounded
+ * queue of their own, posting only adds the event to the queues, so a slow handler does not hold up the print
+ * or fetch thread that posted, nor the other handlers. The events of a handler are handled one at a time in the
+ * order they were posted. When the queue of a handler is full, its {@link Overflow} decides which event is dropped,
+ * or if the posting thread waits for room.
+ *
+ * Handlers that only need to know what changed, not every change, can be registered coalesced with
+ * {@link #registerCoalesced(Class, Function, BinaryOperator, Consumer, Dispatch)}. The events are merged
+ * by a key, for example the identity of a message, until the turn of the handler, and the handler gets one
+ * batch of the merged events. On the JavaFX Application Thread the turn comes after the code that posted
+ * has returned, so changing the status of two hundred selected messages is one batch of two hundred, not
+ * two hundred re-renders.
+ *
+ * @version 2.0
  * @since 0.2
  *
  * @author Markus
  */
 public class EventBus {
+
+    private static final Logger LOGGER = LogManager.getLogger(); // Logger for debugging
+
+    public static final int QUEUE_CAPACITY = 1024; // Queue capacity of a handler unless given
+    private static final int BATCH = 64; // Events handled in one turn, then the other handlers get the thread
+    private static final long WAIT_MILLIS = 1000; // Longest wait for room with Overflow.WAIT
+
+    /**
+     * Thread a handler runs on.
+     */
+    public enum Dispatch {
+        /**
+         * The thread that posts the event, before the post returns
+         */
+        SAME_THREAD,
+
+        /**
+         * The JavaFX Application Thread, the handler may touch JavaFX nodes
+         */
+        FX_THREAD,
+
+        /**
+         * A background thread of the bus
+         */
+        BACKGROUND,
+    }
+
+    /**
+     * What is done when the queue of a handler is full.
+     */
+    public enum Overflow {
+        /**
+         * The oldest queued event is dropped, for handlers that only need the latest state
+         */
+        DROP_OLDEST,
+
+        /**
+         * The posted event is dropped
+         */
+        DROP_NEWEST,
+
+        /**
+         * The posting thread waits for room, at most a second, then the posted event is dropped
+         */
+        WAIT,
+    }
+
     private static final EventBus instance = new EventBus(); // Singleton instance
-    private final Map<EventType<? extends Event>, CopyOnWriteArrayList<EventHandler<? extends Event>>> listeners = new ConcurrentHashMap<>(); // Registered listeners
+    private final Map<Class<?>, Subscription[]> handlers = new ConcurrentHashMap<>(); // Registered handlers by event class
+    private final ExecutorService background; // Threads of the handlers dispatched in the background
+    private volatile Executor fxExecutor; // Runs tasks on the JavaFX Application Thread, null without JavaFX
 
     /**
-     * Private constructor to enforce singleton pattern.
+     * Constructor for EventBus, package-private for tests, the application uses the singleton.
      */
-    private EventBus() {}
+    EventBus() {
+        int threads = Math.min(4, Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+        background = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "event-dispatch");
+            thread.setDaemon(true); // Don't keep the application running
+            return thread;
+        });
+    }
 
     /**
      * Get the singleton instance of the EventBus.
@@ -39,27 +130,292 @@ public class EventBus {
     }
 
     /**
-     * Register an event handler for a specific event type.
-     * @param type the event type to listen for
+     * Set the executor of the handlers on the JavaFX Application Thread, Platform::runLater.
+     * @param executor the executor, or null to run the handlers on the thread that posts
+     */
+    public void setFxExecutor(Executor executor) {
+        this.fxExecutor = executor;
+    }
+
+    /**
+     * Register an event handler for a specific event class, run on the thread that posts the event.
+     * @param type the event class to listen for
      * @param handler the event handler to register
      * @param <T> the type of event
      */
-    public <T extends Event> void register(EventType<T> type, EventHandler<T> handler) {
-        listeners.computeIfAbsent(type, k -> new CopyOnWriteArrayList<>()).add(handler);
+    public <T> void register(Class<T> type, Consumer<? super T> handler) {
+        register(type, handler, Dispatch.SAME_THREAD);
     }
 
     /**
-     * Post an event to all registered handlers for its type.
+     * Register an event handler for a specific event class, run on a given thread.
+     * Events queued for the handler beyond {@value #QUEUE_CAPACITY} drop the oldest ones.
+     * @param type the event class to listen for
+     * @param handler the event handler to register
+     * @param dispatch the thread the handler runs on
+     * @param <T> the type of event
+     */
+    public <T> void register(Class<T> type, Consumer<? super T> handler, Dispatch dispatch) {
+        register(type, handler, dispatch, QUEUE_CAPACITY, Overflow.DROP_OLDEST);
+    }
+
+    /**
+     * Register an event handler for a specific event class, run on a given thread with a queue of a given size.
+     * @param type the event class to listen for
+     * @param handler the event handler to register
+     * @param dispatch the thread the handler runs on
+     * @param capacity the number of events queued for the handler, not used with Dispatch.SAME_THREAD
+     * @param overflow what is done when the queue is full
+     * @param <T> the type of event
+     */
+    public <T> void register(Class<T> type, Consumer<? super T> handler, Dispatch dispatch, int capacity, Overflow overflow) {
+        add(type, new QueuedSubscription<>(type, handler, dispatch, capacity, overflow));
+    }
+
+    /**
+     * Register a handler for batches of events merged by a key, the latest event of a key is kept.
+     * @param type the event class to listen for
+     * @param key the key of an event, events with equal keys are merged
+     * @param handler the handler of the batches
+     * @param dispatch the thread the handler runs on, not Dispatch.SAME_THREAD
+     * @param <T> the type of event
+     */
+    public <T> void registerCoalesced(Class<T> type, Function<? super T, ?> key, Consumer<List<T>> handler, Dispatch dispatch) {
+        registerCoalesced(type, key, (first, latest) -> latest, handler, dispatch);
+    }
+
+    /**
+     * Register a handler for batches of events merged by a key.
+     * Every batch has an event for every key posted since the last batch, in the order the keys were first posted.
+     * @param type the event class to listen for
+     * @param key the key of an event, events with equal keys are merged
+     * @param merge merges the pending event of a key with a new event of the same key
+     * @param handler the handler of the batches
+     * @param dispatch the thread the handler runs on, not Dispatch.SAME_THREAD
+     * @param <T> the type of event
+     */
+    public <T> void registerCoalesced(Class<T> type, Function<? super T, ?> key, BinaryOperator<T> merge,
+            Consumer<List<T>> handler, Dispatch dispatch) {
+        if (dispatch == Dispatch.SAME_THREAD) {
+            throw new IllegalArgumentException("Coalesced handlers run on the JavaFX Application Thread or in the background");
+        }
+        add(type, new CoalescingSubscription<>(type, key, merge, handler, dispatch));
+    }
+
+    /**
+     * Add a handler to the handlers of an event class, replacing the array of the handlers.
+     */
+    private void add(Class<?> type, Subscription subscription) {
+        handlers.merge(type, new Subscription[] {subscription}, (registered, added) -> {
+            Subscription[] all = Arrays.copyOf(registered, registered.length + 1);
+            all[registered.length] = added[0];
+            return all;
+        });
+    }
+
+    /**
+     * Post an event to all registered handlers for its class.
+     * Handlers on other threads get the event later, this does not wait for them.
      * @param event the event to post
      */
-    public void post(Event event) {
-        CopyOnWriteArrayList<EventHandler<? extends Event>> handlers = listeners.get(event.getEventType());
-        if (handlers != null) {
-            for (EventHandler<? extends Event> handler : handlers) {
-                @SuppressWarnings("unchecked")
-                EventHandler<Event> safeHandler = (EventHandler<Event>) handler;
-                safeHandler.handle(event);
+    public void post(Object event) {
+        Subscription[] subscriptions = handlers.get(event.getClass());
+        if (subscriptions != null) {
+            for (Subscription subscription : subscriptions) {
+                subscription.deliver(event);
             }
         }
     }
+
+    /**
+     * Registered handler, handlers on other threads get their events in turns.
+     */
+    private abstract class Subscription {
+
+        protected final Class<?> type; // Event class, for the log
+        protected final Dispatch dispatch; // Thread the handler runs on
+        private final AtomicBoolean scheduled = new AtomicBoolean(); // Flag for a turn of the handler waiting to run
+
+        Subscription(Class<?> type, Dispatch dispatch) {
+            this.type = type;
+            this.dispatch = dispatch;
+        }
+
+        /**
+         * Handle a posted event, or keep it for the next turn.
+         */
+        abstract void deliver(Object event);
+
+        /**
+         * Handle the pending events of a turn.
+         */
+        protected abstract void handlePending();
+
+        protected abstract boolean hasPending();
+
+        /**
+         * Give the handler a turn on its thread, unless one is already waiting.
+         */
+        protected void schedule() {
+            if (!scheduled.compareAndSet(false, true)) {
+                return;
+            }
+            Executor executor = dispatch == Dispatch.BACKGROUND ? background : fxExecutor;
+            if (executor == null) {
+                drain(); // No JavaFX, in the console view and in tests
+                return;
+            }
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException | IllegalStateException e) {
+                drain(); // JavaFX has exited
+            }
+        }
+
+        /**
+         * Take a turn, and schedule another turn if events are left.
+         */
+        protected void drain() {
+            try {
+                handlePending();
+            } finally {
+                scheduled.set(false);
+                if (hasPending()) {
+                    schedule();
+                }
+            }
+        }
+    }
+
+    /**
+     * Registered handler with the queue of its events.
+     */
+    private final class QueuedSubscription<T> extends Subscription {
+
+        private final Consumer<? super T> handler; // The handler
+        private final Overflow overflow; // What is done when the queue is full
+        private final BlockingQueue<T> queue; // Events not handled yet, null on the same thread
+        private final AtomicInteger dropped = new AtomicInteger(); // Events dropped since the last turn
+
+        QueuedSubscription(Class<T> type, Consumer<? super T> handler, Dispatch dispatch, int capacity, Overflow overflow) {
+            super(type, dispatch);
+            this.handler = handler;
+            this.overflow = overflow;
+            this.queue = dispatch != Dispatch.SAME_THREAD ? new ArrayBlockingQueue<>(capacity) : null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void deliver(Object event) {
+            if (dispatch == Dispatch.SAME_THREAD) {
+                handler.accept((T) event); // Handlers are found by the class of the event
+                return;
+            }
+
+            if (!enqueue((T) event)) {
+                dropped.incrementAndGet();
+            }
+            schedule();
+        }
+
+        private boolean enqueue(T event) {
+            switch (overflow) {
+                case DROP_OLDEST:
+                    while (!queue.offer(event)) {
+                        if (queue.poll() != null) {
+                            dropped.incrementAndGet();
+                        }
+                    }
+                    return true;
+                case WAIT:
+                    try {
+                        return queue.offer(event, WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt(); // Keep the interrupt for the posting thread
+                        return false;
+                    }
+                default:
+                    return queue.offer(event);
+            }
+        }
+
+        /**
+         * Handle a batch of queued events, the rest wait for the next turn.
+         */
+        @Override
+        protected void handlePending() {
+            for (int count = 0; count < BATCH; count++) {
+                T event = queue.poll();
+                if (event == null) {
+                    break;
+                }
+                try {
+                    handler.accept(event);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error handling " + type.getSimpleName() + ": " + e.getMessage(), e);
+                }
+            }
+
+            int count = dropped.getAndSet(0);
+            if (count > 0) {
+                LOGGER.warn("Dropped " + count + " " + type.getSimpleName() + " events, the handler fell behind.");
+            }
+        }
+
+        @Override
+        protected boolean hasPending() {
+            return !queue.isEmpty();
+        }
+    }
+
+    /**
+     * Registered handler of batches of events merged by a key.
+     * The pending events are at most one for every key, so they need no bound of their own.
+     */
+    private final class CoalescingSubscription<T> extends Subscription {
+
+        private final Function<? super T, ?> key; // Key of an event
+        private final BinaryOperator<T> merge; // Merges the pending event of a key with a new one
+        private final Consumer<List<T>> handler; // The handler of the batches
+        private Map<Object, T> pending = new LinkedHashMap<>(); // Events by key since the last turn, guarded by this
+
+        CoalescingSubscription(Class<T> type, Function<? super T, ?> key, BinaryOperator<T> merge, Consumer<List<T>> handler, Dispatch dispatch) {
+            super(type, dispatch);
+            this.key = key;
+            this.merge = merge;
+            this.handler = handler;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void deliver(Object event) {
+            T typed = (T) event; // Handlers are found by the class of the event
+            synchronized (this) {
+                pending.merge(key.apply(typed), typed, merge);
+            }
+            schedule(); // Also on the JavaFX Application Thread, the changes made before the turn are merged
+        }
+
+        @Override
+        protected void handlePending() {
+            List<T> batch;
+            synchronized (this) {
+                batch = new ArrayList<>(pending.values());
+                pending = new LinkedHashMap<>();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                handler.accept(batch);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error handling " + batch.size() + " " + type.getSimpleName() + " events: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        protected synchronized boolean hasPending() {
+            return !pending.isEmpty();
+        }
+    }
 }
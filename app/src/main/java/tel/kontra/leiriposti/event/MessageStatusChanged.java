@@ -0,0 +1,73 @@
+package tel.kontra.leiriposti.event;
+
+import tel.kontra.leiriposti.model.Message;
+import tel.kontra.leiriposti.model.MessageStatus;
+
+/**
+ * MessageStatusChanged is posted when the status of a message changes.
+ * It carries the message with its old and new status, so listeners can update
+ * only what the change affects instead of going through every message.
+ *
+ * The event is posted on the thread that changed the status, for example the print thread.
+ * It is a plain object, posting it builds no strings and needs no JavaFX.
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public final class MessageStatusChanged {
+
+    private final Message message; // The message whose status changed
+    private final MessageStatus oldStatus; // Status before the change
+    private final MessageStatus newStatus; // Status after the change
+
+    /**
+     * Constructor for MessageStatusChanged.
+     *
+     * @param message The message whose status changed.
+     * @param oldStatus The status before the change.
+     * @param newStatus The status after the change.
+     */
+    public MessageStatusChanged(Message message, MessageStatus oldStatus, MessageStatus newStatus) {
+        this.message = message;
+        this.oldStatus = oldStatus;
+        this.newStatus = newStatus;
+    }
+
+    /**
+     * Get the message whose status changed.
+     *
+     * @return The message.
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Get the identity of the message whose status changed.
+     *
+     * @return The identity of the message.
+     */
+    public String getId() {
+        return message.getId();
+    }
+
+    /**
+     * Get the status of the message before the change.
+     *
+     * @return The old status.
+     */
+    public MessageStatus getOldStatus() {
+        return oldStatus;
+    }
+
+    /**
+     * Get the status of the message after the change.
+     *
+     * @return The new status.
+     */
+    public MessageStatus getNewStatus() {
+        return newStatus;
+    }
+}
@@ -0,0 +1,32 @@
+package tel.kontra.leiriposti.event;
+
+/**
+ * PrintingCompleted is posted on the print thread when the print queue has been printed.
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public final class PrintingCompleted {
+
+    private final String result; // Description of the result, empty if every message was printed
+
+    /**
+     * Constructor for PrintingCompleted.
+     *
+     * @param result A description of the result, empty if every message was printed.
+     */
+    public PrintingCompleted(String result) {
+        this.result = result;
+    }
+
+    /**
+     * Get the description of the result.
+     *
+     * @return The description, empty if every message was printed.
+     */
+    public String getResult() {
+        return result;
+    }
+}
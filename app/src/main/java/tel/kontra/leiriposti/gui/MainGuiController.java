@@ -3,22 +3,27 @@ package tel.kontra.leiriposti.gui;
 import java.awt.Desktop.Action;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javafx.application.Platform;
+import javafx.collections.FXCollections;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckMenuItem;
+import javafx.scene.control.ChoiceDialog;
 import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
 import javafx.scene.control.ListView;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.control.ProgressIndicator;
 import javafx.scene.control.SelectionMode;
+import javafx.scene.control.TextField;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseButton;
 import javafx.scene.input.MouseEvent;
@@ -27,12 +32,16 @@ import javafx.scene.control.ContextMenu;
 import javafx.scene.control.MenuItem;
 
 import tel.kontra.leiriposti.controller.MessageController;
+import tel.kontra.leiriposti.controller.PreviewController;
 import tel.kontra.leiriposti.controller.PrinterController;
 import tel.kontra.leiriposti.controller.SessionProfileController;
 import tel.kontra.leiriposti.controller.SheetsController;
-import tel.kontra.leiriposti.event.PrintingCompleteEvent;
+import tel.kontra.leiriposti.controller.TemplateController;
+import tel.kontra.leiriposti.event.MessageStatusChanged;
+import tel.kontra.leiriposti.event.PrintingCompleted;
 import tel.kontra.leiriposti.event.ValueUpdateEvent;
 import tel.kontra.leiriposti.model.Message;
+import tel.kontra.leiriposti.model.MessageSnapshot;
 import tel.kontra.leiriposti.model.MessageStatus;
 import tel.kontra.leiriposti.model.PrintersNotFoundException;
 import tel.kontra.leiriposti.model.SessionProfile;
@@ -44,7 +53,7 @@ import tel.kontra.leiriposti.event.EventBus;
  * MainGuiController class is responsible for managing the main GUI of the application.
  * It handles user interactions, initializes controllers, and manages the state of the application.
  * 
- * @version 1.0
+ * @version 1.5
  * @since 0.1
  * 
  * @author Markus
@@ -54,6 +63,8 @@ public class MainGuiController {
     // Logger
     private static final Logger LOGGER = LogManager.getLogger(); // Logger for debugging
 
+    private static final DateTimeFormatter LATEST_FORMAT = DateTimeFormatter.ofPattern("d.M.yyyy 'klo' H.mm"); // Finnish date and time
+
     /**
      * Controllers used in the MainGuiController.
      * These controllers are responsible for managing different aspects of the application
@@ -88,6 +99,9 @@ public class MainGuiController {
     @FXML
     private ChoiceBox<MessageStatus> showMessageChoice; // ChoiceBox for filtering messages
 
+    @FXML
+    private TextField searchField; // TextField for searching messages by their words
+
     @FXML
     private Label printerInfo; // Label for displaying printer information
 
@@ -115,6 +129,9 @@ public class MainGuiController {
     @FXML
     private Button printingBtn; // Button to start printing
 
+    @FXML
+    private CheckMenuItem packMessagesItem; // Menu toggle for packing short messages on one sheet
+
     // Event handler for opening the About dialog
     @FXML
     private void onAbout() {
@@ -138,9 +155,9 @@ public class MainGuiController {
         }
 
         // Check if there are queued messages to print
-        List<Message> queuedMessages = messageController.getMessages(MessageStatus.QUEUED);
+        int queuedMessages = messageController.getMessageCount(MessageStatus.QUEUED);
         
-        if (queuedMessages.isEmpty()) {
+        if (queuedMessages == 0) {
             LOGGER.warn("No messages in queue to print.");
             doErrorModal("No messages in queue to print.", "Print Error");
             printingBtn.setDisable(false); // Re-enable the button if there are no messages to print
@@ -163,7 +180,7 @@ public class MainGuiController {
         printingBtn.setDisable(false); // Re-enable the button after printing
 
         // Update the print status label
-        printStatus.setText("Printing " + queuedMessages.size() + " messages...");
+        printStatus.setText("Printing " + queuedMessages + " messages...");
     }
 
     private void pausePrinting(ActionEvent event) {
@@ -185,8 +202,11 @@ public class MainGuiController {
                 return; // Exit the method if there is an error
             }
 
-            // Re-enable the button after fetching messages
-            printingBtn.setDisable(false);
+            // Re-enable the button and render the new messages on the JavaFX Application Thread
+            Platform.runLater(() -> {
+                printingBtn.setDisable(false);
+                renderMessageList(showMessageChoice.getValue());
+            });
         }).start();
 
         // Render the message list with the current filter
@@ -227,6 +247,40 @@ public class MainGuiController {
         // This could involve opening a profile management dialog or updating the session profile
     }
 
+    /**
+     * Toggles packing short messages several to a sheet.
+     * The setting is stored in the session profile and used by the printer on the next sheet.
+     */
+    @FXML
+    private void onPackMessages() {
+        boolean pack = packMessagesItem.isSelected();
+        LOGGER.debug("onPackMessages(): " + pack);
+        sessionProfileController.getSessionProfile().setPackMessages(pack);
+    }
+
+    /**
+     * Lets the user pick the letter template of the session.
+     * Templates are loaded from the templates directory, the choice is stored in the session profile.
+     */
+    @FXML
+    private void onLetterTemplate() {
+        SessionProfile profile = sessionProfileController.getSessionProfile();
+        TemplateController templateController = TemplateController.getInstance();
+
+        String current = profile.getTemplateName() != null ? profile.getTemplateName() : TemplateController.DEFAULT_TEMPLATE;
+        ChoiceDialog<String> dialog = new ChoiceDialog<>(current, templateController.getTemplateNames());
+        dialog.setTitle("Letter template");
+        dialog.setHeaderText("Choose the look of the printed letters");
+        dialog.setContentText("Template:");
+
+        dialog.showAndWait().ifPresent(name -> {
+            LOGGER.debug("onLetterTemplate(): " + name);
+            profile.setTemplateName(name);
+            // Compile the template in the background, previews are cached per template so refresh shows the new ones
+            PreviewController.getInstance().reloadTemplate(messageList::refresh);
+        });
+    }
+
     // Event handler for opening the Printer GUI
     @FXML
     private void onPrinterSettings() {
@@ -280,8 +334,11 @@ public class MainGuiController {
          */
         showMessageChoice.setValue(MessageStatus.ALL); // Set the default value for the filter choice box
         showMessageChoice.setOnAction(this::onFilterChange); // Set the event handler for filter change
+        searchField.textProperty().addListener((observable, oldText, newText) -> renderMessageList(showMessageChoice.getValue())); // Search as the user types
         messageList.setOnKeyPressed(this::onShiftSelection); // Set the event handler for Shift key selection
         messageList.setOnMouseClicked(this::messageSelectionContextMenu); // Set the context menu for right-click actions on messages
+        messageList.setCellFactory(list -> new MessagePreviewCell()); // Show a preview of the letter next to each message
+        messageList.setFixedCellSize(PreviewController.THUMBNAIL_HEIGHT + 10); // Fixed rows keep scrolling smooth
         printingBtn.setOnAction(this::doPrint); // Set the action for the printing button
 
         /**
@@ -312,18 +369,48 @@ public class MainGuiController {
             renderMessageList(showMessageChoice.getValue()); // Re-render the message list with the current filter
         });
 
-        // Listener for printingDone event
-        EventBus.getInstance().register(PrintingCompleteEvent.PRINTING_COMPLETE_EVENT_TYPE, event -> {
-            LOGGER.debug("Printing complete event received: " + event.getMessage());
+        // Listener for message status changes, merged by message on the JavaFX Application Thread,
+        // the changes of one message keep the status before the first change and after the last
+        EventBus.getInstance().registerCoalesced(MessageStatusChanged.class,
+            MessageStatusChanged::getId,
+            (first, latest) -> new MessageStatusChanged(latest.getMessage(), first.getOldStatus(), latest.getNewStatus()),
+            this::messageStatusesChanged,
+            EventBus.Dispatch.FX_THREAD);
+
+        // Listener for printingDone event, posted on the print thread
+        EventBus.getInstance().register(PrintingCompleted.class, event -> {
+            LOGGER.debug("Printing complete event received: {}", event.getResult());
             
             // Update the print status label
-            printStatus.setText("Printing complete: " + event.getMessage());
+            printStatus.setText("Printing complete: " + event.getResult());
 
             // Re-enable the printing button and change its text back to "Print"
             printingBtn.setOnAction(this::doPrint); // Reset the action to doPrint
             printingBtn.setText("Start printing"); // Change button text back to "Print"
             printingBtn.setDisable(false); // Re-enable the button after printing
-        });
+        }, EventBus.Dispatch.FX_THREAD);
+    }
+
+    /**
+     * Show a batch of message status changes.
+     * The list is rendered again only if a message enters or leaves the shown messages, otherwise only
+     * the rows on screen are redrawn, so the cost does not grow with the number of messages in the list.
+     *
+     * @param events The changes, one for every message that changed.
+     */
+    private void messageStatusesChanged(List<MessageStatusChanged> events) {
+        updateQueueLabel();
+
+        MessageStatus filter = showMessageChoice.getValue();
+        for (MessageStatusChanged event : events) {
+            if (filter == MessageStatus.ALL
+                ? event.getOldStatus() == MessageStatus.DELETED || event.getNewStatus() == MessageStatus.DELETED
+                : (filter == event.getOldStatus()) != (filter == event.getNewStatus())) {
+                renderMessageList(filter);
+                return;
+            }
+        }
+        messageList.refresh(); // The statuses shown in the rows on screen
     }
 
     /**
@@ -331,6 +418,8 @@ public class MainGuiController {
      */
     public void postInit() {
         renderMessageList(MessageStatus.ALL);
+        updateQueueLabel();
+        packMessagesItem.setSelected(sessionProfileController.getSessionProfile().isPackMessages());
 
         // Start the polling thread for checking new messages
         isPolling = true; // Set the polling flag to true
@@ -486,19 +575,56 @@ public class MainGuiController {
      * 
      * @param filter The filter to apply when retrieving messages (e.g., "All Messages", "Sent", "Received").
      */
+    private long renderedVersion = -1; // Version of the messages shown in the message list
+    private MessageStatus renderedFilter; // Filter of the messages shown in the message list
+    private String renderedQuery = ""; // Search of the messages shown in the message list
     private void renderMessageList(MessageStatus filter) {
+
+        // Nothing to do if the messages have not changed since the last render
+        MessageSnapshot snapshot = messageController.getSnapshot();
+        String query = searchField.getText() != null ? searchField.getText().strip() : "";
+        if (snapshot.getVersion() == renderedVersion && filter == renderedFilter && query.equals(renderedQuery)) {
+            return;
+        }
         LOGGER.debug("Rendering message list...");
 
-        // Clear the current items in the ListView
-        messageList.getItems().clear();
+        // The first search indexes every message, it is done in the background while the list says so
+        if (!query.isEmpty() && !messageController.isSearchReady()) {
+            messageList.setPlaceholder(new Label("Searching..."));
+            messageList.setItems(FXCollections.emptyObservableList());
+            renderedVersion = -1; // Render again when the index is ready
+            messageController.prepareSearch(() -> Platform.runLater(() -> renderMessageList(showMessageChoice.getValue())));
+            return;
+        }
+        messageList.setPlaceholder(null);
 
-        // Get messages from the MessageController based on the filter
-        List<Message> messages = messageController.getMessages(filter);
+        // Get messages from the snapshot based on the filter, only the messages in the status are visited
+        List<Message> messages = query.isEmpty()
+            ? snapshot.getMessages(filter)
+            : messageController.searchMessages(query, filter); // Found from the word index, not by reading the messages
         LOGGER.debug("Number of messages to display: " + messages.size());
 
-        // Populate the ListView with the filtered messages
-        for (Message message : messages) {
-            messageList.getItems().add(message);
-        }
+        // Show the filtered messages without copying them, archived messages are built only for the rows on screen
+        messageList.setItems(FXCollections.observableList(messages));
+        renderedVersion = snapshot.getVersion();
+        renderedFilter = filter;
+        renderedQuery = query;
+
+        updateLatestMessageLabel(); // New messages may have come in
+    }
+
+    /**
+     * Updates the label showing when the latest message was sent.
+     */
+    private void updateLatestMessageLabel() {
+        Message latest = messageController.getLatestMessage();
+        latestMessage.setText("Latest Message: " + (latest != null ? LATEST_FORMAT.format(latest.getSentTime()) : "none"));
+    }
+
+    /**
+     * Updates the label showing the number of messages in the print queue.
+     */
+    private void updateQueueLabel() {
+        queValue.setText("Messages in queue: " + messageController.getMessageCount(MessageStatus.QUEUED));
     }
 }
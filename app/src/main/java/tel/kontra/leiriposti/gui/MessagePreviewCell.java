@@ -0,0 +1,89 @@
+package tel.kontra.leiriposti.gui;
+
+import java.util.concurrent.Future;
+
+import javafx.scene.control.ListCell;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+import tel.kontra.leiriposti.controller.PreviewController;
+import tel.kontra.leiriposti.model.Message;
+
+/**
+ * MessagePreviewCell shows a message in the message list with a preview of the printed letter.
+ *
+ * Previews that are already rendered are shown right away, the others are requested from the
+ * {@link PreviewController} and filled in when they are ready. When the cell is reused for another
+ * message before the preview is ready, the request is cancelled.
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class MessagePreviewCell extends ListCell<Message> {
+
+    private final PreviewController previewController = PreviewController.getInstance();
+    private final ImageView preview = new ImageView(); // Preview of the letter
+
+    private Message pendingMessage; // Message the pending request is for
+    private Future<?> pending; // Render request of the current message
+
+    /**
+     * Constructor for MessagePreviewCell.
+     */
+    public MessagePreviewCell() {
+        preview.setFitWidth(PreviewController.THUMBNAIL_WIDTH);
+        preview.setFitHeight(PreviewController.THUMBNAIL_HEIGHT);
+        preview.setPreserveRatio(true);
+    }
+
+    @Override
+    protected void updateItem(Message message, boolean empty) {
+        super.updateItem(message, empty);
+
+        if (empty || message == null) {
+            cancelPending();
+            setText(null);
+            setGraphic(null);
+            return;
+        }
+
+        setText(message.toString());
+        setGraphic(preview);
+
+        Image image = previewController.getCachedPreview(message);
+        if (image != null) {
+            cancelPending();
+            preview.setImage(image);
+            return;
+        }
+
+        if (pendingMessage != message) {
+            cancelPending();
+            preview.setImage(null); // Don't show the preview of the previous message
+
+            pendingMessage = message;
+            pending = previewController.requestPreview(message, rendered -> {
+                if (getItem() == message) {
+                    preview.setImage(rendered);
+                }
+                if (pendingMessage == message) {
+                    pendingMessage = null;
+                    pending = null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Cancel the render request of the previous message, if it is not rendered yet.
+     */
+    private void cancelPending() {
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+            pendingMessage = null;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package tel.kontra.leiriposti.model;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Stroke;
+
+/**
+ * DrawOp is a single precomputed drawing operation of a printed page.
+ *
+ * Layouts are computed once into lists of draw operations, printing a page then only
+ * replays the operations onto the graphics context without measuring or wrapping anything.
+ *
+ * @see MessageLayout
+ *
+ * @version 1.0
+ * @since 0.3
+ */
+@FunctionalInterface
+public interface DrawOp {
+
+    /**
+     * Draw the operation on the graphics context.
+     *
+     * @param g2d The graphics context to draw on.
+     */
+    void draw(Graphics2D g2d);
+
+    /**
+     * Create an operation that draws a string.
+     *
+     * @param text The string to draw.
+     * @param font The font to draw the string with.
+     * @param x The x coordinate of the baseline start.
+     * @param y The y coordinate of the baseline.
+     * @return The draw operation.
+     */
+    static DrawOp text(String text, Font font, int x, int y) {
+        return g2d -> {
+            g2d.setFont(font);
+            g2d.drawString(text, x, y);
+        };
+    }
+
+    /**
+     * Create an operation that draws a scaled image.
+     *
+     * @param image The image to draw.
+     * @param x The x coordinate of the top-left corner.
+     * @param y The y coordinate of the top-left corner.
+     * @param width The width to draw the image at.
+     * @param height The height to draw the image at.
+     * @return The draw operation.
+     */
+    static DrawOp image(Image image, int x, int y, int width, int height) {
+        return g2d -> g2d.drawImage(image, x, y, width, height, null);
+    }
+
+    /**
+     * Create an operation that draws a line with the given stroke.
+     *
+     * @param stroke The stroke to draw the line with.
+     * @param x1 The x coordinate of the start point.
+     * @param y1 The y coordinate of the start point.
+     * @param x2 The x coordinate of the end point.
+     * @param y2 The y coordinate of the end point.
+     * @return The draw operation.
+     */
+    static DrawOp line(Stroke stroke, int x1, int y1, int x2, int y2) {
+        return g2d -> {
+            Stroke previous = g2d.getStroke();
+            g2d.setStroke(stroke);
+            g2d.drawLine(x1, y1, x2, y2);
+            g2d.setStroke(previous);
+        };
+    }
+}
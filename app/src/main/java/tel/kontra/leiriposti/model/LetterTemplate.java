@@ -0,0 +1,453 @@
+package tel.kontra.leiriposti.model;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.print.PageFormat;
+import java.awt.print.PrinterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Function;
+
+import tel.kontra.leiriposti.util.ImageScaler;
+import tel.kontra.leiriposti.util.LineBreaker;
+import tel.kontra.leiriposti.util.WeekDayImage;
+
+/**
+ * LetterTemplate is a compiled letter layout.
+ *
+ * Templates are written as properties files, see templates/default.properties for the format.
+ * A template is compiled once: texts are parsed into {@link TemplateText}s, fonts are resolved
+ * and measured and images are loaded and scaled for printing. Laying out a message only binds
+ * the field values to the compiled elements and flows the body, so every camp can have its own look
+ * without parsing anything per message.
+ *
+ * The first page has the front elements and the start of the body, the body continues on as many
+ * pages as it needs and the closing lines follow it. The last page has the back elements.
+ *
+ * The template also styles the slips of packed sheets, see {@link Packed}. Slips end with the same
+ * closing lines as full letters and have their own, smaller fonts.
+ *
+ * @see TemplateText
+ * @see tel.kontra.leiriposti.controller.TemplateController
+ *
+ * @version 1.1
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class LetterTemplate {
+
+    /**
+     * A compiled element of the template, bound to a message when the message is laid out.
+     */
+    @FunctionalInterface
+    public interface Element {
+
+        /**
+         * Bind the element to a message.
+         *
+         * @param message The message to take the field values from.
+         * @param width The imageable width of the page.
+         * @param height The imageable height of the page.
+         * @return The draw operation of the element.
+         * @throws PrinterException if the element cannot be drawn.
+         */
+        DrawOp bind(Message message, double width, double height) throws PrinterException;
+    }
+
+    private static final String WEEKDAY_IMAGE = "weekday"; // Image name for the weekday image of the print day
+
+    private final String name; // Name of the template file
+    private final String title; // Name shown to the user
+    private final int revision; // Changes when the template source changes
+
+    private final List<Element> front; // Elements on the first page
+    private final List<Element> back; // Elements on the last page
+
+    private final LineBreaker bodyBreaker; // Line breaker for the body font
+    private final Font bodyFont;
+    private final int bodyLineHeight;
+    private final int bodyX; // Left edge of the body
+    private final int bodyY; // Baseline of the first body line on the first page
+    private final int bodyRight; // Space left empty right of the body
+    private final int bodyBottom; // Lines left empty below the body
+    private final int continueY; // Baseline of the first body line on the following pages
+
+    private final List<TemplateText> closing; // Lines after the body
+    private final Font closingFont;
+    private final int closingLineHeight;
+
+    private final Packed packed; // Style of the slips on packed sheets
+
+    /**
+     * Compile a template.
+     *
+     * @param name The name of the template file.
+     * @param properties The template source.
+     * @param imageLoader Loads the images the template refers to by name, returns null if an image is not found.
+     * @throws IllegalArgumentException if the template is not valid.
+     */
+    public LetterTemplate(String name, Properties properties, Function<String, BufferedImage> imageLoader) {
+        this.name = name;
+        this.title = properties.getProperty("name", name);
+        this.revision = properties.hashCode();
+
+        Graphics2D g2d = MessageLayout.measureGraphics(); // Scratch graphics for font metrics
+        try {
+            this.front = compileElements(properties, "front", g2d, imageLoader);
+            this.back = compileElements(properties, "back", g2d, imageLoader);
+
+            this.bodyFont = parseFont(properties, "body.font");
+            FontMetrics bodyMetrics = g2d.getFontMetrics(bodyFont);
+            this.bodyBreaker = new LineBreaker(bodyMetrics);
+            this.bodyLineHeight = bodyMetrics.getHeight();
+            this.bodyX = parseInt(properties, "body.x");
+            this.bodyY = parseInt(properties, "body.y");
+            this.bodyRight = parseInt(properties, "body.right");
+            this.bodyBottom = parseInt(properties, "body.bottom");
+            this.continueY = parseInt(properties, "body.continue.y");
+
+            List<TemplateText> lines = new ArrayList<>();
+            for (int i = 1; properties.getProperty("closing." + i) != null; i++) {
+                lines.add(TemplateText.compile(properties.getProperty("closing." + i)));
+            }
+            this.closing = List.copyOf(lines);
+            this.closingFont = parseFont(properties, "closing.font");
+            this.closingLineHeight = g2d.getFontMetrics(closingFont).getHeight();
+
+            this.packed = new Packed(properties, closing, g2d);
+        } finally {
+            g2d.dispose();
+        }
+    }
+
+    /**
+     * Lay out a message with this template.
+     *
+     * When printing duplex the layout is padded with an empty page if needed, so the back elements
+     * are printed on the back side of the last sheet and the letter folds with the address outside.
+     *
+     * @param message The message to lay out.
+     * @param pf The page format the message is printed on.
+     * @param duplex True if both sides of the paper are printed.
+     * @return The layout of the message.
+     * @throws PrinterException if an element cannot be drawn.
+     */
+    public MessageLayout layout(Message message, PageFormat pf, boolean duplex) throws PrinterException {
+        double width = pf.getImageableWidth();
+        double height = pf.getImageableHeight();
+
+        List<List<DrawOp>> pages = new ArrayList<>();
+        List<DrawOp> page = new ArrayList<>();
+        pages.add(page);
+
+        // Front elements on the first page
+        for (Element element : front) {
+            page.add(element.bind(message, width, height));
+        }
+
+        // Lay out the wrapped body line by line, continuing on a new page when the page is full
+        int maxWidth = (int) width - bodyX - bodyRight;
+        int bottom = (int) height - (bodyBottom * bodyLineHeight);
+        int y = bodyY;
+
+        for (String line : bodyBreaker.breakLines(message.getBody(), maxWidth)) {
+            if (y + bodyLineHeight > bottom) {
+                page = new ArrayList<>();
+                pages.add(page);
+                y = continueY;
+            }
+
+            page.add(DrawOp.text(line, bodyFont, bodyX, y));
+            y += bodyLineHeight;
+        }
+
+        // Keep the closing lines together, move them to a new page if they don't fit
+        if (y + closing.size() * closingLineHeight > bottom) {
+            page = new ArrayList<>();
+            pages.add(page);
+            y = continueY - closingLineHeight;
+        }
+
+        for (TemplateText line : closing) {
+            y += closingLineHeight;
+            page.add(DrawOp.text(line.bind(message), closingFont, bodyX, y));
+        }
+
+        // Back sides have odd indexes, leave the front of the last sheet empty if the back would land on it
+        if (duplex && pages.size() % 2 == 0) {
+            pages.add(new ArrayList<>());
+        }
+
+        // Back elements on the last page
+        page = new ArrayList<>();
+        pages.add(page);
+        for (Element element : back) {
+            page.add(element.bind(message, width, height));
+        }
+
+        return new MessageLayout(pf, pages);
+    }
+
+    /**
+     * Get the name of the template file.
+     *
+     * @return The name of the template.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the name of the template shown to the user.
+     *
+     * @return The title of the template.
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Get the revision of the template, it changes when the template source changes.
+     *
+     * @return The revision of the template.
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+    /**
+     * Get the style of the slips on packed sheets.
+     *
+     * @return The packed style of this template.
+     */
+    public Packed getPacked() {
+        return packed;
+    }
+
+    /**
+     * Compile the elements listed in a property, for example front=title,weekday.
+     *
+     * @param properties The template source.
+     * @param prefix The property listing the elements, also the prefix of the element properties.
+     * @param g2d Scratch graphics for font metrics.
+     * @param imageLoader Loads the images the template refers to.
+     * @return The compiled elements in drawing order.
+     */
+    private static List<Element> compileElements(Properties properties, String prefix, Graphics2D g2d,
+            Function<String, BufferedImage> imageLoader) {
+        List<Element> elements = new ArrayList<>();
+        String list = properties.getProperty(prefix, "");
+
+        for (String id : list.split(",")) {
+            id = id.trim();
+            if (id.isEmpty()) {
+                continue;
+            }
+
+            String key = prefix + "." + id;
+            Coordinate x = Coordinate.parse(properties, key + ".x");
+            Coordinate y = Coordinate.parse(properties, key + ".y");
+
+            if (properties.getProperty(key + ".image") != null) {
+                elements.add(compileImage(properties, key, x, y, imageLoader));
+            } else {
+                TemplateText text = TemplateText.compile(require(properties, key + ".text"));
+                Font font = parseFont(properties, key + ".font");
+                FontMetrics metrics = g2d.getFontMetrics(font);
+
+                elements.add((message, width, height) -> {
+                    String value = text.bind(message);
+                    return DrawOp.text(value, font, x.resolve(width, metrics.stringWidth(value)), y.resolve(height, 0));
+                });
+            }
+        }
+
+        return List.copyOf(elements);
+    }
+
+    /**
+     * Compile an image element.
+     * The weekday image is looked up when the message is laid out, other images are loaded and scaled now.
+     *
+     * @param properties The template source.
+     * @param key The prefix of the element properties.
+     * @param x The x coordinate of the element.
+     * @param y The y coordinate of the element.
+     * @param imageLoader Loads the images the template refers to.
+     * @return The compiled element.
+     */
+    private static Element compileImage(Properties properties, String key, Coordinate x, Coordinate y,
+            Function<String, BufferedImage> imageLoader) {
+        String imageName = properties.getProperty(key + ".image").trim();
+        int imageWidth = parseInt(properties, key + ".width");
+
+        if (WEEKDAY_IMAGE.equals(imageName)) {
+            return (message, width, height) -> {
+                // Get image corresponding to current week day
+                BufferedImage image = WeekDayImage.getImage(WeekDayImage.today(), imageWidth); // Pre-scaled for printing
+
+                if (image == null) {
+                    throw new PrinterException("Image for the current day of the week is not available.");
+                }
+
+                int imageHeight = image.getHeight() * imageWidth / image.getWidth();
+                return DrawOp.image(image, x.resolve(width, imageWidth), y.resolve(height, imageHeight), imageWidth, imageHeight);
+            };
+        }
+
+        BufferedImage source = imageLoader.apply(imageName);
+        if (source == null) {
+            throw new IllegalArgumentException("Image not found for " + key + ": " + imageName);
+        }
+        BufferedImage image = ImageScaler.scaleForPrint(source, imageWidth);
+        int imageHeight = source.getHeight() * imageWidth / source.getWidth();
+
+        return (message, width, height) ->
+            DrawOp.image(image, x.resolve(width, imageWidth), y.resolve(height, imageHeight), imageWidth, imageHeight);
+    }
+
+    /**
+     * Parse a font written as family,style,size, for example Serif,BOLD,24.
+     *
+     * @param properties The template source.
+     * @param key The property of the font.
+     * @return The font.
+     */
+    private static Font parseFont(Properties properties, String key) {
+        return parseFont(key, require(properties, key));
+    }
+
+    private static Font parseFont(String key, String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Font should be family,style,size in " + key);
+        }
+
+        int style = switch (parts[1].trim().toUpperCase()) {
+            case "PLAIN" -> Font.PLAIN;
+            case "BOLD" -> Font.BOLD;
+            case "ITALIC" -> Font.ITALIC;
+            case "BOLDITALIC" -> Font.BOLD | Font.ITALIC;
+            default -> throw new IllegalArgumentException("Unknown font style in " + key + ": " + parts[1]);
+        };
+
+        return new Font(parts[0].trim(), style, parseInt(key, parts[2]));
+    }
+
+    /**
+     * Get a required integer property.
+     *
+     * @param properties The template source.
+     * @param key The property to get.
+     * @return The value of the property.
+     */
+    private static int parseInt(Properties properties, String key) {
+        return parseInt(key, require(properties, key));
+    }
+
+    private static int parseInt(String key, String value) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number in " + key + ": " + value, e);
+        }
+    }
+
+    /**
+     * Get a required property.
+     *
+     * @param properties The template source.
+     * @param key The property to get.
+     * @return The value of the property.
+     */
+    private static String require(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing template property: " + key);
+        }
+        return value;
+    }
+
+    /**
+     * Packed is the compiled style of the slips on a packed sheet, see {@link PackedPrintableMessage}.
+     *
+     * The fonts are optional in the template, packed.header.font, packed.title.font, packed.body.font,
+     * packed.closing.font and packed.recipient.font default to the look packed sheets have always had,
+     * so older templates keep working. The closing lines are the closing lines of the template.
+     * The font metrics are measured once with the layout graphics, so packing and printing agree on the height of a slip.
+     */
+    public static final class Packed {
+
+        final Font headerFont; // Recipient header when the back side is not printed
+        final Font titleFont;
+        final Font bodyFont;
+        final Font closingFont;
+        final Font recipientFont; // Recipient on the back side
+        final FontMetrics headerMetrics;
+        final FontMetrics titleMetrics;
+        final FontMetrics closingMetrics;
+        final FontMetrics recipientMetrics;
+        final LineBreaker bodyBreaker;
+        final int bodyLineHeight;
+        final List<TemplateText> closing; // Lines after the body
+
+        private Packed(Properties properties, List<TemplateText> closing, Graphics2D g2d) {
+            this.headerFont = parseFont("packed.header.font", properties.getProperty("packed.header.font", "Serif,BOLD,14"));
+            this.titleFont = parseFont("packed.title.font", properties.getProperty("packed.title.font", "Serif,BOLD,16"));
+            this.bodyFont = parseFont("packed.body.font", properties.getProperty("packed.body.font", "Serif,PLAIN,12"));
+            this.closingFont = parseFont("packed.closing.font", properties.getProperty("packed.closing.font", "Serif,ITALIC,12"));
+            this.recipientFont = parseFont("packed.recipient.font", properties.getProperty("packed.recipient.font", "Serif,BOLD,28"));
+
+            this.headerMetrics = g2d.getFontMetrics(headerFont);
+            this.titleMetrics = g2d.getFontMetrics(titleFont);
+            this.closingMetrics = g2d.getFontMetrics(closingFont);
+            this.recipientMetrics = g2d.getFontMetrics(recipientFont);
+            FontMetrics bodyMetrics = g2d.getFontMetrics(bodyFont);
+            this.bodyBreaker = new LineBreaker(bodyMetrics);
+            this.bodyLineHeight = bodyMetrics.getHeight();
+            this.closing = closing;
+        }
+    }
+
+    /**
+     * A coordinate of an element on the page.
+     * Positive values are measured from the top or left edge of the printable area, negative values from
+     * the bottom or right edge to the far side of the element, and center centers the element.
+     */
+    static final class Coordinate {
+
+        private final int value;
+        private final boolean center;
+
+        private Coordinate(int value, boolean center) {
+            this.value = value;
+            this.center = center;
+        }
+
+        static Coordinate parse(Properties properties, String key) {
+            String value = require(properties, key).trim();
+            if (value.equalsIgnoreCase("center")) {
+                return new Coordinate(0, true);
+            }
+            return new Coordinate(parseInt(key, value), false);
+        }
+
+        /**
+         * Resolve the coordinate on the page.
+         *
+         * @param length The width or height of the printable area.
+         * @param size The width or height of the element, 0 for the baseline of a text.
+         * @return The coordinate of the element.
+         */
+        int resolve(double length, int size) {
+            if (center) {
+                return (int) ((length - size) / 2);
+            }
+            return value >= 0 ? value : (int) length + value - size;
+        }
+    }
+}
@@ -1,28 +1,31 @@
 package tel.kontra.leiriposti.model;
 
 import java.io.Serializable;
-import java.text.SimpleDateFormat;
 import java.time.DayOfWeek;
-import java.util.Calendar;
+import java.time.ZonedDateTime;
 import java.util.Date;
-import java.util.TimeZone;
 
 import lombok.Data;
 import tel.kontra.leiriposti.event.EventBus;
-import tel.kontra.leiriposti.event.ValueUpdateEvent;
+import tel.kontra.leiriposti.event.MessageStatusChanged;
+import tel.kontra.leiriposti.util.FormsTimestampParser;
+import tel.kontra.leiriposti.util.HashAlgorithm;
+import tel.kontra.leiriposti.util.HashUtil;
 
 /**
  * Message class represents a message with sender, recipient, subject, and body.
  * It is used to encapsulate the data for sending messages.
  * 
- * @version 1.1
+ * @version 1.5
  * @since 0.1
  */
 @Data
 public class Message implements Serializable {
     
     private static final long serialVersionUID = 1L;
+    private static final HashUtil FINGERPRINT = new HashUtil(""); // Unsalted, fingerprints must not change with the settings
     
+    private String id; // Stable identity of the message, see getId()
     private String recipient;
     private String subject;
     private String body;
@@ -39,6 +42,7 @@ public class Message implements Serializable {
      * @param body
      * @param timeStamp
      * @param author
+     * @throws IllegalArgumentException if the timeStamp is not a valid Forms timestamp.
      */
     public Message(String timeStamp, String subject, String body, String recipient, String author) {
         
@@ -48,40 +52,82 @@ public class Message implements Serializable {
         this.subject = subject;
         this.body = body;
 
-        /**
-         * We have to do some cleaning for the timeStamp to match
-         * 24.4.2025 klo 14.08.47 => 24/04/2025 14:08:47
-         * Replace dots with slashes and remove "klo" (Finnish for "at")
-         */
-        String[] dateTime = timeStamp.split(" klo ");
-
-        if (dateTime.length != 2) {
-            throw new IllegalArgumentException("Invalid timeStamp format: " + timeStamp);
-        }
+        // Parse the Forms timestamp, e.g. 24.4.2025 klo 14.08.47, in Finnish time
+        ZonedDateTime sentTime = FormsTimestampParser.parse(timeStamp);
+        this.timeStamp = Date.from(sentTime.toInstant());
+        this.weekDay = sentTime.getDayOfWeek(); // Set the weekDay field (1=Monday, 7=Sunday)
+    }
 
-        String date = dateTime[0].replace(".", "/").replace(" ", "/");
-        String time = dateTime[1].replace(".", ":").replace(" ", ":");
+    /**
+     * Constructor for a message read back from storage, for example the {@link MessageArchive}.
+     * The status is set without notifying listeners, nothing changed.
+     */
+    public Message(String id, Date timeStamp, DayOfWeek weekDay, String subject, String body,
+            String recipient, String author, MessageStatus status) {
+        this.id = id;
+        this.timeStamp = timeStamp;
+        this.weekDay = weekDay;
+        this.subject = subject;
+        this.body = body;
+        this.recipient = recipient;
+        this.author = author;
+        this.status = status;
+    }
 
-        // Construct the timeStamp string in the format "dd/MM/yyyy HH:mm:ss"
-        timeStamp = date + " " + time;
+    /**
+     * Gets the time the message was sent in Finnish time.
+     *
+     * @return The time the message was sent, or null if it is not known.
+     */
+    public ZonedDateTime getSentTime() {
+        return timeStamp != null ? timeStamp.toInstant().atZone(FormsTimestampParser.ZONE) : null;
+    }
 
-        // Parse the timeStamp string to a Date object and set the weekDay field
-        try {
+    /**
+     * Gets the stable identity of the message.
+     *
+     * Messages imported from Google Sheets are identified by the spreadsheet and row they came from.
+     * Other messages, and messages saved before identities existed, get a fingerprint of their content.
+     * The identity does not change when the status changes.
+     *
+     * @return The identity of the message.
+     */
+    public String getId() {
+        if (id == null) {
+            id = fingerprint();
+        }
+        return id;
+    }
 
-            // Get timestamp from format "dd/MM/yyyy HH:mm:ss"
-            SimpleDateFormat formatter = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
-            formatter.setTimeZone(TimeZone.getTimeZone("Europe/Helsinki")); // Set the timezone to Helsinki
-            this.timeStamp = formatter.parse(timeStamp); // Parse the date string to a Date object
+    /**
+     * Computes a fingerprint of the content of the message.
+     *
+     * @return The fingerprint, a truncated SHA-256 hash.
+     */
+    private String fingerprint() {
+        String content = String.join("\u0000",
+            String.valueOf(timeStamp != null ? timeStamp.getTime() : 0), recipient, author, subject, body);
+        return FINGERPRINT.hash(content, HashAlgorithm.SHA_256, 16);
+    }
 
-            // Set the weekDay field based on the timeStamp
-            Calendar calendar = Calendar.getInstance();
-            calendar.setTime(this.timeStamp);
-            int dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK); // Get the day of the week (1-7)
-            this.weekDay = DayOfWeek.of(dayOfWeek); // Set the weekDay field (1=Monday, 7=Sunday)
-            
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Invalid date format: " + timeStamp, e);
+    /**
+     * Messages are equal when they have the same identity.
+     * Comparing the identity instead of every field is fast and keeps working when the status changes.
+     *
+     * @param obj The object to compare with.
+     * @return True if the object is a message with the same identity.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
         }
+        return obj instanceof Message other && getId().equals(other.getId());
+    }
+
+    @Override
+    public int hashCode() {
+        return getId().hashCode();
     }
 
     /**
@@ -90,10 +136,13 @@ public class Message implements Serializable {
      * @see MessageStatus
      */
     public void setStatus(MessageStatus status) {
+        MessageStatus oldStatus = this.status;
         this.status = status;
 
         // Notify listeners about the status change
-        EventBus.getInstance().post(new ValueUpdateEvent(this.toString()));
+        if (oldStatus != status) {
+            EventBus.getInstance().post(new MessageStatusChanged(this, oldStatus, status));
+        }
     }
 
     @Override
@@ -0,0 +1,854 @@
+package tel.kontra.leiriposti.model;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import tel.kontra.leiriposti.util.FormsTimestampParser;
+
+/**
+ * MessageArchive keeps messages that are no longer active, printed or deleted, in a compact columnar layout.
+ *
+ * A season of letters is tens of thousands of messages, and as {@link Message} objects every one of them
+ * takes five strings, a date and the object itself. In the archive every message is a row in a few arrays:
+ * <ul>
+ *   <li>recipients and authors are codes into a dictionary of names, the same names come up again and again,</li>
+ *   <li>the timestamp is a long and the status a byte,</li>
+ *   <li>the identity, subject and body are UTF-8 bytes in one shared byte arena.</li>
+ * </ul>
+ * Message objects are built only when a row is read.
+ *
+ * An archive can be written to a file with {@link #write(File)} and mapped back to memory with
+ * {@link #map(File)}. The file has a fixed size header for every row, at a position computed from
+ * the row, followed by the names, the identities and the subjects and bodies. Mapping reads only the
+ * statuses and the names, the rest is read from the mapped file when a row is read, so loading does not
+ * depend on the length of the letters. Rows added after mapping are kept in memory. The same layout can
+ * be written to a stream with {@link #write(OutputStream)} and read back to memory with {@link #read(InputStream)}.
+ *
+ * The subjects and bodies are most of the file, and they are read the least, so in the file they are
+ * deflated in blocks of about {@value #BLOCK} bytes that end at the end of a row. Reading a row inflates
+ * its block, the last few blocks inflated are kept, so reading the rows in order inflates every block once.
+ * The identities, which the store compares when it looks messages up, are not compressed. Blocks never
+ * change: writing a mapped archive copies its blocks as they are and compresses only the rows added after
+ * mapping. Archive files written before the blocks, of file version 1, are rejected when mapped or read.
+ *
+ * Rows are only appended, the status of a row is the only thing that changes.
+ * This class is thread-safe.
+ *
+ * @version 1.3
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class MessageArchive implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int TEXTS = 3; // Identity, subject and body of a row in the arena
+    private static final int NULL = -1; // Dictionary code of a missing name
+
+    /**
+     * Layout of an archive file, big-endian:
+     * <pre>
+     * file header  magic, version, rows, names, length of the identities, length of the texts, blocks,
+     *              start of the identities, start of the block table, start of the blocks (int)
+     * row headers  time (long), status (byte), null texts (byte), unused (short), recipient, author,
+     *              start of the identity in the identities, start of the subject and body in the texts (int)
+     * names        length (int) and UTF-8 bytes of every name in the dictionary
+     * identities   UTF-8 bytes of the identity of every row
+     * block table  start in the texts and start in the blocks of every block, and the ends of both (int)
+     * blocks       deflated UTF-8 bytes of the subject and body of the rows of every block
+     * </pre>
+     */
+    private static final int MAGIC = 0x4C504D41; // "LPMA"
+    private static final int FILE_VERSION = 2;
+    private static final int FILE_HEADER = 40;
+    private static final int ROW_HEADER = 32;
+    private static final int ROW_STATUS = 8; // Offsets of the fields in a row header
+    private static final int ROW_NULLS = 9;
+    private static final int ROW_RECIPIENT = 12;
+    private static final int ROW_AUTHOR = 16;
+    private static final int ROW_TEXTS = 20;
+    private static final int BLOCK = 32 * 1024; // Texts in a block before it ends at the end of a row
+    private static final int CACHED_BLOCKS = 4; // Inflated blocks kept
+
+    private int size; // Number of rows
+    private long[] times = new long[16]; // Timestamps in epoch milliseconds by row, after the mapped rows
+    private byte[] statuses = new byte[16]; // Status ordinals by row, of all rows
+    private int[] recipients = new int[16]; // Dictionary codes of the recipients by row, after the mapped rows
+    private int[] authors = new int[16]; // Dictionary codes of the authors by row, after the mapped rows
+    private int[] offsets = new int[16 * TEXTS + 1]; // Start of every text in the arena, the next start is its end
+    private byte[] arena = new byte[1024]; // UTF-8 texts of the rows after the mapped rows
+    private final BitSet nullTexts = new BitSet(); // Texts that are null, by text index after the mapped rows
+    private final List<String> dictionary = new ArrayList<>(); // Names by code
+
+    private transient Map<String, Integer> codes = new HashMap<>(); // Codes by name
+    private transient ByteBuffer mapped; // Mapped archive file, null if nothing is mapped
+    private transient int base; // Number of mapped rows, the rows in the arrays come after them
+    private transient int idsLength; // Length of the identities in the mapped file
+    private transient int idsStart; // Start of the identities in the mapped file
+    private transient int textsLength; // Length of the inflated texts in the mapped file
+    private transient int blocks; // Number of blocks in the mapped file
+    private transient int blockTable; // Start of the block table in the mapped file
+    private transient int blocksStart; // Start of the blocks in the mapped file
+    private transient int[] cachedBlocks; // Blocks inflated last, -1 where there is none
+    private transient byte[][] cachedTexts; // Texts of the cached blocks
+    private transient int nextCached; // Slot of the next block inflated
+
+    /**
+     * Constructor for an empty MessageArchive.
+     */
+    public MessageArchive() {
+    }
+
+    /**
+     * Constructor for an empty MessageArchive with room for the rows read from a stream.
+     */
+    private MessageArchive(int rows) {
+        int capacity = Math.max(rows, 16);
+        times = new long[capacity];
+        statuses = new byte[capacity];
+        recipients = new int[capacity];
+        authors = new int[capacity];
+        offsets = new int[capacity * TEXTS + 1];
+    }
+
+    /**
+     * Map an archive file written with {@link #write(File)}.
+     * The file must not be changed while the archive is used, write new archives to new files.
+     *
+     * @param file The archive file.
+     * @return The archive, rows added to it are kept in memory.
+     * @throws IOException If the file can not be read or is not an archive file.
+     */
+    public static MessageArchive map(File file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // Stays mapped after closing
+        }
+
+        if (buffer.capacity() < FILE_HEADER || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a message archive: " + file);
+        }
+        int version = buffer.getInt(4);
+        if (version != FILE_VERSION) {
+            throw new IOException("Unsupported message archive version " + version + ": " + file);
+        }
+
+        MessageArchive archive = new MessageArchive();
+        int rows = buffer.getInt(8);
+        int names = buffer.getInt(12);
+        archive.idsLength = buffer.getInt(16);
+        archive.textsLength = buffer.getInt(20);
+        archive.blocks = buffer.getInt(24);
+        archive.idsStart = buffer.getInt(28);
+        archive.blockTable = buffer.getInt(32);
+        archive.blocksStart = buffer.getInt(36);
+        archive.cachedBlocks = new int[CACHED_BLOCKS];
+        archive.cachedTexts = new byte[CACHED_BLOCKS][];
+        Arrays.fill(archive.cachedBlocks, -1);
+        archive.mapped = buffer;
+        archive.base = rows;
+        archive.size = rows;
+
+        // Statuses change, they are copied, everything else is read from the file
+        archive.statuses = new byte[Math.max(rows, 16)];
+        for (int row = 0; row < rows; row++) {
+            archive.statuses[row] = buffer.get(archive.header(row) + ROW_STATUS);
+        }
+
+        int position = archive.header(rows);
+        for (int code = 0; code < names; code++) {
+            int length = buffer.getInt(position);
+            byte[] bytes = new byte[length];
+            buffer.get(position + 4, bytes);
+            archive.encode(new String(bytes, StandardCharsets.UTF_8));
+            position += 4 + length;
+        }
+        return archive;
+    }
+
+    /**
+     * Add a message to the archive.
+     *
+     * @param message The message to add.
+     * @return The row of the message.
+     */
+    public synchronized int add(Message message) {
+        int row = size;
+        int index = row - base; // Index in the arrays
+        if (index == times.length) {
+            int capacity = index * 2;
+            times = Arrays.copyOf(times, capacity);
+            recipients = Arrays.copyOf(recipients, capacity);
+            authors = Arrays.copyOf(authors, capacity);
+            offsets = Arrays.copyOf(offsets, capacity * TEXTS + 1);
+        }
+        if (row == statuses.length) {
+            statuses = Arrays.copyOf(statuses, row * 2);
+        }
+
+        times[index] = message.getTimeStamp() != null ? message.getTimeStamp().getTime() : Long.MIN_VALUE;
+        statuses[row] = (byte) message.getStatus().ordinal();
+        recipients[index] = encode(message.getRecipient());
+        authors[index] = encode(message.getAuthor());
+
+        int text = index * TEXTS;
+        append(text, message.getId());
+        append(text + 1, message.getSubject());
+        append(text + 2, message.getBody());
+
+        size++;
+        return row;
+    }
+
+    /**
+     * Build the message of a row.
+     * Every call builds a new message, messages are equal by their identity.
+     *
+     * @param row The row.
+     * @return The message.
+     */
+    public synchronized Message get(int row) {
+        checkRow(row);
+
+        Date timeStamp = null;
+        DayOfWeek weekDay = null;
+        long time = time(row);
+        if (time != Long.MIN_VALUE) {
+            timeStamp = new Date(time);
+            weekDay = timeStamp.toInstant().atZone(FormsTimestampParser.ZONE).getDayOfWeek();
+        }
+
+        return new Message(
+            text(row, 0),
+            timeStamp,
+            weekDay,
+            text(row, 1),
+            text(row, 2),
+            decode(row < base ? mapped.getInt(header(row) + ROW_RECIPIENT) : recipients[row - base]),
+            decode(row < base ? mapped.getInt(header(row) + ROW_AUTHOR) : authors[row - base]),
+            getStatus(row)
+        );
+    }
+
+    /**
+     * Get the identity of a row without building the message.
+     *
+     * @param row The row.
+     * @return The identity of the message.
+     */
+    public synchronized String getId(int row) {
+        checkRow(row);
+        return text(row, 0);
+    }
+
+    /**
+     * Get the status of a row without building the message.
+     *
+     * @param row The row.
+     * @return The status.
+     */
+    public synchronized MessageStatus getStatus(int row) {
+        checkRow(row);
+        return MessageStatus.values()[statuses[row]];
+    }
+
+    /**
+     * Change the status of a row.
+     *
+     * @param row The row.
+     * @param status The new status.
+     */
+    public synchronized void setStatus(int row, MessageStatus status) {
+        checkRow(row);
+        statuses[row] = (byte) status.ordinal();
+    }
+
+    /**
+     * Get the timestamp of a row without building the message.
+     *
+     * @param row The row.
+     * @return The timestamp in epoch milliseconds, or Long.MIN_VALUE if the message has none.
+     */
+    public synchronized long getTime(int row) {
+        checkRow(row);
+        return time(row);
+    }
+
+    /**
+     * Get the number of rows.
+     *
+     * @return The number of rows.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of rows read from a mapped file.
+     *
+     * @return The number of mapped rows, 0 if the archive is not mapped.
+     */
+    public synchronized int getMappedCount() {
+        return base;
+    }
+
+    /**
+     * Write the archive to a file that can be mapped with {@link #map(File)}.
+     * The texts are copied as they are, messages are not built.
+     *
+     * @param file The file, replaced if it exists. Must not be the file this archive is mapped from.
+     * @throws IOException If the file can not be written.
+     */
+    public void write(File file) throws IOException {
+        try (FileOutputStream fileOut = new FileOutputStream(file)) {
+            write(new BufferedOutputStream(fileOut, 1 << 16));
+            fileOut.getFD().sync(); // On the disk before a snapshot refers to it
+        }
+    }
+
+    /**
+     * Write the archive in the layout of an archive file, see {@link #write(File)}.
+     * The blocks of a mapped archive are copied as they are, the rows added after mapping are deflated
+     * in new blocks.
+     *
+     * @param stream The stream to write to, it is flushed but not closed.
+     * @throws IOException If the stream can not be written.
+     */
+    public synchronized void write(OutputStream stream) throws IOException {
+        List<byte[]> names = new ArrayList<>(dictionary.size());
+        long namesLength = 0;
+        for (String name : dictionary) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            names.add(bytes);
+            namesLength += 4 + bytes.length;
+        }
+
+        // Starts of the texts in the new file, the mapped blocks keep their place at the start of the texts
+        int copied = base; // Rows whose texts are in the mapped blocks
+        int[] starts = new int[size * TEXTS];
+        long ids = 0;
+        long texts = copied > 0 ? textsLength : 0;
+        for (int row = 0; row < size; row++) {
+            starts[row * TEXTS] = (int) ids;
+            ids += textEnd(row, 0) - textStart(row, 0);
+            for (int text = 1; text < TEXTS; text++) {
+                if (row < copied) {
+                    starts[row * TEXTS + text] = textStart(row, text);
+                } else {
+                    starts[row * TEXTS + text] = (int) texts;
+                    texts += textEnd(row, text) - textStart(row, text);
+                }
+            }
+        }
+        if (ids + texts > Integer.MAX_VALUE) {
+            throw new IOException("Message archive is too large to map: " + (ids + texts) + " bytes");
+        }
+
+        // Block table of the mapped blocks and the new blocks, the new blocks are deflated first
+        int copiedBlocks = copied > 0 ? blocks : 0;
+        int copiedLength = copied > 0 ? blockData(blocks) : 0;
+        int[] table = new int[(copiedBlocks + 16) * 2];
+        for (int block = 0; block < copiedBlocks; block++) {
+            table[block * 2] = blockText(block);
+            table[block * 2 + 1] = blockData(block);
+        }
+        int count = copiedBlocks;
+        ByteArrayOutputStream plain = new ByteArrayOutputStream(BLOCK * 2);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(); // Blocks are written once and read many times
+        try {
+            int text = copied > 0 ? textsLength : 0; // Start of the next block in the texts
+            for (int row = copied; row < size; row++) {
+                copyText(row, 1, plain);
+                copyText(row, 2, plain);
+                if (plain.size() >= BLOCK || row == size - 1 && plain.size() > 0) {
+                    if (count * 2 + 2 >= table.length) {
+                        table = Arrays.copyOf(table, table.length * 2);
+                    }
+                    table[count * 2] = text;
+                    table[count * 2 + 1] = copiedLength + data.size();
+                    count++;
+                    deflate(deflater, plain, data);
+                    text += plain.size();
+                    plain.reset();
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        table[count * 2] = (int) texts;
+        table[count * 2 + 1] = copiedLength + data.size();
+
+        long idsAt = FILE_HEADER + (long) size * ROW_HEADER + namesLength;
+        long tableAt = idsAt + ids;
+        long blocksAt = tableAt + (count + 1) * 8L;
+        if (blocksAt + table[count * 2 + 1] > Integer.MAX_VALUE) {
+            throw new IOException("Message archive is too large to map: " + (blocksAt + table[count * 2 + 1]) + " bytes");
+        }
+
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeInt(size);
+        out.writeInt(names.size());
+        out.writeInt((int) ids);
+        out.writeInt((int) texts);
+        out.writeInt(count);
+        out.writeInt((int) idsAt);
+        out.writeInt((int) tableAt);
+        out.writeInt((int) blocksAt);
+
+        for (int row = 0; row < size; row++) {
+            int nulls = 0;
+            for (int text = 0; text < TEXTS; text++) {
+                if (isNull(row, text)) {
+                    nulls |= 1 << text;
+                }
+            }
+
+            out.writeLong(time(row));
+            out.writeByte(statuses[row]);
+            out.writeByte(nulls);
+            out.writeShort(0);
+            out.writeInt(row < base ? mapped.getInt(header(row) + ROW_RECIPIENT) : recipients[row - base]);
+            out.writeInt(row < base ? mapped.getInt(header(row) + ROW_AUTHOR) : authors[row - base]);
+            for (int text = 0; text < TEXTS; text++) {
+                out.writeInt(starts[row * TEXTS + text]);
+            }
+        }
+
+        for (byte[] name : names) {
+            out.writeInt(name.length);
+            out.write(name);
+        }
+
+        for (int row = 0; row < size; row++) {
+            copyText(row, 0, out);
+        }
+
+        for (int entry = 0; entry <= count * 2 + 1; entry++) {
+            out.writeInt(table[entry]);
+        }
+
+        copyMapped(blocksStart, copiedLength, out);
+        data.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Read an archive written with {@link #write(OutputStream)} to memory.
+     *
+     * @param stream The stream to read from, it is read to the end of the archive.
+     * @return The archive.
+     * @throws IOException If the stream can not be read or does not have an archive.
+     */
+    public static MessageArchive read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a message archive");
+        }
+        int version = in.readInt();
+        if (version != FILE_VERSION) {
+            throw new IOException("Unsupported message archive version " + version);
+        }
+
+        int rows = in.readInt();
+        int names = in.readInt();
+        int idsLength = in.readInt();
+        int textsLength = in.readInt();
+        int blocks = in.readInt();
+        in.readInt(); // Starts of the identities, the block table and the blocks in a file
+        in.readInt();
+        in.readInt();
+        if (rows < 0 || names < 0 || idsLength < 0 || textsLength < 0 || blocks < 0) {
+            throw new IOException("Invalid message archive header");
+        }
+
+        MessageArchive archive = new MessageArchive(rows);
+        int[] starts = new int[rows * TEXTS];
+        for (int row = 0; row < rows; row++) {
+            int nulls = archive.readRow(in, row, names);
+            for (int text = 0; text < TEXTS; text++) {
+                starts[row * TEXTS + text] = in.readInt();
+                if ((nulls & (1 << text)) != 0) {
+                    archive.nullTexts.set(row * TEXTS + text);
+                }
+            }
+        }
+        archive.readNames(in, names);
+
+        byte[] ids = new byte[idsLength];
+        in.readFully(ids);
+        int[] table = new int[(blocks + 1) * 2];
+        for (int entry = 0; entry < table.length; entry++) {
+            table[entry] = in.readInt();
+        }
+        if (table[blocks * 2] != textsLength || table[blocks * 2 + 1] < 0) {
+            throw new IOException("Invalid message archive block table");
+        }
+        byte[] data = new byte[table[blocks * 2 + 1]];
+        in.readFully(data);
+
+        byte[] texts = new byte[textsLength];
+        Inflater inflater = new Inflater();
+        try {
+            for (int block = 0; block < blocks; block++) {
+                int from = table[block * 2];
+                int to = table[block * 2 + 2];
+                int dataFrom = table[block * 2 + 1];
+                int dataTo = table[block * 2 + 3];
+                if (from < 0 || to < from || to > textsLength || dataFrom < 0 || dataTo < dataFrom || dataTo > data.length) {
+                    throw new IOException("Invalid message archive block table");
+                }
+                inflater.reset();
+                inflater.setInput(data, dataFrom, dataTo - dataFrom);
+                inflate(inflater, texts, from, to - from);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Damaged block in message archive: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+
+        // Identity, subject and body of a row next to each other in the arena
+        archive.arena = new byte[Math.max(idsLength + textsLength, 1024)];
+        int position = 0;
+        for (int row = 0; row < rows; row++) {
+            int next = (row + 1) * TEXTS;
+            archive.offsets[row * TEXTS] = position;
+            position = copy(ids, starts[row * TEXTS], row + 1 < rows ? starts[next] : idsLength, archive.arena, position);
+            archive.offsets[row * TEXTS + 1] = position;
+            position = copy(texts, starts[row * TEXTS + 1], starts[row * TEXTS + 2], archive.arena, position);
+            archive.offsets[row * TEXTS + 2] = position;
+            position = copy(texts, starts[row * TEXTS + 2], row + 1 < rows ? starts[next + 1] : textsLength, archive.arena, position);
+        }
+        archive.offsets[rows * TEXTS] = position;
+        archive.size = rows;
+        return archive;
+    }
+
+    /**
+     * Read a row header up to the starts of its texts.
+     *
+     * @return The flags of the null texts.
+     */
+    private int readRow(DataInputStream in, int row, int names) throws IOException {
+        times[row] = in.readLong();
+        statuses[row] = in.readByte();
+        int nulls = in.readByte();
+        in.readShort();
+        recipients[row] = checkCode(in.readInt(), names);
+        authors[row] = checkCode(in.readInt(), names);
+        return nulls;
+    }
+
+    private void readNames(DataInputStream in, int names) throws IOException {
+        for (int code = 0; code < names; code++) {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            encode(new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Copy a range of bytes read from a stream, checking that it is in the bytes.
+     *
+     * @return The position after the copied bytes.
+     */
+    private static int copy(byte[] source, int from, int to, byte[] target, int position) throws IOException {
+        if (from < 0 || to < from || to > source.length) {
+            throw new IOException("Invalid text in message archive");
+        }
+        System.arraycopy(source, from, target, position, to - from);
+        return position + to - from;
+    }
+
+    private static int checkCode(int code, int names) throws IOException {
+        if (code < NULL || code >= names) {
+            throw new IOException("Invalid name code in message archive: " + code);
+        }
+        return code;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of bounds for length " + size);
+        }
+    }
+
+    /**
+     * Position of the header of a mapped row.
+     */
+    private int header(int row) {
+        return FILE_HEADER + row * ROW_HEADER;
+    }
+
+    private long time(int row) {
+        return row < base ? mapped.getLong(header(row)) : times[row - base];
+    }
+
+    private boolean isNull(int row, int text) {
+        if (row < base) {
+            return (mapped.get(header(row) + ROW_NULLS) & (1 << text)) != 0;
+        }
+        return nullTexts.get((row - base) * TEXTS + text);
+    }
+
+    /**
+     * Start of a text in the mapped identities or texts, or in the arena.
+     */
+    private int textStart(int row, int text) {
+        if (row < base) {
+            return mapped.getInt(header(row) + ROW_TEXTS + text * 4);
+        }
+        return offsets[(row - base) * TEXTS + text];
+    }
+
+    /**
+     * End of a text, the start of the next text of the row or of the next row.
+     * In a mapped file the identities are apart from the subjects and bodies.
+     */
+    private int textEnd(int row, int text) {
+        if (row >= base) {
+            return offsets[(row - base) * TEXTS + text + 1];
+        }
+        if (text == 1) {
+            return textStart(row, text + 1);
+        }
+        int next = text == 2 ? 1 : 0; // Next text of the same kind
+        if (row + 1 < base) {
+            return textStart(row + 1, next);
+        }
+        return text == 0 ? idsLength : textsLength;
+    }
+
+    private int blockText(int block) {
+        return mapped.getInt(blockTable + block * 8);
+    }
+
+    private int blockData(int block) {
+        return mapped.getInt(blockTable + block * 8 + 4);
+    }
+
+    /**
+     * Find the mapped block that has a position in the texts.
+     */
+    private int block(int start) {
+        int low = 0;
+        int high = blocks - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockText(mid) <= start) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Get the inflated texts of a mapped block, from the cache if it was inflated lately.
+     */
+    private byte[] inflate(int block) {
+        for (int slot = 0; slot < CACHED_BLOCKS; slot++) {
+            if (cachedBlocks[slot] == block) {
+                return cachedTexts[slot];
+            }
+        }
+
+        byte[] texts = new byte[blockText(block + 1) - blockText(block)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(mapped.slice(blocksStart + blockData(block), blockData(block + 1) - blockData(block)));
+            inflate(inflater, texts, 0, texts.length);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Damaged block " + block + " in message archive", e);
+        } finally {
+            inflater.end();
+        }
+
+        cachedBlocks[nextCached] = block;
+        cachedTexts[nextCached] = texts;
+        nextCached = (nextCached + 1) % CACHED_BLOCKS;
+        return texts;
+    }
+
+    /**
+     * Inflate the input of an inflater to a range of bytes.
+     */
+    private static void inflate(Inflater inflater, byte[] texts, int offset, int length) throws DataFormatException {
+        int end = offset + length;
+        while (offset < end) {
+            int count = inflater.inflate(texts, offset, end - offset);
+            if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Block ends before its texts");
+            }
+            offset += count;
+        }
+    }
+
+    /**
+     * Deflate the texts of a block to the end of the blocks.
+     */
+    private static void deflate(Deflater deflater, ByteArrayOutputStream plain, ByteArrayOutputStream data) {
+        deflater.reset();
+        deflater.setInput(plain.toByteArray());
+        deflater.finish();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            data.write(buffer, 0, deflater.deflate(buffer));
+        }
+    }
+
+    /**
+     * Copy the UTF-8 bytes of a text to a stream without building the string.
+     */
+    private void copyText(int row, int text, OutputStream out) throws IOException {
+        int start = textStart(row, text);
+        int length = textEnd(row, text) - start;
+        if (length == 0) {
+            return;
+        }
+        if (row >= base) {
+            out.write(arena, start, length);
+        } else if (text > 0) {
+            int block = block(start);
+            out.write(inflate(block), start - blockText(block), length);
+        } else {
+            copyMapped(idsStart + start, length, out);
+        }
+    }
+
+    private void copyMapped(int position, int length, OutputStream out) throws IOException {
+        byte[] buffer = new byte[Math.min(length, 8192)];
+        for (int at = 0; at < length; at += buffer.length) {
+            int count = Math.min(buffer.length, length - at);
+            mapped.get(position + at, buffer, 0, count);
+            out.write(buffer, 0, count);
+        }
+    }
+
+    /**
+     * Get the dictionary code of a name, adding the name if it is new.
+     */
+    private int encode(String name) {
+        if (name == null) {
+            return NULL;
+        }
+        return codes.computeIfAbsent(name, key -> {
+            dictionary.add(key);
+            return dictionary.size() - 1;
+        });
+    }
+
+    private String decode(int code) {
+        return code != NULL ? dictionary.get(code) : null;
+    }
+
+    /**
+     * Append a text to the arena.
+     */
+    private void append(int text, String value) {
+        int start = offsets[text];
+        if (value == null) {
+            nullTexts.set(text);
+            offsets[text + 1] = start;
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (start + bytes.length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, start + bytes.length));
+        }
+        System.arraycopy(bytes, 0, arena, start, bytes.length);
+        offsets[text + 1] = start + bytes.length;
+    }
+
+    private String text(int row, int text) {
+        if (isNull(row, text)) {
+            return null;
+        }
+
+        int start = textStart(row, text);
+        int length = textEnd(row, text) - start;
+        if (row >= base) {
+            return new String(arena, start, length, StandardCharsets.UTF_8);
+        }
+        if (length == 0) {
+            return "";
+        }
+        if (text > 0) {
+            int block = block(start);
+            return new String(inflate(block), start - blockText(block), length, StandardCharsets.UTF_8);
+        }
+
+        byte[] bytes = new byte[length];
+        mapped.get(idsStart + start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A mapped archive is written as an archive in memory, the mapping can not be serialized.
+     */
+    private synchronized Object writeReplace() {
+        if (base == 0) {
+            return this;
+        }
+
+        MessageArchive copy = new MessageArchive();
+        for (int row = 0; row < size; row++) {
+            copy.add(get(row));
+        }
+        return copy;
+    }
+
+    /**
+     * Drop the unused capacity before writing, the archive is written when the session is saved.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        times = Arrays.copyOf(times, Math.max(size, 1));
+        statuses = Arrays.copyOf(statuses, Math.max(size, 1));
+        recipients = Arrays.copyOf(recipients, Math.max(size, 1));
+        authors = Arrays.copyOf(authors, Math.max(size, 1));
+        offsets = Arrays.copyOf(offsets, Math.max(size, 1) * TEXTS + 1);
+        arena = Arrays.copyOf(arena, Math.max(offsets[size * TEXTS], 1));
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        // Rebuild the codes of the names
+        codes = new HashMap<>();
+        for (int code = 0; code < dictionary.size(); code++) {
+            codes.put(dictionary.get(code), code);
+        }
+    }
+}
@@ -0,0 +1,586 @@
+package tel.kontra.leiriposti.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.DayOfWeek;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * MessageJournal saves the messages of a session as a snapshot and a journal of the changes made after it.
+ *
+ * Every new message and every status change is appended to the journal as a small record when it
+ * happens, so saving costs as much as the change, not as much as all the messages, and nothing is lost
+ * if the application is closed without saving. The print queue is the messages in the QUEUED status,
+ * so queueing and unqueueing are status changes too.
+ *
+ * When the journal grows past {@value #COMPACT_BYTES} bytes it is compacted: the messages are written
+ * to a new snapshot, which replaces the old one at once, and the journal is emptied. Loading reads the
+ * snapshot and replays the journal on top of it. Replaying a record twice does nothing more, so a change
+ * made while compacting may be both in the snapshot and in the journal.
+ *
+ * The archived messages, most of the messages of a long session, are written to an archive file of
+ * their own that is mapped to memory when the snapshot is read, see {@link MessageArchive#map(File)}.
+ * Every compaction writes a new archive file, the mapped one can not be replaced while it is in use,
+ * and the snapshot names the file it goes with. The archive file of the replaced snapshot is deleted
+ * when it is no longer mapped, archive files the journal does not know are never deleted.
+ *
+ * A snapshot is only ever replaced by a journal that has read it and replayed the records after it,
+ * so messages that could not be read are never written over. A damaged snapshot is renamed to
+ * name.messages.damaged and kept with its archive file for recovering the messages by hand. A snapshot
+ * that can not be read because of an error reading the files, or because it is of a newer version,
+ * is left as it is.
+ *
+ * The snapshot starts with the magic number and the schema version of the {@link SessionProfileCodec},
+ * followed by the name of the archive file and the active messages in the format of the codec.
+ * Snapshots saved with Java serialization, before this format, are recognized by their stream header.
+ *
+ * The number of active and archived messages in every snapshot written is told to a {@link SnapshotListener},
+ * the storage backend keeps them in the catalog of the sessions, so listing the sessions reads no messages.
+ *
+ * Every record has its length and a CRC-32 checksum. A record that was cut short by a crash, or is
+ * otherwise damaged, ends the journal, it and everything after it is dropped when the journal is opened.
+ *
+ * Appending a record only adds it to a buffer in memory, so a status change on the JavaFX Application
+ * Thread never waits for the disk. {@link #flush()} writes the buffered records and forces them to the
+ * disk, the autosave thread calls it, see {@link tel.kontra.leiriposti.service.AutosaveService}.
+ * Records that have not been flushed are lost in a crash. Compaction forces the snapshot to the disk.
+ *
+ * This class is thread-safe.
+ *
+ * @see MessageStorage
+ *
+ * @version 1.6
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class MessageJournal implements MessageStorage {
+
+    private static final Logger LOGGER = LogManager.getLogger(); // Logger for debugging
+
+    static final long COMPACT_BYTES = 4L * 1024 * 1024; // Journal size that triggers compaction
+
+    private static final byte MESSAGE = 1; // Record of a new message
+    private static final byte STATUS = 2; // Record of a status change
+    private static final int HEADER = 8; // Length and checksum of a record
+
+    private static final int SNAPSHOT_MAGIC = 0x4C504D53; // "LPMS"
+    private static final int SERIALIZED = 0xACED; // First bytes of a Java serialization stream
+
+    private final File directory; // Directory of the files
+    private final String name; // Name of the session, the start of the file names
+    private final File journalFile; // Changes after the snapshot
+    private final File snapshotFile; // Active messages at the last compaction and the name of the archive file
+    private final SnapshotListener listener; // Told the counts of the messages in every snapshot written
+    private FileChannel channel; // Journal open for writing, null until opened
+    private volatile boolean open; // Flag to accept records, set when the journal is opened
+    private final Object pendingLock = new Object(); // Guards the pending records, never held while writing
+    private boolean snapshotRead; // Flag set when the snapshot has been read, or there is none
+    private boolean replayed; // Flag set when the records after the snapshot have been replayed
+    private String archiveName; // Archive file of the current snapshot, null if it has none
+    private final List<String> staleArchives = new ArrayList<>(); // Archive files of replaced snapshots still to delete
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(); // Records not written yet
+
+    /**
+     * Told the number of messages in a snapshot when it has been written.
+     */
+    @FunctionalInterface
+    public interface SnapshotListener {
+        void snapshotWritten(int activeCount, int archivedCount);
+    }
+
+    /**
+     * Constructor for MessageJournal.
+     * Nothing is read or written until the journal is used.
+     *
+     * @param directory Directory of the files.
+     * @param name Name of the session, the files are name.journal, name.messages and name.*.archive.
+     */
+    public MessageJournal(File directory, String name) {
+        this(directory, name, (activeCount, archivedCount) -> { });
+    }
+
+    /**
+     * Constructor for MessageJournal with a listener of the snapshots written.
+     * Nothing is read or written until the journal is used.
+     *
+     * @param directory Directory of the files.
+     * @param name Name of the session, the files are name.journal, name.messages and name.*.archive.
+     * @param listener Told the counts of the messages in every snapshot written, on the compacting thread.
+     */
+    public MessageJournal(File directory, String name, SnapshotListener listener) {
+        this.directory = directory;
+        this.name = name;
+        this.journalFile = new File(directory, name + ".journal");
+        this.snapshotFile = new File(directory, name + ".messages");
+        this.listener = listener;
+    }
+
+    /**
+     * Check if the messages have been saved to a snapshot, older sessions saved them in the profile.
+     *
+     * @return True if there is a snapshot.
+     */
+    @Override
+    public boolean hasSnapshot() {
+        return snapshotFile.exists();
+    }
+
+    /**
+     * Read the snapshot of the messages.
+     * A snapshot that is damaged is renamed to name.messages.damaged, so it is never written over. A snapshot
+     * that can not be read for other reasons, an error reading the file, a missing archive file or a snapshot
+     * of a newer version, is left as it is and read again at the next start.
+     *
+     * @return The snapshot, or an empty snapshot if none has been written.
+     * @throws IOException If the snapshot can not be read.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized Snapshot readSnapshot() throws IOException {
+        if (!snapshotFile.exists()) {
+            snapshotRead = true;
+            return new Snapshot(new ArrayList<>(), new MessageArchive());
+        }
+
+        // Read errors leave the snapshot as it is, everything that fails after this is damage
+        byte[] bytes = Files.readAllBytes(snapshotFile.toPath());
+
+        List<Message> messages = null;
+        Object archive = null; // Name of the archive file, or the archive itself in the first snapshots
+        int version = 0;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (bytes.length >= 2 && ((bytes[0] & 0xFF) << 8 | bytes[1] & 0xFF) == SERIALIZED) {
+                ObjectInputStream serialized = new ObjectInputStream(in);
+                messages = (List<Message>) serialized.readObject();
+                archive = serialized.readObject();
+                if (!(archive instanceof String) && !(archive instanceof MessageArchive)) {
+                    throw new IOException("Message snapshot has no archive");
+                }
+            } else {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a message snapshot");
+                }
+                version = in.readUnsignedByte();
+                if (version <= SessionProfileCodec.VERSION) {
+                    archive = SessionProfileCodec.readString(in);
+                    if (archive == null) {
+                        throw new IOException("Message snapshot has no archive file");
+                    }
+                    messages = SessionProfileCodec.readMessageList(in);
+                }
+            }
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            File damaged = new File(directory, snapshotFile.getName() + ".damaged");
+            Files.move(snapshotFile.toPath(), damaged.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            throw new IOException("Message snapshot is damaged, it was moved to " + damaged, e);
+        }
+        if (version > SessionProfileCodec.VERSION) {
+            throw new IOException("Message snapshot of a newer version: " + version + ", it was left as it is: " + snapshotFile);
+        }
+
+        String mapped = null;
+        if (archive instanceof String fileName) {
+            archive = MessageArchive.map(new File(directory, fileName)); // A missing archive file leaves the snapshot as it is
+            mapped = fileName;
+        }
+        Snapshot snapshot = new Snapshot(messages, (MessageArchive) archive);
+        archiveName = mapped;
+        snapshotRead = true;
+        return snapshot;
+    }
+
+    /**
+     * Replay the journal and open it for appending.
+     * Damaged records at the end of the journal are dropped.
+     *
+     * @param messages Called with every message that was added.
+     * @param statuses Called with the identity and the new status of every status change.
+     * @return The number of records replayed.
+     * @throws IOException If the journal can not be read or opened.
+     */
+    @Override
+    public synchronized int open(Consumer<Message> messages, BiConsumer<String, MessageStatus> statuses) throws IOException {
+        int records = 0;
+        long valid = 0; // End of the last whole record
+
+        if (journalFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                byte[] payload;
+                while ((payload = readRecord(in)) != null) {
+                    apply(payload, messages, statuses);
+                    valid += HEADER + payload.length;
+                    records++;
+                }
+            }
+        }
+
+        replayed = true; // Every record is in the messages now, the journal may be emptied by a compaction
+        journalFile.getAbsoluteFile().getParentFile().mkdirs();
+        channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > valid) {
+            LOGGER.warn("Dropping " + (channel.size() - valid) + " damaged bytes at the end of " + journalFile.getName());
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        open = true;
+
+        LOGGER.info("Replayed " + records + " journal records from " + journalFile.getName());
+        return records;
+    }
+
+    /**
+     * Replay the journal without opening it, the file is left as it is, damaged records at the end included.
+     * Used to copy the messages to another storage, the journal can not be compacted after it.
+     *
+     * @param messages Called with every message that was added.
+     * @param statuses Called with the identity and the new status of every status change.
+     * @return The number of records replayed.
+     * @throws IOException If the journal can not be read.
+     */
+    public synchronized int replay(Consumer<Message> messages, BiConsumer<String, MessageStatus> statuses) throws IOException {
+        int records = 0;
+        if (journalFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+                byte[] payload;
+                while ((payload = readRecord(in)) != null) {
+                    apply(payload, messages, statuses);
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Append a new message to the journal, written on the next flush.
+     *
+     * @param message The message.
+     * @throws IOException If the journal is not open.
+     */
+    @Override
+    public void appendMessage(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(MESSAGE);
+        writeString(out, message.getId());
+        out.writeLong(message.getTimeStamp() != null ? message.getTimeStamp().getTime() : Long.MIN_VALUE);
+        out.writeByte(message.getWeekDay() != null ? message.getWeekDay().ordinal() : -1);
+        writeString(out, message.getSubject());
+        writeString(out, message.getBody());
+        writeString(out, message.getRecipient());
+        writeString(out, message.getAuthor());
+        out.writeByte(message.getStatus().ordinal());
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * Append a status change to the journal, written on the next flush.
+     *
+     * @param message The message whose status changed.
+     * @param status The new status.
+     * @throws IOException If the journal is not open.
+     */
+    @Override
+    public void appendStatus(Message message, MessageStatus status) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(STATUS);
+        writeString(out, message.getId());
+        out.writeByte(status.ordinal());
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * Check if there are records that have not been written to the disk.
+     *
+     * @return True if there are records to flush.
+     */
+    @Override
+    public boolean hasPending() {
+        synchronized (pendingLock) {
+            return pending.size() > 0;
+        }
+    }
+
+    /**
+     * Write the appended records to the journal file and force them to the disk.
+     * Records appended while writing wait for the next flush.
+     *
+     * @throws IOException If the records can not be written, they are kept for the next flush.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        byte[] records;
+        synchronized (pendingLock) {
+            if (pending.size() == 0) {
+                return;
+            }
+            records = pending.toByteArray();
+            pending = new ByteArrayOutputStream();
+        }
+        if (channel == null) {
+            throw new IOException("Journal is not open: " + journalFile);
+        }
+
+        long start = channel.position();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(records);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+
+            // Cut off what was written, a torn record would end the journal, and keep the records
+            synchronized (pendingLock) {
+                ByteArrayOutputStream kept = new ByteArrayOutputStream(records.length + pending.size());
+                kept.write(records, 0, records.length);
+                pending.writeTo(kept);
+                pending = kept;
+            }
+            channel.truncate(start);
+            channel.position(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Check if the journal has grown large enough to be compacted.
+     *
+     * @return True if the journal should be compacted.
+     */
+    @Override
+    public boolean isCompactionDue() {
+        return size() > COMPACT_BYTES;
+    }
+
+    /**
+     * Write the messages to a new snapshot and empty the journal.
+     * The appended records are flushed first, records appended while compacting are kept.
+     *
+     * @param messages Gives the snapshot of all messages.
+     * @throws IOException If the snapshot can not be written, or the old snapshot or the journal has not been
+     * read into the messages, the old snapshot and the journal are kept.
+     */
+    @Override
+    public synchronized void compact(Supplier<Snapshot> messages) throws IOException {
+        if (!snapshotRead && snapshotFile.exists()) {
+            throw new IOException("Message snapshot has not been read, not writing over it: " + snapshotFile);
+        }
+        if (!replayed && journalFile.length() > 0) {
+            throw new IOException("Message journal has not been replayed, not emptying it: " + journalFile);
+        }
+        flush();
+        Snapshot snapshot = messages.get();
+        directory.mkdirs();
+
+        // The archive goes to a new file, the old one may still be mapped
+        File archive = File.createTempFile(name + ".", ".archive", directory);
+        try {
+            snapshot.getArchive().write(archive);
+        } catch (IOException e) {
+            archive.delete();
+            throw e;
+        }
+
+        // Write next to the old snapshot and replace it in one step
+        File temporary = File.createTempFile(snapshotFile.getName(), ".tmp", directory);
+        try (FileOutputStream file = new FileOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeByte(SessionProfileCodec.VERSION);
+            SessionProfileCodec.writeString(out, archive.getName());
+            SessionProfileCodec.writeMessageList(snapshot.getMessages(), out);
+            out.flush();
+            file.getFD().sync(); // On the disk before the journal is emptied
+        } catch (IOException e) {
+            temporary.delete();
+            archive.delete();
+            throw e;
+        }
+        Files.move(temporary.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        snapshotRead = true;
+        if (archiveName != null) {
+            staleArchives.add(archiveName);
+        }
+        archiveName = archive.getName();
+        deleteStaleArchives();
+
+        if (channel != null) {
+            channel.truncate(0);
+            channel.position(0);
+        } else {
+            journalFile.delete();
+        }
+        LOGGER.info("Compacted " + journalFile.getName() + " into a snapshot of " + snapshot.getMessages().size() + " messages");
+        listener.snapshotWritten(snapshot.getMessages().size(), snapshot.getArchive().size());
+    }
+
+    /**
+     * Delete the archive files of the snapshots this journal has replaced.
+     * Files that are still mapped can not be deleted on every system, they are deleted on a later compaction.
+     */
+    private void deleteStaleArchives() {
+        staleArchives.removeIf(fileName -> {
+            File archive = new File(directory, fileName);
+            if (archive.delete() || !archive.exists()) {
+                return true;
+            }
+            LOGGER.debug("Archive file is still in use, deleting it later: " + fileName);
+            return false;
+        });
+    }
+
+    /**
+     * Get the size of the journal, records that have not been flushed included.
+     *
+     * @return The size in bytes.
+     */
+    public long size() {
+        long written = journalFile.length();
+        synchronized (pendingLock) {
+            return written + pending.size();
+        }
+    }
+
+    /**
+     * Flush the appended records and close the journal.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            try {
+                flush();
+            } finally {
+                open = false;
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Buffer a record with its length and checksum.
+     */
+    private void append(byte[] payload) throws IOException {
+        if (!open) {
+            throw new IOException("Journal is not open: " + journalFile);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + payload.length);
+        record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        synchronized (pendingLock) {
+            pending.write(record.array(), 0, record.capacity());
+        }
+    }
+
+    /**
+     * Read the next record.
+     *
+     * @return The payload, or null at the end of the journal or at a damaged record.
+     */
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length <= 0 || length > COMPACT_BYTES) {
+                return null;
+            }
+
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            return (int) crc.getValue() == checksum ? payload : null;
+        } catch (EOFException e) {
+            return null; // Cut short
+        }
+    }
+
+    private void apply(byte[] payload, Consumer<Message> messages, BiConsumer<String, MessageStatus> statuses) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        if (type == MESSAGE) {
+            String id = readString(in);
+            long time = in.readLong();
+            byte weekDay = in.readByte();
+            if (weekDay >= DayOfWeek.values().length) {
+                throw new IOException("Invalid week day in journal record: " + weekDay);
+            }
+            messages.accept(new Message(
+                id,
+                time != Long.MIN_VALUE ? new Date(time) : null,
+                weekDay >= 0 ? DayOfWeek.values()[weekDay] : null,
+                readString(in),
+                readString(in),
+                readString(in),
+                readString(in),
+                readStatus(in)
+            ));
+        } else if (type == STATUS) {
+            statuses.accept(readString(in), readStatus(in));
+        } else {
+            LOGGER.warn("Skipping unknown journal record type " + type);
+        }
+    }
+
+    private static MessageStatus readStatus(DataInputStream in) throws IOException {
+        byte status = in.readByte();
+        if (status < 0 || status >= MessageStatus.values().length) {
+            throw new IOException("Invalid message status in journal record: " + status);
+        }
+        return MessageStatus.values()[status];
+    }
+
+    /**
+     * Strings are written as the length of their UTF-8 bytes and the bytes, -1 for null.
+     * Letters may be longer than the 64 kB of writeUTF.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
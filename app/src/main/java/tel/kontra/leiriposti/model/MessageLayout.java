@@ -0,0 +1,96 @@
+package tel.kontra.leiriposti.model;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.print.PageFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MessageLayout is the computed layout of a printout, one list of draw operations per page.
+ *
+ * Java2D calls {@link java.awt.print.Printable#print} several times for the same page,
+ * once for probing and then once per band. The layout is computed on the first call and
+ * the following calls only replay the draw operations.
+ *
+ * A layout is only valid for the imageable size it was computed for, see {@link #fits(PageFormat)}.
+ *
+ * Layouts are measured with {@link #measureGraphics()} and drawn with the same text rendering hints,
+ * so the printed text takes the space it was measured to take whatever graphics the printer hands out.
+ *
+ * @version 1.1
+ * @since 0.3
+ */
+public class MessageLayout {
+
+    // Text is measured and printed with fractional metrics, the advance widths then do not depend on the device
+    private static final RenderingHints TEXT_HINTS = new RenderingHints(
+        RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+
+    private final double width; // Imageable width the layout was computed for
+    private final double height; // Imageable height the layout was computed for
+    private final List<List<DrawOp>> pages; // Draw operations of each page
+
+    /**
+     * Constructor for MessageLayout.
+     *
+     * @param pageFormat The page format the layout was computed for.
+     * @param pages The draw operations of each page.
+     */
+    public MessageLayout(PageFormat pageFormat, List<List<DrawOp>> pages) {
+        this.width = pageFormat.getImageableWidth();
+        this.height = pageFormat.getImageableHeight();
+
+        List<List<DrawOp>> copy = new ArrayList<>(pages.size());
+        for (List<DrawOp> page : pages) {
+            copy.add(List.copyOf(page));
+        }
+        this.pages = List.copyOf(copy);
+    }
+
+    /**
+     * Check if the layout was computed for the imageable size of the given page format.
+     *
+     * @param pageFormat The page format to check.
+     * @return True if the layout can be used for the page format.
+     */
+    public boolean fits(PageFormat pageFormat) {
+        return pageFormat.getImageableWidth() == width && pageFormat.getImageableHeight() == height;
+    }
+
+    /**
+     * Get the number of pages in the layout.
+     *
+     * @return The number of pages.
+     */
+    public int getNumberOfPages() {
+        return pages.size();
+    }
+
+    /**
+     * Draw a page of the layout.
+     * The graphics context is expected to be translated to the imageable area already.
+     *
+     * @param g2d The graphics context to draw on.
+     * @param pageIndex The index of the page to draw.
+     */
+    public void draw(Graphics2D g2d, int pageIndex) {
+        g2d.addRenderingHints(TEXT_HINTS); // Same metrics the layout was measured with
+        for (DrawOp op : pages.get(pageIndex)) {
+            op.draw(g2d);
+        }
+    }
+
+    /**
+     * Create a scratch graphics context for measuring text.
+     * It has the text rendering hints layouts are drawn with, the caller should dispose it.
+     *
+     * @return The graphics context.
+     */
+    public static Graphics2D measureGraphics() {
+        Graphics2D g2d = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics();
+        g2d.addRenderingHints(TEXT_HINTS);
+        return g2d;
+    }
+}
@@ -0,0 +1,110 @@
+package tel.kontra.leiriposti.model;
+
+import java.awt.print.PageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * MessagePacker decides which messages of the print queue are printed together on one sheet.
+ *
+ * Every message is measured with the packed layout of {@link PackedPrintableMessage} and the metrics
+ * compiled into the letter template, the same metrics the sheet is printed with.
+ * Messages that fit in half a page are short enough to be packed, the rest are printed
+ * with the normal full page layout of {@link PrintableMessage}.
+ *
+ * Packing is first-fit over the head of the queue: the first message always goes on the sheet
+ * and the following short messages fill the remaining space. Only a few messages ahead are looked at,
+ * so the print order stays close to the queue order.
+ *
+ * @version 1.2
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class MessagePacker {
+
+    public static final int MAX_MESSAGES_PER_SHEET = 4; // Slips smaller than a quarter page are hard to cut and read
+    private static final int LOOKAHEAD = 8; // How far into the queue to look for messages that fill the sheet
+
+    private final LetterTemplate.Packed style; // Fonts and closing lines of the slips
+    private final int pageWidth;
+    private final int pageHeight;
+    private final boolean duplex;
+
+    /**
+     * Constructor for MessagePacker.
+     *
+     * @param pageFormat The page format the sheets are printed on.
+     * @param duplex True if the recipients are printed on the back side of the sheet.
+     * @param template The letter template the slips are styled with.
+     */
+    public MessagePacker(PageFormat pageFormat, boolean duplex, LetterTemplate template) {
+        this.style = template.getPacked();
+        this.pageWidth = (int) pageFormat.getImageableWidth();
+        this.pageHeight = (int) pageFormat.getImageableHeight();
+        this.duplex = duplex;
+    }
+
+    /**
+     * Measure the height of the slot a message would take on a packed sheet.
+     *
+     * @param message The message to measure.
+     * @return The height of the slot in points.
+     */
+    public int measure(Message message) {
+        return PackedPrintableMessage.layoutSlot(style, message, 0, pageWidth, duplex, null, null);
+    }
+
+    /**
+     * Take the messages for the next sheet from the head of the queue.
+     *
+     * If the message at the head of the queue is too long to pack it is returned alone,
+     * it should be printed with the full page layout. Otherwise the sheet is filled with
+     * the following short messages that still fit, long messages are left in the queue.
+     *
+     * @param queue The print queue, the returned messages are removed from it.
+     * @return The messages for the next sheet, empty if the queue is empty.
+     */
+    public List<Message> nextSheet(Queue<Message> queue) {
+        synchronized (queue) { // The GUI may change the queue while it is iterated
+            Message head = queue.poll();
+            if (head == null) {
+                return Collections.emptyList(); // Nothing to print
+            }
+
+            int headHeight = measure(head);
+            if (!isShort(headHeight)) {
+                return Collections.singletonList(head); // Long message, print it on its own
+            }
+            int remaining = pageHeight - headHeight;
+
+            List<Message> sheet = new ArrayList<>();
+            sheet.add(head);
+
+            // First fit over the next few messages in the queue
+            Iterator<Message> iterator = queue.iterator();
+            for (int i = 0; i < LOOKAHEAD && iterator.hasNext() && sheet.size() < MAX_MESSAGES_PER_SHEET; i++) {
+                Message message = iterator.next();
+                int height = measure(message);
+
+                if (isShort(height) && height <= remaining) {
+                    sheet.add(message);
+                    iterator.remove(); // Taken onto this sheet
+                    remaining -= height;
+                }
+            }
+
+            return sheet;
+        }
+    }
+
+    /**
+     * Check if a message of a height fits in half a page, only those are packed.
+     */
+    private boolean isShort(int height) {
+        return 2 * height <= pageHeight;
+    }
+}
@@ -0,0 +1,120 @@
+package tel.kontra.leiriposti.model;
+
+import java.io.Serializable;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MessageQueue is the print queue, a first-in first-out queue of messages.
+ *
+ * The messages are kept in a map by their identity in queue order, so checking if a message
+ * is queued and removing a message from the middle of the queue are O(1) instead of a scan
+ * over the queue. A message can be in the queue only once, queuing it again keeps its place.
+ *
+ * The queue is used by the GUI and the print thread at the same time, every operation is synchronized.
+ * Iterating is not, hold the lock of the queue while iterating.
+ *
+ * @see Message#getId()
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class MessageQueue extends AbstractQueue<Message> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Message> messages = new LinkedHashMap<>(); // Messages by identity in queue order
+
+    /**
+     * Constructor for an empty MessageQueue.
+     */
+    public MessageQueue() {
+    }
+
+    /**
+     * Constructor for a MessageQueue with the given messages in order.
+     *
+     * @param messages The messages to queue.
+     */
+    public MessageQueue(Collection<Message> messages) {
+        addAll(messages);
+    }
+
+    /**
+     * Add a message to the end of the queue.
+     *
+     * @param message The message to add.
+     * @return True if the message was added, false if it was already queued.
+     */
+    @Override
+    public synchronized boolean offer(Message message) {
+        return messages.putIfAbsent(message.getId(), message) == null;
+    }
+
+    /**
+     * Take the message at the head of the queue.
+     *
+     * @return The message at the head of the queue, or null if the queue is empty.
+     */
+    @Override
+    public synchronized Message poll() {
+        Iterator<Message> iterator = messages.values().iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        Message message = iterator.next();
+        iterator.remove();
+        return message;
+    }
+
+    /**
+     * Get the message at the head of the queue without taking it.
+     *
+     * @return The message at the head of the queue, or null if the queue is empty.
+     */
+    @Override
+    public synchronized Message peek() {
+        Iterator<Message> iterator = messages.values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    @Override
+    public synchronized boolean contains(Object obj) {
+        return obj instanceof Message message && messages.containsKey(message.getId());
+    }
+
+    @Override
+    public synchronized boolean remove(Object obj) {
+        return obj instanceof Message message && messages.remove(message.getId()) != null;
+    }
+
+    /**
+     * Get a message in the queue by its identity.
+     *
+     * @param id The identity of the message.
+     * @return The message, or null if it is not queued.
+     */
+    public synchronized Message get(String id) {
+        return messages.get(id);
+    }
+
+    @Override
+    public synchronized void clear() {
+        messages.clear();
+    }
+
+    @Override
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    @Override
+    public Iterator<Message> iterator() {
+        return messages.values().iterator();
+    }
+}
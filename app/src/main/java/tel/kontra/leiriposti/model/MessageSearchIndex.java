@@ -0,0 +1,270 @@
+package tel.kontra.leiriposti.model;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.IntFunction;
+
+/**
+ * MessageSearchIndex is an inverted index of the words in the messages of a {@link MessageStore}.
+ *
+ * Every word of the subject, body, recipient and author of a message is normalized to a term,
+ * and every term has a sorted list of the positions of the messages it is in. Words of a query
+ * are prefixes, "mum" finds "Mummolta", and a message is found when every word of the query is in it.
+ * A query looks up the terms that start with each word from a sorted array of the terms, it never
+ * goes through the messages. The array is sorted again on the first search after new terms are added,
+ * adding messages is a hash lookup per word.
+ *
+ * Terms are lower case without diacritics, so "aiti" finds "&Auml;iti" and "&auml;iti" finds "aiti",
+ * as people type on phones without the Finnish letters. Terms are cut to {@value #MAX_TERM_LENGTH}
+ * characters and a message is listed once per term, so the index takes four bytes for every distinct
+ * word of a message plus about {@value #TERM_BYTES} bytes for every term of the dictionary.
+ * The index holds no messages and is not saved, the store builds it from the messages.
+ *
+ * The index is bounded by memory. Terms and positions are counted against a budget of
+ * {@link #MAX_BYTES} bytes, the arrays of the positions grow by doubling so they take at most twice
+ * their share. A message that would not fit in the budget is not indexed, its position is kept in a set
+ * and a search reads those messages and matches their words one by one. Results stay the same,
+ * only the messages past the budget are slower to search.
+ *
+ * This class is not thread-safe. The store reads and writes it only while holding a search lock of its own,
+ * not the lock of the store, so a search never blocks the store. Do not call into the index holding only the
+ * lock of the store.
+ *
+ * @version 1.1
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class MessageSearchIndex {
+
+    static final int MAX_TERM_LENGTH = 16; // Longer words are cut, prefixes of this length still match
+    static final long MAX_BYTES = 16L * 1024 * 1024; // Default budget, several seasons of mail
+    static final int TERM_BYTES = 96; // Map entry, string and empty position array of a term, besides its characters
+
+    private final Map<String, int[]> terms = new HashMap<>(); // Positions by term, the first int is the count
+    private String[] sorted; // Terms in order for prefix searches, null after new terms are added
+    private long postings; // Number of positions in all terms
+    private final long maxBytes; // Budget of the terms and positions
+    private long bytes; // Bytes counted against the budget
+    private final BitSet unindexed = new BitSet(); // Positions of the messages that did not fit in the budget
+
+    /**
+     * Constructor for MessageSearchIndex with the default budget.
+     */
+    MessageSearchIndex() {
+        this(MAX_BYTES);
+    }
+
+    /**
+     * Constructor for MessageSearchIndex.
+     *
+     * @param maxBytes The number of bytes the terms and positions may take.
+     */
+    MessageSearchIndex(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add the words of a message to the index.
+     * Messages are added in the order of their positions.
+     *
+     * @param position Position of the message in the store.
+     * @param message The message.
+     */
+    void add(int position, Message message) {
+        List<String> words = words(message);
+
+        // Every word counted as a new term is the most the message can take
+        long cost = 0;
+        for (String word : words) {
+            cost += TERM_BYTES + 2L * word.length() + Integer.BYTES;
+        }
+        if (bytes + cost > maxBytes) {
+            unindexed.set(position); // Searched by reading the message
+            return;
+        }
+
+        for (String term : words) {
+            int[] positions = terms.get(term);
+            if (positions == null) {
+                positions = new int[4];
+                terms.put(term, positions);
+                sorted = null;
+                bytes += TERM_BYTES + 2L * term.length();
+            } else if (positions[positions[0]] == position) {
+                continue; // Already listed for this message
+            } else if (positions[0] + 1 == positions.length) {
+                positions = Arrays.copyOf(positions, positions.length * 2);
+                terms.put(term, positions);
+            }
+
+            positions[++positions[0]] = position;
+            postings++;
+            bytes += Integer.BYTES;
+        }
+    }
+
+    /**
+     * Get the terms of every field of a message.
+     */
+    private static List<String> words(Message message) {
+        List<String> words = tokenize(message.getSubject());
+        words.addAll(tokenize(message.getBody()));
+        words.addAll(tokenize(message.getRecipient()));
+        words.addAll(tokenize(message.getAuthor()));
+        return words;
+    }
+
+    /**
+     * Find the messages that have every word of a query.
+     *
+     * @param query The query, words separated by spaces or punctuation.
+     * @param messages Reads the message at a position, used for the messages that did not fit in the index.
+     * @return The positions of the messages found, or null if the query has no words.
+     */
+    BitSet search(String query, IntFunction<Message> messages) {
+        List<String> words = tokenize(query);
+        if (words.isEmpty()) {
+            return null;
+        }
+
+        if (sorted == null) {
+            sorted = terms.keySet().toArray(new String[0]);
+            Arrays.sort(sorted);
+        }
+
+        BitSet found = null;
+        for (String word : words) {
+
+            // Terms that start with the word are next to each other, from where the word would be
+            BitSet matches = new BitSet();
+            int index = Arrays.binarySearch(sorted, word);
+            for (int i = index >= 0 ? index : -index - 1; i < sorted.length && sorted[i].startsWith(word); i++) {
+                int[] positions = terms.get(sorted[i]);
+                for (int j = 1; j <= positions[0]; j++) {
+                    matches.set(positions[j]);
+                }
+            }
+
+            if (found == null) {
+                found = matches;
+            } else {
+                found.and(matches);
+            }
+            if (found.isEmpty()) {
+                break; // No message has all the words
+            }
+        }
+
+        // Messages past the budget are matched word by word
+        for (int position = unindexed.nextSetBit(0); position >= 0; position = unindexed.nextSetBit(position + 1)) {
+            if (matches(words(messages.apply(position)), words)) {
+                found.set(position);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Check if every word of a query is a prefix of a term of a message.
+     */
+    private static boolean matches(List<String> terms, List<String> words) {
+        for (String word : words) {
+            boolean match = false;
+            for (int i = 0; i < terms.size() && !match; i++) {
+                match = terms.get(i).startsWith(word);
+            }
+            if (!match) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of distinct terms in the index.
+     *
+     * @return The number of terms.
+     */
+    public int getTermCount() {
+        return terms.size();
+    }
+
+    /**
+     * Get the number of message positions listed under all terms.
+     *
+     * @return The number of positions.
+     */
+    public long getPostingCount() {
+        return postings;
+    }
+
+    /**
+     * Get the number of bytes the terms and positions are counted to take against the budget.
+     *
+     * @return The number of bytes.
+     */
+    public long getByteCount() {
+        return bytes;
+    }
+
+    /**
+     * Get the number of messages that did not fit in the budget and are searched by reading them.
+     *
+     * @return The number of messages.
+     */
+    public int getUnindexedCount() {
+        return unindexed.cardinality();
+    }
+
+    /**
+     * Split a text into normalized terms.
+     * Letters and digits make up words, everything else separates them.
+     *
+     * @param text The text, may be null.
+     * @return The terms in the order they are in the text.
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return tokens;
+        }
+
+        String folded = normalize(text);
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean inWord = i < folded.length() && Character.isLetterOrDigit(folded.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                tokens.add(folded.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Lower case a text and strip the diacritics, &auml; becomes a, &ouml; becomes o and &aring; becomes a.
+     *
+     * @param text The text.
+     * @return The normalized text.
+     */
+    static String normalize(String text) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        for (int i = 0; i < lower.length(); i++) {
+            if (lower.charAt(i) > 0x7F) {
+
+                // Split the letters from their marks and drop the marks, only when there is something to fold
+                return Normalizer.normalize(lower, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+            }
+        }
+        return lower;
+    }
+}
@@ -0,0 +1,149 @@
+package tel.kontra.leiriposti.model;
+
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * MessageSnapshot is an immutable copy of the messages in a {@link MessageStore} at one version.
+ *
+ * The snapshot is a list of all messages in the order they were added, deleted messages included,
+ * and it knows which messages were in which status. It never changes, so it can be read on any
+ * thread without locking. Two snapshots with the same version have the same contents, readers can
+ * skip work when the version has not changed.
+ *
+ * The messages themselves are shared with the store, {@link Message#getStatus()} may already
+ * be newer than the status the snapshot has for the message. Archived messages are built when
+ * they are read, every read gives a new instance.
+ *
+ * @version 1.2
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public final class MessageSnapshot extends AbstractList<Message> implements RandomAccess {
+
+    private static final int CHUNK_SHIFT = MessageStore.CHUNK_SHIFT; // Same chunks as the store
+    private static final int CHUNK_MASK = MessageStore.CHUNK_MASK;
+
+    private final long version; // Version of the store
+    private final Message[][] chunks; // Shared with the store, only positions below size are read
+    private final int[][] rows; // Archive rows by position, shared with the store
+    private final MessageArchive archive; // Archived messages of the store
+    private final int size; // Number of messages
+    private final Map<MessageStatus, BitSet> statuses; // Positions by status, never changed
+    private final int[] counts; // Number of messages by status ordinal
+
+    /**
+     * Constructor for MessageSnapshot, snapshots are taken by the store.
+     */
+    MessageSnapshot(long version, Message[][] chunks, int[][] rows, MessageArchive archive, int size,
+                    Map<MessageStatus, BitSet> statuses, int[] counts) {
+        this.version = version;
+        this.chunks = chunks;
+        this.rows = rows;
+        this.archive = archive;
+        this.size = size;
+        this.statuses = statuses;
+        this.counts = counts;
+    }
+
+    /**
+     * Get the version of the store the snapshot was taken at.
+     *
+     * @return The version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public Message get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        Message message = chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+        return message != null ? message : archive.get(rows[index >>> CHUNK_SHIFT][index & CHUNK_MASK]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of messages that were in a status.
+     *
+     * @param status The status, ALL counts the messages that are not deleted.
+     * @return The number of messages.
+     */
+    public int count(MessageStatus status) {
+        return counts[status.ordinal()];
+    }
+
+    /**
+     * Get the messages that were in a status.
+     * Takes time in proportion to the messages in the status, not to all messages.
+     * The messages are read from the snapshot when they are needed, archived messages are
+     * only built for the items that are read.
+     *
+     * @param status The status, null or ALL gives the messages that are not deleted.
+     * @return The messages in the order they were added, read-only.
+     */
+    public List<Message> getMessages(MessageStatus status) {
+        if (status == null) {
+            status = MessageStatus.ALL;
+        }
+
+        BitSet bits = statuses.get(status);
+        int[] positions = new int[counts[status.ordinal()]];
+        int i = 0;
+        for (int position = bits.nextSetBit(0); position >= 0; position = bits.nextSetBit(position + 1)) {
+            positions[i++] = position;
+        }
+        return new Positions(positions);
+    }
+
+    /**
+     * Get the messages that were in a status and are in a set of positions, for example the results of a search.
+     * Positions that were added to the store after the snapshot are left out.
+     *
+     * @param status The status, null or ALL gives the messages that are not deleted.
+     * @param positions Positions of the messages in the store.
+     * @return The messages in the order they were added, read-only.
+     * @see MessageStore#search(String)
+     */
+    public List<Message> getMessages(MessageStatus status, BitSet positions) {
+        if (status == null) {
+            status = MessageStatus.ALL;
+        }
+
+        BitSet bits = (BitSet) statuses.get(status).clone();
+        bits.and(positions);
+        return new Positions(bits.stream().toArray());
+    }
+
+    /**
+     * Read-only list of the messages at some positions of the snapshot.
+     */
+    private final class Positions extends AbstractList<Message> implements RandomAccess {
+
+        private final int[] positions;
+
+        Positions(int[] positions) {
+            this.positions = positions;
+        }
+
+        @Override
+        public Message get(int index) {
+            return MessageSnapshot.this.get(positions[index]);
+        }
+
+        @Override
+        public int size() {
+            return positions.length;
+        }
+    }
+}
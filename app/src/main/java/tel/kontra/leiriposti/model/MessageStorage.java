@@ -0,0 +1,126 @@
+package tel.kontra.leiriposti.model;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * MessageStorage saves the messages of a session.
+ *
+ * The messages are read once when the session is opened, as a snapshot of the messages and the changes
+ * made after it. New messages and status changes are then appended as they happen and written to the
+ * disk together on {@link #flush()}, which the autosave thread calls. Appending never waits for the disk.
+ *
+ * @see MessageJournal
+ * @see tel.kontra.leiriposti.service.StorageBackend
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public interface MessageStorage extends Closeable {
+
+    /**
+     * Messages read from a snapshot.
+     */
+    public static final class Snapshot {
+
+        private final List<Message> messages;
+        private final MessageArchive archive;
+
+        /**
+         * Constructor for a Snapshot.
+         *
+         * @param messages The active messages.
+         * @param archive The archived messages.
+         */
+        public Snapshot(List<Message> messages, MessageArchive archive) {
+            this.messages = messages;
+            this.archive = archive;
+        }
+
+        public List<Message> getMessages() {
+            return messages;
+        }
+
+        public MessageArchive getArchive() {
+            return archive;
+        }
+    }
+
+    /**
+     * Check if the messages have been saved to the storage, older sessions saved them in the profile.
+     *
+     * @return True if there is a snapshot.
+     */
+    boolean hasSnapshot();
+
+    /**
+     * Read the snapshot of the messages.
+     *
+     * @return The snapshot, or an empty snapshot if none has been written.
+     * @throws IOException If the snapshot can not be read.
+     */
+    Snapshot readSnapshot() throws IOException;
+
+    /**
+     * Replay the changes made after the snapshot and open the storage for appending.
+     *
+     * @param messages Called with every message that was added.
+     * @param statuses Called with the identity and the new status of every status change.
+     * @return The number of changes replayed.
+     * @throws IOException If the changes can not be read or the storage opened.
+     */
+    int open(Consumer<Message> messages, BiConsumer<String, MessageStatus> statuses) throws IOException;
+
+    /**
+     * Append a new message, written on the next flush.
+     *
+     * @param message The message.
+     * @throws IOException If the storage is not open.
+     */
+    void appendMessage(Message message) throws IOException;
+
+    /**
+     * Append a status change, written on the next flush.
+     *
+     * @param message The message whose status changed.
+     * @param status The new status.
+     * @throws IOException If the storage is not open.
+     */
+    void appendStatus(Message message, MessageStatus status) throws IOException;
+
+    /**
+     * Check if there are changes that have not been written to the disk.
+     *
+     * @return True if there are changes to flush.
+     */
+    boolean hasPending();
+
+    /**
+     * Write the appended changes to the disk together.
+     *
+     * @throws IOException If the changes can not be written, they are kept for the next flush.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Check if the changes have piled up enough to be compacted.
+     *
+     * @return True if the storage should be compacted.
+     */
+    boolean isCompactionDue();
+
+    /**
+     * Write all the messages to a new snapshot, replacing the changes made after the old one.
+     * The appended changes are flushed first.
+     *
+     * @param messages Gives the snapshot of all messages.
+     * @throws IOException If the snapshot can not be written, the old snapshot and the changes are kept.
+     */
+    void compact(Supplier<Snapshot> messages) throws IOException;
+}
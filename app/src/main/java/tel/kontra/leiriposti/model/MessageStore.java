@@ -0,0 +1,688 @@
+package tel.kontra.leiriposti.model;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import tel.kontra.leiriposti.util.FormsTimestampParser;
+
+/**
+ * MessageStore keeps the messages of a session, indexed by identity and partitioned by status.
+ *
+ * Every message has a position in the store, and every status has a set of the positions of the
+ * messages in that status. The sets are updated when a status changes, so finding the messages
+ * in a status does not go through every message, and counting them is O(1).
+ * {@link MessageStatus#ALL} is the set of messages that are not deleted.
+ *
+ * Writers, adding messages and changing statuses, take turns on the lock of the store and bump
+ * its version. Readers take a {@link MessageSnapshot}, an immutable copy stamped with the version.
+ * Taking a snapshot is cheap: messages are stored in fixed size chunks that are only appended to,
+ * so the snapshot shares them, and the status sets are copied only when they change after a
+ * snapshot has been taken. Until the next write every reader gets the same snapshot.
+ *
+ * Messages that are no longer active, printed or deleted, can be moved to a compact
+ * {@link MessageArchive} with {@link #archiveInactive()}, and with {@link #archive(Instant)} also the
+ * messages sent before a time that are not in the print queue, so only the latest mail is held as
+ * objects. Archived messages are built from the archive when they are read, and go back to being
+ * held as objects if they become active again or are restored with {@link #restore(String)}.
+ * The identities and the times of the messages are kept in primitive arrays, the store holds no
+ * objects for archived messages.
+ *
+ * The words of the messages are kept in a {@link MessageSearchIndex}, searching for messages
+ * looks the words up instead of reading the messages. The index is built on the first search, or ahead
+ * of it with {@link #buildSearchIndex()}, and catches up with the messages added since on every search,
+ * so loading a store with a mapped archive reads no letters. The index has a lock of its own and reads
+ * the messages from a snapshot, writers are not held up while it is built.
+ *
+ * Views of the status sets are read-only and live, every iteration goes through the latest snapshot,
+ * so they are safe to iterate on any thread.
+ *
+ * @see Message#getId()
+ * @see MessageTimeIndex
+ * @see MessageSearchIndex
+ *
+ * @version 1.6
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class MessageStore {
+
+    static final int CHUNK_SHIFT = 8; // 256 messages in a chunk
+    static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private Message[][] chunks = new Message[4][]; // Messages by position, null where the message is archived
+    private int[][] rows = new int[4][]; // Archive rows by position, read only where the message is null
+    private int size; // Number of messages
+    private int[] identities = new int[64]; // Open addressing table of positions + 1 by hash of identity, 0 is free
+    private final Map<MessageStatus, BitSet> statuses = new EnumMap<>(MessageStatus.class); // Positions by status
+    private final Set<MessageStatus> shared = EnumSet.noneOf(MessageStatus.class); // Status sets the latest snapshot uses
+    private final int[] counts = new int[MessageStatus.values().length]; // Number of messages by status ordinal
+    private final Map<MessageStatus, Collection<Message>> views = new EnumMap<>(MessageStatus.class); // Live views by status
+    private final MessageTimeIndex timeIndex = new MessageTimeIndex(); // Positions by the time the messages were sent
+    private final MessageSearchIndex searchIndex = new MessageSearchIndex(); // Positions by the words of the messages
+    private final Object searchLock = new Object(); // Guards the search index, taken before the lock of the store
+    private volatile int searchable; // Number of positions added to the search index
+    private final MessageArchive archive; // Archived messages
+    private final BitSet archived = new BitSet(); // Positions of the archived messages
+
+    private volatile long version; // Bumped by every write
+    private volatile MessageSnapshot snapshot; // Latest snapshot, reused until the next write
+
+    /**
+     * Constructor for MessageStore.
+     *
+     * @param messages The initial messages in order. Messages that are in it more than once are added once.
+     */
+    public MessageStore(Collection<Message> messages) {
+        this(messages, null);
+    }
+
+    /**
+     * Constructor for MessageStore with archived messages.
+     * The active and archived messages are merged in the order they were sent.
+     *
+     * @param messages The active messages.
+     * @param archive The archived messages, or null if there are none. The store keeps on using the archive.
+     */
+    public MessageStore(Collection<Message> messages, MessageArchive archive) {
+        this.archive = archive != null ? archive : new MessageArchive();
+
+        for (MessageStatus status : MessageStatus.values()) {
+            statuses.put(status, new BitSet());
+            views.put(status, new StatusView(status));
+        }
+
+        // Archived rows and active messages, both from the oldest to the newest
+        int[] archivedRows = IntStream.range(0, this.archive.size()).boxed()
+            .sorted(Comparator.comparingLong(this.archive::getTime))
+            .mapToInt(Integer::intValue)
+            .toArray();
+        List<Message> active = new ArrayList<>(messages);
+        active.sort(Comparator.comparingLong(MessageStore::timeOf));
+
+        // Saved sessions may have the same message twice from before identities existed
+        int next = 0;
+        for (Message message : active) {
+            while (next < archivedRows.length && this.archive.getTime(archivedRows[next]) <= timeOf(message)) {
+                addArchived(archivedRows[next++]);
+            }
+            add(message);
+        }
+        while (next < archivedRows.length) {
+            addArchived(archivedRows[next++]);
+        }
+    }
+
+    /**
+     * Add a message to the end of the store.
+     *
+     * @param message The message to add.
+     * @return True if the message was added, false if a message with the same identity is already stored.
+     */
+    public synchronized boolean add(Message message) {
+        if (find(message.getId()) >= 0) {
+            return false;
+        }
+
+        int position = append();
+        chunks[position >>> CHUNK_SHIFT][position & CHUNK_MASK] = message;
+        index(position, message.getId(), message.getStatus(), timeOf(message));
+        return true;
+    }
+
+    /**
+     * Add a row of the archive as an archived message.
+     */
+    private void addArchived(int row) {
+        String id = archive.getId(row);
+        if (find(id) >= 0) {
+            return;
+        }
+
+        int position = append();
+        rowChunk(position >>> CHUNK_SHIFT)[position & CHUNK_MASK] = row;
+        archived.set(position);
+        index(position, id, archive.getStatus(row), archive.getTime(row));
+    }
+
+    /**
+     * Make room for a message at the end of the store.
+     *
+     * @return The position of the message.
+     */
+    private int append() {
+        int position = size;
+        int chunk = position >>> CHUNK_SHIFT;
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2); // Snapshots keep the old array, the chunks are the same
+            rows = Arrays.copyOf(rows, rows.length * 2);
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new Message[CHUNK_MASK + 1];
+        }
+        size++;
+        return position;
+    }
+
+    /**
+     * Add a new message to the indexes and bump the version.
+     */
+    private void index(int position, String id, MessageStatus status, long time) {
+        insertIdentity(id, position);
+        mark(position, status);
+        timeIndex.add(time, position);
+        version++;
+    }
+
+    /**
+     * Get a message by its identity.
+     *
+     * @param id The identity of the message.
+     * @return The message, or null if it is not stored.
+     */
+    public synchronized Message get(String id) {
+        int position = find(id);
+        return position >= 0 ? messageAt(position) : null;
+    }
+
+    /**
+     * Move a message from its old status to its new status.
+     * Changes of messages that are not stored, or of other instances of a stored message, are ignored.
+     * Archived messages are built anew on every read, so for them any instance counts. An archived
+     * message that becomes active is taken out of the archive.
+     *
+     * @param message The message whose status changed.
+     * @param oldStatus The status before the change.
+     * @param newStatus The status after the change.
+     * @return True if the store was updated.
+     */
+    public synchronized boolean statusChanged(Message message, MessageStatus oldStatus, MessageStatus newStatus) {
+        int position = find(message.getId());
+        if (position < 0) {
+            return false;
+        }
+
+        int chunk = position >>> CHUNK_SHIFT;
+        int offset = position & CHUNK_MASK;
+        Message stored = chunks[chunk][offset];
+        if (stored == null) {
+            if (isInactive(newStatus)) {
+                archive.setStatus(rows[chunk][offset], newStatus);
+            } else {
+                hold(position, message); // Active again
+            }
+        } else if (stored != message) {
+            return false;
+        }
+
+        unmark(position, oldStatus);
+        mark(position, newStatus);
+        version++;
+        return true;
+    }
+
+    /**
+     * Move the printed and deleted messages to the archive.
+     * Snapshots taken before keep on holding the messages until they are dropped.
+     *
+     * @return The number of messages archived.
+     */
+    public int archiveInactive() {
+        return archive(null);
+    }
+
+    /**
+     * Move the printed and deleted messages, and the messages sent before a time, to the archive.
+     * Messages that are queued or being printed are not archived, however old they are, and neither
+     * are messages without a time.
+     * Snapshots taken before keep on holding the messages until they are dropped.
+     *
+     * @param before The time, exclusive, or null to archive only the printed and deleted messages.
+     * @return The number of messages archived.
+     */
+    public synchronized int archive(Instant before) {
+        BitSet inactive = new BitSet();
+        if (before != null) {
+            for (int position : timeIndex.before(before)) {
+                inactive.set(position);
+            }
+            inactive.andNot(statuses.get(MessageStatus.QUEUED));
+            inactive.andNot(statuses.get(MessageStatus.PRINTING));
+        }
+        inactive.or(statuses.get(MessageStatus.PRINTED));
+        inactive.or(statuses.get(MessageStatus.DELETED));
+        inactive.andNot(archived);
+        if (inactive.isEmpty()) {
+            return 0;
+        }
+
+        // Snapshots keep the old chunks, every chunk that changes is copied once
+        chunks = chunks.clone();
+        int copied = -1;
+        int count = 0;
+        for (int position = inactive.nextSetBit(0); position >= 0; position = inactive.nextSetBit(position + 1)) {
+            int chunk = position >>> CHUNK_SHIFT;
+            int offset = position & CHUNK_MASK;
+            if (chunk != copied) {
+                chunks[chunk] = chunks[chunk].clone();
+                copied = chunk;
+            }
+
+            rowChunk(chunk)[offset] = archive.add(chunks[chunk][offset]);
+            chunks[chunk][offset] = null;
+            archived.set(position);
+            count++;
+        }
+
+        version++; // The next snapshot no longer holds the archived messages
+        return count;
+    }
+
+    /**
+     * Restore an archived message, hold it as an object again.
+     * The message stays out of the archive until it is archived again.
+     *
+     * @param id The identity of the message.
+     * @return The message, the same instance until it is archived again, or null if it is not stored.
+     */
+    public synchronized Message restore(String id) {
+        int position = find(id);
+        if (position < 0) {
+            return null;
+        }
+        Message message = messageAt(position);
+        if (archived.get(position)) {
+            hold(position, message);
+            version++;
+        }
+        return message;
+    }
+
+    /**
+     * Hold an archived message as an object, snapshots keep the old chunk.
+     * The row of the message is left in the archive, it is left out when the archive is saved.
+     */
+    private void hold(int position, Message message) {
+        int chunk = position >>> CHUNK_SHIFT;
+        chunks = chunks.clone();
+        chunks[chunk] = chunks[chunk].clone();
+        chunks[chunk][position & CHUNK_MASK] = message;
+        archived.clear(position);
+    }
+
+    /**
+     * Get the messages that are held as objects, the ones that are not archived.
+     *
+     * @return The active messages in the order they were added.
+     */
+    public synchronized List<Message> getActiveMessages() {
+        List<Message> active = new ArrayList<>(size - archived.cardinality());
+        for (int position = archived.nextClearBit(0); position < size; position = archived.nextClearBit(position + 1)) {
+            active.add(chunks[position >>> CHUNK_SHIFT][position & CHUNK_MASK]);
+        }
+        return active;
+    }
+
+    /**
+     * Get the archive of the messages for saving.
+     * Rows of messages that have become active again are left out.
+     *
+     * @return The archive of the archived messages.
+     */
+    public synchronized MessageArchive getArchive() {
+        if (archive.size() == archived.cardinality()) {
+            return archive;
+        }
+
+        MessageArchive compacted = new MessageArchive();
+        for (int position = archived.nextSetBit(0); position >= 0; position = archived.nextSetBit(position + 1)) {
+            compacted.add(messageAt(position));
+        }
+        return compacted;
+    }
+
+    /**
+     * Get the active and the archived messages for saving, both taken under the lock of the store,
+     * so a message restored or archived at the same time is in one of them.
+     *
+     * @return The active messages and the archive.
+     */
+    public synchronized MessageStorage.Snapshot getStorageSnapshot() {
+        return new MessageStorage.Snapshot(getActiveMessages(), getArchive());
+    }
+
+    /**
+     * Get the number of archived messages.
+     *
+     * @return The number of messages.
+     */
+    public synchronized int getArchivedCount() {
+        return archived.cardinality();
+    }
+
+    /**
+     * Get the number of messages in a status.
+     *
+     * @param status The status, ALL counts the messages that are not deleted.
+     * @return The number of messages.
+     */
+    public synchronized int count(MessageStatus status) {
+        return counts[status.ordinal()];
+    }
+
+    /**
+     * Get a read-only live view of the messages in a status.
+     *
+     * @param status The status, ALL gives the messages that are not deleted.
+     * @return The view.
+     */
+    public Collection<Message> view(MessageStatus status) {
+        return views.get(status);
+    }
+
+    /**
+     * Get an immutable snapshot of the store.
+     * Until the next write, the same snapshot is returned without taking the lock.
+     *
+     * @return The snapshot.
+     */
+    public MessageSnapshot snapshot() {
+        MessageSnapshot latest = snapshot;
+        if (latest != null && latest.getVersion() == version) {
+            return latest;
+        }
+
+        synchronized (this) {
+            if (snapshot == null || snapshot.getVersion() != version) {
+                shared.addAll(statuses.keySet()); // Copy the sets on the next write instead of now
+                snapshot = new MessageSnapshot(version, chunks, rows, archive, size, new EnumMap<>(statuses), counts.clone());
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Get the messages sent in a time range.
+     *
+     * @param from Start of the range, inclusive.
+     * @param to End of the range, exclusive.
+     * @return The messages from the oldest to the newest, deleted messages included.
+     */
+    public synchronized List<Message> between(Instant from, Instant to) {
+        return messagesAt(timeIndex.between(from, to));
+    }
+
+    /**
+     * Get the messages sent on a weekday in a time range.
+     *
+     * @param day The weekday in Finnish time.
+     * @param from Start of the range, inclusive.
+     * @param to End of the range, exclusive.
+     * @return The messages from the oldest to the newest, deleted messages included.
+     */
+    public synchronized List<Message> between(DayOfWeek day, Instant from, Instant to) {
+        return messagesAt(timeIndex.between(day, from, to));
+    }
+
+    /**
+     * Get the messages sent on a day in Finnish time.
+     *
+     * @param date The day.
+     * @return The messages from the oldest to the newest, deleted messages included.
+     */
+    public List<Message> on(LocalDate date) {
+        Instant from = date.atStartOfDay(FormsTimestampParser.ZONE).toInstant();
+        Instant to = date.plusDays(1).atStartOfDay(FormsTimestampParser.ZONE).toInstant();
+        return between(from, to);
+    }
+
+    /**
+     * Get the messages sent since a time, for example since the last mail call.
+     *
+     * @param since The time, inclusive.
+     * @return The messages from the oldest to the newest, deleted messages included.
+     */
+    public synchronized List<Message> since(Instant since) {
+        return messagesAt(timeIndex.since(since));
+    }
+
+    /**
+     * Get the message sent last.
+     *
+     * @return The newest message, or null if there are no messages.
+     */
+    public synchronized Message latest() {
+        int position = timeIndex.latest();
+        return position >= 0 ? messageAt(position) : null;
+    }
+
+    /**
+     * Find the messages that have every word of a query, as prefixes of their words.
+     * Case and diacritics are ignored. Indexes the messages that are not in the index yet first,
+     * on the first search that reads every message, see {@link #isSearchReady()}.
+     *
+     * @param query The query.
+     * @return The positions of the messages found, deleted messages included, or null if the query has no words.
+     * Positions are the same in the snapshots of the store.
+     */
+    public BitSet search(String query) {
+        synchronized (searchLock) {
+            MessageSnapshot messages = indexMessages();
+            return searchIndex.search(query, messages::get);
+        }
+    }
+
+    /**
+     * Add the messages that are not in the search index yet to it, so the next search does not have to.
+     * Reading the archived messages takes a while, call it on a background thread.
+     */
+    public void buildSearchIndex() {
+        synchronized (searchLock) {
+            indexMessages();
+        }
+    }
+
+    /**
+     * Check if a search would be quick, that is at most a chunk of messages is not in the search index yet.
+     *
+     * @return True if the search index is built.
+     */
+    public boolean isSearchReady() {
+        return snapshot().size() - searchable <= CHUNK_MASK + 1;
+    }
+
+    /**
+     * Add the messages of the latest snapshot that are not in the search index yet, holding the search lock.
+     */
+    private MessageSnapshot indexMessages() {
+        MessageSnapshot messages = snapshot(); // The lock of the store is only held to take it
+        for (int position = searchable; position < messages.size(); position = ++searchable) {
+            searchIndex.add(position, messages.get(position)); // Archived messages are dropped once their words are indexed
+        }
+        return messages;
+    }
+
+    /**
+     * Get the version of the store, bumped by every write.
+     *
+     * @return The version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the number of stored messages, deleted messages included.
+     *
+     * @return The number of messages.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private static boolean isInactive(MessageStatus status) {
+        return status == MessageStatus.PRINTED || status == MessageStatus.DELETED;
+    }
+
+    private static long timeOf(Message message) {
+        Date timeStamp = message.getTimeStamp();
+        return timeStamp != null ? timeStamp.getTime() : Long.MIN_VALUE;
+    }
+
+    private int[] rowChunk(int chunk) {
+        if (rows[chunk] == null) {
+            rows[chunk] = new int[CHUNK_MASK + 1];
+        }
+        return rows[chunk];
+    }
+
+    private Message messageAt(int position) {
+        Message message = chunks[position >>> CHUNK_SHIFT][position & CHUNK_MASK];
+        return message != null ? message : archive.get(rows[position >>> CHUNK_SHIFT][position & CHUNK_MASK]);
+    }
+
+    private List<Message> messagesAt(int[] positions) {
+        List<Message> messages = new ArrayList<>(positions.length);
+        for (int position : positions) {
+            messages.add(messageAt(position));
+        }
+        return messages;
+    }
+
+    private String identityAt(int position) {
+        Message message = chunks[position >>> CHUNK_SHIFT][position & CHUNK_MASK];
+        return message != null ? message.getId() : archive.getId(rows[position >>> CHUNK_SHIFT][position & CHUNK_MASK]);
+    }
+
+    private static int slot(String id, int mask) {
+        int hash = id.hashCode() * 0x9E3779B9; // Spread the bits of the string hash
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Find the position of a message by its identity.
+     *
+     * @return The position, or -1 if there is no message with the identity.
+     */
+    private int find(String id) {
+        int mask = identities.length - 1;
+        for (int slot = slot(id, mask); identities[slot] != 0; slot = (slot + 1) & mask) {
+            int position = identities[slot] - 1;
+            if (identityAt(position).equals(id)) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Add the identity of a new message to the table, growing the table when it is half full.
+     */
+    private void insertIdentity(String id, int position) {
+        if (size * 2 > identities.length) {
+            int[] old = identities;
+            identities = new int[old.length * 2];
+            for (int entry : old) {
+                if (entry != 0) {
+                    put(identityAt(entry - 1), entry - 1);
+                }
+            }
+        }
+        put(id, position);
+    }
+
+    private void put(String id, int position) {
+        int mask = identities.length - 1;
+        int slot = slot(id, mask);
+        while (identities[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        identities[slot] = position + 1;
+    }
+
+    private void mark(int position, MessageStatus status) {
+        if (status == null) {
+            return;
+        }
+        set(position, status, true);
+        if (status != MessageStatus.DELETED) {
+            set(position, MessageStatus.ALL, true);
+        }
+    }
+
+    private void unmark(int position, MessageStatus status) {
+        if (status == null) {
+            return;
+        }
+        set(position, status, false);
+        if (status != MessageStatus.DELETED) {
+            set(position, MessageStatus.ALL, false);
+        }
+    }
+
+    /**
+     * Set or clear the position of a message in the set of a status, keeping the count.
+     * A set that a snapshot uses is copied before it is changed.
+     */
+    private void set(int position, MessageStatus status, boolean value) {
+        BitSet bits = statuses.get(status);
+        if (bits.get(position) == value) {
+            return;
+        }
+
+        if (shared.remove(status)) {
+            bits = (BitSet) bits.clone();
+            statuses.put(status, bits);
+        }
+        bits.set(position, value);
+        counts[status.ordinal()] += value ? 1 : -1;
+    }
+
+    /**
+     * Read-only live view of the messages in a status.
+     */
+    private final class StatusView extends AbstractCollection<Message> {
+
+        private final MessageStatus status;
+
+        StatusView(MessageStatus status) {
+            this.status = status;
+        }
+
+        @Override
+        public int size() {
+            return count(status);
+        }
+
+        @Override
+        public boolean contains(Object obj) {
+            if (!(obj instanceof Message message)) {
+                return false;
+            }
+            synchronized (MessageStore.this) {
+                int position = find(message.getId());
+                return position >= 0 && statuses.get(status).get(position);
+            }
+        }
+
+        @Override
+        public Iterator<Message> iterator() {
+            return snapshot().getMessages(status).iterator();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package tel.kontra.leiriposti.model;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import tel.kontra.leiriposti.util.FormsTimestampParser;
+
+/**
+ * MessageTimeIndex keeps the positions of the messages in a {@link MessageStore} ordered by the time
+ * the messages were sent.
+ *
+ * The index is a sorted column of timestamps with a column of positions, one pair for all messages
+ * and one for every weekday in Finnish time. Finding the messages sent in a time range is a binary
+ * search, O(log n) plus the messages found. The index holds no messages, archived messages are not
+ * kept alive by it, and it takes 24 bytes a message.
+ *
+ * Messages are added in about the order they were sent, so adding is usually an append.
+ * Messages sent at the same time are kept in the order they were added. Messages without
+ * a timestamp are not indexed.
+ *
+ * This class is not thread-safe, the store reads and writes it under its lock.
+ *
+ * @version 1.2
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class MessageTimeIndex {
+
+    private final Column messages = new Column(); // All positions by time
+    private final Map<DayOfWeek, Column> weekDays = new EnumMap<>(DayOfWeek.class); // Positions by weekday and time
+
+    /**
+     * Constructor for an empty MessageTimeIndex.
+     */
+    public MessageTimeIndex() {
+        for (DayOfWeek day : DayOfWeek.values()) {
+            weekDays.put(day, new Column());
+        }
+    }
+
+    /**
+     * Add the position of a message to the index.
+     *
+     * @param time Time the message was sent in epoch milliseconds, Long.MIN_VALUE if not known.
+     * @param position Position of the message in the store.
+     */
+    void add(long time, int position) {
+        if (time == Long.MIN_VALUE) {
+            return;
+        }
+        messages.add(time, position);
+        weekDays.get(Instant.ofEpochMilli(time).atZone(FormsTimestampParser.ZONE).getDayOfWeek()).add(time, position);
+    }
+
+    /**
+     * Get the positions of the messages sent in a time range.
+     *
+     * @param from Start of the range, inclusive.
+     * @param to End of the range, exclusive.
+     * @return The positions from the oldest message to the newest.
+     */
+    int[] between(Instant from, Instant to) {
+        return messages.range(from.toEpochMilli(), to.toEpochMilli());
+    }
+
+    /**
+     * Get the positions of the messages sent on a weekday in a time range.
+     *
+     * @param day The weekday in Finnish time.
+     * @param from Start of the range, inclusive.
+     * @param to End of the range, exclusive.
+     * @return The positions from the oldest message to the newest.
+     */
+    int[] between(DayOfWeek day, Instant from, Instant to) {
+        return weekDays.get(day).range(from.toEpochMilli(), to.toEpochMilli());
+    }
+
+    /**
+     * Get the positions of the messages sent before a time.
+     *
+     * @param before The time, exclusive.
+     * @return The positions from the oldest message to the newest.
+     */
+    int[] before(Instant before) {
+        return messages.range(Long.MIN_VALUE, before.toEpochMilli());
+    }
+
+    /**
+     * Get the positions of the messages sent since a time.
+     *
+     * @param since The time, inclusive.
+     * @return The positions from the oldest message to the newest.
+     */
+    int[] since(Instant since) {
+        return messages.range(since.toEpochMilli(), Long.MAX_VALUE);
+    }
+
+    /**
+     * Get the position of the message sent last.
+     *
+     * @return The position, or -1 if there are no messages.
+     */
+    int latest() {
+        return messages.size > 0 ? messages.positions[messages.size - 1] : -1;
+    }
+
+    /**
+     * Get the number of indexed messages.
+     *
+     * @return The number of messages.
+     */
+    public int size() {
+        return messages.size;
+    }
+
+    /**
+     * Sorted column of timestamps with the positions of the messages.
+     */
+    private static final class Column {
+
+        private long[] times = new long[16]; // Timestamps in ascending order
+        private int[] positions = new int[16]; // Positions by index of their timestamp
+        private int size; // Number of messages
+
+        void add(long time, int position) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+
+            // After every message sent at the same time or earlier, usually the end
+            int index = size;
+            if (size > 0 && times[size - 1] > time) {
+                index = firstAtOrAfter(time + 1);
+                System.arraycopy(times, index, times, index + 1, size - index);
+                System.arraycopy(positions, index, positions, index + 1, size - index);
+            }
+
+            times[index] = time;
+            positions[index] = position;
+            size++;
+        }
+
+        int[] range(long from, long to) {
+            if (from >= to) {
+                return new int[0];
+            }
+            return Arrays.copyOfRange(positions, firstAtOrAfter(from), firstAtOrAfter(to));
+        }
+
+        /**
+         * Index of the first timestamp at or after a time, size if there is none.
+         */
+        private int firstAtOrAfter(long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (times[mid] < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package tel.kontra.leiriposti.model;
+
+import java.awt.BasicStroke;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Stroke;
+import java.awt.print.PageFormat;
+import java.awt.print.Printable;
+import java.awt.print.PrinterException;
+import java.util.ArrayList;
+import java.util.List;
+
+import tel.kontra.leiriposti.util.WeekDayImage;
+
+/**
+ * PackedPrintableMessage prints several short messages on one sheet of paper.
+ *
+ * The messages are stacked on top of each other in slots separated by dashed cut lines.
+ * When printing duplex the back side has the recipient of each slot at the same height,
+ * so after cutting every slip has the letter on the front and the recipient on the back.
+ * When printing one-sided the recipient is printed as a header at the top of the slot instead.
+ *
+ * Slots are stacked vertically on purpose, flipping the paper on the long edge
+ * keeps the slots at the same height on both sides.
+ *
+ * The fonts and closing lines come from the letter template, see {@link LetterTemplate.Packed}.
+ * The layout is measured with the metrics compiled into the template and not with the printer graphics,
+ * so a sheet the {@link MessagePacker} judged to fit is printed exactly as it was measured.
+ *
+ * @see MessagePacker
+ *
+ * @version 1.1
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class PackedPrintableMessage implements Printable {
+
+    static final int SLOT_PADDING = 18; // Space between the cut line and the slot content
+    static final int MARGIN = 30; // Left and right margin of the slot content
+    static final int IMAGE_WIDTH = 40; // Width of the weekday image in a slot
+
+    private static final Stroke CUT_LINE = new BasicStroke(
+        0.5f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10f, new float[] { 4f, 4f }, 0f); // Dashed cut line
+
+    private final List<Message> messages; // Messages on this sheet, top to bottom
+    private final boolean duplex; // Whether the recipients go on the back side
+    private final LetterTemplate.Packed style; // Fonts and closing lines of the slips
+    private volatile MessageLayout layout; // Cached layout, computed on the first print call
+
+    /**
+     * Constructor for PackedPrintableMessage.
+     *
+     * @param messages The messages to print on the sheet, top to bottom.
+     * @param duplex True if the recipients are printed on the back side of the sheet.
+     * @param template The letter template the slips are styled with.
+     */
+    public PackedPrintableMessage(List<Message> messages, boolean duplex, LetterTemplate template) {
+        if (messages == null || messages.isEmpty()) {
+            throw new IllegalArgumentException("Packed sheet needs at least one message.");
+        }
+        this.messages = List.copyOf(messages);
+        this.duplex = duplex;
+        this.style = template.getPacked();
+    }
+
+    /**
+     * Prints the sheet.
+     * Page 0 is the front side with the letters, page 1 is the back side with the recipients
+     * and only exists when printing duplex.
+     *
+     * @param g The graphics context to draw on.
+     * @param pf The page format for the print job.
+     * @param pageIndex The index of the page to be printed.
+     * @return PAGE_EXISTS if the page is valid, NO_SUCH_PAGE if the page index is invalid.
+     * @throws PrinterException if an error occurs during printing.
+     */
+    @Override
+    public int print(Graphics g, PageFormat pf, int pageIndex) throws PrinterException {
+
+        // Check if the page index is valid
+        if (pageIndex > (duplex ? 1 : 0)) {
+            return NO_SUCH_PAGE;
+        }
+
+        Graphics2D g2d = (Graphics2D) g;
+
+        // Compute the layout on the first call, later calls replay it
+        MessageLayout cached = layout;
+        if (cached == null || !cached.fits(pf)) {
+            cached = computeLayout(pf);
+            layout = cached;
+        }
+
+        g2d.translate(pf.getImageableX(), pf.getImageableY());
+        cached.draw(g2d, pageIndex);
+
+        return PAGE_EXISTS;
+    }
+
+    /**
+     * Compute the layout of the sheet, the letters on the front and the recipients on the back.
+     *
+     * @param pf The page format for the print job.
+     * @return The computed layout.
+     */
+    MessageLayout computeLayout(PageFormat pf) {
+        List<DrawOp> front = new ArrayList<>();
+        List<DrawOp> back = new ArrayList<>();
+
+        int width = (int) pf.getImageableWidth();
+        Image image = WeekDayImage.getImage(WeekDayImage.today(), IMAGE_WIDTH); // Pre-scaled for printing
+
+        int top = 0;
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            int height = layoutSlot(style, message, top, width, duplex, image, front);
+            layoutRecipient(style, message.getRecipient(), top, height, width, back);
+            top += height;
+
+            // Cut line between slots, the sheet edge works for the last one
+            if (i < messages.size() - 1) {
+                front.add(DrawOp.line(CUT_LINE, 0, top, width, top));
+            }
+        }
+
+        return new MessageLayout(pf, duplex ? List.of(front, back) : List.of(front));
+    }
+
+    /**
+     * Lays out a single slot.
+     * Measuring and printing go through the same code and metrics so the packer and the printout agree on the height.
+     *
+     * @param style The fonts and closing lines of the slip.
+     * @param message The message in the slot.
+     * @param top The y coordinate of the top of the slot.
+     * @param width The width of the slot.
+     * @param duplex True if the recipient is printed on the back side instead of as a header.
+     * @param image The weekday image to draw, or null to leave it out.
+     * @param ops The list to add the draw operations to, or null to only measure the slot.
+     * @return The height of the slot.
+     */
+    static int layoutSlot(LetterTemplate.Packed style, Message message, int top, int width, boolean duplex, Image image, List<DrawOp> ops) {
+        int x = MARGIN;
+        int y = top + SLOT_PADDING;
+
+        // Recipient header when the back side is not printed
+        if (!duplex) {
+            FontMetrics metrics = style.headerMetrics;
+            y += metrics.getAscent();
+            if (ops != null) {
+                ops.add(DrawOp.text(message.getRecipient(), style.headerFont, x, y));
+            }
+            y += metrics.getDescent() + metrics.getLeading();
+        }
+
+        // Title with the weekday image on the right
+        FontMetrics metrics = style.titleMetrics;
+        y += metrics.getAscent();
+        if (ops != null) {
+            ops.add(DrawOp.text(message.getSubject(), style.titleFont, x, y));
+
+            if (image != null) {
+                int imageHeight = image.getHeight(null) * IMAGE_WIDTH / image.getWidth(null);
+                ops.add(DrawOp.image(image, width - IMAGE_WIDTH - MARGIN, top + SLOT_PADDING, IMAGE_WIDTH, imageHeight));
+            }
+        }
+        y += metrics.getDescent() + metrics.getLeading();
+
+        // Body, wrapped the same way as on a full page
+        int lineHeight = style.bodyLineHeight;
+        int maxWidth = width - 2 * MARGIN - IMAGE_WIDTH;
+        for (String line : style.bodyBreaker.breakLines(message.getBody(), maxWidth)) {
+            y += lineHeight;
+            if (ops != null) {
+                ops.add(DrawOp.text(line, style.bodyFont, x, y));
+            }
+        }
+
+        // Closing lines of the template, the greeting and the author by default
+        metrics = style.closingMetrics;
+        lineHeight = metrics.getHeight();
+        y += lineHeight / 2; // Add spacing after the body
+        for (TemplateText line : style.closing) {
+            y += lineHeight;
+            if (ops != null) {
+                ops.add(DrawOp.text(line.bind(message), style.closingFont, x, y));
+            }
+        }
+        y += metrics.getDescent() + SLOT_PADDING;
+
+        return y - top;
+    }
+
+    /**
+     * Lays out the recipient name centered in a slot on the back side.
+     *
+     * @param style The fonts of the slip.
+     * @param recipient The recipient name.
+     * @param top The y coordinate of the top of the slot.
+     * @param height The height of the slot.
+     * @param width The width of the slot.
+     * @param ops The list to add the draw operation to.
+     */
+    private static void layoutRecipient(LetterTemplate.Packed style, String recipient, int top, int height, int width, List<DrawOp> ops) {
+        FontMetrics metrics = style.recipientMetrics;
+        int x = (width - metrics.stringWidth(recipient)) / 2;
+        int y = top + (height + metrics.getAscent() - metrics.getDescent()) / 2;
+
+        ops.add(DrawOp.text(recipient, style.recipientFont, x, y));
+    }
+
+    /**
+     * Get the messages printed on this sheet.
+     *
+     * @return The messages on this sheet, top to bottom.
+     */
+    public List<Message> getMessages() {
+        return messages;
+    }
+}
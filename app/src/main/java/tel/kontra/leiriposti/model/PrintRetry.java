@@ -0,0 +1,88 @@
+package tel.kontra.leiriposti.model;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PrintRetry is a message waiting in the retry lane of the printer after a failed print job.
+ *
+ * It keeps track of how many times printing the message has failed and when the next attempt is due.
+ * The delay grows exponentially with the number of failed attempts, so a printer that is out of paper
+ * or offline is not flooded with jobs that fail again right away.
+ *
+ * PrintRetry implements {@link Delayed} so it can be used with a {@link java.util.concurrent.DelayQueue},
+ * which only hands out retries whose delay has passed.
+ *
+ * @version 1.0
+ * @since 0.3
+ */
+public class PrintRetry implements Delayed {
+
+    public static final long BASE_DELAY_MILLIS = 5_000; // Delay before the first retry
+    public static final long MAX_DELAY_MILLIS = 120_000; // Upper limit for the delay between retries
+
+    private final Message message;
+    private final int attempts; // Number of failed attempts so far
+    private final long dueNanos; // System.nanoTime() when the next attempt is due
+
+    /**
+     * Constructor for PrintRetry.
+     * The next attempt is scheduled based on the number of failed attempts.
+     *
+     * @param message The message to retry.
+     * @param attempts Number of failed attempts so far, at least 1.
+     */
+    public PrintRetry(Message message, int attempts) {
+        this.message = message;
+        this.attempts = attempts;
+        this.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff(attempts));
+    }
+
+    /**
+     * Get the backoff delay for the given number of failed attempts.
+     * The delay doubles with every failed attempt, starting from {@link #BASE_DELAY_MILLIS}.
+     *
+     * @param attempts Number of failed attempts so far.
+     * @return The delay in milliseconds before the next attempt.
+     */
+    public static long backoff(int attempts) {
+        int shift = Math.min(Math.max(attempts - 1, 0), 16); // Cap the shift to avoid overflow
+        return Math.min(BASE_DELAY_MILLIS << shift, MAX_DELAY_MILLIS);
+    }
+
+    /**
+     * Get the message to retry.
+     *
+     * @return The message.
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    /**
+     * Get the number of failed attempts so far.
+     *
+     * @return The number of failed attempts.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+        if (other instanceof PrintRetry) {
+            return Long.signum(dueNanos - ((PrintRetry) other).dueNanos); // nanoTime values are compared by difference
+        }
+        return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public String toString() {
+        return message + " (attempt " + (attempts + 1) + ")";
+    }
+}
@@ -1,53 +1,65 @@
 package tel.kontra.leiriposti.model;
 
-import java.awt.Font;
-import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.print.PageFormat;
+import java.awt.print.Pageable;
 import java.awt.print.Printable;
 import java.awt.print.PrinterException;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.StringReader;
-import java.time.DayOfWeek;
-import java.util.Calendar;
-
 import javax.print.Doc;
 import javax.print.SimpleDoc;
 import javax.print.DocFlavor;
 
-import tel.kontra.leiriposti.util.WeekDayImage;
-
 /**
  * PrintableMessage class implements the Printable interface to provide a way to print messages.
  * It contains the printData to be printed and implements the print method to handle the printing process.
- * 
+ *
  * This class is used to format and print messages in a specific layout.
- * 
- * Im not entirely happy with the way this is done as it is not very flexible.
- * Most of the layout is hardcoded meaning I would have to change the source code to change the layout.
- * But this works for now and there is a high chance that it will remain the same.
- * 
- * @version 0.2
+ *
+ * The layout comes from a {@link LetterTemplate}, so the look of the letters can be changed
+ * per camp without changing the code.
+ *
+ * The layout is computed once into a {@link MessageLayout} and replayed on every print call,
+ * Java2D asks for the same page several times while printing.
+ *
+ * Long letters continue on extra pages and the recipient is always on the last page,
+ * on the back side of the last sheet when printing duplex.
+ * The layout does not depend on the printer graphics so the number of pages is known
+ * before printing starts, it is exposed through {@link Pageable}.
+ *
+ * @version 0.6
  * @since 0.1
- * 
+ *
  * @author Markus
  */
-public class PrintableMessage implements Printable {
-    
+public class PrintableMessage implements Printable, Pageable {
+
     private Message printData;
+    private final PageFormat pageFormat; // Page format the message is laid out for
+    private final LetterTemplate template; // Letter layout of the message
+    private final boolean duplex; // Whether both sides of the paper are printed
+    private volatile MessageLayout layout; // Cached layout, computed on first use
 
-    public PrintableMessage(Message msg) {
+    /**
+     * Constructor for PrintableMessage.
+     *
+     * @param msg The message to print.
+     * @param pageFormat The page format of the print service the message is printed on.
+     * @param template The letter template the message is laid out with.
+     * @param duplex True if both sides of the paper are printed.
+     */
+    public PrintableMessage(Message msg, PageFormat pageFormat, LetterTemplate template, boolean duplex) {
         this.printData = msg;
+        this.pageFormat = pageFormat;
+        this.template = template;
+        this.duplex = duplex;
     }
 
     /**
      * The print method is called by the printing system to print the message.
-     * It formats the message data and draws it on the graphics context.
-     * 
+     * The layout is computed on the first call and replayed on the following calls.
+     *
      * @param g The graphics context to draw on.
      * @param pf The page format for the print job.
      * @param pageIndex The index of the page to be printed.
@@ -55,122 +67,94 @@ public class PrintableMessage implements Printable {
      * @throws PrinterException if an error occurs during printing.
      */
     public int print(Graphics g, PageFormat pf, int pageIndex) throws PrinterException {
-        
+        MessageLayout layout = getLayout(pf);
+
         // Check if the page index is valid
-        if (pageIndex > 1) {
+        if (pageIndex >= layout.getNumberOfPages()) {
            return NO_SUCH_PAGE;
         }
 
         Graphics2D g2d = (Graphics2D) g;
         g2d.translate(pf.getImageableX(), pf.getImageableY());
+        layout.draw(g2d, pageIndex);
 
-        if (pageIndex == 0) {
-            // Front side of the paper
-
-            // Get message data from the Message object
-            String title = printData.getSubject();
-            String author = printData.getAuthor();
-            String body = printData.getBody();
-
-            // Title
-            g2d.setFont(new Font("Serif", Font.BOLD, 24));
-            g2d.drawString(title, 50, 50); // Draw the title at the top-left corner
-
-            // Image
-            // Get image corresponding to current week day
-            Calendar calendar = Calendar.getInstance();
-            int dayOfWeek = calendar.get(Calendar.DAY_OF_WEEK);
-            Image image = WeekDayImage.getImage(DayOfWeek.of(dayOfWeek));
-
-            // Make image black and white
-            if (image == null) {
-                throw new PrinterException("Image for the current day of the week is not available.");
-            }
-
-            int imageWidth = 100;
-            int imageHeight = image.getHeight(null) * imageWidth / image.getWidth(null);
-
-            // Draw the image at the top-right corner of the page
-            g2d.drawImage(image, (int) pf.getImageableWidth() - imageWidth - 20, 20, imageWidth, imageHeight, null);
-
-            // Set font for the subject
-            g2d.setFont(new Font("Serif", Font.PLAIN, 12));
-            FontMetrics metrics = g2d.getFontMetrics();
-            int lineHeight = metrics.getHeight();
-            int maxWidth = (int) pf.getImageableWidth() - 100; // Leave some margin
-            int x = 50;
-            int y = 105; // Start drawing the body below the title and image
-
-            BufferedReader reader = new BufferedReader(new StringReader(body));
-
-            // Read the body line by line and draw it on the page
-            String line;
-            try {
-                int availableHeight = (int) pf.getImageableHeight() - (4 * lineHeight); // Leave 4 rows for the greeting
-
-                while ((line = reader.readLine()) != null) {
-
-                    int start = 0;
-                    while (start < line.length()) {
-                        
-                        int end = start;
-
-                        while (end < line.length() && metrics.stringWidth(line.substring(start, end + 1)) <= maxWidth) {
-                            end++;
-                        }
-
-                        if (y + lineHeight > availableHeight) {
-                            break; // Stop drawing if there's no more space for the body
-                        }
-
-                        g2d.drawString(line.substring(start, end), x, y);
-                        y += lineHeight;
-                        start = end;
-                    }
-                }
-
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-
-            // Set font for the author greeting and update line height
-            g2d.setFont(new Font("Serif", Font.ITALIC, 14));
-            metrics = g2d.getFontMetrics();
-            lineHeight = metrics.getHeight(); // Update line height for the greeting
-
-            y += lineHeight; // Add spacing after the body
-            g2d.drawString("Terveisin,", x, y); // Draw the greeting
-            y += lineHeight; // Move to the next line
-            g2d.drawString(author, x, y); // Draw the author's name below the greeting
-
-        } else if (pageIndex == 1) {
-            // Back side of the paper (duplex printing)
-
-            // Get recipient name
-            String recipient = printData.getRecipient();
-
-            // Center the recipient name on the page
-            g2d.setFont(new Font("Serif", Font.BOLD, 36));
-            FontMetrics metrics = g2d.getFontMetrics();
-            int stringWidth = metrics.stringWidth(recipient);
-            int x = (int) ((pf.getImageableWidth() - stringWidth) / 2);
-            int y = (int) (pf.getImageableHeight() / 2);
-
-            g2d.drawString(recipient, x, y);
+        return PAGE_EXISTS;
+    }
+
+    /**
+     * Get the number of pages the message takes, including the recipient page.
+     *
+     * @return The number of pages.
+     */
+    @Override
+    public int getNumberOfPages() {
+        try {
+            return getLayout(pageFormat).getNumberOfPages();
+        } catch (PrinterException e) {
+            return UNKNOWN_NUMBER_OF_PAGES; // Let the printing system find out, print will fail with the same error
         }
+    }
 
-        return PAGE_EXISTS;
+    /**
+     * Get the page format of a page, all pages use the same format.
+     *
+     * @param pageIndex The index of the page.
+     * @return The page format of the message.
+     */
+    @Override
+    public PageFormat getPageFormat(int pageIndex) {
+        return pageFormat;
+    }
+
+    /**
+     * Get the printable of a page, this message prints all of its pages itself.
+     *
+     * @param pageIndex The index of the page.
+     * @return This printable.
+     */
+    @Override
+    public Printable getPrintable(int pageIndex) {
+        return this;
+    }
+
+    /**
+     * Get the layout of the message for the given page format.
+     * The layout is cached on the instance and only computed again if the page size changes.
+     *
+     * @param pf The page format for the print job.
+     * @return The layout of the message.
+     * @throws PrinterException if the layout cannot be computed.
+     */
+    private MessageLayout getLayout(PageFormat pf) throws PrinterException {
+        MessageLayout cached = layout;
+        if (cached == null || !cached.fits(pf)) {
+            cached = computeLayout(pf);
+            layout = cached;
+        }
+        return cached;
+    }
+
+    /**
+     * Compute the layout of the message with the letter template.
+     *
+     * @param pf The page format for the print job.
+     * @return The computed layout.
+     * @throws PrinterException if the template cannot be laid out, for example when an image is not available.
+     */
+    private MessageLayout computeLayout(PageFormat pf) throws PrinterException {
+        return template.layout(printData, pf, duplex);
     }
 
     /**
      * Returns a Doc object representing this message for use with Java Print Service API.
-     * The Doc will use the Printable implementation of this class.
+     * The Doc will use the Pageable implementation of this class, so the print service
+     * gets the page count and page format from the message instead of probing for pages.
      *
      * @return Doc object wrapping this PrintableMessage
      */
     public Doc toDoc() {
-        // The DocFlavor for a Printable is SERVICE_FORMATTED.PRINTABLE
-        return new SimpleDoc(this, DocFlavor.SERVICE_FORMATTED.PRINTABLE, null);
+        // The DocFlavor for a Pageable is SERVICE_FORMATTED.PAGEABLE
+        return new SimpleDoc(this, DocFlavor.SERVICE_FORMATTED.PAGEABLE, null);
     }
 
     public String getTitle() {
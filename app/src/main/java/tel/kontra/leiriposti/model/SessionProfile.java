@@ -6,13 +6,18 @@ import java.util.Queue;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
 
+import lombok.AccessLevel;
 import lombok.Builder;
 import lombok.Data;
+import lombok.Setter;
 
 import tel.kontra.leiriposti.controller.PropertiesController;
 import tel.kontra.leiriposti.util.HashAlgorithm;
@@ -23,13 +28,20 @@ import tel.kontra.leiriposti.util.HashUtil;
  * This class is used to store session-specific data such as selected printer,
  * imported messages, and other session-related information.
  * 
- * @version 1.0
+ * Profiles are saved with {@link SessionProfileCodec}, profiles saved with Java serialization
+ * are still read. The class stays Serializable for them.
+ * 
+ * The setters lock the profile, the same lock {@link #save()} holds, and bump the version of the
+ * profile when a value changes, so the autosave can tell if the profile has to be saved.
+ * 
+ * @version 1.5
  * @since 0.2
  */
 @Data
 @Builder
 public class SessionProfile implements Serializable {
     
+    private static final long serialVersionUID = -8889014461817346067L; // Computed from the first version, profiles saved by it are read
     private static final Logger LOGGER = LogManager.getLogger(); // Logger for debugging
     
     // Classes for handling hashing
@@ -38,7 +50,9 @@ public class SessionProfile implements Serializable {
 
     // Session ID generation
     // Using SHA-256 to hash the current time in milliseconds, truncated to 8 characters
-    private final String sessionId = hashUtil.hash(
+    // A profile read back from a file gets its saved ID through the builder
+    @Builder.Default
+    private String sessionId = hashUtil.hash(
         String.valueOf(System.currentTimeMillis()),
         HashAlgorithm.SHA_256,
         8 // Truncate the session ID to 8 characters 
@@ -48,9 +62,12 @@ public class SessionProfile implements Serializable {
     private int lastRow; // Last row number in the Google Sheets spreadsheet
     private String selectedPrinter; // Name of the selected printer
     private Queue<Message> printQueue; // Queue of messages to be printed in this session
-    private List<Message> importedMessages; // All messages imported in this session
+    private List<Message> importedMessages; // Active messages of sessions saved before the message journal, see MessageJournal
+    private MessageArchive messageArchive; // Archived messages of sessions saved before the message journal
     private boolean isDefault; // Flag to indicate if this is the default session profile
     private boolean printDuplex; // Flag to indicate if duplex printing is enabled
+    private boolean packMessages; // Flag to indicate if short messages are packed several to a sheet
+    private String templateName; // Name of the letter template, null for the default template
 
     /**
      * Google Sheets service data.
@@ -58,11 +75,159 @@ public class SessionProfile implements Serializable {
      */
     private String spreadsheetId; // ID of the Google Sheets spreadsheet
 
+    @Setter(AccessLevel.NONE)
+    private transient volatile long version; // Bumped by every change, not saved
+
+    /**
+     * Set the name of the session profile.
+     * 
+     * @param sessionName The name.
+     */
+    public synchronized void setSessionName(String sessionName) {
+        if (!Objects.equals(this.sessionName, sessionName)) {
+            this.sessionName = sessionName;
+            version++;
+        }
+    }
+
+    /**
+     * Set the last row read from the spreadsheet.
+     * 
+     * @param lastRow The row number.
+     */
+    public synchronized void setLastRow(int lastRow) {
+        if (this.lastRow != lastRow) {
+            this.lastRow = lastRow;
+            version++;
+        }
+    }
+
+    /**
+     * Set the name of the selected printer.
+     * 
+     * @param selectedPrinter The printer name, or null for none.
+     */
+    public synchronized void setSelectedPrinter(String selectedPrinter) {
+        if (!Objects.equals(this.selectedPrinter, selectedPrinter)) {
+            this.selectedPrinter = selectedPrinter;
+            version++;
+        }
+    }
+
+    /**
+     * Set the print queue of the session.
+     * 
+     * @param printQueue The queue.
+     */
+    public synchronized void setPrintQueue(Queue<Message> printQueue) {
+        if (this.printQueue != printQueue) {
+            this.printQueue = printQueue;
+            version++;
+        }
+    }
+
+    /**
+     * Set the active messages saved in the profile itself.
+     * 
+     * @param importedMessages The messages, or null once they are in the message journal.
+     */
+    public synchronized void setImportedMessages(List<Message> importedMessages) {
+        if (this.importedMessages != importedMessages) {
+            this.importedMessages = importedMessages;
+            version++;
+        }
+    }
+
+    /**
+     * Set the archived messages saved in the profile itself.
+     * 
+     * @param messageArchive The archive, or null once it is in the message journal.
+     */
+    public synchronized void setMessageArchive(MessageArchive messageArchive) {
+        if (this.messageArchive != messageArchive) {
+            this.messageArchive = messageArchive;
+            version++;
+        }
+    }
+
+    /**
+     * Set if this is the default session profile.
+     * 
+     * @param isDefault True for the default profile.
+     */
+    public synchronized void setDefault(boolean isDefault) {
+        if (this.isDefault != isDefault) {
+            this.isDefault = isDefault;
+            version++;
+        }
+    }
+
+    /**
+     * Set if the letters are printed on both sides.
+     * 
+     * @param printDuplex True for duplex printing.
+     */
+    public synchronized void setPrintDuplex(boolean printDuplex) {
+        if (this.printDuplex != printDuplex) {
+            this.printDuplex = printDuplex;
+            version++;
+        }
+    }
+
+    /**
+     * Set if short messages are packed several to a sheet.
+     * 
+     * @param packMessages True to pack messages.
+     */
+    public synchronized void setPackMessages(boolean packMessages) {
+        if (this.packMessages != packMessages) {
+            this.packMessages = packMessages;
+            version++;
+        }
+    }
+
+    /**
+     * Set the letter template of the session.
+     * 
+     * @param templateName The template name, null for the default template.
+     */
+    public synchronized void setTemplateName(String templateName) {
+        if (!Objects.equals(this.templateName, templateName)) {
+            this.templateName = templateName;
+            version++;
+        }
+    }
+
+    /**
+     * Set the ID of the spreadsheet the messages are read from.
+     * 
+     * @param spreadsheetId The spreadsheet ID.
+     */
+    public synchronized void setSpreadsheetId(String spreadsheetId) {
+        if (!Objects.equals(this.spreadsheetId, spreadsheetId)) {
+            this.spreadsheetId = spreadsheetId;
+            version++;
+        }
+    }
+
+    /**
+     * Get the name of the files of the session, without an extension.
+     * 
+     * @return The session ID, or "default_session" for the default session.
+     */
+    public String getFileName() {
+        return !isDefault ? sessionId : "default_session";
+    }
+
     /**
      * Saves the current session profile to a file in the session_profiles directory.
-     * The session profile is serialized and saved to a file named with the session ID.
+     * The session profile is encoded with {@link SessionProfileCodec} and saved to a file named with the session ID.
+     * The profile is written to a temporary file first and then moved over the old file,
+     * so a crash while saving never leaves a half written profile. Called on the autosave thread too.
+     * 
+     * @return True if the profile was saved.
      */
-    public void save() {
+    public synchronized boolean save() {
         
         try {
             // Create the session_profiles directory if it doesn't exist
@@ -71,16 +236,27 @@ public class SessionProfile implements Serializable {
                 dir.mkdirs();
             }
 
-            String fileName = !isDefault ? sessionId : "default_session"; // Use sessionId or default name if not set
+            String fileName = getFileName(); // Use sessionId or default name if not set
 
-            // Serialize the session profile to a file
-            try (FileOutputStream fileOut = new FileOutputStream("session_profiles/" + fileName + ".ser");
-                 ObjectOutputStream out = new ObjectOutputStream(fileOut)) {
-                out.writeObject(this);
-                LOGGER.info("Session profile saved successfully: " + sessionId);
+            // Encode the session profile to a temporary file, not named .ser so it is never loaded
+            File temporary = File.createTempFile(fileName, ".tmp", dir);
+            try (FileOutputStream fileOut = new FileOutputStream(temporary);
+                 BufferedOutputStream out = new BufferedOutputStream(fileOut)) {
+                SessionProfileCodec.write(this, out);
+                fileOut.getFD().sync();
+            } catch (Exception e) {
+                temporary.delete();
+                throw e;
             }
+
+            // Replace the old profile in one step
+            Files.move(temporary.toPath(), new File(dir, fileName + ".ser").toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Session profile saved successfully: " + sessionId);
+            return true;
         } catch (Exception e) {
             LOGGER.error("Error saving session profile: " + e.getMessage(), e);
+            return false;
         }
     }
 }
@@ -0,0 +1,318 @@
+package tel.kontra.leiriposti.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * SessionProfileCatalog lists the session profiles saved in a directory without loading them.
+ *
+ * Every profile file has an entry with the name, the default flag, a few counts and the size and time
+ * of the file when the entry was made. The messages of a session are counted when they are written to
+ * a snapshot, see {@link MessageJournal}, and the counts are kept in the entry. The entries are saved to a file of their own, {@value #FILE_NAME},
+ * which is all that is read at startup, so starting takes as long with one old profile as with fifty.
+ * The full profile is read only when it is opened.
+ *
+ * A profile file that has no entry, or has changed since its entry was made, is read once to make a new
+ * entry, which is how profiles saved before the catalog are added to it. Entries of deleted files are
+ * dropped. Checking the files is a directory listing, the profiles are not opened.
+ *
+ * This class is thread-safe.
+ *
+ * @version 1.2
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class SessionProfileCatalog {
+
+    private static final Logger LOGGER = LogManager.getLogger(); // Logger for debugging
+
+    public static final String FILE_NAME = "profiles.catalog"; // Not named .ser, so it is never read as a profile
+
+    private final File directory; // Directory of the profiles and the catalog
+    private final File catalogFile; // The saved entries
+    private final Map<String, Entry> entries = new LinkedHashMap<>(); // Entries by the name of the profile file
+    private boolean changed; // Flag to save the entries, set when an entry is added or removed
+
+    /**
+     * A saved session profile.
+     */
+    public static final class Entry implements Serializable {
+
+        private static final long serialVersionUID = 2L; // Catalogs of version 1 are made again from the profiles
+
+        private final String sessionId;
+        private final String sessionName;
+        private final String fileName;
+        private final boolean isDefault;
+        private final int lastRow;
+        private final int activeCount;
+        private final int archivedCount;
+        private final long length;
+        private final long lastModified;
+
+        /**
+         * Constructor for an Entry.
+         *
+         * @param sessionId The ID of the session.
+         * @param sessionName The name of the session.
+         * @param fileName The name of the profile file, without the extension.
+         * @param isDefault True if the profile is opened at startup.
+         * @param lastRow The last row imported from the spreadsheet.
+         * @param activeCount The number of active messages of the session.
+         * @param archivedCount The number of archived messages of the session.
+         * @param length The size of the profile file.
+         * @param lastModified The time the profile file was last modified.
+         */
+        public Entry(String sessionId, String sessionName, String fileName, boolean isDefault,
+                     int lastRow, int activeCount, int archivedCount, long length, long lastModified) {
+            this.sessionId = sessionId;
+            this.sessionName = sessionName;
+            this.fileName = fileName;
+            this.isDefault = isDefault;
+            this.lastRow = lastRow;
+            this.activeCount = activeCount;
+            this.archivedCount = archivedCount;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        public String getSessionId() {
+            return sessionId;
+        }
+
+        public String getSessionName() {
+            return sessionName;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public boolean isDefault() {
+            return isDefault;
+        }
+
+        public int getLastRow() {
+            return lastRow;
+        }
+
+        public int getMessageCount() {
+            return activeCount + archivedCount;
+        }
+
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        public int getArchivedCount() {
+            return archivedCount;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Make a copy of the entry with new message counts, the file is the same.
+         *
+         * @param activeCount The number of active messages of the session.
+         * @param archivedCount The number of archived messages of the session.
+         * @return The new entry.
+         */
+        public Entry withCounts(int activeCount, int archivedCount) {
+            return new Entry(sessionId, sessionName, fileName, isDefault, lastRow, activeCount, archivedCount, length, lastModified);
+        }
+
+        /**
+         * Check if the entry was made from the file as it is now.
+         */
+        private boolean matches(File file) {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+
+    /**
+     * Constructor for SessionProfileCatalog.
+     * Nothing is read until the catalog is loaded.
+     *
+     * @param directory Directory of the profiles.
+     */
+    public SessionProfileCatalog(File directory) {
+        this.directory = directory;
+        this.catalogFile = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Read the saved entries.
+     * A missing or damaged catalog is left empty, {@link #refresh(Function)} makes the entries again.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void load() {
+        entries.clear();
+        if (!catalogFile.exists()) {
+            return;
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(catalogFile))) {
+            for (Entry entry : (List<Entry>) in.readObject()) {
+                entries.put(entry.getFileName(), entry);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Error loading the profile catalog, reading the profiles again: " + e.getMessage(), e);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Bring the entries up to date with the profile files in the directory.
+     * Only files without an up to date entry are read.
+     *
+     * @param reader Makes an entry from a profile file, returns null if the file can not be read.
+     * @return The number of profile files read.
+     */
+    public synchronized int refresh(Function<File, Entry> reader) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".ser"));
+        Set<String> found = new HashSet<>();
+        int read = 0;
+
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName().substring(0, file.getName().length() - ".ser".length());
+                found.add(fileName);
+
+                Entry entry = entries.get(fileName);
+                if (entry != null && entry.matches(file)) {
+                    continue;
+                }
+
+                read++;
+                entry = reader.apply(file);
+                if (entry != null) {
+                    entries.put(fileName, entry);
+                } else {
+                    LOGGER.warn("Leaving the session profile file " + file.getName() + " out of the catalog, it can not be read");
+                    entries.remove(fileName);
+                }
+                changed = true;
+            }
+        }
+
+        // Drop the entries of deleted profiles
+        if (entries.keySet().retainAll(found)) {
+            changed = true;
+        }
+        return read;
+    }
+
+    /**
+     * Add or replace the entry of a profile file, after the profile was saved.
+     *
+     * @param entry The entry.
+     */
+    public synchronized void put(Entry entry) {
+        entries.put(entry.getFileName(), entry);
+        changed = true;
+    }
+
+    /**
+     * Remove the entry of a profile file, after the file was found unreadable.
+     *
+     * @param fileName The name of the profile file, without the extension.
+     */
+    public synchronized void remove(String fileName) {
+        if (entries.remove(fileName) != null) {
+            changed = true;
+        }
+    }
+
+    /**
+     * Get the entry of a profile file.
+     *
+     * @param fileName The name of the profile file, without the extension.
+     * @return The entry, or null if the file has none.
+     */
+    public synchronized Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    /**
+     * Get the entries.
+     *
+     * @return The entries in the order they were added.
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Get the entry of the profile opened at startup.
+     *
+     * @return The entry of the default profile, or null if there is none.
+     */
+    public synchronized Entry getDefault() {
+        for (Entry entry : entries.values()) {
+            if (entry.isDefault()) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the profile file of an entry.
+     *
+     * @param entry The entry.
+     * @return The profile file.
+     */
+    public File getFile(Entry entry) {
+        return new File(directory, entry.getFileName() + ".ser");
+    }
+
+    /**
+     * Save the entries if they have changed.
+     * The catalog is written to a temporary file first and then moved over the old one.
+     *
+     * @throws IOException If the catalog can not be written.
+     */
+    public synchronized void save() throws IOException {
+        if (!changed) {
+            return;
+        }
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+
+        File temporary = File.createTempFile(FILE_NAME, ".tmp", directory);
+        try (FileOutputStream fileOut = new FileOutputStream(temporary);
+             ObjectOutputStream out = new ObjectOutputStream(fileOut)) {
+            out.writeObject(new ArrayList<>(entries.values()));
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            temporary.delete();
+            throw e;
+        }
+
+        Files.move(temporary.toPath(), catalogFile.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        changed = false;
+    }
+}
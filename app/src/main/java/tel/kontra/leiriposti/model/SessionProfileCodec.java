@@ -0,0 +1,430 @@
+package tel.kontra.leiriposti.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * SessionProfileCodec writes session profiles and their messages in a compact binary format.
+ *
+ * A profile starts with a header of the magic number, the schema version and flags, the rest is the body.
+ * Numbers are varints, strings are a varint length and UTF-8, and the time of a message is the difference
+ * to the time of the message before it. Recipients and authors are written once in a dictionary at the start
+ * of the body and the messages refer to them by their index, as the same names come again and again.
+ * Archived messages are written in the layout of a {@link MessageArchive}, which has a dictionary of its own,
+ * so their texts are copied as they are and no messages are built.
+ * Bodies of {@value #COMPRESS_BYTES} bytes or more are compressed with a Deflater, so profiles of older
+ * sessions with their messages in them stay small.
+ *
+ * A list of messages can be written on its own with {@link #writeMessageList(Collection, DataOutputStream)},
+ * with a dictionary of its own, the snapshot of a {@link MessageJournal} is written that way.
+ *
+ * Every change to the format gets a new {@link #VERSION}. Fields added in a version are read only from
+ * profiles of that version or later and older profiles get the default, so old profiles are always read.
+ * Profiles saved with Java serialization, before this format, are recognized by their stream header and
+ * read as they were saved.
+ *
+ * @version 1.1
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public final class SessionProfileCodec {
+
+    public static final int MAGIC = 0x4C505350; // "LPSP"
+    public static final int VERSION = 1; // Schema version written
+    public static final int COMPRESS_BYTES = 4096; // Bodies this large are compressed
+
+    private static final int DEFLATED = 1; // Flag of a compressed body
+    private static final int SERIALIZED = 0xACED; // First bytes of a Java serialization stream
+
+    // Bits of the header byte of a message
+    private static final int HAS_TIME = 0x01;
+    private static final int WEEKDAY_SHIFT = 1; // Three bits, 7 for no weekday
+    private static final int NO_WEEKDAY = 7;
+    private static final int STATUS_SHIFT = 4; // Four bits
+
+    // Bits of the flags of a profile
+    private static final int IS_DEFAULT = 0x01;
+    private static final int PRINT_DUPLEX = 0x02;
+    private static final int PACK_MESSAGES = 0x04;
+
+    private SessionProfileCodec() {
+    }
+
+    /**
+     * Encode a profile, compressed if it is large.
+     *
+     * @param profile The profile.
+     * @return The encoded profile.
+     */
+    public static byte[] encode(SessionProfile profile) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            write(profile, bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // Writing to memory does not fail
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write a profile, compressed if it is large.
+     *
+     * @param profile The profile.
+     * @param out The stream to write to, it is not closed.
+     * @throws IOException If the stream can not be written.
+     */
+    public static void write(SessionProfile profile, OutputStream out) throws IOException {
+        byte[] body = encodeBody(profile);
+        write(body, body.length >= COMPRESS_BYTES, out);
+    }
+
+    /**
+     * Write a profile.
+     *
+     * @param profile The profile.
+     * @param compress True to compress the body.
+     * @param out The stream to write to, it is not closed.
+     * @throws IOException If the stream can not be written.
+     */
+    public static void write(SessionProfile profile, boolean compress, OutputStream out) throws IOException {
+        write(encodeBody(profile), compress, out);
+    }
+
+    /**
+     * Decode a profile, in this format or saved with Java serialization.
+     *
+     * @param bytes The encoded profile.
+     * @return The profile.
+     * @throws IOException If the profile is damaged or of a newer version.
+     */
+    public static SessionProfile decode(byte[] bytes) throws IOException {
+        return read(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Read a profile, in this format or saved with Java serialization.
+     *
+     * @param in The stream to read from, it is read to the end of the profile.
+     * @return The profile.
+     * @throws IOException If the profile is damaged or of a newer version.
+     */
+    public static SessionProfile read(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(2);
+        int first = buffered.read();
+        int second = buffered.read();
+        buffered.reset();
+
+        if ((first << 8 | second) == SERIALIZED) {
+            try {
+                return (SessionProfile) new ObjectInputStream(buffered).readObject();
+            } catch (ClassNotFoundException | ClassCastException e) {
+                throw new IOException("Invalid serialized session profile", e);
+            }
+        }
+
+        DataInputStream data = new DataInputStream(buffered);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a session profile");
+        }
+        int version = data.readUnsignedByte();
+        if (version > VERSION) {
+            throw new IOException("Session profile of a newer version: " + version);
+        }
+        int flags = data.readUnsignedByte();
+        InputStream body = (flags & DEFLATED) != 0 ? new BufferedInputStream(new InflaterInputStream(buffered)) : buffered;
+        return readBody(new DataInputStream(body), version);
+    }
+
+    private static void write(byte[] body, boolean compress, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(VERSION);
+        data.writeByte(compress ? DEFLATED : 0);
+        data.flush();
+
+        if (compress) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater);
+                deflated.write(body);
+                deflated.finish();
+            } finally {
+                deflater.end();
+            }
+        } else {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    private static byte[] encodeBody(SessionProfile profile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        writeString(out, profile.getSessionId());
+        writeString(out, profile.getSessionName());
+        writeVarLong(out, profile.getLastRow());
+        writeString(out, profile.getSelectedPrinter());
+        writeString(out, profile.getTemplateName());
+        writeString(out, profile.getSpreadsheetId());
+        out.writeByte((profile.isDefault() ? IS_DEFAULT : 0)
+            | (profile.isPrintDuplex() ? PRINT_DUPLEX : 0)
+            | (profile.isPackMessages() ? PACK_MESSAGES : 0));
+
+        // Names of the messages saved in the profile by older sessions
+        Map<String, Integer> names = writeDictionary(out, List.of(nonNull(profile.getImportedMessages()), nonNull(profile.getPrintQueue())));
+        writeMessages(out, profile.getImportedMessages(), names);
+        writeMessages(out, profile.getPrintQueue(), names);
+
+        MessageArchive archive = profile.getMessageArchive();
+        out.writeBoolean(archive != null);
+        if (archive != null) {
+            archive.write(out);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static SessionProfile readBody(DataInputStream in, int version) throws IOException {
+        String sessionId = readString(in);
+        SessionProfile.SessionProfileBuilder profile = SessionProfile.builder()
+            .sessionName(readString(in))
+            .lastRow((int) readVarLong(in))
+            .selectedPrinter(readString(in))
+            .templateName(readString(in))
+            .spreadsheetId(readString(in));
+        int flags = in.readUnsignedByte();
+        profile.isDefault((flags & IS_DEFAULT) != 0)
+            .printDuplex((flags & PRINT_DUPLEX) != 0)
+            .packMessages((flags & PACK_MESSAGES) != 0);
+        if (sessionId != null) {
+            profile.sessionId(sessionId);
+        }
+
+        String[] dictionary = readDictionary(in);
+        List<Message> imported = readMessages(in, dictionary);
+        List<Message> queued = readMessages(in, dictionary);
+        profile.importedMessages(imported)
+            .printQueue(queued != null ? new LinkedList<>(queued) : null);
+        if (in.readBoolean()) {
+            profile.messageArchive(MessageArchive.read(in));
+        }
+
+        // Fields of later versions are read here, behind a check of the version
+        return profile.build();
+    }
+
+    /**
+     * Write a list of messages with a dictionary of its names, in the format of the messages of a profile.
+     *
+     * @param messages The messages.
+     * @param out The stream to write to, it is not flushed.
+     * @throws IOException If the stream can not be written.
+     */
+    public static void writeMessageList(Collection<Message> messages, DataOutputStream out) throws IOException {
+        writeMessages(out, messages, writeDictionary(out, List.of(messages)));
+    }
+
+    /**
+     * Read a list of messages written with {@link #writeMessageList(Collection, DataOutputStream)}.
+     *
+     * @param in The stream to read from, it is read to the end of the list.
+     * @return The messages.
+     * @throws IOException If the list is damaged.
+     */
+    public static List<Message> readMessageList(DataInputStream in) throws IOException {
+        List<Message> messages = readMessages(in, readDictionary(in));
+        return messages != null ? messages : new ArrayList<>();
+    }
+
+    /**
+     * Write the recipients and authors of messages, first come first indexed.
+     *
+     * @return The indexes of the names.
+     */
+    private static Map<String, Integer> writeDictionary(DataOutputStream out, List<Collection<Message>> lists) throws IOException {
+        Map<String, Integer> names = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        for (Collection<Message> messages : lists) {
+            for (Message message : messages) {
+                for (String name : new String[] {message.getRecipient(), message.getAuthor()}) {
+                    if (name != null && !names.containsKey(name)) {
+                        names.put(name, dictionary.size());
+                        dictionary.add(name);
+                    }
+                }
+            }
+        }
+        writeVarLong(out, dictionary.size());
+        for (String name : dictionary) {
+            writeString(out, name);
+        }
+        return names;
+    }
+
+    private static String[] readDictionary(DataInputStream in) throws IOException {
+        long size = readVarLong(in);
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Invalid dictionary size: " + size);
+        }
+        String[] dictionary = new String[(int) size];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = readString(in);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Messages are written as a count, 0 for a null list, and the messages.
+     */
+    private static void writeMessages(DataOutputStream out, Collection<Message> messages, Map<String, Integer> names) throws IOException {
+        if (messages == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, messages.size() + 1L);
+
+        long previous = 0;
+        for (Message message : messages) {
+            Date timeStamp = message.getTimeStamp();
+            int weekDay = message.getWeekDay() != null ? message.getWeekDay().ordinal() : NO_WEEKDAY;
+            out.writeByte((timeStamp != null ? HAS_TIME : 0)
+                | weekDay << WEEKDAY_SHIFT
+                | message.getStatus().ordinal() << STATUS_SHIFT);
+            writeString(out, message.getId());
+            if (timeStamp != null) {
+                long time = timeStamp.getTime();
+                long delta = time - previous;
+                writeVarLong(out, delta << 1 ^ delta >> 63); // Zigzag, the messages are mostly in order
+                previous = time;
+            }
+            writeString(out, message.getSubject());
+            writeString(out, message.getBody());
+            writeVarLong(out, message.getRecipient() != null ? names.get(message.getRecipient()) + 1L : 0);
+            writeVarLong(out, message.getAuthor() != null ? names.get(message.getAuthor()) + 1L : 0);
+        }
+    }
+
+    private static List<Message> readMessages(DataInputStream in, String[] dictionary) throws IOException {
+        long count = readVarLong(in);
+        if (count == 0) {
+            return null;
+        }
+
+        List<Message> messages = new ArrayList<>((int) Math.min(count - 1, 1 << 16));
+        long previous = 0;
+        MessageStatus[] statuses = MessageStatus.values();
+        for (long i = 1; i < count; i++) {
+            int header = in.readUnsignedByte();
+            int status = header >> STATUS_SHIFT;
+            if (status >= statuses.length) {
+                throw new IOException("Invalid message status: " + status);
+            }
+            String id = readString(in);
+            Date timeStamp = null;
+            if ((header & HAS_TIME) != 0) {
+                long zigzag = readVarLong(in);
+                previous += zigzag >>> 1 ^ -(zigzag & 1);
+                timeStamp = new Date(previous);
+            }
+            int weekDay = header >> WEEKDAY_SHIFT & 0x07;
+            messages.add(new Message(
+                id,
+                timeStamp,
+                weekDay != NO_WEEKDAY ? DayOfWeek.values()[weekDay] : null,
+                readString(in),
+                readString(in),
+                name(dictionary, readVarLong(in)),
+                name(dictionary, readVarLong(in)),
+                statuses[status]
+            ));
+        }
+        return messages;
+    }
+
+    private static String name(String[] dictionary, long index) throws IOException {
+        if (index > dictionary.length) {
+            throw new IOException("Invalid name index: " + index);
+        }
+        return index > 0 ? dictionary[(int) index - 1] : null;
+    }
+
+    private static <T> Collection<T> nonNull(Collection<T> collection) {
+        return collection != null ? collection : List.of();
+    }
+
+    /**
+     * Strings are written as the length of their UTF-8 bytes plus one and the bytes, 0 for null.
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length == 0) {
+            return null;
+        }
+        if (length - 1 > Integer.MAX_VALUE) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[(int) (length - 1)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Unsigned varint, seven bits to a byte with the high bit set on every byte but the last.
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint is too long");
+    }
+}
@@ -0,0 +1,80 @@
+package tel.kontra.leiriposti.model;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.function.Function;
+
+/**
+ * TemplateField is a message field that can be used in the text of a letter template.
+ * In the template the field is written as ${name}, for example ${subject}.
+ *
+ * @see LetterTemplate
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public enum TemplateField {
+    SUBJECT("subject", Message::getSubject),
+    AUTHOR("author", Message::getAuthor),
+    RECIPIENT("recipient", Message::getRecipient),
+    BODY("body", Message::getBody),
+    DATE("date", TemplateField::formatDate);
+
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("d.M.yyyy"); // Finnish date format
+
+    private final String name; // Name of the field in the template
+    private final Function<Message, String> getter; // Gets the value of the field from a message
+
+    private TemplateField(String name, Function<Message, String> getter) {
+        this.name = name;
+        this.getter = getter;
+    }
+
+    /**
+     * Get the value of the field from a message.
+     *
+     * @param message The message to get the value from.
+     * @return The value of the field, empty if the message has no value.
+     */
+    public String getValue(Message message) {
+        String value = getter.apply(message);
+        return value != null ? value : "";
+    }
+
+    /**
+     * Get the name of the field as written in templates.
+     *
+     * @return The name of the field.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Format the time stamp of a message as a date.
+     *
+     * @param message The message.
+     * @return The date the message was sent, null if it has no time stamp.
+     */
+    private static String formatDate(Message message) {
+        ZonedDateTime sentTime = message.getSentTime();
+        return sentTime != null ? DATE_FORMAT.format(sentTime) : null;
+    }
+
+    /**
+     * Get the field with the given name.
+     *
+     * @param name The name of the field as written in templates.
+     * @return The field, or null if there is no field with the name.
+     */
+    public static TemplateField fromName(String name) {
+        for (TemplateField field : values()) {
+            if (field.name.equals(name)) {
+                return field;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,89 @@
+package tel.kontra.leiriposti.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TemplateText is a compiled text of a letter template.
+ *
+ * The text is parsed once into literal parts and {@link TemplateField}s,
+ * binding it to a message only concatenates the parts.
+ * For example "Terveisin, ${author}" is compiled into the literal "Terveisin, " and the author field.
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class TemplateText {
+
+    private final Object[] parts; // String literals and TemplateFields in order
+    private final String literal; // The whole text when it has no fields, otherwise null
+
+    private TemplateText(List<Object> parts) {
+        this.parts = parts.toArray();
+        this.literal = parts.size() == 1 && parts.get(0) instanceof String text ? text
+            : parts.isEmpty() ? "" : null;
+    }
+
+    /**
+     * Compile a template text.
+     *
+     * @param text The text with fields written as ${name}.
+     * @return The compiled text.
+     * @throws IllegalArgumentException if the text refers to an unknown field or a field is not closed.
+     */
+    public static TemplateText compile(String text) {
+        List<Object> parts = new ArrayList<>();
+        int start = 0;
+
+        while (start < text.length()) {
+            int open = text.indexOf("${", start);
+            if (open < 0) {
+                parts.add(text.substring(start)); // Rest of the text is literal
+                break;
+            }
+
+            int close = text.indexOf('}', open);
+            if (close < 0) {
+                throw new IllegalArgumentException("Field is not closed in template text: " + text);
+            }
+
+            String name = text.substring(open + 2, close).trim();
+            TemplateField field = TemplateField.fromName(name);
+            if (field == null) {
+                throw new IllegalArgumentException("Unknown field ${" + name + "} in template text: " + text);
+            }
+
+            if (open > start) {
+                parts.add(text.substring(start, open));
+            }
+            parts.add(field);
+            start = close + 1;
+        }
+
+        return new TemplateText(parts);
+    }
+
+    /**
+     * Bind the text to a message.
+     *
+     * @param message The message to take the field values from.
+     * @return The text with the fields replaced by the values of the message.
+     */
+    public String bind(Message message) {
+        if (literal != null) {
+            return literal; // Nothing to bind
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (Object part : parts) {
+            if (part instanceof TemplateField field) {
+                builder.append(field.getValue(message));
+            } else {
+                builder.append((String) part);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,187 @@
+package tel.kontra.leiriposti.service;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * AutosaveService saves the parts of the application state that have changed on a background thread.
+ *
+ * Parts are registered with a check for unsaved changes and a way to save them. The service goes
+ * through the parts every {@value #INTERVAL_MILLIS} milliseconds, or as soon as
+ * {@value #CHANGE_THRESHOLD} changes have been reported with {@link #changed()}, and saves the
+ * parts that have changed, in the order they were registered. A crash loses at most the changes
+ * of one interval.
+ *
+ * Reporting a change only counts it, the thread that changed something never waits for the disk.
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class AutosaveService {
+
+    private static final Logger LOGGER = LogManager.getLogger(); // Logger for debugging
+
+    public static final long INTERVAL_MILLIS = 2000; // Longest time a change waits to be saved
+    public static final int CHANGE_THRESHOLD = 64; // Changes that trigger a save before the interval
+
+    private static AutosaveService instance; // Singleton instance
+
+    private final List<Part> parts = new CopyOnWriteArrayList<>(); // Parts in the order they are saved
+    private final Object lock = new Object(); // Guards changes and running, the thread waits on it
+    private int changes; // Changes reported since the last save
+    private boolean running; // Flag to keep the thread going
+    private Thread thread; // Thread saving the parts, null when stopped
+
+    /**
+     * Saves a part of the state.
+     */
+    @FunctionalInterface
+    public interface Saver {
+        void save() throws IOException;
+    }
+
+    /**
+     * A registered part of the state.
+     */
+    private static final class Part {
+
+        private final String name;
+        private final BooleanSupplier dirty;
+        private final Saver saver;
+
+        Part(String name, BooleanSupplier dirty, Saver saver) {
+            this.name = name;
+            this.dirty = dirty;
+            this.saver = saver;
+        }
+    }
+
+    /**
+     * Constructor for AutosaveService, the application uses the singleton, tests make their own.
+     */
+    AutosaveService() {
+    }
+
+    /**
+     * Get the singleton instance of AutosaveService.
+     *
+     * @return The singleton instance of AutosaveService.
+     */
+    public static synchronized AutosaveService getInstance() {
+        if (instance == null) {
+            instance = new AutosaveService(); // Create new instance if not already created
+        }
+        return instance;
+    }
+
+    /**
+     * Register a part of the state to be saved.
+     * Parts are saved in the order they are registered, register the parts others depend on first.
+     *
+     * @param name Name of the part for the log.
+     * @param dirty Tells if the part has unsaved changes, called on the autosave thread.
+     * @param saver Saves the part, called on the autosave thread.
+     */
+    public void register(String name, BooleanSupplier dirty, Saver saver) {
+        parts.add(new Part(name, dirty, saver));
+    }
+
+    /**
+     * Report a change, the changes are saved within the interval or sooner when enough of them pile up.
+     * Never blocks on the disk, safe to call from the JavaFX Application Thread.
+     */
+    public void changed() {
+        synchronized (lock) {
+            if (++changes >= CHANGE_THRESHOLD) {
+                lock.notifyAll(); // Save now
+            }
+        }
+    }
+
+    /**
+     * Start saving in the background.
+     */
+    public void start() {
+        synchronized (lock) {
+            if (thread != null) {
+                LOGGER.warn("Autosave is already running.");
+                return;
+            }
+            running = true;
+            thread = new Thread(this::run, "AutosaveThread");
+            thread.setDaemon(true); // Does not keep the application open, stop() saves the last changes
+            thread.start();
+        }
+        LOGGER.info("Autosave started, saving every " + INTERVAL_MILLIS + " ms.");
+    }
+
+    /**
+     * Stop saving in the background and save the last changes.
+     * Waits for the autosave thread, call this when the application is closing.
+     */
+    public void stop() {
+        Thread stopping;
+        synchronized (lock) {
+            running = false;
+            stopping = thread;
+            thread = null;
+            lock.notifyAll();
+        }
+
+        if (stopping != null) {
+            try {
+                stopping.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.warn("Interrupted while waiting for the last autosave.");
+            }
+        }
+        LOGGER.info("Autosave stopped.");
+    }
+
+    /**
+     * Save every part that has changed.
+     * Called on the autosave thread, and can be called on any thread to save at once.
+     */
+    public synchronized void saveChanges() {
+        synchronized (lock) {
+            changes = 0;
+        }
+
+        for (Part part : parts) {
+            try {
+                if (part.dirty.getAsBoolean()) {
+                    part.saver.save();
+                    LOGGER.debug("Autosaved " + part.name);
+                }
+            } catch (Exception e) {
+                LOGGER.error("Error autosaving " + part.name + ": " + e.getMessage(), e); // Tried again on the next round
+            }
+        }
+    }
+
+    private void run() {
+        boolean keepRunning = true;
+        while (keepRunning) {
+            synchronized (lock) {
+                if (running && changes < CHANGE_THRESHOLD) {
+                    try {
+                        lock.wait(INTERVAL_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        running = false;
+                    }
+                }
+                keepRunning = running;
+            }
+            saveChanges(); // One more round after stopping, so the last changes are saved
+        }
+    }
+}
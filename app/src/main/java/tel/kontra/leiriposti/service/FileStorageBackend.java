@@ -0,0 +1,222 @@
+package tel.kontra.leiriposti.service;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tel.kontra.leiriposti.model.MessageJournal;
+import tel.kontra.leiriposti.model.MessageStorage;
+import tel.kontra.leiriposti.model.SessionProfile;
+import tel.kontra.leiriposti.model.SessionProfileCatalog;
+import tel.kontra.leiriposti.model.SessionProfileCodec;
+
+/**
+ * FileStorageBackend keeps every session profile in a file of its own and the messages of a session
+ * in a {@link MessageJournal}, all in one directory.
+ *
+ * The profiles are listed from a {@link SessionProfileCatalog}, so only the profile that is opened is read.
+ * The profile files are written with {@link SessionProfileCodec}, the extension .ser is kept for the
+ * files saved with Java serialization, which are read too.
+ *
+ * The catalog entry of a session counts the messages in the last snapshot of its journal, the journal
+ * tells the counts when it is compacted. Sessions saved before the journal count the messages in the profile.
+ *
+ * A profile file that can not be read is renamed to name.ser.damaged and left out of the catalog, so a new
+ * profile saved under its name never writes over it and the file is kept for recovering it by hand.
+ *
+ * @version 1.2
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class FileStorageBackend implements StorageBackend {
+
+    private static final Logger LOGGER = LogManager.getLogger(); // Logger for debugging
+
+    private final File directory; // Directory of the profiles and the messages
+    private final SessionProfileCatalog catalog; // Saved session profiles
+    private boolean loaded; // Flag to read the catalog once
+    private final Map<String, int[]> snapshotCounts = new HashMap<>(); // Active and archived messages by file name, of the snapshots written
+
+    /**
+     * Constructor for FileStorageBackend.
+     * Nothing is read until the backend is used.
+     *
+     * @param directory Directory of the profiles and the messages.
+     */
+    public FileStorageBackend(File directory) {
+        this.directory = directory;
+        this.catalog = new SessionProfileCatalog(directory);
+    }
+
+    /**
+     * List the saved session profiles.
+     * The catalog is brought up to date with the profile files the first time, profiles saved
+     * without it are read once for their entries.
+     */
+    @Override
+    public synchronized List<SessionProfileCatalog.Entry> listProfiles() {
+        if (!loaded) {
+            catalog.load();
+            int read = catalog.refresh(this::readEntry);
+            if (read > 0) {
+                LOGGER.info("Read " + read + " session profiles missing from the catalog.");
+                saveCatalog();
+            }
+            loaded = true;
+        }
+        return catalog.getEntries();
+    }
+
+    /**
+     * Read a saved session profile.
+     * A profile file that can not be read is set aside and its entry is dropped from the catalog.
+     */
+    @Override
+    public SessionProfile readProfile(SessionProfileCatalog.Entry entry) {
+        SessionProfile profile = readProfile(catalog.getFile(entry));
+        if (profile == null) {
+            synchronized (this) {
+                catalog.remove(entry.getFileName());
+                saveCatalog();
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Save a session profile to its file and update its catalog entry.
+     */
+    @Override
+    public boolean saveProfile(SessionProfile profile) {
+        if (!profile.save()) {
+            return false;
+        }
+        synchronized (this) {
+            catalog.put(entryOf(profile, new File(directory, profile.getFileName() + ".ser")));
+            saveCatalog();
+        }
+        return true;
+    }
+
+    @Override
+    public MessageStorage openMessages(SessionProfile profile) {
+        String fileName = profile.getFileName();
+        return new MessageJournal(directory, fileName,
+            (activeCount, archivedCount) -> snapshotWritten(fileName, activeCount, archivedCount));
+    }
+
+    @Override
+    public void close() {
+        saveCatalog();
+    }
+
+    /**
+     * Read a session profile from a file.
+     * A file that can not be read is renamed to name.ser.damaged, so it is never written over.
+     *
+     * @param file The profile file.
+     * @return The session profile, or null if it could not be read.
+     */
+    static SessionProfile readProfile(File file) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return SessionProfileCodec.read(in);
+        } catch (FileNotFoundException e) {
+            LOGGER.error("Session profile file is missing: " + file.getName(), e);
+            return null;
+        } catch (Exception e) {
+            LOGGER.error("Session profile file can not be read: " + file.getName(), e);
+            setAside(file);
+            return null;
+        }
+    }
+
+    /**
+     * Rename a profile file that can not be read to name.ser.damaged, numbered if the name is taken.
+     */
+    private static void setAside(File file) {
+        File damaged = new File(file.getParentFile(), file.getName() + ".damaged");
+        for (int i = 1; damaged.exists(); i++) {
+            damaged = new File(file.getParentFile(), file.getName() + ".damaged." + i);
+        }
+        try {
+            Files.move(file.toPath(), damaged.toPath());
+            LOGGER.warn("Moved the session profile file " + file.getName() + " that can not be read to " + damaged.getName());
+        } catch (IOException e) {
+            LOGGER.error("Error moving aside the session profile file " + file.getName() + ", it is left out of the catalog", e);
+        }
+    }
+
+    /**
+     * Keep the counts of the messages in a snapshot of a journal in the catalog entry of the session.
+     */
+    private synchronized void snapshotWritten(String fileName, int activeCount, int archivedCount) {
+        snapshotCounts.put(fileName, new int[] { activeCount, archivedCount });
+        SessionProfileCatalog.Entry entry = catalog.get(fileName);
+        if (entry != null) {
+            catalog.put(entry.withCounts(activeCount, archivedCount));
+            saveCatalog();
+        } // A session that has not been saved yet gets the counts when it is
+    }
+
+    /**
+     * Read a session profile from a file for its catalog entry.
+     */
+    private SessionProfileCatalog.Entry readEntry(File file) {
+        SessionProfile profile = readProfile(file);
+        return profile != null ? entryOf(profile, file) : null;
+    }
+
+    /**
+     * Make the catalog entry of a saved session profile.
+     * The messages are counted in the profile if it has them, otherwise the counts of the last snapshot are kept.
+     */
+    private SessionProfileCatalog.Entry entryOf(SessionProfile profile, File file) {
+        String fileName = file.getName().substring(0, file.getName().length() - ".ser".length());
+        int activeCount = profile.getImportedMessages() != null ? profile.getImportedMessages().size() : 0;
+        int archivedCount = profile.getMessageArchive() != null ? profile.getMessageArchive().size() : 0;
+
+        if (profile.getImportedMessages() == null && profile.getMessageArchive() == null) {
+            int[] counts = snapshotCounts.get(fileName);
+            SessionProfileCatalog.Entry previous = catalog.get(fileName);
+            if (counts != null) {
+                activeCount = counts[0];
+                archivedCount = counts[1];
+            } else if (previous != null) {
+                activeCount = previous.getActiveCount();
+                archivedCount = previous.getArchivedCount();
+            }
+        }
+        return new SessionProfileCatalog.Entry(profile.getSessionId(), profile.getSessionName(), fileName,
+            profile.isDefault(), profile.getLastRow(), activeCount, archivedCount, file.length(), file.lastModified());
+    }
+
+    /**
+     * Count the messages saved in a profile itself, by sessions saved before the message journal.
+     */
+    static int messageCount(SessionProfile profile) {
+        return (profile.getImportedMessages() != null ? profile.getImportedMessages().size() : 0)
+            + (profile.getMessageArchive() != null ? profile.getMessageArchive().size() : 0);
+    }
+
+    /**
+     * Save the catalog, a catalog that could not be saved is made again at the next startup.
+     */
+    private void saveCatalog() {
+        try {
+            catalog.save();
+        } catch (IOException e) {
+            LOGGER.error("Error saving the profile catalog: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,637 @@
+package tel.kontra.leiriposti.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tel.kontra.leiriposti.model.Message;
+import tel.kontra.leiriposti.model.MessageArchive;
+import tel.kontra.leiriposti.model.MessageJournal;
+import tel.kontra.leiriposti.model.MessageStatus;
+import tel.kontra.leiriposti.model.MessageStorage;
+import tel.kontra.leiriposti.model.SessionProfile;
+import tel.kontra.leiriposti.model.SessionProfileCatalog;
+import tel.kontra.leiriposti.model.SessionProfileCodec;
+
+/**
+ * H2StorageBackend keeps the session profiles and the messages of every session in an embedded
+ * H2 database, the file {@value #DATABASE_NAME}.mv.db in the directory of the sessions.
+ *
+ * Messages are rows of one table with indexes on the session and status, on the session and send time,
+ * and on the recipient and send time, so counting the messages of a session and finding the letters of
+ * a camper over several seasons are answered by the database, see {@link #findMessages(String, Instant, Instant)}.
+ * The profiles are rows too, listing them reads the small columns and leaves the encoded profile out.
+ *
+ * Opening a session reads only its active messages as objects. The printed and deleted ones are read from
+ * the status index into an archive file that is mapped to memory, like the archive of a journal, so the heap
+ * holds the texts of the active messages only. The file is a copy of the rows, made again on every opening.
+ *
+ * New messages and status changes are buffered like in the journal, and every flush writes them in one
+ * transaction, so the autosave thread commits the changes of an interval together. A flushed change is
+ * in the tables, there is nothing to replay or compact.
+ *
+ * The first time the database is used, the profiles saved in files are copied into it, and the messages
+ * of a session saved in a {@link MessageJournal} are copied when the session is opened. The files are left
+ * as they were. If the messages can not be copied, the session can not be read or written until they are,
+ * so the empty session is never saved in their place.
+ *
+ * This class is thread-safe, the connection is used by one thread at a time.
+ *
+ * @version 1.1
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class H2StorageBackend implements StorageBackend {
+
+    private static final Logger LOGGER = LogManager.getLogger(); // Logger for debugging
+
+    public static final String DATABASE_NAME = "leiriposti"; // Name of the database file without the extension
+    private static final int BATCH_SIZE = 500; // Rows sent to the database at a time
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS profiles ("
+            + "file_name VARCHAR(64) PRIMARY KEY, session_id VARCHAR(64), session_name VARCHAR(255), "
+            + "is_default BOOLEAN, last_row INT, message_count INT, modified BIGINT, data BLOB)",
+        "CREATE TABLE IF NOT EXISTS sessions (session VARCHAR(64) PRIMARY KEY)", // Sessions whose messages are in the database
+        "CREATE TABLE IF NOT EXISTS messages ("
+            + "seq BIGINT AUTO_INCREMENT PRIMARY KEY, session VARCHAR(64) NOT NULL, id VARCHAR(128) NOT NULL, "
+            + "sent_at BIGINT, week_day TINYINT, subject VARCHAR, body CLOB, recipient VARCHAR, author VARCHAR, "
+            + "status VARCHAR(16) NOT NULL, UNIQUE (session, id))",
+        "CREATE INDEX IF NOT EXISTS messages_status ON messages (session, status)",
+        "CREATE INDEX IF NOT EXISTS messages_time ON messages (session, sent_at)",
+        "CREATE INDEX IF NOT EXISTS messages_recipient ON messages (recipient, sent_at)"
+    };
+
+    private static final String MESSAGE_COLUMNS = "id, sent_at, week_day, subject, body, recipient, author, status";
+    private static final String MERGE_MESSAGE = "MERGE INTO messages (session, " + MESSAGE_COLUMNS + ") "
+        + "KEY (session, id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_STATUS = "UPDATE messages SET status = ? WHERE session = ? AND id = ?";
+    private static final String INACTIVE = "('PRINTED', 'DELETED')"; // Statuses of the archived messages
+
+    private final File directory; // Directory of the database
+    private Connection connection; // Opened on the first use, guarded by this
+
+    /**
+     * A status change waiting for the next flush.
+     */
+    private static final class StatusChange {
+
+        private final String id;
+        private final MessageStatus status;
+
+        StatusChange(String id, MessageStatus status) {
+            this.id = id;
+            this.status = status;
+        }
+    }
+
+    /**
+     * Constructor for H2StorageBackend.
+     * The database is opened on the first use.
+     *
+     * @param directory Directory of the database and of the files saved before it.
+     */
+    public H2StorageBackend(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public synchronized List<SessionProfileCatalog.Entry> listProfiles() {
+        List<SessionProfileCatalog.Entry> entries = new ArrayList<>();
+        try (PreparedStatement statement = connection().prepareStatement(
+                "SELECT session_id, session_name, file_name, is_default, last_row, message_count, "
+                + "(SELECT COUNT(*) FROM messages m WHERE m.session = p.file_name AND m.status NOT IN " + INACTIVE + "), "
+                + "(SELECT COUNT(*) FROM messages m WHERE m.session = p.file_name AND m.status IN " + INACTIVE + "), "
+                + "OCTET_LENGTH(data), modified FROM profiles p ORDER BY modified")) { // Counted from the status index
+            try (ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    entries.add(new SessionProfileCatalog.Entry(rows.getString(1), rows.getString(2), rows.getString(3),
+                        rows.getBoolean(4), rows.getInt(5), rows.getInt(6) + rows.getInt(7), rows.getInt(8),
+                        rows.getLong(9), rows.getLong(10)));
+                }
+            }
+        } catch (SQLException e) {
+            LOGGER.error("Error listing session profiles: " + e.getMessage(), e);
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized SessionProfile readProfile(SessionProfileCatalog.Entry entry) {
+        try (PreparedStatement statement = connection().prepareStatement("SELECT data FROM profiles WHERE file_name = ?")) {
+            statement.setString(1, entry.getFileName());
+            try (ResultSet rows = statement.executeQuery()) {
+                if (!rows.next()) {
+                    return null;
+                }
+                try (InputStream in = rows.getBinaryStream(1)) {
+                    return SessionProfileCodec.read(in);
+                }
+            }
+        } catch (SQLException | IOException e) {
+            LOGGER.error("Error loading session profile: " + entry.getFileName(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public boolean saveProfile(SessionProfile profile) {
+        byte[] data;
+        synchronized (profile) { // The same lock as SessionProfile.save()
+            data = SessionProfileCodec.encode(profile);
+        }
+
+        synchronized (this) {
+            try {
+                writeProfile(connection(), profile, data);
+                connection.commit();
+                LOGGER.info("Session profile saved successfully: " + profile.getSessionId());
+                return true;
+            } catch (SQLException e) {
+                rollback();
+                LOGGER.error("Error saving session profile: " + e.getMessage(), e);
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public MessageStorage openMessages(SessionProfile profile) {
+        SessionMessages messages = new SessionMessages(profile.getFileName(), null);
+
+        // Messages saved before the database are copied into it once
+        MessageJournal journal = new MessageJournal(directory, profile.getFileName());
+        if (!messages.hasSnapshot() && journal.hasSnapshot()) {
+            try {
+                importJournal(messages, journal);
+            } catch (IOException e) {
+                LOGGER.error("Error copying the saved messages to the database: " + e.getMessage(), e);
+                return new SessionMessages(profile.getFileName(), e); // Refuses to be read or written over
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Find the letters sent to a recipient in a time range, in every session.
+     * Answered from the recipient index, the sessions are not opened.
+     */
+    @Override
+    public synchronized List<Message> findMessages(String recipient, Instant from, Instant to) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        try (PreparedStatement statement = connection().prepareStatement(
+                "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE recipient = ? AND sent_at >= ? AND sent_at < ? ORDER BY sent_at")) {
+            statement.setString(1, recipient);
+            statement.setLong(2, from.toEpochMilli());
+            statement.setLong(3, to.toEpochMilli());
+            try (ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    messages.add(readMessage(rows));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Error finding messages: " + e.getMessage(), e);
+        }
+        return messages;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.commit();
+            connection.close();
+        } catch (SQLException e) {
+            throw new IOException("Error closing the database: " + e.getMessage(), e);
+        } finally {
+            connection = null;
+        }
+    }
+
+    /**
+     * Open the database on the first use, create the tables and copy the profiles saved in files.
+     */
+    private Connection connection() throws SQLException {
+        if (connection == null) {
+            directory.mkdirs();
+            connection = DriverManager.getConnection("jdbc:h2:file:" + new File(directory, DATABASE_NAME).getAbsolutePath());
+            connection.setAutoCommit(false); // Changes are written in transactions
+            try (Statement statement = connection.createStatement()) {
+                for (String sql : SCHEMA) {
+                    statement.execute(sql);
+                }
+            }
+            connection.commit();
+            importProfiles();
+        }
+        return connection;
+    }
+
+    /**
+     * Copy the profiles saved in files into an empty database.
+     */
+    private void importProfiles() throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery("SELECT COUNT(*) FROM profiles")) {
+            rows.next();
+            if (rows.getLong(1) > 0) {
+                return;
+            }
+        }
+
+        FileStorageBackend files = new FileStorageBackend(directory);
+        int imported = 0;
+        for (SessionProfileCatalog.Entry entry : files.listProfiles()) {
+            SessionProfile profile = files.readProfile(entry);
+            if (profile == null) {
+                continue;
+            }
+            writeProfile(connection, profile, SessionProfileCodec.encode(profile));
+            imported++;
+        }
+        connection.commit();
+        if (imported > 0) {
+            LOGGER.info("Copied " + imported + " session profiles to the database.");
+        }
+    }
+
+    private void writeProfile(Connection connection, SessionProfile profile, byte[] data) throws SQLException {
+        int messageCount = FileStorageBackend.messageCount(profile); // Messages in the profile itself, the others are counted when listed
+        try (PreparedStatement statement = connection.prepareStatement(
+                "MERGE INTO profiles (file_name, session_id, session_name, is_default, last_row, message_count, modified, data) "
+                + "KEY (file_name) VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+            statement.setString(1, profile.getFileName());
+            statement.setString(2, profile.getSessionId());
+            statement.setString(3, profile.getSessionName());
+            statement.setBoolean(4, profile.isDefault());
+            statement.setInt(5, profile.getLastRow());
+            statement.setInt(6, messageCount);
+            statement.setLong(7, System.currentTimeMillis());
+            statement.setBytes(8, data);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * Copy the messages of a session saved in a journal, with the status changes replayed.
+     * The journal is only read, its files stay as they were.
+     */
+    private void importJournal(SessionMessages messages, MessageJournal journal) throws IOException {
+        MessageStorage.Snapshot snapshot = journal.readSnapshot();
+        Map<String, Message> byId = new LinkedHashMap<>();
+        for (Message message : snapshot.getMessages()) {
+            byId.put(message.getId(), message);
+        }
+        MessageArchive archive = snapshot.getArchive();
+        for (int row = 0; row < archive.size(); row++) {
+            Message message = archive.get(row);
+            byId.put(message.getId(), message);
+        }
+
+        Map<String, MessageStatus> statuses = new HashMap<>(); // Set in the rows, setting them on the messages would post events
+        journal.replay(message -> byId.putIfAbsent(message.getId(), message), statuses::put);
+
+        synchronized (this) {
+            try {
+                writeMessages(messages.session, byId.values(), statuses);
+                connection.commit();
+            } catch (SQLException e) {
+                rollback();
+                throw new IOException("Error copying messages: " + e.getMessage(), e);
+            }
+        }
+        LOGGER.info("Copied " + byId.size() + " messages of " + messages.session + " to the database.");
+    }
+
+    /**
+     * Write messages of a session and mark the session as saved in the database, in the current transaction.
+     *
+     * @param statuses Statuses to write instead of the status of the message, by identity.
+     */
+    private void writeMessages(String session, Iterable<Message> messages, Map<String, MessageStatus> statuses) throws SQLException {
+        try (PreparedStatement statement = connection().prepareStatement(MERGE_MESSAGE)) {
+            int batched = 0;
+            for (Message message : messages) {
+                bindMessage(statement, session, message, statuses.getOrDefault(message.getId(), message.getStatus()));
+                statement.addBatch();
+                if (++batched % BATCH_SIZE == 0) {
+                    statement.executeBatch();
+                }
+            }
+            statement.executeBatch();
+        }
+
+        try (PreparedStatement statement = connection.prepareStatement("MERGE INTO sessions (session) KEY (session) VALUES (?)")) {
+            statement.setString(1, session);
+            statement.executeUpdate();
+        }
+    }
+
+    private static void bindMessage(PreparedStatement statement, String session, Message message, MessageStatus status) throws SQLException {
+        statement.setString(1, session);
+        statement.setString(2, message.getId());
+        if (message.getTimeStamp() != null) {
+            statement.setLong(3, message.getTimeStamp().getTime());
+        } else {
+            statement.setNull(3, Types.BIGINT);
+        }
+        if (message.getWeekDay() != null) {
+            statement.setInt(4, message.getWeekDay().ordinal());
+        } else {
+            statement.setNull(4, Types.TINYINT);
+        }
+        statement.setString(5, message.getSubject());
+        statement.setString(6, message.getBody());
+        statement.setString(7, message.getRecipient());
+        statement.setString(8, message.getAuthor());
+        statement.setString(9, status.name());
+    }
+
+    private static Message readMessage(ResultSet rows) throws SQLException {
+        long time = rows.getLong(2);
+        boolean noTime = rows.wasNull();
+        int weekDay = rows.getInt(3);
+        boolean noWeekDay = rows.wasNull();
+        return new Message(
+            rows.getString(1),
+            noTime ? null : new Date(time),
+            noWeekDay ? null : DayOfWeek.values()[weekDay],
+            rows.getString(4),
+            rows.getString(5),
+            rows.getString(6),
+            rows.getString(7),
+            MessageStatus.valueOf(rows.getString(8))
+        );
+    }
+
+    private void rollback() {
+        try {
+            if (connection != null) {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            LOGGER.error("Error rolling back: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The messages of one session in the database.
+     */
+    private final class SessionMessages implements MessageStorage {
+
+        private final String session; // Name of the session, the file name of its profile
+        private final IOException importError; // Why the messages saved in files could not be copied, null if they were
+        private volatile boolean open; // Flag to accept changes, set when opened
+        private final Object pendingLock = new Object(); // Guards the pending changes, never held while writing
+        private List<Message> pendingMessages = new ArrayList<>(); // New messages not written yet
+        private List<StatusChange> pendingStatuses = new ArrayList<>(); // Status changes not written yet, in order
+
+        SessionMessages(String session, IOException importError) {
+            this.session = session;
+            this.importError = importError;
+        }
+
+        /**
+         * Check if the messages are in the database, messages that could not be copied count as saved.
+         */
+        @Override
+        public boolean hasSnapshot() {
+            if (importError != null) {
+                return true; // Read to fail, so the session is not started without them
+            }
+            synchronized (H2StorageBackend.this) {
+                try (PreparedStatement statement = connection().prepareStatement("SELECT 1 FROM sessions WHERE session = ?")) {
+                    statement.setString(1, session);
+                    try (ResultSet rows = statement.executeQuery()) {
+                        return rows.next();
+                    }
+                } catch (SQLException e) {
+                    LOGGER.error("Error reading the sessions: " + e.getMessage(), e);
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Read the active messages of the session, and the printed and deleted ones into a mapped archive.
+         */
+        @Override
+        public Snapshot readSnapshot() throws IOException {
+            checkImported();
+            List<Message> messages = new ArrayList<>();
+            MessageArchive archive = new MessageArchive();
+
+            synchronized (H2StorageBackend.this) {
+                try {
+                    readMessages("NOT IN", messages::add);
+                    readMessages("IN", archive::add);
+                } catch (SQLException e) {
+                    throw new IOException("Error reading messages: " + e.getMessage(), e);
+                }
+            }
+            return new Snapshot(messages, mapArchive(archive));
+        }
+
+        /**
+         * Read the messages of the session that are in or not in the archived statuses, from the status index.
+         */
+        private void readMessages(String in, Consumer<Message> messages) throws SQLException {
+            try (PreparedStatement statement = connection().prepareStatement(
+                    "SELECT " + MESSAGE_COLUMNS + " FROM messages WHERE session = ? AND status " + in + " " + INACTIVE + " ORDER BY seq")) {
+                statement.setString(1, session);
+                statement.setFetchSize(BATCH_SIZE);
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        messages.accept(readMessage(rows));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Write the archived messages to a file and map it, the archive built in memory is dropped.
+         * Files of earlier openings are deleted, a file still mapped is deleted on a later opening.
+         */
+        private MessageArchive mapArchive(MessageArchive archive) throws IOException {
+            File[] earlier = directory.listFiles((dir, name) -> name.startsWith(session + ".db.") && name.endsWith(".archive"));
+            if (earlier != null) {
+                for (File file : earlier) {
+                    file.delete();
+                }
+            }
+            if (archive.size() == 0) {
+                return archive;
+            }
+
+            File file = File.createTempFile(session + ".db.", ".archive", directory);
+            file.deleteOnExit(); // A copy of the rows, never read again
+            archive.write(file);
+            return MessageArchive.map(file);
+        }
+
+        private void checkImported() throws IOException {
+            if (importError != null) {
+                throw new IOException("Messages of " + session + " saved in files could not be copied to the database: "
+                    + importError.getMessage(), importError);
+            }
+        }
+
+        /**
+         * Open the session for changes, flushed changes are already in the messages read.
+         */
+        @Override
+        public int open(Consumer<Message> messages, BiConsumer<String, MessageStatus> statuses) {
+            open = true;
+            return 0;
+        }
+
+        @Override
+        public void appendMessage(Message message) throws IOException {
+            if (!open) {
+                throw new IOException("Messages of " + session + " are not open");
+            }
+            synchronized (pendingLock) {
+                pendingMessages.add(message);
+            }
+        }
+
+        @Override
+        public void appendStatus(Message message, MessageStatus status) throws IOException {
+            if (!open) {
+                throw new IOException("Messages of " + session + " are not open");
+            }
+            synchronized (pendingLock) {
+                pendingStatuses.add(new StatusChange(message.getId(), status));
+            }
+        }
+
+        @Override
+        public boolean hasPending() {
+            synchronized (pendingLock) {
+                return !pendingMessages.isEmpty() || !pendingStatuses.isEmpty();
+            }
+        }
+
+        /**
+         * Write the new messages and the status changes in one transaction.
+         */
+        @Override
+        public void flush() throws IOException {
+            List<Message> messages;
+            List<StatusChange> statuses;
+            synchronized (pendingLock) {
+                if (pendingMessages.isEmpty() && pendingStatuses.isEmpty()) {
+                    return;
+                }
+                messages = pendingMessages;
+                statuses = pendingStatuses;
+                pendingMessages = new ArrayList<>();
+                pendingStatuses = new ArrayList<>();
+            }
+
+            synchronized (H2StorageBackend.this) {
+                try {
+                    try (PreparedStatement statement = connection().prepareStatement(MERGE_MESSAGE)) {
+                        for (Message message : messages) {
+                            bindMessage(statement, session, message, message.getStatus());
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                    try (PreparedStatement statement = connection.prepareStatement(UPDATE_STATUS)) {
+                        for (StatusChange change : statuses) {
+                            statement.setString(1, change.status.name());
+                            statement.setString(2, session);
+                            statement.setString(3, change.id);
+                            statement.addBatch();
+                        }
+                        statement.executeBatch();
+                    }
+                    connection.commit();
+                } catch (SQLException e) {
+                    rollback();
+
+                    // Keep the changes for the next flush, before the ones appended meanwhile
+                    synchronized (pendingLock) {
+                        messages.addAll(pendingMessages);
+                        statuses.addAll(pendingStatuses);
+                        pendingMessages = messages;
+                        pendingStatuses = statuses;
+                    }
+                    throw new IOException("Error writing messages: " + e.getMessage(), e);
+                }
+            }
+        }
+
+        /**
+         * Flushed changes are in the tables, there is nothing to compact.
+         */
+        @Override
+        public boolean isCompactionDue() {
+            return false;
+        }
+
+        /**
+         * Flush the changes, and write all the messages if the session is not in the database yet.
+         */
+        @Override
+        public void compact(Supplier<Snapshot> messages) throws IOException {
+            checkImported();
+            flush();
+            if (hasSnapshot()) {
+                return;
+            }
+
+            Snapshot snapshot = messages.get();
+            List<Message> all = new ArrayList<>(snapshot.getMessages());
+            MessageArchive archive = snapshot.getArchive();
+            for (int row = 0; row < archive.size(); row++) {
+                all.add(archive.get(row));
+            }
+
+            synchronized (H2StorageBackend.this) {
+                try {
+                    writeMessages(session, all, Map.of());
+                    connection.commit();
+                } catch (SQLException e) {
+                    rollback();
+                    throw new IOException("Error writing messages: " + e.getMessage(), e);
+                }
+            }
+            LOGGER.info("Saved " + all.size() + " messages of " + session + " to the database.");
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                open = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package tel.kontra.leiriposti.service;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+
+import tel.kontra.leiriposti.model.Message;
+import tel.kontra.leiriposti.model.MessageStorage;
+import tel.kontra.leiriposti.model.SessionProfile;
+import tel.kontra.leiriposti.model.SessionProfileCatalog;
+
+/**
+ * StorageBackend saves the session profiles and the messages of the sessions.
+ *
+ * The profiles are listed without reading them, a profile is read when it is opened.
+ * The messages of a session are saved through the {@link MessageStorage} of the session.
+ * A backend with indexes over every session answers queries itself, see {@link #findMessages(String, Instant, Instant)}.
+ *
+ * The backend is picked with the storage.backend property: "file" keeps the profiles and the messages
+ * in files of their own, "h2" keeps them in an embedded database.
+ *
+ * @see FileStorageBackend
+ * @see H2StorageBackend
+ *
+ * @version 1.1
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public interface StorageBackend extends Closeable {
+
+    /**
+     * Open the backend named by a property value.
+     *
+     * @param name The name of the backend, "file" or "h2". Null or unknown names give the file backend.
+     * @param directory The directory of the saved sessions.
+     * @return The backend.
+     */
+    static StorageBackend open(String name, File directory) {
+        if ("h2".equalsIgnoreCase(name)) {
+            return new H2StorageBackend(directory);
+        }
+        return new FileStorageBackend(directory);
+    }
+
+    /**
+     * List the saved session profiles without reading them.
+     *
+     * @return The catalog entries of the profiles.
+     */
+    List<SessionProfileCatalog.Entry> listProfiles();
+
+    /**
+     * Read a saved session profile.
+     * A profile that can not be read is either set aside and no longer listed, or kept listed,
+     * a listed profile is never written over by a new profile of the same name.
+     *
+     * @param entry The catalog entry of the profile.
+     * @return The profile, or null if it could not be read.
+     */
+    SessionProfile readProfile(SessionProfileCatalog.Entry entry);
+
+    /**
+     * Save a session profile.
+     *
+     * @param profile The profile.
+     * @return True if the profile was saved.
+     */
+    boolean saveProfile(SessionProfile profile);
+
+    /**
+     * Get the storage of the messages of a session.
+     * Nothing is read until the storage is used.
+     *
+     * @param profile The profile of the session.
+     * @return The storage of the messages.
+     */
+    MessageStorage openMessages(SessionProfile profile);
+
+    /**
+     * Find the letters sent to a recipient in a time range, in every saved session.
+     * Only flushed changes are found. Backends without an index for it can not answer.
+     *
+     * @param recipient The recipient as written in the form.
+     * @param from Start of the range, inclusive.
+     * @param to End of the range, exclusive.
+     * @return The messages from the oldest to the newest, or null if the backend can not answer.
+     * @throws IOException If the messages can not be read.
+     */
+    default List<Message> findMessages(String recipient, Instant from, Instant to) throws IOException {
+        return null;
+    }
+
+    /**
+     * Close the backend, after the message storages have been closed.
+     */
+    @Override
+    void close() throws IOException;
+}
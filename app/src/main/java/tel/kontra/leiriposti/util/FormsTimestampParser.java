@@ -0,0 +1,159 @@
+package tel.kontra.leiriposti.util;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+
+/**
+ * FormsTimestampParser parses the timestamps Google Forms writes to the response sheet
+ * with Finnish locale, for example {@code 12.7.2025 klo 14.03.22}.
+ *
+ * The timestamp is scanned by hand straight into the date and time fields, without splitting
+ * or replacing strings and without SimpleDateFormat or Calendar. Timestamps are in Finnish time.
+ * Day, month, hour, minute and second may have one or two digits, the time parts may also be
+ * separated with colons.
+ *
+ * This class is thread-safe.
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public final class FormsTimestampParser {
+
+    public static final ZoneId ZONE = ZoneId.of("Europe/Helsinki"); // Time zone of the form responses
+
+    private static final String KLO = "klo"; // Finnish for "at", between the date and the time
+
+    private FormsTimestampParser() {
+    }
+
+    /**
+     * Parse a Forms timestamp.
+     *
+     * @param text The timestamp, for example 12.7.2025 klo 14.03.22.
+     * @return The time in Finnish time.
+     * @throws IllegalArgumentException if the text is not a valid timestamp.
+     */
+    public static ZonedDateTime parse(CharSequence text) {
+        if (text == null) {
+            throw new IllegalArgumentException("Invalid timeStamp format: null");
+        }
+
+        Scanner scanner = new Scanner(text);
+        try {
+            scanner.skipSpaces();
+            int day = scanner.number(1, 2);
+            scanner.expect('.');
+            int month = scanner.number(1, 2);
+            scanner.expect('.');
+            int year = scanner.number(4, 4);
+
+            scanner.expectSpace();
+            scanner.expectWord(KLO);
+            scanner.expectSpace();
+
+            int hour = scanner.number(1, 2);
+            scanner.expectTimeSeparator();
+            int minute = scanner.number(1, 2);
+            scanner.expectTimeSeparator();
+            int second = scanner.number(1, 2);
+
+            scanner.skipSpaces();
+            scanner.expectEnd();
+
+            return ZonedDateTime.of(LocalDateTime.of(year, month, day, hour, minute, second), ZONE);
+
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException("Invalid date in timeStamp: " + text, e); // For example 31.2.2025
+        }
+    }
+
+    /**
+     * Scans the timestamp one character at a time.
+     */
+    private static final class Scanner {
+
+        private final CharSequence text;
+        private int pos; // Index of the next character
+
+        Scanner(CharSequence text) {
+            this.text = text;
+        }
+
+        /**
+         * Read an unsigned number.
+         *
+         * @param minDigits Minimum number of digits.
+         * @param maxDigits Maximum number of digits.
+         * @return The number.
+         */
+        int number(int minDigits, int maxDigits) {
+            int value = 0;
+            int digits = 0;
+            while (pos < text.length() && digits < maxDigits) {
+                char c = text.charAt(pos);
+                if (c < '0' || c > '9') {
+                    break;
+                }
+                value = value * 10 + (c - '0');
+                digits++;
+                pos++;
+            }
+
+            if (digits < minDigits) {
+                throw error("number");
+            }
+            return value;
+        }
+
+        void expect(char expected) {
+            if (pos >= text.length() || text.charAt(pos) != expected) {
+                throw error("'" + expected + "'");
+            }
+            pos++;
+        }
+
+        void expectTimeSeparator() {
+            if (pos >= text.length() || (text.charAt(pos) != '.' && text.charAt(pos) != ':')) {
+                throw error("'.'");
+            }
+            pos++;
+        }
+
+        void expectWord(String word) {
+            for (int i = 0; i < word.length(); i++) {
+                if (pos >= text.length() || Character.toLowerCase(text.charAt(pos)) != word.charAt(i)) {
+                    throw error("'" + word + "'");
+                }
+                pos++;
+            }
+        }
+
+        void expectSpace() {
+            if (pos >= text.length() || !Character.isWhitespace(text.charAt(pos))) {
+                throw error("space");
+            }
+            skipSpaces();
+        }
+
+        void skipSpaces() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        void expectEnd() {
+            if (pos != text.length()) {
+                throw error("end of timestamp");
+            }
+        }
+
+        private IllegalArgumentException error(String expected) {
+            return new IllegalArgumentException(
+                "Invalid timeStamp format, expected " + expected + " at index " + pos + ": " + text);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package tel.kontra.leiriposti.util;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.font.FontRenderContext;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LineBreaker wraps text into lines that fit a given width.
+ *
+ * Lines are broken after whitespace or a hyphen when possible. Words that are wider than a whole line
+ * are broken at the last character that still fits. Line breaks in the text are kept,
+ * so empty lines between paragraphs stay in the output as empty strings.
+ *
+ * Every character is measured once from a cached advance width table and the line width is kept
+ * as a running sum, so breaking a paragraph is linear in its length. The advances are fractional,
+ * measured with the {@link FontRenderContext} of the metrics, so with fractional metrics a long line
+ * is as wide as it is drawn and not off by the rounding of every character. Measuring every candidate
+ * substring with {@link FontMetrics#stringWidth(String)} is quadratic and very slow on long letters
+ * with little whitespace.
+ *
+ * A LineBreaker is bound to the metrics of one font and can be reused for any number of texts,
+ * for printing, packing and previews alike.
+ *
+ * @version 1.1
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class LineBreaker {
+
+    private final Font font; // Font the text is drawn with
+    private final FontRenderContext context; // Rendering context of the metrics, fractional or not
+    private final float[] widths = new float[256]; // Advance widths of the first 256 characters
+
+    /**
+     * Constructor for LineBreaker.
+     *
+     * @param metrics Font metrics of the font the text is drawn with.
+     */
+    public LineBreaker(FontMetrics metrics) {
+        this.font = metrics.getFont();
+        this.context = metrics.getFontRenderContext();
+        for (char c = 0; c < widths.length; c++) {
+            widths[c] = advance(c);
+        }
+    }
+
+    /**
+     * Break text into lines that fit the given width.
+     *
+     * @param text The text to break, may contain line breaks.
+     * @param maxWidth Maximum width of a line.
+     * @return The lines in drawing order.
+     */
+    public List<String> breakLines(String text, int maxWidth) {
+        List<String> lines = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return lines;
+        }
+
+        // Break each paragraph separately, \n, \r\n and \r all end a paragraph
+        int start = 0;
+        int length = text.length();
+        while (start <= length) {
+            int end = start;
+            while (end < length && text.charAt(end) != '\n' && text.charAt(end) != '\r') {
+                end++;
+            }
+
+            if (end == length && start == length) {
+                break; // Text ended with a line break, no empty paragraph after it
+            }
+            breakParagraph(text, start, end, maxWidth, lines);
+
+            if (end < length && text.charAt(end) == '\r' && end + 1 < length && text.charAt(end + 1) == '\n') {
+                end++; // Skip the \n of \r\n
+            }
+            start = end + 1;
+        }
+
+        return lines;
+    }
+
+    /**
+     * Break a single paragraph into lines that fit the given width.
+     * An empty paragraph results in a single empty line.
+     *
+     * @param text The text containing the paragraph.
+     * @param start Index of the first character of the paragraph.
+     * @param end Index after the last character of the paragraph.
+     * @param maxWidth Maximum width of a line.
+     * @param lines The list to add the lines to.
+     */
+    public void breakParagraph(String text, int start, int end, int maxWidth, List<String> lines) {
+        if (start == end) {
+            lines.add(""); // Keep empty lines between paragraphs
+            return;
+        }
+
+        int lineStart = start; // Index of the first character on the current line
+        float width = 0; // Width of the characters from lineStart up to i
+        int breakIndex = -1; // Index after the last break opportunity on the current line
+        float widthAtBreak = 0; // Width of the line up to breakIndex
+
+        int i = start;
+        while (i < end) {
+            char c = text.charAt(i);
+            float charWidth = charWidth(c);
+
+            // Whitespace may hang over the edge, it is trimmed from the end of the line
+            if (width + charWidth > maxWidth && i > lineStart && !Character.isWhitespace(c)) {
+                if (breakIndex > lineStart) {
+                    // Break at the last whitespace or hyphen, the rest of the word moves to the next line
+                    lines.add(trimEnd(text, lineStart, breakIndex));
+                    width -= widthAtBreak;
+                    lineStart = breakIndex;
+                } else {
+                    // No break opportunity, break the word at the last character that fits
+                    int breakAt = Character.isLowSurrogate(c) && i - 1 > lineStart ? i - 1 : i; // Keep surrogate pairs together
+                    lines.add(text.substring(lineStart, breakAt));
+                    width = 0;
+                    lineStart = breakAt;
+                    i = breakAt;
+                }
+                breakIndex = -1;
+                continue; // Measure the current character again against the new line
+            }
+
+            width += charWidth;
+            i++;
+
+            if (Character.isWhitespace(c) || c == '-') {
+                breakIndex = i;
+                widthAtBreak = width;
+            }
+        }
+
+        if (lineStart < end) {
+            lines.add(trimEnd(text, lineStart, end)); // Rest of the paragraph
+        }
+    }
+
+    /**
+     * Get the width of a text as measured by this line breaker.
+     *
+     * @param text The text to measure.
+     * @return The sum of the advance widths of the characters, rounded up.
+     */
+    public int width(CharSequence text) {
+        float width = 0;
+        for (int i = 0; i < text.length(); i++) {
+            width += charWidth(text.charAt(i));
+        }
+        return (int) Math.ceil(width);
+    }
+
+    /**
+     * Get the advance width of a character.
+     * Latin-1 characters, which includes the Finnish letters, come from the cached width table.
+     *
+     * @param c The character to measure.
+     * @return The advance width of the character.
+     */
+    private float charWidth(char c) {
+        return c < widths.length ? widths[c] : advance(c);
+    }
+
+    private float advance(char c) {
+        return (float) font.getStringBounds(new char[] {c}, 0, 1, context).getWidth();
+    }
+
+    /**
+     * Get a substring without trailing whitespace.
+     *
+     * @param text The text to take the substring from.
+     * @param start Index of the first character.
+     * @param end Index after the last character.
+     * @return The substring without trailing whitespace.
+     */
+    private static String trimEnd(String text, int start, int end) {
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        return text.substring(start, end);
+    }
+}
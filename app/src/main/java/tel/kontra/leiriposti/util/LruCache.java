@@ -0,0 +1,94 @@
+package tel.kontra.leiriposti.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * LruCache is a thread-safe cache bounded by the total weight of its values.
+ *
+ * When adding a value takes the cache over its maximum weight, the least recently used values
+ * are dropped until it fits again. The weight of a value is given by a weigher, for images
+ * it is the number of bytes the pixels take.
+ *
+ * @param <K> Type of the keys.
+ * @param <V> Type of the values.
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class LruCache<K, V> {
+
+    private final Map<K, V> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order, eldest first
+    private final ToIntFunction<V> weigher; // Weight of a value
+    private final long maxWeight; // Maximum total weight of the values
+    private long weight; // Current total weight of the values
+
+    /**
+     * Constructor for LruCache.
+     *
+     * @param maxWeight Maximum total weight of the values.
+     * @param weigher Gives the weight of a value.
+     */
+    public LruCache(long maxWeight, ToIntFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Get a value and mark it as recently used.
+     *
+     * @param key The key of the value.
+     * @return The value, or null if it is not in the cache.
+     */
+    public synchronized V get(K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Add a value, dropping the least recently used values if the cache gets too heavy.
+     * A value heavier than the whole cache is not added.
+     *
+     * @param key The key of the value.
+     * @param value The value to add.
+     */
+    public synchronized void put(K key, V value) {
+        int valueWeight = weigher.applyAsInt(value);
+        if (valueWeight > maxWeight) {
+            return; // Would push everything else out and still not fit
+        }
+
+        V old = entries.put(key, value);
+        if (old != null) {
+            weight -= weigher.applyAsInt(old);
+        }
+        weight += valueWeight;
+
+        // Drop the least recently used values until the cache fits
+        Iterator<V> eldest = entries.values().iterator();
+        while (weight > maxWeight && eldest.hasNext()) {
+            weight -= weigher.applyAsInt(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Remove all values from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * Get the number of values in the cache.
+     *
+     * @return The number of values.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -1,18 +1,39 @@
 package tel.kontra.leiriposti.util;
 
 import java.awt.Image;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.net.URL;
 import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.imageio.ImageIO;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+/**
+ * WeekDayImage provides the weekday images printed on the letters.
+ *
+ * The images are decoded once on first use and kept in memory. Scaled copies are cached per width,
+ * pre-scaled to the print resolution so drawing one on a page is a plain copy instead of
+ * decoding and scaling the PNG again for every letter.
+ *
+ * @version 0.3
+ * @since 0.1
+ *
+ * @author Markus
+ */
 public class WeekDayImage {
 
     private static final Logger LOGGER = LogManager.getLogger();
 
+    private static final Map<DayOfWeek, BufferedImage> IMAGES = new EnumMap<>(DayOfWeek.class); // Decoded images
+    private static final Map<DayOfWeek, Map<Integer, BufferedImage>> SCALED = new EnumMap<>(DayOfWeek.class); // Scaled images by width in points
+
     /**
      * Constructor for WeekDayImage class.
      * 
@@ -27,20 +48,93 @@ public class WeekDayImage {
 
     /**
      * getImage method returns the image corresponding to the given day of the week.
+     * The image is decoded on the first call and cached for later calls.
      * 
-     * @param day The day of the week (1-7) for which the image is requested.
+     * @param day The day of the week for which the image is requested.
      * @return The image corresponding to the given day of the week.
      */
-    public static Image getImage(DayOfWeek day) {
-        String imagePath = "./week/" + day.getValue() + ".png"; // Construct the image path based on the day of the week
+    public static synchronized Image getImage(DayOfWeek day) {
+        BufferedImage image = IMAGES.get(day);
+        if (image == null) {
+            image = loadImage(day);
+            if (image != null) {
+                IMAGES.put(day, image); // Failed loads are retried on the next call
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns the image of the given day of the week scaled for printing at the given width.
+     *
+     * The returned image has the size the image takes on paper at {@link ImageScaler#PRINT_DPI},
+     * so it should be drawn with the width in points and the matching height.
+     * Scaled images are cached by day and width.
+     *
+     * @param day The day of the week for which the image is requested.
+     * @param width The width of the image on the page in points.
+     * @return The scaled image, or null if the image could not be loaded.
+     */
+    public static synchronized BufferedImage getImage(DayOfWeek day, int width) {
+        Map<Integer, BufferedImage> scaled = SCALED.computeIfAbsent(day, d -> new HashMap<>());
+
+        BufferedImage image = scaled.get(width);
+        if (image == null) {
+            BufferedImage source = (BufferedImage) getImage(day);
+            if (source == null) {
+                return null;
+            }
+
+            image = ImageScaler.scaleForPrint(source, width);
+            scaled.put(width, image);
+            LOGGER.debug("Image scaled for day {} to {} px", day, image.getWidth());
+        }
+        return image;
+    }
+
+    /**
+     * Get the day of the week whose image is printed today.
+     * Every printout asks the day from here, so letters and packed slips printed on the same day
+     * always get the same image.
+     *
+     * @return The current day of the week.
+     */
+    public static DayOfWeek today() {
+        return LocalDate.now().getDayOfWeek();
+    }
+
+    /**
+     * Get the number of the image file of a day of the week.
+     * The images are numbered like {@link java.util.Calendar#DAY_OF_WEEK}, 1 is Sunday and 7 is Saturday.
+     *
+     * @param day The day of the week.
+     * @return The number of the image file.
+     */
+    static int imageNumber(DayOfWeek day) {
+        return day.getValue() % 7 + 1; // ISO Monday is 1 and Sunday is 7
+    }
+
+    /**
+     * Decode the image of a day of the week from the resources.
+     *
+     * @param day The day of the week.
+     * @return The decoded image, or null if it could not be loaded.
+     */
+    private static BufferedImage loadImage(DayOfWeek day) {
+        String imagePath = "./week/" + imageNumber(day) + ".png"; // Construct the image path based on the day of the week
+        URL resource = WeekDayImage.class.getClassLoader().getResource(imagePath);
+
+        if (resource == null) {
+            LOGGER.error("Image not found for day {}: {}", day, imagePath);
+            return null; // Return null if the image could not be found
+        }
 
         try {
-            Image image = ImageIO.read(
-                WeekDayImage.class.getClassLoader().getResource(imagePath)); // Load the image from the file
+            BufferedImage image = ImageIO.read(resource); // Load the image from the file
 
             if (image == null) {
-                LOGGER.error("Image not found for day {}: {}", day, imagePath);
-                return null; // Return null if the image could not be found
+                LOGGER.error("Image could not be decoded for day {}: {}", day, imagePath);
+                return null;
             } else {
                 LOGGER.debug("Image loaded for day {}: {}", day, imagePath);
             }
@@ -1,11 +1,9 @@
 package tel.kontra.leiriposti.view;
 
+import java.io.IOException;
 import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
-import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -15,16 +13,22 @@ import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
+import javafx.scene.control.Alert;
 import javafx.stage.Stage;
 
 import tel.kontra.leiriposti.controller.MessageController;
 import tel.kontra.leiriposti.controller.PrinterController;
 import tel.kontra.leiriposti.controller.SessionProfileController;
 import tel.kontra.leiriposti.controller.SheetsController;
+import tel.kontra.leiriposti.event.EventBus;
 import tel.kontra.leiriposti.model.Message;
+import tel.kontra.leiriposti.model.MessageArchive;
+import tel.kontra.leiriposti.model.MessageStorage;
+import tel.kontra.leiriposti.model.MessageQueue;
 import tel.kontra.leiriposti.model.MessageStatus;
 import tel.kontra.leiriposti.model.SessionProfile;
 import tel.kontra.leiriposti.model.PrintersNotFoundException;
+import tel.kontra.leiriposti.service.AutosaveService;
 import tel.kontra.leiriposti.service.GoogleAuth;
 import tel.kontra.leiriposti.service.GoogleServiceFactory;
 import com.google.api.client.auth.oauth2.Credential;
@@ -60,6 +64,9 @@ public class MainGui extends Application {
     public void start(Stage primaryStage) throws Exception {
 
         // --- Controller and Service Setup ---
+        // Handlers of the GUI run on the JavaFX Application Thread
+        EventBus.getInstance().setFxExecutor(Platform::runLater);
+
         // Get session profile
         SessionProfileController sessionProfileController = SessionProfileController.getInstance();
         SessionProfile session = sessionProfileController.getSessionProfile();
@@ -105,11 +112,44 @@ public class MainGui extends Application {
          * MessageController setup.
          * This controller manages the messages imported from Google Sheets.
          */
+        // The profile has the messages of older sessions and of runs whose journal could not be opened,
+        // otherwise they are in the snapshot of the journal
         List<Message> messages = session.getImportedMessages();
+        MessageArchive archive = session.getMessageArchive();
+        boolean inProfile = messages != null || archive != null;
+        MessageStorage journal = sessionProfileController.getStorageBackend().openMessages(session);
+        if (journal.hasSnapshot()) {
+            try {
+                MessageStorage.Snapshot saved = journal.readSnapshot();
+                if (!inProfile) {
+                    messages = saved.getMessages();
+                    archive = saved.getArchive();
+                }
+            } catch (IOException e) {
+                // Starting without the messages would save the empty session over them, refuse to start
+                LOGGER.error("Error reading the saved messages: " + e.getMessage(), e);
+                Alert alert = new Alert(Alert.AlertType.ERROR);
+                alert.setTitle("Leiriposti");
+                alert.setHeaderText("The saved messages of " + session.getSessionName() + " can not be read");
+                alert.setContentText(e.getMessage() + (journal.hasSnapshot()
+                    ? "\n\nThe file was left as it is, it is read again at the next start."
+                    : "\n\nThe next start begins without the messages of the damaged file."));
+                alert.showAndWait();
+                System.exit(1);
+            }
+        }
         if (messages == null || messages.isEmpty()) {
             messages = new ArrayList<>();
         }
-        MessageController messageController = MessageController.getInstance(sheetsController, messages);
+        MessageController messageController = MessageController.getInstance(sheetsController, messages, archive);
+        boolean journaled = messageController.openJournal(journal); // Changes made after the last snapshot
+
+        // Take the messages out of the profile only once they are in a snapshot
+        if (inProfile && journaled && messageController.compactJournal()) {
+            session.setImportedMessages(null);
+            session.setMessageArchive(null);
+            sessionProfileController.saveSessionProfile(); // Don't load the older messages from the profile again
+        }
 
         /**
          * PrinterController setup.
@@ -122,11 +162,20 @@ public class MainGui extends Application {
             // Optionally show error modal here
         }
 
-        // Update printQueue with QUEUED messages
-        Queue<Message> printQueue = session.getImportedMessages().stream()
-        .filter(message -> message.getStatus() == MessageStatus.QUEUED)
-        .collect(Collectors.toCollection(LinkedList::new));
-        printerController.setPrintQueue(printQueue);
+        // Update printQueue with QUEUED messages, taken from the status index of the messages
+        printerController.setPrintQueue(new MessageQueue(messageController.getMessages(MessageStatus.QUEUED)));
+
+        /**
+         * AutosaveService setup.
+         * Saves the changes in the background, the messages first so the saved row never runs ahead of them.
+         */
+        AutosaveService autosave = AutosaveService.getInstance();
+        autosave.register("messages", messageController::hasUnsavedChanges, messageController::saveChanges);
+        autosave.register("session profile", () -> {
+            updateSessionProfile(sessionProfileController.getSessionProfile());
+            return sessionProfileController.hasUnsavedChanges();
+        }, sessionProfileController::saveSessionProfile);
+        autosave.start();
         
         // --- End Controller and Service Setup ---
         
@@ -194,21 +243,26 @@ public class MainGui extends Application {
         * such as session profiles, printing, sheets, and messages.
         */
         SessionProfileController sessionProfileController = SessionProfileController.getInstance();
-        PrinterController printerController = PrinterController.getInstance();
-        SheetsController sheetsController = SheetsController.getInstance();
         MessageController messageController = MessageController.getInstance();
 
+        // Save the last changes and the messages in a snapshot, the profile is saved without them
+        AutosaveService.getInstance().stop();
+        if (!messageController.closeJournal()) {
+            // Without a journal the messages are saved in the profile
+            LOGGER.warn("Messages could not be saved in the journal, saving them in the session profile.");
+            SessionProfile session = sessionProfileController.getSessionProfile();
+            MessageStorage.Snapshot saved = messageController.getStorageSnapshot();
+            session.setImportedMessages(saved.getMessages());
+            session.setMessageArchive(saved.getArchive());
+        }
+
         // Update the session profile with the current state
-        SessionProfile sessionProfile = sessionProfileController.getSessionProfile();
-        sessionProfile.setLastRow(sheetsController.getLatestRow()); // Update the last row number
-        sessionProfile.setSelectedPrinter(printerController.getDefaultPrintServiceName()); // Update the selected printer
-        // sessionProfile.setPrintQueue(printerController.getPrintQueue()); // Update the print queue
-        sessionProfile.setImportedMessages(messageController.getMessages()); // Update the imported messages
-        sessionProfile.setSpreadsheetId(sheetsController.getSheetsId()); // Update the spreadsheet ID
+        updateSessionProfile(sessionProfileController.getSessionProfile());
 
         // Lastly save the session profiles
         LOGGER.info("Saving session profiles...");
         sessionProfileController.saveSessionProfiles();
+        sessionProfileController.closeStorage();
 
         // Close the console stage if it was opened
         if (consoleStage != null) {
@@ -223,6 +277,26 @@ public class MainGui extends Application {
         System.exit(0); // Ensure the application exits completely
     }
 
+    /**
+     * Updates the session profile with the current state of the controllers.
+     * Called on close and by the autosave thread, under the lock of the profile so a save in between
+     * never sees half of the update. The version of the profile is only bumped by values that changed.
+     * 
+     * @param sessionProfile The session profile to update.
+     */
+    private static void updateSessionProfile(SessionProfile sessionProfile) {
+        PrinterController printerController = PrinterController.getInstance();
+        SheetsController sheetsController = SheetsController.getInstance();
+        MessageController messageController = MessageController.getInstance();
+
+        synchronized (sessionProfile) {
+            sessionProfile.setLastRow(messageController.getSavedRow()); // Update the last row number, only rows whose messages are saved
+            sessionProfile.setSelectedPrinter(printerController.getDefaultPrintServiceName()); // Update the selected printer
+            // sessionProfile.setPrintQueue(printerController.getPrintQueue()); // Update the print queue
+            sessionProfile.setSpreadsheetId(sheetsController.getSheetsId()); // Update the spreadsheet ID
+        }
+    }
+
     /**
      * Returns the primary stage of the application.
      * This method provides access to the primary stage,
@@ -0,0 +1,40 @@
+package tel.kontra.leiriposti.controller;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+import tel.kontra.leiriposti.model.LetterTemplate;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+public class TemplateControllerTest {
+
+    @Test
+    void testBrokenDefaultOnDiskFallsBackToTheBundledDefault() throws IOException {
+        Path directory = Path.of("templates");
+        assumeFalse(Files.exists(directory), "A templates directory already exists in the working directory");
+
+        TemplateController controller = TemplateController.getInstance();
+        try {
+            Files.createDirectory(directory);
+            Files.writeString(directory.resolve("default.properties"), "name=Rikki\nbody.font=Serif,PLAIN\n", StandardCharsets.UTF_8);
+            Files.writeString(directory.resolve("rikki.properties"), "name=Rikki\n", StandardCharsets.UTF_8);
+            controller.reloadTemplates();
+
+            LetterTemplate template = controller.getTemplate(null);
+            assertEquals("Oletus", template.getTitle());
+            assertSame(template, controller.getTemplate("rikki"));
+            assertTrue(controller.getTemplateNames().contains("rikki"));
+        } finally {
+            Files.deleteIfExists(directory.resolve("default.properties"));
+            Files.deleteIfExists(directory.resolve("rikki.properties"));
+            Files.deleteIfExists(directory);
+            controller.reloadTemplates();
+        }
+    }
+}
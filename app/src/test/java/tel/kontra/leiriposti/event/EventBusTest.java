@@ -0,0 +1,146 @@
+package tel.kontra.leiriposti.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EventBusTest {
+
+    private EventBus bus;
+
+    private static final class TestEvent {
+
+        private final int number;
+
+        TestEvent(int number) {
+            this.number = number;
+        }
+    }
+
+    @BeforeEach
+    void setUp() {
+        bus = new EventBus();
+    }
+
+    @Test
+    void testSameThreadByDefault() {
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        bus.register(TestEvent.class, event -> threads.add(Thread.currentThread()));
+
+        bus.post(new TestEvent(1));
+        assertEquals(List.of(Thread.currentThread()), threads);
+    }
+
+    @Test
+    void testFxHandlersRunOnTheFxExecutor() {
+        List<Integer> numbers = new CopyOnWriteArrayList<>();
+        bus.register(TestEvent.class, event -> numbers.add(event.number), EventBus.Dispatch.FX_THREAD);
+
+        // Without JavaFX the handler runs on the posting thread
+        bus.post(new TestEvent(1));
+        assertEquals(List.of(1), numbers);
+
+        List<Runnable> pulses = new ArrayList<>();
+        bus.setFxExecutor(pulses::add);
+        bus.post(new TestEvent(2));
+        bus.post(new TestEvent(3));
+        bus.post("Not a test event");
+        assertEquals(List.of(1), numbers);
+        assertEquals(1, pulses.size());
+        pulses.get(0).run();
+        assertEquals(List.of(1, 2, 3), numbers);
+    }
+
+    @Test
+    void testBackgroundKeepsOrder() throws InterruptedException {
+        List<Integer> numbers = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(500);
+        Thread poster = Thread.currentThread();
+        bus.register(TestEvent.class, event -> {
+            if (Thread.currentThread() != poster) {
+                numbers.add(event.number);
+            }
+            done.countDown();
+        }, EventBus.Dispatch.BACKGROUND);
+
+        for (int i = 0; i < 500; i++) {
+            bus.post(new TestEvent(i));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, (int) numbers.get(i));
+        }
+    }
+
+    @Test
+    void testFullQueueDropsEvents() throws InterruptedException {
+        for (EventBus.Overflow overflow : List.of(EventBus.Overflow.DROP_OLDEST, EventBus.Overflow.DROP_NEWEST)) {
+            bus = new EventBus(); // Handlers of the first round are not called again
+            List<Integer> numbers = new CopyOnWriteArrayList<>();
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(3);
+            bus.register(TestEvent.class, event -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                numbers.add(event.number);
+                done.countDown();
+            }, EventBus.Dispatch.BACKGROUND, 2, overflow);
+
+            // The first event holds the handler, the queue has room for two more, posting does not wait
+            bus.post(new TestEvent(0));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            for (int i = 1; i <= 3; i++) {
+                bus.post(new TestEvent(i));
+            }
+            release.countDown();
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(overflow == EventBus.Overflow.DROP_OLDEST ? List.of(0, 2, 3) : List.of(0, 1, 2), numbers);
+        }
+    }
+
+    @Test
+    void testCoalescedEventsAreMerged() throws InterruptedException {
+        List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        bus.registerCoalesced(TestEvent.class, event -> event.number % 10,
+            (first, latest) -> new TestEvent(first.number + latest.number),
+            events -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                batches.add(events.stream().map(event -> event.number).toList());
+                done.countDown();
+            }, EventBus.Dispatch.BACKGROUND);
+
+        // Events posted while the first batch is handled are summed by their last digit
+        bus.post(new TestEvent(1));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int number : new int[] {2, 3, 12, 22}) {
+            bus.post(new TestEvent(number));
+        }
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of(List.of(1), List.of(36, 3)), batches);
+        assertThrows(IllegalArgumentException.class, () -> bus.registerCoalesced(
+            TestEvent.class, event -> event.number, events -> { }, EventBus.Dispatch.SAME_THREAD));
+    }
+}
@@ -0,0 +1,141 @@
+package tel.kontra.leiriposti.model;
+
+import java.awt.print.PageFormat;
+import java.awt.print.PrinterException;
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+
+import tel.kontra.leiriposti.controller.TemplateController;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LetterTemplateTest {
+
+    private static Properties properties() {
+        Properties properties = new Properties();
+        properties.setProperty("name", "Testi");
+        properties.setProperty("front", "title");
+        properties.setProperty("front.title.text", "${subject} ${date}");
+        properties.setProperty("front.title.font", "Serif,BOLD,24");
+        properties.setProperty("front.title.x", "50");
+        properties.setProperty("front.title.y", "50");
+        properties.setProperty("body.font", "Serif,PLAIN,12");
+        properties.setProperty("body.x", "50");
+        properties.setProperty("body.y", "105");
+        properties.setProperty("body.right", "50");
+        properties.setProperty("body.bottom", "4");
+        properties.setProperty("body.continue.y", "50");
+        properties.setProperty("closing.1", "Terveisin,");
+        properties.setProperty("closing.2", "${author}");
+        properties.setProperty("closing.font", "Serif,ITALIC,14");
+        properties.setProperty("back", "recipient");
+        properties.setProperty("back.recipient.text", "${recipient}");
+        properties.setProperty("back.recipient.font", "Serif,BOLD,36");
+        properties.setProperty("back.recipient.x", "center");
+        properties.setProperty("back.recipient.y", "center");
+        return properties;
+    }
+
+    private static LetterTemplate compile(Properties properties) {
+        return new LetterTemplate("testi", properties, name -> null);
+    }
+
+    private static void assertInvalid(String key, String value, String expected) {
+        Properties properties = properties();
+        if (value == null) {
+            properties.remove(key);
+        } else {
+            properties.setProperty(key, value);
+        }
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> compile(properties));
+        assertTrue(e.getMessage().contains(expected), e.getMessage());
+    }
+
+    private Message message(int lines) {
+        return new Message("1.7.2025 klo 12.00.00", "Terveiset", "Hei!\n".repeat(lines), "Aino", "Mummo");
+    }
+
+    @Test
+    void testDuplexPutsRecipientOnABackSide() throws PrinterException {
+        LetterTemplate template = TemplateController.getInstance().getTemplate(null);
+        PageFormat pf = new PageFormat();
+
+        // One page of body and the recipient fill one sheet either way
+        assertEquals(2, template.layout(message(5), pf, false).getNumberOfPages());
+        assertEquals(2, template.layout(message(5), pf, true).getNumberOfPages());
+
+        // Two pages of body, the recipient goes on the back of the second sheet
+        assertEquals(3, template.layout(message(60), pf, false).getNumberOfPages());
+        assertEquals(4, template.layout(message(60), pf, true).getNumberOfPages());
+    }
+
+    @Test
+    void testCompile() {
+        LetterTemplate template = compile(properties());
+
+        assertEquals("testi", template.getName());
+        assertEquals("Testi", template.getTitle());
+        assertNotNull(template.getPacked()); // Packed fonts are optional
+        assertEquals(template.getRevision(), compile(properties()).getRevision());
+
+        Properties changed = properties();
+        changed.setProperty("body.x", "60");
+        assertNotEquals(template.getRevision(), compile(changed).getRevision());
+    }
+
+    @Test
+    void testCoordinates() {
+        Properties properties = new Properties();
+        properties.setProperty("left", "50");
+        properties.setProperty("right", "-20");
+        properties.setProperty("middle", " Center ");
+
+        // Positive from the top left, negative from the far edge to the far side of the element
+        assertEquals(50, LetterTemplate.Coordinate.parse(properties, "left").resolve(500, 100));
+        assertEquals(380, LetterTemplate.Coordinate.parse(properties, "right").resolve(500, 100));
+        assertEquals(480, LetterTemplate.Coordinate.parse(properties, "right").resolve(500, 0));
+        assertEquals(200, LetterTemplate.Coordinate.parse(properties, "middle").resolve(500, 100));
+        assertThrows(IllegalArgumentException.class, () -> LetterTemplate.Coordinate.parse(properties, "top"));
+    }
+
+    @Test
+    void testBodyFlowsOntoNewPages() throws PrinterException {
+        LetterTemplate template = compile(properties());
+        PageFormat pf = new PageFormat();
+
+        int pages = template.layout(message(0), pf, false).getNumberOfPages();
+        assertEquals(2, pages);
+        for (int lines = 1; lines < 200; lines++) {
+            int next = template.layout(message(lines), pf, false).getNumberOfPages();
+            assertTrue(next == pages || next == pages + 1, "Pages are added one at a time");
+            pages = next;
+        }
+        assertTrue(pages >= 5, "200 lines take several pages");
+
+        // Following pages that start lower have room for fewer lines
+        Properties higher = properties();
+        higher.setProperty("body.continue.y", "300");
+        assertTrue(compile(higher).layout(message(200), pf, false).getNumberOfPages() > pages);
+    }
+
+    @Test
+    void testInvalidTemplates() {
+        assertInvalid("body.font", null, "body.font");
+        assertInvalid("body.font", "Serif,12", "family,style,size");
+        assertInvalid("closing.font", "Serif,THIN,12", "Unknown font style");
+        assertInvalid("body.y", "sata", "Not a number in body.y");
+        assertInvalid("front.title.x", null, "front.title.x");
+        assertInvalid("front.title.text", "${sender}", "Unknown field");
+        assertInvalid("closing.2", "${author", "not closed");
+        assertInvalid("packed.body.font", "Serif", "packed.body.font");
+
+        Properties image = properties();
+        image.setProperty("front", "title,logo");
+        image.setProperty("front.logo.image", "logo.png");
+        image.setProperty("front.logo.width", "80");
+        image.setProperty("front.logo.x", "0");
+        image.setProperty("front.logo.y", "0");
+        assertThrows(IllegalArgumentException.class, () -> compile(image));
+    }
+}
@@ -0,0 +1,277 @@
+package tel.kontra.leiriposti.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageJournalTest {
+
+    private File directory;
+    private MessageJournal journal;
+
+    // State rebuilt by replaying
+    private Map<String, Message> messages;
+    private Map<String, MessageStatus> statuses;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal").toFile();
+        journal = new MessageJournal(directory, "session");
+        messages = new LinkedHashMap<>();
+        statuses = new LinkedHashMap<>();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        journal.close();
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private Message message(int row, String body) {
+        Message message = new Message("1.7.2025 klo 12.00.0" + row, "Subject " + row, body, "Aino", null);
+        message.setId("sheet:" + row);
+        return message;
+    }
+
+    private int replay(MessageJournal journal) throws IOException {
+        return journal.open(message -> messages.put(message.getId(), message), statuses::put);
+    }
+
+    private MessageJournal reopen() throws IOException {
+        journal.close();
+        journal = new MessageJournal(directory, "session");
+        return journal;
+    }
+
+    @Test
+    void testRecordsAreReplayed() throws IOException {
+        assertEquals(0, replay(journal));
+        Message message = message(1, "Hei \u00e4iti!\n".repeat(10000)); // Longer than writeUTF allows
+        journal.appendMessage(message);
+        journal.appendStatus(message, MessageStatus.QUEUED);
+        journal.appendStatus(message, MessageStatus.PRINTED);
+
+        assertEquals(3, replay(reopen()));
+        Message replayed = messages.get("sheet:1");
+        assertEquals(message.getBody(), replayed.getBody());
+        assertEquals(message.getTimeStamp(), replayed.getTimeStamp());
+        assertEquals(message.getWeekDay(), replayed.getWeekDay());
+        assertNull(replayed.getAuthor());
+        assertEquals(MessageStatus.PRINTED, statuses.get("sheet:1"));
+    }
+
+    @Test
+    void testTornRecordIsDropped() throws IOException {
+        replay(journal);
+        journal.appendMessage(message(1, "Body"));
+        journal.appendMessage(message(2, "Body"));
+        long whole = journal.size();
+        journal.close();
+
+        // Cut the last record short as a crash in the middle of a write would
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, "session.journal"), "rw")) {
+            file.setLength(whole - 3);
+        }
+
+        assertEquals(1, replay(reopen()));
+        assertTrue(journal.size() < whole - 3); // Truncated back to the whole record
+
+        // Appending goes on after the last whole record
+        journal.appendStatus(message(1, "Body"), MessageStatus.DELETED);
+        messages.clear();
+        assertEquals(2, replay(reopen()));
+        assertEquals(List.of("sheet:1"), new ArrayList<>(messages.keySet()));
+        assertEquals(MessageStatus.DELETED, statuses.get("sheet:1"));
+    }
+
+    @Test
+    void testDamagedRecordEndsJournal() throws IOException {
+        replay(journal);
+        journal.appendMessage(message(1, "Body"));
+        long first = journal.size();
+        journal.appendMessage(message(2, "Body"));
+        journal.appendMessage(message(3, "Body"));
+        journal.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, "session.journal"), "rw")) {
+            file.seek(first + 20);
+            file.write(file.read() ^ 0xFF);
+        }
+
+        assertEquals(1, replay(reopen()));
+        assertEquals(first, journal.size());
+    }
+
+    @Test
+    void testAppendsWaitForFlush() throws IOException {
+        replay(journal);
+        File file = new File(directory, "session.journal");
+        journal.appendMessage(message(1, "Body"));
+        assertTrue(journal.hasPending());
+        assertEquals(0, file.length()); // Buffered, nothing on the disk yet
+        assertTrue(journal.size() > 0);
+
+        journal.flush();
+        assertFalse(journal.hasPending());
+        assertEquals(journal.size(), file.length());
+
+        // Records still buffered at close are written
+        journal.appendStatus(message(1, "Body"), MessageStatus.QUEUED);
+        assertEquals(2, replay(reopen()));
+        assertEquals(MessageStatus.QUEUED, statuses.get("sheet:1"));
+    }
+
+    @Test
+    void testCompaction() throws IOException {
+        List<Integer> counts = new ArrayList<>();
+        journal = new MessageJournal(directory, "session", (activeCount, archivedCount) -> {
+            counts.add(activeCount);
+            counts.add(archivedCount);
+        });
+        assertFalse(journal.hasSnapshot());
+        assertTrue(journal.readSnapshot().getMessages().isEmpty());
+
+        replay(journal);
+        Message active = message(1, "Body");
+        Message printed = message(2, "Body");
+        printed.setStatus(MessageStatus.PRINTED);
+        MessageArchive archive = new MessageArchive();
+        archive.add(printed);
+        journal.appendMessage(active);
+        journal.appendMessage(printed);
+
+        journal.compact(() -> new MessageJournal.Snapshot(List.of(active), archive));
+        assertTrue(journal.hasSnapshot());
+        assertEquals(0, journal.size());
+        assertEquals(List.of(1, 1), counts);
+
+        // Changes after the compaction go to the emptied journal
+        journal.appendStatus(active, MessageStatus.QUEUED);
+        MessageJournal.Snapshot snapshot = reopen().readSnapshot();
+        assertEquals(List.of(active), snapshot.getMessages());
+        assertEquals("sheet:2", snapshot.getArchive().getId(0));
+        assertEquals(1, replay(journal));
+        assertEquals(MessageStatus.QUEUED, statuses.get("sheet:1"));
+        assertFalse(journal.isCompactionDue());
+
+        // Archive files of older snapshots are deleted
+        journal.compact(() -> new MessageJournal.Snapshot(List.of(active), archive));
+        assertEquals(1, directory.listFiles((dir, name) -> name.endsWith(".archive")).length);
+    }
+
+    @Test
+    void testUnreadMessagesAreNeverWrittenOver() throws IOException {
+        replay(journal);
+        Message printed = message(1, "Body");
+        printed.setStatus(MessageStatus.PRINTED);
+        MessageArchive archive = new MessageArchive();
+        archive.add(printed);
+        journal.compact(() -> new MessageJournal.Snapshot(List.of(message(2, "Body")), archive));
+        journal.appendMessage(message(3, "Body"));
+
+        // A journal that has not read the snapshot or replayed the records leaves them alone
+        MessageJournal unread = reopen();
+        assertThrows(IOException.class, () -> unread.compact(() -> new MessageJournal.Snapshot(List.of(), new MessageArchive())));
+        unread.readSnapshot();
+        assertThrows(IOException.class, () -> unread.compact(() -> new MessageJournal.Snapshot(List.of(), new MessageArchive())));
+        assertEquals(1, replay(unread));
+
+        // A damaged snapshot is moved aside and its archive file is kept
+        File snapshot = new File(directory, "session.messages");
+        Files.write(snapshot.toPath(), new byte[] {1, 2, 3, 4});
+        MessageJournal damaged = reopen();
+        assertThrows(IOException.class, damaged::readSnapshot);
+        assertTrue(new File(directory, "session.messages.damaged").exists());
+        assertFalse(damaged.hasSnapshot());
+
+        replay(damaged);
+        damaged.compact(() -> new MessageJournal.Snapshot(List.of(), new MessageArchive()));
+        assertEquals(2, directory.listFiles((dir, name) -> name.endsWith(".archive")).length);
+    }
+
+    @Test
+    void testSerializedSnapshotIsRead() throws IOException {
+        Message printed = message(2, "Body");
+        printed.setStatus(MessageStatus.PRINTED);
+        MessageArchive archive = new MessageArchive();
+        archive.add(printed);
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(new File(directory, "session.messages")))) {
+            out.writeObject(new ArrayList<>(List.of(message(1, "Body"))));
+            out.writeObject(archive); // The first snapshots had the archive in them
+        }
+
+        MessageJournal.Snapshot snapshot = journal.readSnapshot();
+        assertEquals(List.of("sheet:1"), snapshot.getMessages().stream().map(Message::getId).toList());
+        assertEquals("sheet:2", snapshot.getArchive().getId(0));
+
+        // The next compaction writes the new format
+        replay(journal);
+        journal.compact(() -> snapshot);
+        assertEquals(List.of("sheet:1"), reopen().readSnapshot().getMessages().stream().map(Message::getId).toList());
+    }
+
+    @Test
+    void testSnapshotIsKeptWhenItCanNotBeRead() throws IOException {
+        replay(journal);
+        journal.compact(() -> new MessageJournal.Snapshot(List.of(message(1, "Body")), new MessageArchive()));
+        File snapshot = new File(directory, "session.messages");
+        File archive = directory.listFiles((dir, name) -> name.endsWith(".archive"))[0];
+        File moved = new File(directory, "moved.tmp");
+
+        // The archive file is missing
+        assertTrue(archive.renameTo(moved));
+        assertThrows(IOException.class, () -> reopen().readSnapshot());
+        assertTrue(snapshot.exists());
+        assertTrue(moved.renameTo(archive));
+        assertEquals(List.of("sheet:1"), reopen().readSnapshot().getMessages().stream().map(Message::getId).toList());
+
+        // Saved by a newer version
+        byte[] bytes = Files.readAllBytes(snapshot.toPath());
+        bytes[4] = (byte) (SessionProfileCodec.VERSION + 1);
+        Files.write(snapshot.toPath(), bytes);
+        assertThrows(IOException.class, () -> reopen().readSnapshot());
+        assertTrue(snapshot.exists());
+        assertFalse(new File(directory, "session.messages.damaged").exists());
+    }
+
+    @Test
+    void testUnknownStatusIsRejected() throws IOException {
+        replay(journal);
+        journal.appendStatus(message(1, "Body"), MessageStatus.QUEUED);
+        journal.close();
+
+        // A whole record with a status this version does not have
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, "session.journal"), "rw")) {
+            byte[] payload = new byte[file.readInt()];
+            file.readInt();
+            file.readFully(payload);
+            payload[payload.length - 1] = (byte) MessageStatus.values().length;
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            file.seek(4);
+            file.writeInt((int) crc.getValue());
+            file.write(payload);
+        }
+
+        assertThrows(IOException.class, () -> replay(reopen()));
+    }
+}
@@ -0,0 +1,92 @@
+package tel.kontra.leiriposti.model;
+
+import java.awt.print.PageFormat;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import tel.kontra.leiriposti.controller.TemplateController;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessagePackerTest {
+
+    private PageFormat pageFormat;
+    private LetterTemplate template;
+
+    @BeforeEach
+    void setUp() {
+        pageFormat = new PageFormat(); // Letter with one inch margins
+        template = TemplateController.getInstance().getTemplate(null);
+    }
+
+    private Message message(String subject, int lines) {
+        return new Message("1.7.2025 klo 12.00.00", subject, "Hei! Mit\u00e4 kuuluu?\n".repeat(lines), "Aino", "Mummo");
+    }
+
+    @Test
+    void testShortMessagesShareASheet() {
+        MessagePacker packer = new MessagePacker(pageFormat, true, template);
+        Queue<Message> queue = new LinkedList<>();
+        for (int i = 0; i < 6; i++) {
+            queue.add(message("Viesti " + i, 1));
+        }
+
+        List<Message> sheet = packer.nextSheet(queue);
+        assertEquals(MessagePacker.MAX_MESSAGES_PER_SHEET, sheet.size());
+        assertEquals("Viesti 0", sheet.get(0).getSubject());
+        assertEquals("Viesti 3", sheet.get(3).getSubject());
+        assertEquals(2, queue.size());
+
+        // The sheet is printed with the same metrics it was measured with
+        int height = sheet.stream().mapToInt(packer::measure).sum();
+        assertTrue(height <= pageFormat.getImageableHeight());
+        assertEquals(2, new PackedPrintableMessage(sheet, true, template).computeLayout(pageFormat).getNumberOfPages());
+        assertEquals(1, new PackedPrintableMessage(sheet, false, template).computeLayout(pageFormat).getNumberOfPages());
+    }
+
+    @Test
+    void testLongMessageIsPrintedAlone() {
+        MessagePacker packer = new MessagePacker(pageFormat, true, template);
+        Queue<Message> queue = new LinkedList<>(List.of(message("Pitk\u00e4", 40), message("Lyhyt", 1)));
+
+        assertTrue(2 * packer.measure(queue.peek()) > pageFormat.getImageableHeight());
+        assertEquals(List.of("Pitk\u00e4"), packer.nextSheet(queue).stream().map(Message::getSubject).toList());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    void testMessagesThatDoNotFitStayInTheQueue() {
+        MessagePacker packer = new MessagePacker(pageFormat, true, template);
+        Queue<Message> queue = new LinkedList<>(List.of(message("A", 14), message("B", 18), message("C", 1)));
+
+        // B does not fit next to A, C is taken past it and B keeps its place
+        List<Message> sheet = packer.nextSheet(queue);
+        assertEquals(List.of("A", "C"), sheet.stream().map(Message::getSubject).toList());
+        assertEquals("B", queue.peek().getSubject());
+        assertTrue(packer.nextSheet(new LinkedList<>()).isEmpty());
+    }
+
+    @Test
+    void testOnlyShortMessagesAreAdded() {
+        MessagePacker packer = new MessagePacker(pageFormat, true, template);
+        Queue<Message> queue = new LinkedList<>(List.of(message("Lyhyt", 1), message("Pitk\u00e4", 24), message("C", 1)));
+
+        // The long letter would fit in the space left but is printed on a page of its own
+        int height = packer.measure(message("Pitk\u00e4", 24));
+        assertTrue(2 * height > pageFormat.getImageableHeight());
+        assertTrue(height <= pageFormat.getImageableHeight() - packer.measure(message("Lyhyt", 1)));
+        assertEquals(List.of("Lyhyt", "C"), packer.nextSheet(queue).stream().map(Message::getSubject).toList());
+        assertEquals(List.of("Pitk\u00e4"), packer.nextSheet(queue).stream().map(Message::getSubject).toList());
+    }
+
+    @Test
+    void testHeaderTakesSpaceWhenOneSided() {
+        Message message = message("Viesti", 2);
+        assertTrue(new MessagePacker(pageFormat, false, template).measure(message)
+            > new MessagePacker(pageFormat, true, template).measure(message));
+    }
+}
@@ -0,0 +1,116 @@
+package tel.kontra.leiriposti.model;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageSearchIndexTest {
+
+    private List<Message> messages;
+    private MessageStore store;
+
+    private Message message(String subject, String body, String recipient, String author) {
+        Message message = new Message(String.format("1.7.2025 klo 12.%02d.%02d", messages.size() / 60, messages.size() % 60), subject, body, recipient, author);
+        message.setId("sheet:" + messages.size());
+        messages.add(message);
+        return message;
+    }
+
+    @BeforeEach
+    void setUp() {
+        messages = new ArrayList<>();
+        message("Terveisi\u00e4 kotoa", "Hei Aino! Mummo ja \u00e4iti l\u00e4hett\u00e4v\u00e4t halauksia.", "Aino Virtanen", "Mummo");
+        message("Kuulumisia", "Miten leiriss\u00e4 menee? T\u00e4\u00e4ll\u00e4 sataa.", "Eetu", "Is\u00e4");
+        message(null, "Aino, muista pest\u00e4 hampaat", "Aino", null);
+        store = new MessageStore(messages);
+    }
+
+    private List<Message> search(String query) {
+        BitSet found = store.search(query);
+        return found != null ? store.snapshot().getMessages(MessageStatus.ALL, found) : null;
+    }
+
+    @Test
+    void testTokenize() {
+        assertEquals(List.of("hei", "aino", "aiti", "on", "taalla"), MessageSearchIndex.tokenize("Hei, Aino! \u00c4iti on t\u00e4\u00e4ll\u00e4."));
+        assertEquals(List.of("abcdefghijklmnop"), MessageSearchIndex.tokenize("abcdefghijklmnopqrstu"));
+        assertTrue(MessageSearchIndex.tokenize(" ,.! ").isEmpty());
+        assertTrue(MessageSearchIndex.tokenize(null).isEmpty());
+    }
+
+    @Test
+    void testAllWordsAreNeeded() {
+        assertEquals(List.of(messages.get(0), messages.get(2)), search("aino"));
+        assertEquals(List.of(messages.get(0)), search("mummo aino"));
+        assertEquals(List.of(), search("mummo eetu"));
+        assertNull(search("  "));
+    }
+
+    @Test
+    void testPrefixesAndDiacritics() {
+        assertEquals(List.of(messages.get(0)), search("mum ain"));
+        assertEquals(List.of(messages.get(0)), search("aiti"));
+        assertEquals(List.of(messages.get(0)), search("\u00c4ITI"));
+        assertEquals(List.of(messages.get(1)), search("isa"));
+        assertEquals(List.of(messages.get(1)), search("leirissa"));
+        assertEquals(List.of(messages.get(0), messages.get(1)), search("t"));
+    }
+
+    @Test
+    void testSearchFollowsStatusAndNewMessages() {
+        messages.get(0).setStatus(MessageStatus.DELETED);
+        store.statusChanged(messages.get(0), MessageStatus.NOT_PRINTED, MessageStatus.DELETED);
+        store.add(message("Aino", "Kortti", "Aino", "Pappa"));
+
+        assertEquals(List.of(messages.get(2), messages.get(3)), search("aino"));
+        assertEquals(List.of(messages.get(0)), store.snapshot().getMessages(MessageStatus.DELETED, store.search("aino")));
+    }
+
+    @Test
+    void testIndexIsBuiltAhead() {
+        for (int i = 0; i < 300; i++) {
+            message("Kortti " + i, "Terveisi\u00e4", "Eetu", "Mummo");
+        }
+        store = new MessageStore(messages);
+        assertFalse(store.isSearchReady());
+
+        store.buildSearchIndex();
+        assertTrue(store.isSearchReady());
+        assertEquals(List.of(messages.get(0), messages.get(2)), search("aino"));
+    }
+
+    @Test
+    void testArchivedMessagesAreFound() {
+        messages.get(0).setStatus(MessageStatus.PRINTED);
+        store.statusChanged(messages.get(0), MessageStatus.NOT_PRINTED, MessageStatus.PRINTED);
+        store.archiveInactive();
+
+        // The index is rebuilt from the saved messages
+        MessageStore loaded = new MessageStore(store.getActiveMessages(), store.getArchive());
+        BitSet found = loaded.search("halauksia");
+        assertEquals(List.of(messages.get(0)), loaded.snapshot().getMessages(MessageStatus.ALL, found));
+    }
+
+    @Test
+    void testIndexStaysInItsBudget() {
+        MessageSearchIndex index = new MessageSearchIndex(4096);
+        List<Message> letters = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            letters.add(new Message("1.7.2025 klo 12.00.00", "Kirje " + i, "Sana" + i + " ja halauksia", "Aino", "Mummo"));
+            index.add(i, letters.get(i));
+        }
+
+        // The later letters did not fit but are still found
+        assertTrue(index.getByteCount() <= 4096);
+        assertTrue(index.getUnindexedCount() > 100);
+        BitSet found = index.search("sana19 halau", letters::get);
+        assertEquals(List.of(19, 190, 191, 192, 193, 194, 195, 196, 197, 198, 199), found.stream().boxed().toList());
+        assertEquals(200, index.search("aino", letters::get).cardinality());
+        assertTrue(index.search("eetu", letters::get).isEmpty());
+    }
+}
@@ -0,0 +1,386 @@
+package tel.kontra.leiriposti.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import tel.kontra.leiriposti.util.FormsTimestampParser;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MessageStoreTest {
+
+    private List<Message> messages;
+    private MessageStore store;
+
+    @BeforeEach
+    void setUp() {
+        messages = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Message message = new Message("1.7.2025 klo 12.00.0" + i, "Subject " + i, "Body", "Recipient", "Author");
+            message.setId("sheet:" + i);
+            messages.add(message);
+        }
+        store = new MessageStore(messages);
+    }
+
+    private void changeStatus(Message message, MessageStatus status) {
+        MessageStatus oldStatus = message.getStatus();
+        message.setStatus(status);
+        store.statusChanged(message, oldStatus, status);
+    }
+
+    @Test
+    void testNewMessagesAreNotPrinted() {
+        assertEquals(5, store.count(MessageStatus.NOT_PRINTED));
+        assertEquals(5, store.count(MessageStatus.ALL));
+        assertEquals(0, store.count(MessageStatus.QUEUED));
+        assertEquals(messages, store.snapshot().getMessages(MessageStatus.ALL));
+    }
+
+    @Test
+    void testStatusChangeMovesMessage() {
+        changeStatus(messages.get(1), MessageStatus.QUEUED);
+        changeStatus(messages.get(3), MessageStatus.QUEUED);
+
+        assertEquals(3, store.count(MessageStatus.NOT_PRINTED));
+        assertEquals(2, store.count(MessageStatus.QUEUED));
+        assertEquals(List.of(messages.get(1), messages.get(3)), store.snapshot().getMessages(MessageStatus.QUEUED));
+        assertEquals(5, store.count(MessageStatus.ALL));
+    }
+
+    @Test
+    void testDeletedMessagesAreNotInAll() {
+        changeStatus(messages.get(0), MessageStatus.DELETED);
+
+        assertEquals(4, store.count(MessageStatus.ALL));
+        assertEquals(1, store.count(MessageStatus.DELETED));
+        assertFalse(store.view(MessageStatus.ALL).contains(messages.get(0)));
+
+        changeStatus(messages.get(0), MessageStatus.NOT_PRINTED);
+        assertEquals(5, store.count(MessageStatus.ALL));
+        assertEquals(0, store.count(MessageStatus.DELETED));
+    }
+
+    @Test
+    void testViewsAreLive() {
+        Collection<Message> queued = store.view(MessageStatus.QUEUED);
+        assertTrue(queued.isEmpty());
+
+        changeStatus(messages.get(2), MessageStatus.QUEUED);
+        assertEquals(1, queued.size());
+        assertTrue(queued.contains(messages.get(2)));
+        assertEquals(messages.get(2), queued.iterator().next());
+
+        assertThrows(UnsupportedOperationException.class, () -> queued.add(messages.get(0)));
+    }
+
+    @Test
+    void testDuplicatesAreSkipped() {
+        Message copy = new Message("1.7.2025 klo 12.00.00", "Subject 0", "Body", "Recipient", "Author");
+        copy.setId("sheet:0");
+
+        assertFalse(store.add(copy));
+        assertEquals(5, store.size());
+        assertSame(messages.get(0), store.get("sheet:0"));
+
+        // A status change of another instance does not touch the store
+        assertFalse(store.statusChanged(copy, MessageStatus.NOT_PRINTED, MessageStatus.QUEUED));
+        assertEquals(0, store.count(MessageStatus.QUEUED));
+    }
+
+    @Test
+    void testSnapshotDoesNotChange() {
+        MessageSnapshot before = store.snapshot();
+        assertSame(before, store.snapshot()); // Nothing written, same snapshot
+
+        changeStatus(messages.get(0), MessageStatus.QUEUED);
+        Message added = new Message("1.7.2025 klo 12.00.09", "Subject 9", "Body", "Recipient", "Author");
+        store.add(added);
+
+        MessageSnapshot after = store.snapshot();
+        assertTrue(after.getVersion() > before.getVersion());
+
+        assertEquals(5, before.size());
+        assertEquals(0, before.count(MessageStatus.QUEUED));
+        assertEquals(5, before.getMessages(MessageStatus.NOT_PRINTED).size());
+
+        assertEquals(6, after.size());
+        assertSame(added, after.get(5));
+        assertEquals(List.of(messages.get(0)), after.getMessages(MessageStatus.QUEUED));
+    }
+
+    @Test
+    void testManyMessages() {
+        for (int i = 5; i < 1000; i++) {
+            Message message = new Message("1.7.2025 klo 12.00.00", "Subject " + i, "Body", "Recipient", "Author");
+            message.setId("sheet:" + i);
+            store.add(message);
+        }
+        MessageSnapshot snapshot = store.snapshot();
+
+        changeStatus(store.get("sheet:700"), MessageStatus.DELETED);
+
+        assertEquals(1000, snapshot.size());
+        assertEquals("sheet:700", snapshot.get(700).getId());
+        assertEquals(1000, snapshot.count(MessageStatus.ALL));
+        assertEquals(999, store.snapshot().count(MessageStatus.ALL));
+        assertEquals(999, store.view(MessageStatus.ALL).size());
+    }
+
+    @Test
+    void testTimeIndex() {
+        Message monday = new Message("30.6.2025 klo 23.59.59", "Monday", "Body", "Recipient", "Author");
+        Message nextDay = new Message("1.7.2025 klo 0.00.00", "Tuesday", "Body", "Recipient", "Author");
+        store.add(monday);
+        store.add(nextDay);
+        MessageStore times = store;
+
+        assertEquals(7, times.size());
+        assertEquals("Subject 4", times.latest().getSubject());
+        assertEquals(List.of(monday), times.on(LocalDate.of(2025, 6, 30)));
+        assertEquals(6, times.on(LocalDate.of(2025, 7, 1)).size());
+        assertSame(nextDay, times.on(LocalDate.of(2025, 7, 1)).get(0));
+
+        ZonedDateTime noon = ZonedDateTime.of(2025, 7, 1, 12, 0, 2, 0, FormsTimestampParser.ZONE);
+        assertEquals(List.of(messages.get(2), messages.get(3), messages.get(4)), times.since(noon.toInstant()));
+        assertEquals(List.of(messages.get(2)), times.between(noon.toInstant(), noon.plusSeconds(1).toInstant()));
+
+        ZonedDateTime season = ZonedDateTime.of(2025, 6, 1, 0, 0, 0, 0, FormsTimestampParser.ZONE);
+        assertEquals(List.of(monday), times.between(DayOfWeek.MONDAY, season.toInstant(), noon.toInstant()));
+        assertEquals(List.of(nextDay, messages.get(0), messages.get(1)), times.between(DayOfWeek.TUESDAY, season.toInstant(), noon.toInstant()));
+    }
+
+    @Test
+    void testArchiveInactive() {
+        changeStatus(messages.get(1), MessageStatus.PRINTED);
+        changeStatus(messages.get(3), MessageStatus.DELETED);
+        MessageSnapshot before = store.snapshot();
+
+        assertEquals(2, store.archiveInactive());
+        assertEquals(0, store.archiveInactive());
+        assertEquals(2, store.getArchivedCount());
+        assertEquals(List.of(messages.get(0), messages.get(2), messages.get(4)), store.getActiveMessages());
+
+        // Archived messages are built anew, equal by identity and with the same content
+        Message archived = store.get("sheet:1");
+        assertNotSame(messages.get(1), archived);
+        assertEquals(messages.get(1), archived);
+        assertEquals(messages.get(1).getBody(), archived.getBody());
+        assertEquals(messages.get(1).getTimeStamp(), archived.getTimeStamp());
+        assertEquals(messages.get(1).getWeekDay(), archived.getWeekDay());
+        assertEquals(MessageStatus.PRINTED, archived.getStatus());
+
+        // Snapshots still read the same messages
+        assertSame(messages.get(1), before.get(1));
+        assertEquals(messages, store.snapshot());
+        assertEquals(List.of(messages.get(1)), store.snapshot().getMessages(MessageStatus.PRINTED));
+        assertEquals("Subject 4", store.latest().getSubject());
+    }
+
+    @Test
+    void testArchivedMessageBecomesActive() {
+        changeStatus(messages.get(2), MessageStatus.DELETED);
+        store.archiveInactive();
+
+        Message restored = store.get("sheet:2");
+        changeStatus(restored, MessageStatus.NOT_PRINTED);
+
+        assertEquals(0, store.getArchivedCount());
+        assertSame(restored, store.get("sheet:2"));
+        assertEquals(5, store.count(MessageStatus.NOT_PRINTED));
+        assertEquals(0, store.getArchive().size()); // The dead row is left out when saving
+    }
+
+    @Test
+    void testStorageSnapshotHasEveryMessageOnce() {
+        changeStatus(messages.get(1), MessageStatus.PRINTED);
+        changeStatus(messages.get(2), MessageStatus.PRINTED);
+        store.archiveInactive();
+        store.restore("sheet:2");
+
+        MessageStorage.Snapshot snapshot = store.getStorageSnapshot();
+        assertEquals(List.of("sheet:0", "sheet:2", "sheet:3", "sheet:4"), snapshot.getMessages().stream().map(Message::getId).toList());
+        assertEquals(1, snapshot.getArchive().size());
+        assertEquals("sheet:1", snapshot.getArchive().getId(0));
+    }
+
+    @Test
+    void testArchiveIsSaved() throws Exception {
+        changeStatus(messages.get(0), MessageStatus.PRINTED);
+        changeStatus(messages.get(4), MessageStatus.DELETED);
+        store.archiveInactive();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(store.getArchive());
+        }
+        MessageArchive archive;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            archive = (MessageArchive) in.readObject();
+        }
+
+        // Active and archived messages are merged back in the order they were sent
+        MessageStore loaded = new MessageStore(store.getActiveMessages(), archive);
+        assertEquals(messages, loaded.snapshot());
+        assertEquals(1, loaded.count(MessageStatus.PRINTED));
+        assertEquals(1, loaded.count(MessageStatus.DELETED));
+        assertEquals(4, loaded.count(MessageStatus.ALL));
+        assertEquals(2, loaded.getArchivedCount());
+
+        // The archive keeps on growing after loading
+        Message active = loaded.get("sheet:2");
+        active.setStatus(MessageStatus.PRINTED);
+        loaded.statusChanged(active, MessageStatus.NOT_PRINTED, MessageStatus.PRINTED);
+        assertEquals(1, loaded.archiveInactive());
+        assertEquals(3, loaded.getArchive().size());
+    }
+
+    @Test
+    void testArchiveDictionary() {
+        MessageArchive archive = new MessageArchive();
+        Message message = new Message("1.7.2025 klo 12.00.00", null, "P\u00e4iv\u00e4\u00e4!", "Maija", null);
+        message.setId("sheet:9");
+        int row = archive.add(message);
+        archive.add(messages.get(0));
+
+        Message read = archive.get(row);
+        assertNull(read.getSubject());
+        assertNull(read.getAuthor());
+        assertEquals("P\u00e4iv\u00e4\u00e4!", read.getBody());
+        assertEquals("Maija", read.getRecipient());
+        assertEquals("sheet:9", archive.getId(row));
+        assertEquals("Recipient", archive.get(1).getRecipient());
+    }
+
+    @Test
+    void testArchiveIsMapped() throws Exception {
+        MessageArchive archive = new MessageArchive();
+        Message empty = new Message("2.7.2025 klo 8.00.00", null, null, null, null);
+        empty.setId("sheet:9");
+        messages.forEach(archive::add);
+        archive.add(empty);
+        archive.setStatus(2, MessageStatus.DELETED);
+
+        File file = File.createTempFile("messages", ".archive");
+        File again = File.createTempFile("messages", ".archive");
+        try {
+            archive.write(file);
+            MessageArchive mapped = MessageArchive.map(file);
+            assertEquals(6, mapped.getMappedCount());
+            for (int row = 0; row < archive.size(); row++) {
+                Message expected = archive.get(row);
+                Message read = mapped.get(row);
+                assertEquals(expected.getId(), read.getId());
+                assertEquals(expected.getSubject(), read.getSubject());
+                assertEquals(expected.getBody(), read.getBody());
+                assertEquals(expected.getRecipient(), read.getRecipient());
+                assertEquals(expected.getAuthor(), read.getAuthor());
+                assertEquals(expected.getTimeStamp(), read.getTimeStamp());
+                assertEquals(expected.getStatus(), read.getStatus());
+            }
+
+            // Rows added after mapping are kept in memory, and written with the mapped rows
+            Message late = new Message("3.7.2025 klo 9.00.00", "Late", "Body", "Recipient", "New author");
+            late.setId("sheet:10");
+            assertEquals(6, mapped.add(late));
+            mapped.setStatus(0, MessageStatus.PRINTED);
+            mapped.write(again);
+
+            MessageArchive remapped = MessageArchive.map(again);
+            assertEquals(7, remapped.size());
+            assertEquals("New author", remapped.get(6).getAuthor());
+            assertEquals("Recipient", remapped.get(6).getRecipient());
+            assertEquals(MessageStatus.PRINTED, remapped.getStatus(0));
+            assertEquals(MessageStatus.DELETED, remapped.getStatus(2));
+            assertNull(remapped.get(5).getBody());
+            assertEquals("sheet:9", remapped.getId(5));
+
+            // A store reads the mapped archive without building its messages
+            MessageStore loaded = new MessageStore(List.of(), remapped);
+            assertEquals("sheet:10", loaded.latest().getId());
+            assertEquals(5, loaded.search("sub").cardinality());
+            assertEquals(List.of(late), loaded.snapshot().getMessages(null, loaded.search("late")));
+        } finally {
+            file.delete();
+            again.delete();
+        }
+    }
+
+    @Test
+    void testArchiveOldMessages() {
+        changeStatus(messages.get(1), MessageStatus.QUEUED);
+
+        // Sent before the fourth message, the queued one stays held
+        assertEquals(2, store.archive(messages.get(3).getTimeStamp().toInstant()));
+        assertEquals(List.of(messages.get(1), messages.get(3), messages.get(4)), store.getActiveMessages());
+        assertEquals(4, store.count(MessageStatus.NOT_PRINTED));
+        assertEquals(messages, store.snapshot());
+
+        // Restored messages are held until they are archived again
+        Message restored = store.restore("sheet:0");
+        assertEquals(messages.get(0), restored);
+        assertSame(restored, store.get("sheet:0"));
+        assertSame(restored, store.restore("sheet:0"));
+        assertEquals(1, store.getArchivedCount());
+        assertNull(store.restore("sheet:9"));
+        assertEquals(1, store.archive(messages.get(3).getTimeStamp().toInstant()));
+    }
+
+    @Test
+    void testArchiveBlocks() throws Exception {
+        MessageArchive archive = new MessageArchive();
+        for (int i = 0; i < 1000; i++) {
+            Message message = new Message("1.7.2025 klo 12.00.00", "Subject " + i, "Hei " + i + "! ".repeat(i % 200), "Recipient", null);
+            message.setId("sheet:" + i);
+            archive.add(message);
+        }
+
+        File file = File.createTempFile("messages", ".archive");
+        File again = File.createTempFile("messages", ".archive");
+        try {
+            archive.write(file);
+            assertTrue(file.length() < 100_000); // Over 200 kB of texts
+            MessageArchive mapped = MessageArchive.map(file);
+            for (int row : new int[] {999, 0, 500, 501, 17}) {
+                assertEquals(archive.get(row).getBody(), mapped.get(row).getBody());
+                assertEquals("Subject " + row, mapped.get(row).getSubject());
+            }
+
+            // The mapped blocks are copied and the new rows get blocks of their own
+            Message late = new Message("2.7.2025 klo 9.00.00", "Late", "Body", "Recipient", "Author");
+            late.setId("sheet:late");
+            mapped.add(late);
+            mapped.write(again);
+            MessageArchive remapped = MessageArchive.map(again);
+            assertEquals(1001, remapped.size());
+            assertEquals("Body", remapped.get(1000).getBody());
+            assertEquals(archive.get(998).getBody(), remapped.get(998).getBody());
+
+            // The same layout is read from a stream to memory
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            remapped.write(bytes);
+            MessageArchive read = MessageArchive.read(new ByteArrayInputStream(bytes.toByteArray()));
+            assertEquals(0, read.getMappedCount());
+            for (int row = 0; row < 1000; row++) {
+                assertEquals("sheet:" + row, read.getId(row));
+                assertEquals(archive.get(row).getBody(), read.get(row).getBody());
+            }
+            assertEquals("Author", read.get(1000).getAuthor());
+        } finally {
+            file.delete();
+            again.delete();
+        }
+    }
+}
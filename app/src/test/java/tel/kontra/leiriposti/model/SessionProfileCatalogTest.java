@@ -0,0 +1,105 @@
+package tel.kontra.leiriposti.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionProfileCatalogTest {
+
+    private File directory;
+    private List<String> read; // Files read by the reader
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("profiles").toFile();
+        read = new ArrayList<>();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private File profile(String fileName, String content) throws IOException {
+        File file = new File(directory, fileName + ".ser");
+        Files.writeString(file.toPath(), content);
+        return file;
+    }
+
+    // Stands in for reading a whole profile
+    private SessionProfileCatalog.Entry reader(File file) {
+        read.add(file.getName());
+        String fileName = file.getName().replace(".ser", "");
+        return new SessionProfileCatalog.Entry(fileName, "Session " + fileName, fileName,
+            fileName.equals("default_session"), 12, 3, 0, file.length(), file.lastModified());
+    }
+
+    private SessionProfileCatalog loaded() {
+        SessionProfileCatalog catalog = new SessionProfileCatalog(directory);
+        catalog.load();
+        return catalog;
+    }
+
+    @Test
+    void testProfilesAreReadOnce() throws IOException {
+        profile("default_session", "default");
+        profile("a1b2c3d4", "old camp");
+
+        SessionProfileCatalog catalog = loaded();
+        assertEquals(2, catalog.refresh(this::reader));
+        catalog.save();
+        assertEquals(0, directory.listFiles((dir, name) -> name.endsWith(".tmp")).length);
+
+        // The next startup reads only the catalog
+        read.clear();
+        catalog = loaded();
+        assertEquals(0, catalog.refresh(this::reader));
+        assertTrue(read.isEmpty());
+        assertEquals(2, catalog.getEntries().size());
+        assertEquals("default_session", catalog.getDefault().getFileName());
+        assertEquals(12, catalog.getDefault().getLastRow());
+        assertEquals(new File(directory, "default_session.ser"), catalog.getFile(catalog.getDefault()));
+    }
+
+    @Test
+    void testChangedAndDeletedProfiles() throws IOException {
+        profile("default_session", "default");
+        File old = profile("a1b2c3d4", "old camp");
+        SessionProfileCatalog catalog = loaded();
+        catalog.refresh(this::reader);
+        catalog.save();
+
+        // A profile saved without the catalog is read again, a deleted one is dropped
+        profile("default_session", "default with more in it");
+        assertTrue(old.delete());
+        read.clear();
+        catalog = loaded();
+        assertEquals(1, catalog.refresh(this::reader));
+        assertEquals(List.of("default_session.ser"), read);
+        assertEquals(1, catalog.getEntries().size());
+    }
+
+    @Test
+    void testDamagedCatalogIsMadeAgain() throws IOException {
+        profile("default_session", "default");
+        Files.writeString(new File(directory, SessionProfileCatalog.FILE_NAME).toPath(), "not a catalog");
+
+        SessionProfileCatalog catalog = loaded();
+        assertTrue(catalog.getEntries().isEmpty());
+        assertEquals(1, catalog.refresh(this::reader));
+        assertNotNull(catalog.getDefault());
+    }
+}
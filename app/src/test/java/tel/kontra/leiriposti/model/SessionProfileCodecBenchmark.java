@@ -0,0 +1,140 @@
+package tel.kontra.leiriposti.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import tel.kontra.leiriposti.util.Benchmarks;
+
+/**
+ * Benchmark for {@link SessionProfileCodec} against Java serialization with ObjectOutputStream,
+ * encoding and decoding a profile of an older session with its messages in it and a profile of a session
+ * that keeps its messages in the journal, and the size of both.
+ * Run with {@code ./gradlew benchmark -Pbenchmark=tel.kontra.leiriposti.model.SessionProfileCodecBenchmark}.
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class SessionProfileCodecBenchmark {
+
+    private static final int MESSAGES = 2000; // About a week of camp mail
+
+    public static void main(String[] args) throws IOException {
+        SessionProfile small = SessionProfile.builder()
+            .sessionName("Suohame 2025")
+            .lastRow(MESSAGES)
+            .selectedPrinter("Kyocera")
+            .spreadsheetId("1abc")
+            .isDefault(true)
+            .build();
+        byte[] smallSerialized = serialize(small);
+        byte[] smallEncoded = encode(small, false);
+
+        System.out.printf("%-30s %12d bytes%n", "ObjectOutputStream", smallSerialized.length);
+        System.out.printf("%-30s %12d bytes%n", "SessionProfileCodec", smallEncoded.length);
+
+        Benchmarks.run("ObjectOutputStream encode", () -> serialize(small));
+        Benchmarks.run("Codec encode", () -> encode(small, false));
+        Benchmarks.run("ObjectInputStream decode", () -> deserialize(smallSerialized));
+        Benchmarks.run("Codec decode", () -> decode(smallEncoded));
+
+        SessionProfile profile = profile();
+        byte[] serialized = serialize(profile);
+        byte[] plain = encode(profile, false);
+        byte[] deflated = encode(profile, true);
+
+        System.out.printf("%n%d messages%n", MESSAGES);
+        System.out.printf("%-30s %12d bytes%n", "ObjectOutputStream", serialized.length);
+        System.out.printf("%-30s %12d bytes%n", "SessionProfileCodec", plain.length);
+        System.out.printf("%-30s %12d bytes%n", "SessionProfileCodec deflated", deflated.length);
+
+        Benchmarks.run("ObjectOutputStream encode", () -> serialize(profile));
+        Benchmarks.run("Codec encode", () -> encode(profile, false));
+        Benchmarks.run("Codec encode deflated", () -> encode(profile, true));
+        Benchmarks.run("ObjectInputStream decode", () -> deserialize(serialized));
+        Benchmarks.run("Codec decode", () -> decode(plain));
+        Benchmarks.run("Codec decode deflated", () -> decode(deflated));
+    }
+
+    private static SessionProfile profile() {
+        String[] campers = {"Aino", "Eetu", "Helmi", "Onni", "Venla", "Leo", "Ella", "Niilo"};
+        String[] authors = {"\u00c4iti", "Is\u00e4", "Mummo", "Pappa", null};
+        List<Message> messages = new ArrayList<>();
+        MessageArchive archive = new MessageArchive();
+        for (int i = 0; i < MESSAGES; i++) {
+            Message message = new Message(
+                (1 + i / 300) + ".7.2025 klo " + (8 + i % 12) + "." + (10 + i % 50) + ".0" + i % 10,
+                "Terveisi\u00e4 kotoa " + i,
+                "Hei! Toivottavasti leirill\u00e4 on kivaa ja s\u00e4\u00e4 on hyv\u00e4. ".repeat(1 + i % 6),
+                campers[i % campers.length],
+                authors[i % authors.length]
+            );
+            message.setId("sheet:" + i);
+            if (i < MESSAGES * 3 / 4) {
+                message.setStatus(MessageStatus.PRINTED);
+                archive.add(message);
+            } else {
+                messages.add(message);
+            }
+        }
+
+        return SessionProfile.builder()
+            .sessionName("Suohame 2025")
+            .lastRow(MESSAGES)
+            .selectedPrinter("Kyocera")
+            .importedMessages(messages)
+            .messageArchive(archive)
+            .printQueue(new LinkedList<>())
+            .spreadsheetId("1abc")
+            .isDefault(true)
+            .build();
+    }
+
+    private static byte[] serialize(SessionProfile profile) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(profile);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static SessionProfile deserialize(byte[] bytes) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (SessionProfile) in.readObject();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] encode(SessionProfile profile, boolean compress) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            SessionProfileCodec.write(profile, compress, bytes);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static SessionProfile decode(byte[] bytes) {
+        try {
+            return SessionProfileCodec.decode(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package tel.kontra.leiriposti.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionProfileCodecTest {
+
+    private Message message(int row, String recipient, String author) {
+        Message message = new Message("1.7.2025 klo 12.00.0" + row, "Subject " + row, "Hei \u00e4iti!\n".repeat(row), recipient, author);
+        message.setId("sheet:" + row);
+        return message;
+    }
+
+    private SessionProfile profile(int messages) {
+        List<Message> imported = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            imported.add(message(i % 10, "Aino " + i % 3, i % 2 == 0 ? null : "Mummo"));
+        }
+        MessageArchive archive = new MessageArchive();
+        Message printed = message(1, "Aino 0", "Pappa");
+        printed.setStatus(MessageStatus.PRINTED);
+        archive.add(printed);
+
+        return SessionProfile.builder()
+            .sessionName("Suohame 2025")
+            .lastRow(123)
+            .selectedPrinter("Kyocera")
+            .importedMessages(imported)
+            .messageArchive(archive)
+            .printQueue(new LinkedList<>(imported.subList(0, Math.min(2, messages))))
+            .spreadsheetId("1abc")
+            .isDefault(true)
+            .printDuplex(true)
+            .packMessages(false)
+            .templateName(null)
+            .build();
+    }
+
+    private static void assertSameMessages(List<Message> expected, List<Message> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Message e = expected.get(i);
+            Message a = actual.get(i);
+            assertEquals(e.getId(), a.getId());
+            assertEquals(e.getTimeStamp(), a.getTimeStamp());
+            assertEquals(e.getWeekDay(), a.getWeekDay());
+            assertEquals(e.getSubject(), a.getSubject());
+            assertEquals(e.getBody(), a.getBody());
+            assertEquals(e.getRecipient(), a.getRecipient());
+            assertEquals(e.getAuthor(), a.getAuthor());
+            assertEquals(e.getStatus(), a.getStatus());
+        }
+    }
+
+    @Test
+    void testRoundTrip() throws IOException {
+        SessionProfile profile = profile(50);
+        SessionProfile decoded = SessionProfileCodec.decode(SessionProfileCodec.encode(profile));
+
+        assertEquals(profile.getSessionId(), decoded.getSessionId());
+        assertEquals("Suohame 2025", decoded.getSessionName());
+        assertEquals(123, decoded.getLastRow());
+        assertEquals("Kyocera", decoded.getSelectedPrinter());
+        assertEquals("1abc", decoded.getSpreadsheetId());
+        assertNull(decoded.getTemplateName());
+        assertTrue(decoded.isDefault());
+        assertTrue(decoded.isPrintDuplex());
+        assertFalse(decoded.isPackMessages());
+        assertSameMessages(profile.getImportedMessages(), decoded.getImportedMessages());
+        assertSameMessages(new ArrayList<>(profile.getPrintQueue()), new ArrayList<>(decoded.getPrintQueue()));
+        assertEquals("Pappa", decoded.getMessageArchive().get(0).getAuthor());
+        assertEquals(MessageStatus.PRINTED, decoded.getMessageArchive().getStatus(0));
+    }
+
+    @Test
+    void testCompressionIsOptional() throws IOException {
+        SessionProfile profile = profile(200);
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        SessionProfileCodec.write(profile, false, plain);
+        SessionProfileCodec.write(profile, true, deflated);
+
+        assertTrue(deflated.size() < plain.size());
+        assertSameMessages(profile.getImportedMessages(), SessionProfileCodec.decode(plain.toByteArray()).getImportedMessages());
+        assertSameMessages(profile.getImportedMessages(), SessionProfileCodec.decode(deflated.toByteArray()).getImportedMessages());
+    }
+
+    @Test
+    void testEmptyProfile() throws IOException {
+        SessionProfile profile = SessionProfile.builder().sessionName("Tyhj\u00e4").build();
+        SessionProfile decoded = SessionProfileCodec.decode(SessionProfileCodec.encode(profile));
+
+        assertEquals("Tyhj\u00e4", decoded.getSessionName());
+        assertNull(decoded.getImportedMessages());
+        assertNull(decoded.getPrintQueue());
+        assertNull(decoded.getMessageArchive());
+    }
+
+    @Test
+    void testSettersBumpTheVersion() throws IOException {
+        SessionProfile profile = SessionProfileCodec.decode(SessionProfileCodec.encode(profile(3)));
+        long version = profile.getVersion();
+
+        profile.setLastRow(profile.getLastRow()); // Same values are not changes
+        profile.setSpreadsheetId(new String(profile.getSpreadsheetId()));
+        assertEquals(version, profile.getVersion());
+
+        profile.setPackMessages(!profile.isPackMessages());
+        profile.setTemplateName("juhla");
+        assertEquals(version + 2, profile.getVersion());
+    }
+
+    @Test
+    void testSerializedProfileIsRead() throws IOException {
+        // Saved by the first version of the application, before the codec
+        SessionProfile decoded;
+        try (InputStream in = getClass().getResourceAsStream("serialized_session.ser")) {
+            assertNotNull(in);
+            decoded = SessionProfileCodec.read(in);
+        }
+
+        assertEquals("76b24eef", decoded.getSessionId());
+        assertEquals("Suohame 2025", decoded.getSessionName());
+        assertEquals(123, decoded.getLastRow());
+        assertEquals("Kyocera", decoded.getSelectedPrinter());
+        assertEquals("1abc", decoded.getSpreadsheetId());
+        assertTrue(decoded.isDefault());
+        assertTrue(decoded.isPrintDuplex());
+        assertEquals(List.of("Aino", "Eetu"), decoded.getImportedMessages().stream().map(Message::getRecipient).toList());
+        assertEquals(MessageStatus.PRINTED, decoded.getImportedMessages().get(1).getStatus());
+        assertEquals("Hei Aino!", decoded.getPrintQueue().peek().getBody());
+        assertNull(decoded.getMessageArchive());
+    }
+
+    @Test
+    void testNewerVersionIsRejected() {
+        byte[] bytes = SessionProfileCodec.encode(profile(1));
+        bytes[4] = (byte) (SessionProfileCodec.VERSION + 1);
+
+        assertThrows(IOException.class, () -> SessionProfileCodec.decode(bytes));
+        assertThrows(IOException.class, () -> SessionProfileCodec.decode(new byte[] {1, 2, 3, 4, 5, 6}));
+    }
+
+    @Test
+    void testMessageList() throws IOException {
+        List<Message> messages = profile(12).getImportedMessages();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        SessionProfileCodec.writeMessageList(messages, out);
+        out.flush();
+
+        assertSameMessages(messages, SessionProfileCodec.readMessageList(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+
+        // No names, one message with a status that does not exist
+        byte[] damaged = {0, 2, (byte) 0xF0, 0, 0, 0, 0, 0};
+        assertThrows(IOException.class, () -> SessionProfileCodec.readMessageList(new DataInputStream(new ByteArrayInputStream(damaged))));
+    }
+}
@@ -0,0 +1,80 @@
+package tel.kontra.leiriposti.service;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AutosaveServiceTest {
+
+    private AutosaveService autosave;
+    private AtomicBoolean dirty;
+    private List<String> saved;
+    private CountDownLatch firstSave;
+
+    @BeforeEach
+    void setUp() {
+        autosave = new AutosaveService();
+        dirty = new AtomicBoolean();
+        saved = new CopyOnWriteArrayList<>();
+        firstSave = new CountDownLatch(1);
+        autosave.register("part", dirty::get, () -> {
+            dirty.set(false);
+            saved.add("part");
+            firstSave.countDown();
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        autosave.stop();
+    }
+
+    @Test
+    void testThresholdSavesBeforeTheInterval() throws InterruptedException {
+        autosave.start();
+        dirty.set(true);
+        for (int i = 0; i < AutosaveService.CHANGE_THRESHOLD; i++) {
+            autosave.changed();
+        }
+        assertTrue(firstSave.await(AutosaveService.INTERVAL_MILLIS / 2, TimeUnit.MILLISECONDS));
+        assertEquals(List.of("part"), saved);
+    }
+
+    @Test
+    void testIntervalSavesFewChanges() throws InterruptedException {
+        autosave.start();
+        dirty.set(true);
+        autosave.changed();
+        assertFalse(firstSave.await(AutosaveService.INTERVAL_MILLIS / 4, TimeUnit.MILLISECONDS));
+        assertTrue(firstSave.await(AutosaveService.INTERVAL_MILLIS * 2, TimeUnit.MILLISECONDS));
+        assertEquals(List.of("part"), saved);
+    }
+
+    @Test
+    void testStopSavesTheLastChanges() {
+        List<String> failed = new CopyOnWriteArrayList<>();
+        autosave.register("failing", () -> true, () -> {
+            failed.add("failing");
+            throw new IOException("Disk full");
+        });
+        autosave.register("clean", () -> false, () -> saved.add("clean"));
+
+        autosave.start();
+        dirty.set(true);
+        autosave.stop();
+
+        // A failing part does not keep the others from being saved, parts without changes are not saved
+        assertEquals(List.of("part"), saved);
+        assertFalse(failed.isEmpty());
+        assertFalse(dirty.get());
+    }
+}
@@ -0,0 +1,55 @@
+package tel.kontra.leiriposti.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import tel.kontra.leiriposti.model.SessionProfile;
+import tel.kontra.leiriposti.model.SessionProfileCodec;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileStorageBackendTest {
+
+    private File directory;
+    private FileStorageBackend backend;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("profiles").toFile();
+        backend = new FileStorageBackend(directory);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        backend.close();
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Test
+    void testUnreadableProfileIsSetAside() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(directory, "kesa.ser"))) {
+            SessionProfileCodec.write(SessionProfile.builder().sessionName("Kes\u00e4").lastRow(3).build(), out);
+        }
+        byte[] damaged = {0x4C, 0x50, 0x53, 0x50, 1, 0, 5}; // Cut short after the header
+        Files.write(new File(directory, "default_session.ser").toPath(), damaged);
+        Files.write(new File(directory, "default_session.ser.damaged").toPath(), new byte[] {1, 2, 3});
+
+        // Left out of the catalog and kept next to the earlier damaged file
+        assertEquals(1, backend.listProfiles().size());
+        assertEquals("kesa", backend.listProfiles().get(0).getFileName());
+        assertFalse(new File(directory, "default_session.ser").exists());
+        assertArrayEquals(damaged, Files.readAllBytes(new File(directory, "default_session.ser.damaged.1").toPath()));
+        assertEquals(3, new File(directory, "default_session.ser.damaged").length());
+    }
+}
@@ -0,0 +1,220 @@
+package tel.kontra.leiriposti.service;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import tel.kontra.leiriposti.model.Message;
+import tel.kontra.leiriposti.model.MessageArchive;
+import tel.kontra.leiriposti.model.MessageJournal;
+import tel.kontra.leiriposti.model.MessageStatus;
+import tel.kontra.leiriposti.model.MessageStorage;
+import tel.kontra.leiriposti.model.SessionProfile;
+import tel.kontra.leiriposti.model.SessionProfileCatalog;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class H2StorageBackendTest {
+
+    private static final Instant FROM = Instant.parse("2025-06-30T00:00:00Z");
+    private static final Instant TO = Instant.parse("2025-07-02T00:00:00Z");
+
+    private File directory;
+    private H2StorageBackend backend;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("h2").toFile();
+        backend = new H2StorageBackend(directory);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        backend.close();
+        try (Stream<Path> files = Files.walk(directory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private SessionProfile profile(String name, boolean isDefault) {
+        return SessionProfile.builder().sessionName(name).isDefault(isDefault).lastRow(7).build();
+    }
+
+    private Message message(int row, String recipient) {
+        Message message = new Message("1.7.2025 klo 12.00.0" + row, "Subject " + row, "Hei " + recipient + "!", recipient, "Mummo");
+        message.setId("sheet:" + row);
+        return message;
+    }
+
+    private MessageArchive archive(Message... messages) {
+        MessageArchive archive = new MessageArchive();
+        for (Message message : messages) {
+            message.setStatus(MessageStatus.PRINTED);
+            archive.add(message);
+        }
+        return archive;
+    }
+
+    private MessageStorage opened(SessionProfile profile) throws IOException {
+        MessageStorage storage = backend.openMessages(profile);
+        storage.open(message -> { }, (id, status) -> { });
+        return storage;
+    }
+
+    private void reopen() throws IOException {
+        backend.close();
+        backend = new H2StorageBackend(directory);
+    }
+
+    private static List<String> ids(List<Message> messages) {
+        List<String> ids = new ArrayList<>();
+        for (Message message : messages) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    void testProfileRoundTrip() throws IOException {
+        SessionProfile profile = profile("Kes\u00e4leiri 2025", true);
+        assertTrue(backend.saveProfile(profile));
+
+        reopen();
+        List<SessionProfileCatalog.Entry> entries = backend.listProfiles();
+        assertEquals(1, entries.size());
+        assertEquals("Kes\u00e4leiri 2025", entries.get(0).getSessionName());
+        assertTrue(entries.get(0).isDefault());
+        assertEquals(7, entries.get(0).getLastRow());
+
+        SessionProfile read = backend.readProfile(entries.get(0));
+        assertEquals(profile.getSessionId(), read.getSessionId());
+        assertEquals(profile.getSessionName(), read.getSessionName());
+    }
+
+    @Test
+    void testMessagesRoundTrip() throws IOException {
+        SessionProfile profile = profile("Leiri", true);
+        MessageStorage storage = backend.openMessages(profile);
+        assertFalse(storage.hasSnapshot());
+
+        Message active = message(0, "Aino");
+        storage.compact(() -> new MessageStorage.Snapshot(List.of(active), archive(message(1, "Eetu"))));
+        storage.open(message -> { }, (id, status) -> { });
+        storage.appendMessage(message(2, "Aino"));
+        storage.appendStatus(active, MessageStatus.QUEUED);
+        storage.close();
+        backend.saveProfile(profile);
+
+        reopen();
+        storage = backend.openMessages(profile);
+        assertTrue(storage.hasSnapshot());
+        MessageStorage.Snapshot snapshot = storage.readSnapshot();
+        assertEquals(List.of("sheet:0", "sheet:2"), ids(snapshot.getMessages()));
+        assertEquals(MessageStatus.QUEUED, snapshot.getMessages().get(0).getStatus());
+        assertEquals(1, snapshot.getArchive().size());
+        assertEquals("sheet:1", snapshot.getArchive().getId(0));
+        assertEquals(1, snapshot.getArchive().getMappedCount()); // Read from the status index into a mapped file
+
+        SessionProfileCatalog.Entry entry = backend.listProfiles().get(0);
+        assertEquals(2, entry.getActiveCount());
+        assertEquals(1, entry.getArchivedCount());
+    }
+
+    @Test
+    void testChangesWaitForFlush() throws IOException {
+        SessionProfile profile = profile("Leiri", true);
+        MessageStorage storage = opened(profile);
+        storage.appendMessage(message(0, "Aino"));
+        assertTrue(storage.hasPending());
+
+        // Not flushed, not saved
+        reopen();
+        assertTrue(backend.openMessages(profile).readSnapshot().getMessages().isEmpty());
+
+        storage = opened(profile);
+        storage.appendMessage(message(0, "Aino"));
+        storage.flush();
+        assertFalse(storage.hasPending());
+        reopen();
+        assertEquals(List.of("sheet:0"), ids(backend.openMessages(profile).readSnapshot().getMessages()));
+    }
+
+    @Test
+    void testFailedFlushIsRolledBack() throws IOException {
+        SessionProfile profile = profile("Leiri", true);
+        MessageStorage storage = opened(profile);
+        Message tooLong = message(1, "Eetu");
+        tooLong.setId("sheet:" + "1".repeat(200)); // Longer than the column
+
+        storage.appendMessage(message(0, "Aino"));
+        storage.appendMessage(tooLong);
+        assertThrows(IOException.class, storage::flush);
+
+        // Nothing of the transaction is written, the changes are kept for the next flush
+        assertTrue(storage.hasPending());
+        assertTrue(backend.openMessages(profile).readSnapshot().getMessages().isEmpty());
+    }
+
+    @Test
+    void testLettersOfEverySessionAreFound() throws IOException {
+        for (SessionProfile profile : List.of(profile("2024", false), profile("2025", true))) {
+            MessageStorage storage = opened(profile);
+            storage.appendMessage(message(0, "Aino"));
+            storage.appendMessage(message(1, "Eetu"));
+            storage.flush();
+        }
+
+        assertEquals(List.of("sheet:0", "sheet:0"), ids(backend.findMessages("Aino", FROM, TO)));
+        assertTrue(backend.findMessages("Aino", TO, TO.plusSeconds(60)).isEmpty());
+    }
+
+    @Test
+    void testJournalIsCopiedAsItIs() throws IOException {
+        SessionProfile profile = profile("Leiri", true);
+        Message active = message(0, "Aino");
+        MessageJournal journal = new MessageJournal(directory, profile.getFileName());
+        journal.open(message -> { }, (id, status) -> { });
+        journal.compact(() -> new MessageStorage.Snapshot(List.of(active), archive(message(1, "Eetu"))));
+        journal.appendStatus(active, MessageStatus.QUEUED);
+        journal.appendMessage(message(2, "Aino"));
+        journal.close();
+
+        // A torn record at the end stays in the file
+        File journalFile = new File(directory, profile.getFileName() + ".journal");
+        try (FileOutputStream out = new FileOutputStream(journalFile, true)) {
+            out.write(new byte[] { 0, 0, 0, 40, 1, 2 });
+        }
+        long length = journalFile.length();
+
+        MessageStorage storage = backend.openMessages(profile);
+        MessageStorage.Snapshot snapshot = storage.readSnapshot();
+        assertEquals(List.of("sheet:0", "sheet:2"), ids(snapshot.getMessages()));
+        assertEquals(MessageStatus.QUEUED, snapshot.getMessages().get(0).getStatus());
+        assertEquals("sheet:1", snapshot.getArchive().getId(0));
+        assertEquals(length, journalFile.length());
+        assertTrue(new File(directory, profile.getFileName() + ".messages").exists());
+    }
+
+    @Test
+    void testMessagesThatCanNotBeCopiedAreNeverWrittenOver() throws IOException {
+        SessionProfile profile = profile("Leiri", true);
+        Files.writeString(new File(directory, profile.getFileName() + ".messages").toPath(), "not a snapshot");
+
+        MessageStorage storage = backend.openMessages(profile);
+        assertTrue(storage.hasSnapshot());
+        assertThrows(IOException.class, storage::readSnapshot);
+        assertThrows(IOException.class, () -> storage.compact(() -> new MessageStorage.Snapshot(List.of(), new MessageArchive())));
+        assertTrue(backend.findMessages("Aino", FROM, TO).isEmpty());
+    }
+}
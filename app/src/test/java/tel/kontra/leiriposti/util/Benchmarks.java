@@ -0,0 +1,46 @@
+package tel.kontra.leiriposti.util;
+
+import java.util.function.Supplier;
+
+/**
+ * Timing helper shared by the benchmarks in the test sources.
+ *
+ * Every case is warmed up for a while before it is measured so the JIT has finished compiling it,
+ * the result of every call is kept so the JIT cannot drop the work.
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class Benchmarks {
+
+    private static final long WARMUP_NANOS = 2_000_000_000L; // Long enough for the JIT to finish
+    private static final long MEASURE_NANOS = 2_000_000_000L;
+
+    private static Object sink; // Keeps the results alive
+
+    /**
+     * Time a case and print the average time per call.
+     *
+     * @param name Name of the case.
+     * @param task The code to time.
+     */
+    public static void run(String name, Supplier<?> task) {
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < warmupEnd) {
+            sink = task.get();
+        }
+
+        long calls = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink = task.get();
+            calls++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MEASURE_NANOS);
+
+        System.out.printf("%-30s %12.1f ns/op%n", name, (double) elapsed / calls);
+    }
+}
@@ -0,0 +1,63 @@
+package tel.kontra.leiriposti.util;
+
+import java.text.SimpleDateFormat;
+import java.time.DayOfWeek;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Benchmark for {@link FormsTimestampParser} against the old way Message parsed timestamps,
+ * splitting and replacing strings and parsing with a new SimpleDateFormat and Calendar every time.
+ * Run with {@code ./gradlew benchmark -Pbenchmark=tel.kontra.leiriposti.util.FormsTimestampParserBenchmark}.
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class FormsTimestampParserBenchmark {
+
+    private static final String[] TIMESTAMPS = {
+        "24.4.2025 klo 14.08.47",
+        "1.7.2025 klo 9.15.02",
+        "12.7.2025 klo 23.59.59",
+        "30.12.2025 klo 0.00.01"
+    };
+
+    private static int next; // Index of the next timestamp
+
+    public static void main(String[] args) {
+        Benchmarks.run("SimpleDateFormat + Calendar", () -> legacyParse(nextTimestamp()));
+        Benchmarks.run("FormsTimestampParser", () -> FormsTimestampParser.parse(nextTimestamp()).getDayOfWeek());
+    }
+
+    private static String nextTimestamp() {
+        next = (next + 1) % TIMESTAMPS.length;
+        return TIMESTAMPS[next];
+    }
+
+    /**
+     * The parsing used in the Message constructor before {@link FormsTimestampParser}, kept here for comparison.
+     *
+     * @param timeStamp The timestamp to parse.
+     * @return The day of the week of the timestamp.
+     */
+    private static DayOfWeek legacyParse(String timeStamp) {
+        String[] dateTime = timeStamp.split(" klo ");
+        String date = dateTime[0].replace(".", "/").replace(" ", "/");
+        String time = dateTime[1].replace(".", ":").replace(" ", ":");
+
+        try {
+            SimpleDateFormat formatter = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
+            formatter.setTimeZone(TimeZone.getTimeZone("Europe/Helsinki"));
+            Date parsed = formatter.parse(date + " " + time);
+
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTime(parsed);
+            return DayOfWeek.of(calendar.get(Calendar.DAY_OF_WEEK));
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
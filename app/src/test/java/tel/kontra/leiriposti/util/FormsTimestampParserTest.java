@@ -0,0 +1,40 @@
+package tel.kontra.leiriposti.util;
+
+import java.time.DayOfWeek;
+import java.time.ZonedDateTime;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FormsTimestampParserTest {
+
+    @Test
+    void testParse() {
+        ZonedDateTime time = FormsTimestampParser.parse("12.7.2025 klo 14.03.22");
+        assertEquals(ZonedDateTime.of(2025, 7, 12, 14, 3, 22, 0, FormsTimestampParser.ZONE), time);
+        assertEquals(DayOfWeek.SATURDAY, time.getDayOfWeek());
+    }
+
+    @Test
+    void testParseTwoDigitsAndColons() {
+        ZonedDateTime time = FormsTimestampParser.parse(" 24.04.2025 klo 9:08:47 ");
+        assertEquals(ZonedDateTime.of(2025, 4, 24, 9, 8, 47, 0, FormsTimestampParser.ZONE), time);
+    }
+
+    @Test
+    void testFinnishTime() {
+        // Summer time in Finland is UTC+3
+        assertEquals(11, FormsTimestampParser.parse("12.7.2025 klo 14.03.22").toInstant().atZone(java.time.ZoneOffset.UTC).getHour());
+    }
+
+    @Test
+    void testInvalidTimestamps() {
+        assertThrows(IllegalArgumentException.class, () -> FormsTimestampParser.parse("12.7.2025 14.03.22"));
+        assertThrows(IllegalArgumentException.class, () -> FormsTimestampParser.parse("12/7/2025 klo 14.03.22"));
+        assertThrows(IllegalArgumentException.class, () -> FormsTimestampParser.parse("31.2.2025 klo 14.03.22"));
+        assertThrows(IllegalArgumentException.class, () -> FormsTimestampParser.parse("12.7.2025 klo 14.03.22 x"));
+        assertThrows(IllegalArgumentException.class, () -> FormsTimestampParser.parse(""));
+        assertThrows(IllegalArgumentException.class, () -> FormsTimestampParser.parse(null));
+    }
+}
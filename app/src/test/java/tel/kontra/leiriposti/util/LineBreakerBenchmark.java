@@ -0,0 +1,80 @@
+package tel.kontra.leiriposti.util;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark for {@link LineBreaker} against the old way of wrapping letter bodies,
+ * which measured every candidate substring with {@link FontMetrics#stringWidth(String)}.
+ *
+ * Both are run on 5000 character bodies, one with normal words and one without any whitespace.
+ * Run with {@code ./gradlew benchmark}.
+ *
+ * @version 1.0
+ * @since 0.3
+ *
+ * @author Markus
+ */
+public class LineBreakerBenchmark {
+
+    private static final int BODY_LENGTH = 5000;
+    private static final int MAX_WIDTH = 495; // Body width on an A4 page
+
+    public static void main(String[] args) {
+        FontMetrics metrics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB)
+            .createGraphics()
+            .getFontMetrics(new Font("Serif", Font.PLAIN, 12));
+        LineBreaker lineBreaker = new LineBreaker(metrics);
+
+        String words = words(BODY_LENGTH);
+        String noSpaces = "\u00e4".repeat(BODY_LENGTH);
+
+        Benchmarks.run("words, substring", () -> legacyWrap(words, metrics, MAX_WIDTH));
+        Benchmarks.run("words, line breaker", () -> lineBreaker.breakLines(words, MAX_WIDTH));
+        Benchmarks.run("no spaces, substring", () -> legacyWrap(noSpaces, metrics, MAX_WIDTH));
+        Benchmarks.run("no spaces, line breaker", () -> lineBreaker.breakLines(noSpaces, MAX_WIDTH));
+    }
+
+    /**
+     * Build a body of Finnish looking words.
+     *
+     * @param length Length of the body.
+     * @return The body text.
+     */
+    private static String words(int length) {
+        String[] words = { "moi", "leirill\u00e4", "on", "ollut", "tosi", "kivaa", "ja", "uimassa", "k\u00e4ytiin", "eilen" };
+        StringBuilder body = new StringBuilder(length);
+        for (int i = 0; body.length() < length; i++) {
+            body.append(words[i % words.length]).append(i % 40 == 39 ? '\n' : ' ');
+        }
+        body.setLength(length);
+        return body.toString();
+    }
+
+    /**
+     * The wrapping used before {@link LineBreaker}, kept here for comparison.
+     *
+     * @param body The body text to wrap.
+     * @param metrics Font metrics of the body font.
+     * @param maxWidth Maximum width of a line.
+     * @return The wrapped lines.
+     */
+    private static List<String> legacyWrap(String body, FontMetrics metrics, int maxWidth) {
+        List<String> lines = new ArrayList<>();
+        for (String line : body.split("\n")) {
+            int start = 0;
+            while (start < line.length()) {
+                int end = start;
+                while (end < line.length() && metrics.stringWidth(line.substring(start, end + 1)) <= maxWidth) {
+                    end++;
+                }
+                lines.add(line.substring(start, end));
+                start = end;
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,97 @@
+package tel.kontra.leiriposti.util;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LineBreakerTest {
+
+    private FontMetrics metrics;
+    private LineBreaker lineBreaker;
+
+    @BeforeEach
+    void setUp() {
+        metrics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB)
+            .createGraphics()
+            .getFontMetrics(new Font("Serif", Font.PLAIN, 12));
+        lineBreaker = new LineBreaker(metrics);
+    }
+
+    @Test
+    void testShortTextIsOneLine() {
+        assertEquals(List.of("Hei vaan!"), lineBreaker.breakLines("Hei vaan!", 1000));
+    }
+
+    @Test
+    void testBreaksBetweenWords() {
+        int maxWidth = lineBreaker.width("aaa bbb");
+        List<String> lines = lineBreaker.breakLines("aaa bbb ccc", maxWidth);
+        assertEquals(List.of("aaa bbb", "ccc"), lines);
+    }
+
+    @Test
+    void testBreaksLongWord() {
+        String word = "a".repeat(200);
+        int maxWidth = lineBreaker.width("aaaaaaaaaa");
+        List<String> lines = lineBreaker.breakLines(word, maxWidth);
+
+        assertEquals(20, lines.size());
+        assertEquals(word, String.join("", lines));
+    }
+
+    @Test
+    void testKeepsLineBreaksAndEmptyLines() {
+        assertEquals(List.of("eka", "", "toka", "kolmas"), lineBreaker.breakLines("eka\n\ntoka\r\nkolmas\n", 1000));
+    }
+
+    @Test
+    void testLinesFitAndKeepText() {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            body.append(i % 7 == 0 ? "pitk\u00e4sanainenleirikirje " : "moi ");
+        }
+        int maxWidth = 150;
+        List<String> lines = lineBreaker.breakLines(body.toString(), maxWidth);
+
+        for (String line : lines) {
+            assertTrue(lineBreaker.width(line) <= maxWidth, line);
+            assertEquals(metrics.stringWidth(line), lineBreaker.width(line), line);
+        }
+        assertEquals(body.toString().replace(" ", ""), String.join("", lines).replace(" ", ""));
+    }
+
+    @Test
+    void testFractionalLinesFit() {
+        Graphics2D g2d = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+        FontMetrics fractional = g2d.getFontMetrics(new Font("Serif", Font.PLAIN, 10));
+        LineBreaker breaker = new LineBreaker(fractional);
+
+        // Letters whose advances round down, a long line of them would be wider than measured
+        String body = "mimmi muumi ilmi ".repeat(40) + "m".repeat(200);
+        int maxWidth = 400;
+        for (String line : breaker.breakLines(body, maxWidth)) {
+            assertTrue(fractional.getStringBounds(line, g2d).getWidth() <= maxWidth, line);
+        }
+        g2d.dispose();
+    }
+
+    @Test
+    void testCharacterWiderThanLine() {
+        assertEquals(List.of("W", "W"), lineBreaker.breakLines("WW", 1));
+    }
+
+    @Test
+    void testEmptyText() {
+        assertTrue(lineBreaker.breakLines("", 100).isEmpty());
+        assertTrue(lineBreaker.breakLines(null, 100).isEmpty());
+    }
+}
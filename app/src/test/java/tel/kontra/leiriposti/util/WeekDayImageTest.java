@@ -0,0 +1,17 @@
+package tel.kontra.leiriposti.util;
+
+import java.time.DayOfWeek;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WeekDayImageTest {
+
+    @Test
+    void testImagesAreNumberedFromSunday() {
+        assertEquals(1, WeekDayImage.imageNumber(DayOfWeek.SUNDAY));
+        assertEquals(2, WeekDayImage.imageNumber(DayOfWeek.MONDAY));
+        assertEquals(7, WeekDayImage.imageNumber(DayOfWeek.SATURDAY));
+    }
+}